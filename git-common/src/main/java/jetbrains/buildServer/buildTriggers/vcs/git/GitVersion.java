@@ -155,4 +155,14 @@ public final class GitVersion implements Comparable<GitVersion> {
   public static boolean negativeRefSpecSupported(@NotNull GitVersion version) {
     return !version.isLessThan(GIT_VERSION_2_29);
   }
+
+  // multi-pack bitmaps written by 'git repack --geometric --write-midx' were added in version 2.34.0
+  public static boolean isGeometricRepackSupported(@NotNull GitVersion version) {
+    return !version.isLessThan(new GitVersion(2, 34, 0));
+  }
+
+  // changed-path Bloom filters written by 'git commit-graph write --changed-paths' were added in version 2.27.0
+  public static boolean isCommitGraphChangedPathsSupported(@NotNull GitVersion version) {
+    return !version.isLessThan(new GitVersion(2, 27, 0));
+  }
 }
\ No newline at end of file
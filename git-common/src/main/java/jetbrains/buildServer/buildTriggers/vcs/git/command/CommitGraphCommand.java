@@ -16,5 +16,8 @@ public interface CommitGraphCommand extends BaseCommand {
   @NotNull
   CommitGraphCommand setReachable();
 
+  @NotNull
+  CommitGraphCommand setChangedPaths();
+
   int call() throws VcsException;
 }
@@ -34,6 +34,12 @@ public interface FetchCommand extends BaseCommand, AuthCommand<FetchCommand> {
   @NotNull
   FetchCommand setRefreshCommitGraphIfCorrupted(GitFacade facade);
 
+  /**
+   * @param changedPaths whether the refreshed commit-graph should contain changed-path Bloom filters
+   */
+  @NotNull
+  FetchCommand setRefreshCommitGraphIfCorrupted(GitFacade facade, boolean changedPaths);
+
   @NotNull
   FetchCommand setNoShowForcedUpdates(boolean noShowForcedUpdates);
 
@@ -87,14 +87,14 @@ public class GitCommandLine extends GeneralCommandLine {
         getParametersList().addAt(3, "credential.helper=" + credHelperPath);
 
 
-        if (myCtx.isCleanCredHelperScript()) {
-          addPostAction(new Runnable() {
-            @Override
-            public void run() {
-              FileUtil.delete(new File(credHelperPath));
-            }
-          });
-        }
+        File credHelper = new File(credHelperPath);
+        addPostAction(new Runnable() {
+          @Override
+          public void run() {
+            if (myScriptGen.release(credHelper) && myCtx.isCleanCredHelperScript())
+              FileUtil.delete(credHelper);
+          }
+        });
       }
     }
 
@@ -392,14 +392,14 @@ public class GitCommandLine extends GeneralCommandLine {
       }
       action.accept(askPassPath);
     } catch (Exception e) {
-      if (askPass != null) {
+      if (askPass != null && myScriptGen.release(askPass)) {
         FileUtil.delete(askPass);
       }
       throw new VcsException(e);
     }
     final File finalAskPass = askPass;
     addPostAction(() -> {
-      if (myCtx.isDeleteTempFiles())
+      if (myScriptGen.release(finalAskPass) && myCtx.isDeleteTempFiles())
         FileUtil.delete(finalAskPass);
     });
   }
@@ -15,6 +15,9 @@ public interface LsRemoteCommand extends BaseCommand, AuthCommand<LsRemoteComman
   @NotNull
   LsRemoteCommand setTags();
 
+  @NotNull
+  LsRemoteCommand setHeads();
+
   @NotNull
   LsRemoteCommand setBranches(String ... branches);
 
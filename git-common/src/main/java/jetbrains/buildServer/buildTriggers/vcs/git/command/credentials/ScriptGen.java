@@ -22,8 +22,29 @@ public abstract class ScriptGen {
   @NotNull
   public abstract File generateAskPass(@Nullable String password) throws IOException;
 
+  /**
+   * Generates a credential helper script which deletes itself on the 'erase' operation
+   */
   @NotNull
-  public abstract File generateCredentialHelper() throws IOException;
+  public File generateCredentialHelper() throws IOException {
+    return generateCredentialHelper(true);
+  }
+
+  /**
+   * @param deleteOnErase whether the script deletes itself on the 'erase' operation, a script shared
+   *                      by several commands should be deleted only when none of them uses it
+   */
+  @NotNull
+  public abstract File generateCredentialHelper(boolean deleteOnErase) throws IOException;
+
+  /**
+   * Called when a command doesn't use the generated script anymore
+   * @param script script generated by this generator
+   * @return true if the script is not used by other commands and can be deleted
+   */
+  public boolean release(@NotNull File script) {
+    return true;
+  }
 
   protected String getJavaPath() {
     String javaHome = System.getProperty("java.home");
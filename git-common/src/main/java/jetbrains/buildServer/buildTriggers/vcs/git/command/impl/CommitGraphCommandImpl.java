@@ -10,6 +10,7 @@ public class CommitGraphCommandImpl extends BaseCommandImpl implements CommitGra
   private String myCommandMode = "verify";
   private String myStrategy = null;
   private boolean myReachable = false;
+  private boolean myChangedPaths = false;
 
   public CommitGraphCommandImpl(@NotNull GitCommandLine cmd) {
     super(cmd);
@@ -43,6 +44,13 @@ public class CommitGraphCommandImpl extends BaseCommandImpl implements CommitGra
     return this;
   }
 
+  @NotNull
+  @Override
+  public CommitGraphCommand setChangedPaths() {
+    myChangedPaths = true;
+    return this;
+  }
+
   @Override
   public int call() throws VcsException {
     GitCommandLine cmd = getCmd();
@@ -52,6 +60,10 @@ public class CommitGraphCommandImpl extends BaseCommandImpl implements CommitGra
       cmd.addParameter("--reachable");
     }
 
+    if (myChangedPaths) {
+      cmd.addParameter("--changed-paths");
+    }
+
     if (myStrategy != null) {
       cmd.addParameter("--split=" + myStrategy);
     }
@@ -6,6 +6,7 @@ import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitVersion;
+import jetbrains.buildServer.buildTriggers.vcs.git.command.CommitGraphCommand;
 import jetbrains.buildServer.buildTriggers.vcs.git.command.FetchCommand;
 import jetbrains.buildServer.buildTriggers.vcs.git.command.GitCommandLine;
 import jetbrains.buildServer.buildTriggers.vcs.git.command.GitFacade;
@@ -77,11 +78,21 @@ public class FetchCommandImpl extends BaseAuthCommandImpl<FetchCommand> implemen
   @NotNull
   @Override
   public FetchCommand setRefreshCommitGraphIfCorrupted(GitFacade facade) {
-    myCommitGraphRefresher = () -> facade.commitGraph()
-                                  .setWriteCommand()
-                                  .setReachable()
-                                  .setStrategy("replace")
-                                  .call();
+    return setRefreshCommitGraphIfCorrupted(facade, false);
+  }
+
+  @NotNull
+  @Override
+  public FetchCommand setRefreshCommitGraphIfCorrupted(GitFacade facade, boolean changedPaths) {
+    myCommitGraphRefresher = () -> {
+      CommitGraphCommand write = facade.commitGraph()
+                                       .setWriteCommand()
+                                       .setReachable()
+                                       .setStrategy("replace");
+      if (changedPaths)
+        write.setChangedPaths();
+      return write.call();
+    };
     return this;
   }
 
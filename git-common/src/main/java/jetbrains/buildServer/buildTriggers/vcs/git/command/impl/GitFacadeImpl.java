@@ -18,8 +18,14 @@ public class GitFacadeImpl implements GitFacade {
 
   public GitFacadeImpl(@NotNull File repositoryDir,
                        @NotNull Context ctx) {
+    this(repositoryDir, ctx, createScriptGen(ctx.getTempDir()));
+  }
+
+  public GitFacadeImpl(@NotNull File repositoryDir,
+                       @NotNull Context ctx,
+                       @NotNull ScriptGen scriptGen) {
     myCtx = ctx;
-    myScriptGen = makeScriptGen();
+    myScriptGen = scriptGen;
     myRepositoryDir = repositoryDir;
   }
 
@@ -28,8 +34,7 @@ public class GitFacadeImpl implements GitFacade {
   }
 
   @NotNull
-  private ScriptGen makeScriptGen() {
-    final File tempDir = myCtx.getTempDir();
+  public static ScriptGen createScriptGen(@NotNull File tempDir) {
     return SystemInfo.isUnix ? new UnixScriptGen(tempDir, new EscapeEchoArgumentUnix()) : new WinScriptGen(tempDir, new EscapeEchoArgumentWin());
   }
 
@@ -16,6 +16,7 @@ public class LsRemoteCommandImpl extends BaseAuthCommandImpl<LsRemoteCommand> im
 
   private boolean myPeelRefs = false;
   private boolean myTags = false;
+  private boolean myHeads = false;
 
   private final List<String> myLsRemoteBranches = new ArrayList<>();
 
@@ -36,6 +37,13 @@ public class LsRemoteCommandImpl extends BaseAuthCommandImpl<LsRemoteCommand> im
     return this;
   }
 
+  @NotNull
+  @Override
+  public LsRemoteCommand setHeads() {
+    myHeads = true;
+    return this;
+  }
+
   @NotNull
   @Override
   public LsRemoteCommand setBranches(String... lsRemoteBranches) {
@@ -47,6 +55,9 @@ public class LsRemoteCommandImpl extends BaseAuthCommandImpl<LsRemoteCommand> im
   public List<Ref> call() throws VcsException {
     GitCommandLine cmd = getCmd();
     cmd.addParameter("ls-remote");
+    if (myHeads) {
+      cmd.addParameter("--heads");
+    }
     if (myTags) {
       cmd.addParameter("--tags");
     }
@@ -52,20 +52,21 @@ public class UnixScriptGen extends ScriptGen {
   /**
    * #!/bin/sh
    * if [ "$1" = "erase" ]; then
-   * rm '/.../credHelperXXXXXXX.sh';
+   * rm '/.../credHelperXXXXXXX.sh'; #only when deleteOnErase is set
    * exit;
    * fi
    * "/...../jre/bin/java" -cp '/...../plugins/jetbrains.git/lib/git-common.jar' jetbrains.buildServer.buildTriggers.vcs.git.command.credentials.CredentialsHelper $*
    */
   @NotNull
   @Override
-  public File generateCredentialHelper() throws IOException {
+  public File generateCredentialHelper(boolean deleteOnErase) throws IOException {
     File script = FileUtil.createTempFile(myTempDir, "credHelper", ".sh", true);
     try (PrintWriter out = new PrintWriter(script)) {
       out.println("#!/bin/sh");
 
       out.println("if [ \"$1\" = \"erase\" ]; then");
-      out.printf("rm '%s';%n", script.getCanonicalPath());
+      if (deleteOnErase)
+        out.printf("rm '%s';%n", script.getCanonicalPath());
       out.println("exit;");
       out.println("fi");
 
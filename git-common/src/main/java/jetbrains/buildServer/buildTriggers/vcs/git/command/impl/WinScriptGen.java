@@ -52,13 +52,13 @@ public class WinScriptGen extends ScriptGen {
    * "C:\...\bin\java" -cp "C:/.../TeamCity/buildAgent/plugins/jetbrains.git/lib/git-common.jar" jetbrains.buildServer.buildTriggers.vcs.git.command.credentials.CredentialsHelper %*
    * goto end
    * :erase
-   * del "C:\...\credHelperXXXXXXXXXX.bat"
+   * del "C:\...\credHelperXXXXXXXXXX.bat" (only when deleteOnErase is set)
    * :end
    *
    */
   @NotNull
   @Override
-  public File generateCredentialHelper() throws IOException {
+  public File generateCredentialHelper(boolean deleteOnErase) throws IOException {
     File script = FileUtil.createTempFile(myTempDir, "cred", ".bat", true);
     try (PrintWriter out = new PrintWriter(script)) {
       out.println("@echo off");
@@ -69,7 +69,8 @@ public class WinScriptGen extends ScriptGen {
                  CredentialsHelper.class.getName()).flush();
       out.println("goto end");
       out.println(":erase");
-      out.printf("del \"%s\"%n", script.getCanonicalPath());
+      if (deleteOnErase)
+        out.printf("del \"%s\"%n", script.getCanonicalPath());
       out.println("echo 123");
       out.println(":end");
 
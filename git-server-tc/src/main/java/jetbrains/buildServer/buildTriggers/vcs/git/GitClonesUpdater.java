@@ -2,6 +2,7 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.git;
 
+import java.io.File;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -85,13 +86,17 @@ public class GitClonesUpdater {
       if (state == null) continue;
 
       OperationContext context = myVcs.createContext(root, "updating local clone");
+      context.setFetchPriority(FetchPriority.BACKGROUND);
       try {
         IOGuard.allowNetworkAndCommandLine(() -> {
           GitVcsRoot gitRoot = context.getGitRoot();
           Disposable threadName = NamedThreadFactory.patchThreadName("Updating local clone directory: " + gitRoot.getRepositoryDir() + " (" + gitRoot.getRepositoryFetchURL().toString() + ")");
           try {
             myRepositoryManager.runWithDisabledRemove(gitRoot.getRepositoryDir(), () -> {
-              ReentrantLock writeLock = myRepositoryManager.getWriteLock(context.getRepository().getDirectory());
+              File repositoryDir = context.getRepository().getDirectory();
+              // do nothing if other fetches wait for the clone, they will update it anyway
+              if (myRepositoryManager.getFetchScheduler().hasQueuedFetches(repositoryDir)) return;
+              ReentrantLock writeLock = myRepositoryManager.getWriteLock(repositoryDir);
               if (!writeLock.tryLock()) return; // do nothing because another process already took a write lock and it's not that important for us to perform this fetch
 
               try {
@@ -1,5 +1,3 @@
-
-
 package jetbrains.buildServer.buildTriggers.vcs.git;
 
 import org.eclipse.jgit.lib.Repository;
@@ -8,19 +6,37 @@ import org.eclipse.jgit.util.FS;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Cache of repositories.
  *
  * Tracks number of usages of the repository and once it becomes
- * zero repository is closed and removed from the cache.
+ * zero repository is closed and removed from the cache. If an idle timeout is
+ * configured, unused repository is closed only when it is not used for the timeout.
+ * If a warm repositories count is configured, that many most recently used
+ * repositories are kept opened, so their pack files and indexes stay loaded.
+ *
+ * ThreadSafe, doesn't block callers.
  */
 final class AutoCloseRepositoryCache {
 
-  private final Map<RepositoryCache.FileKey, CachedRepository> myRepositories = new HashMap<RepositoryCache.FileKey, CachedRepository>();
+  private static final long EVICTION_CHECK_INTERVAL_MILLIS = 1000;
+
+  private final ServerPluginConfig myConfig;
+  private final ConcurrentMap<RepositoryCache.FileKey, CachedRepository> myRepositories = new ConcurrentHashMap<>();
+  private final AtomicLong myLastEvictionCheck = new AtomicLong();
+
+  AutoCloseRepositoryCache(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
 
   /**
    * Returns a repository for the given key or null if repository is not found
@@ -31,13 +47,15 @@ final class AutoCloseRepositoryCache {
    * @return see above
    */
   @Nullable
-  synchronized Repository get(@NotNull RepositoryCache.FileKey key) {
+  Repository get(@NotNull RepositoryCache.FileKey key) {
+    evictIdle();
     CachedRepository cachedRepository = myRepositories.get(key);
-    if (cachedRepository != null) {
-      Repository result = cachedRepository.getRepository();
-      cachedRepository.inc();
-      return result;
-    }
+    if (cachedRepository == null)
+      return null;
+    if (cachedRepository.inc())
+      return cachedRepository.getRepository();
+    //repository is being closed
+    myRepositories.remove(key, cachedRepository);
     return null;
   }
 
@@ -52,38 +70,107 @@ final class AutoCloseRepositoryCache {
    * @return see above
    */
   @NotNull
-  synchronized Repository add(@NotNull RepositoryCache.FileKey key, @NotNull Repository db) {
-    CachedRepository existing = myRepositories.get(key);
-    if (existing == null) {
-      myRepositories.put(key, new CachedRepository(db));
-      return db;
-    } else {
-      Repository result = existing.getRepository();
-      existing.inc();
-      return result;
+  Repository add(@NotNull RepositoryCache.FileKey key, @NotNull Repository db) {
+    CachedRepository cachedRepository = new CachedRepository(db);
+    while (true) {
+      CachedRepository existing = myRepositories.putIfAbsent(key, cachedRepository);
+      if (existing == null)
+        return db;
+      if (existing.inc())
+        return existing.getRepository();
+      myRepositories.remove(key, existing);
     }
   }
 
+  /**
+   * Returns the 'teamcity.remote' setting of the repository acquired via {@link #add} or {@link #get}.
+   * The setting is read from the repository config once per opened repository.
+   */
+  @Nullable
+  String getRemote(@NotNull Repository db) {
+    CachedRepository cachedRepository = myRepositories.get(getKey(db));
+    if (cachedRepository == null || cachedRepository.getRepository() != db)
+      return db.getConfig().getString("teamcity", null, "remote");
+    return cachedRepository.getRemote();
+  }
+
   /**
    * Releases the repository acquired via {@link #add} or {@link #get} method.
    * Decrements an openCounter for the repository and if it reaches 0 repository
-   * is closed and removed from the cache. Does nothing if repository is not
-   * present found in the cache.
+   * is closed and removed from the cache, unless the idle timeout or the warm
+   * repositories count is configured.
+   * Does nothing if repository is not present found in the cache.
    * @param db repository to release
    * @param forceRelease if set, repository will be released even if openCounter is not 0
    */
-  synchronized void release(@NotNull Repository db, final boolean forceRelease) {
-    RepositoryCache.FileKey key = RepositoryCache.FileKey.exact(db.getDirectory(), FS.DETECTED);
+  void release(@NotNull Repository db, final boolean forceRelease) {
+    RepositoryCache.FileKey key = getKey(db);
     CachedRepository cachedRepository = myRepositories.get(key);
-    if (cachedRepository != null && cachedRepository.getRepository() == db && (forceRelease || cachedRepository.dec() == 0)) {
-      myRepositories.remove(key);
-      db.close();
+    if (cachedRepository == null || cachedRepository.getRepository() != db)
+      return;
+    if (forceRelease) {
+      if (cachedRepository.forceClose())
+        close(key, cachedRepository);
+      return;
+    }
+    if (cachedRepository.dec() == 0) {
+      if (myConfig.getRepositoryIdleTimeoutMillis() > 0 || myConfig.getWarmRepositoriesCount() > 0) {
+        cachedRepository.touch();
+      } else if (cachedRepository.closeIfUnused()) {
+        close(key, cachedRepository);
+      }
     }
+    evictIdle();
+  }
+
+  /**
+   * Closes the repository if it is not used, e.g. before its directory is removed
+   */
+  void releaseUnused(@NotNull RepositoryCache.FileKey key) {
+    CachedRepository cachedRepository = myRepositories.get(key);
+    if (cachedRepository != null && cachedRepository.closeIfUnused())
+      close(key, cachedRepository);
+  }
+
+  private void evictIdle() {
+    long now = System.currentTimeMillis();
+    long lastCheck = myLastEvictionCheck.get();
+    if (now - lastCheck < EVICTION_CHECK_INTERVAL_MILLIS || !myLastEvictionCheck.compareAndSet(lastCheck, now))
+      return;
+    long idleTimeout = myConfig.getRepositoryIdleTimeoutMillis();
+    int warmCount = myConfig.getWarmRepositoriesCount();
+    List<Map.Entry<RepositoryCache.FileKey, CachedRepository>> unused = new ArrayList<>();
+    for (Map.Entry<RepositoryCache.FileKey, CachedRepository> e : myRepositories.entrySet()) {
+      if (e.getValue().isUnused())
+        unused.add(e);
+    }
+    //the most recently used repositories are kept opened
+    unused.sort(Comparator.comparingLong((Map.Entry<RepositoryCache.FileKey, CachedRepository> e) -> e.getValue().getLastUsed()).reversed());
+    for (int i = 0; i < unused.size(); i++) {
+      CachedRepository cachedRepository = unused.get(i).getValue();
+      if (i < warmCount || now - cachedRepository.getLastUsed() < idleTimeout)
+        continue;
+      if (cachedRepository.closeIfUnused())
+        close(unused.get(i).getKey(), cachedRepository);
+    }
+  }
+
+  private void close(@NotNull RepositoryCache.FileKey key, @NotNull CachedRepository cachedRepository) {
+    myRepositories.remove(key, cachedRepository);
+    cachedRepository.getRepository().close();
+  }
+
+  @NotNull
+  private static RepositoryCache.FileKey getKey(@NotNull Repository db) {
+    return RepositoryCache.FileKey.exact(db.getDirectory(), FS.DETECTED);
   }
 
   private final static class CachedRepository {
+    private static final int CLOSED = -1;
     private final Repository myRepository;
     private final AtomicInteger myOpenCounter = new AtomicInteger(1);
+    private volatile long myLastUsed = System.currentTimeMillis();
+    private volatile String myRemote;
     public CachedRepository(@NotNull Repository repository) {
       myRepository = repository;
     }
@@ -91,11 +178,56 @@ final class AutoCloseRepositoryCache {
     public Repository getRepository() {
       return myRepository;
     }
-    public void inc() {
-      myOpenCounter.incrementAndGet();
+    @Nullable
+    public String getRemote() {
+      String remote = myRemote;
+      if (remote == null) {
+        remote = myRepository.getConfig().getString("teamcity", null, "remote");
+        myRemote = remote;
+      }
+      return remote;
+    }
+    public long getLastUsed() {
+      return myLastUsed;
+    }
+    public void touch() {
+      myLastUsed = System.currentTimeMillis();
+    }
+    /**
+     * @return false if the repository is closed
+     */
+    public boolean inc() {
+      while (true) {
+        int count = myOpenCounter.get();
+        if (count < 0)
+          return false;
+        if (myOpenCounter.compareAndSet(count, count + 1))
+          return true;
+      }
     }
     public int dec() {
-      return myOpenCounter.decrementAndGet();
+      while (true) {
+        int count = myOpenCounter.get();
+        if (count <= 0)
+          return CLOSED;
+        if (myOpenCounter.compareAndSet(count, count - 1))
+          return count - 1;
+      }
+    }
+    public boolean isUnused() {
+      return myOpenCounter.get() == 0;
+    }
+    /**
+     * @return true if the caller should close the repository
+     */
+    public boolean closeIfUnused() {
+      return myOpenCounter.compareAndSet(0, CLOSED);
+    }
+    /**
+     * @return true if the caller should close the repository
+     */
+    public boolean forceClose() {
+      return myOpenCounter.getAndSet(CLOSED) != CLOSED;
     }
   }
-}
\ No newline at end of file
+}
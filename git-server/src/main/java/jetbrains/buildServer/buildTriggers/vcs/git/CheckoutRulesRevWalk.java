@@ -9,6 +9,7 @@ import jetbrains.buildServer.buildTriggers.vcs.git.submodules.IgnoreSubmoduleErr
 import jetbrains.buildServer.buildTriggers.vcs.git.submodules.SubmoduleResolverImpl;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.IncludeRule;
 import jetbrains.buildServer.vcs.VcsException;
 import org.eclipse.jgit.lib.ObjectDatabase;
 import org.eclipse.jgit.lib.ObjectId;
@@ -27,6 +28,7 @@ import static jetbrains.buildServer.buildTriggers.vcs.git.submodules.SubmoduleAw
  */
 public class CheckoutRulesRevWalk extends LimitingRevWalk {
   public static final String TEAMCITY_MAX_CHECKED_COMMITS_PROP = "teamcity.git.checkoutRulesRevWalk.maxCheckedCommits";
+  public static final String USE_COMMIT_GRAPH_PROP = "teamcity.git.checkoutRulesRevWalk.useCommitGraph";
   private final CheckoutRules myCheckoutRules;
   private final Set<String> myStopRevisions = new HashSet<>();
   private final List<String> myReachedStopRevisions = new ArrayList<>();
@@ -34,6 +36,13 @@ public class CheckoutRulesRevWalk extends LimitingRevWalk {
   private final Set<String> myVisitedRevisions = new HashSet<>();
   private SubmoduleResolverImpl mySubmoduleResolver;
   private final Set<ObjectId> myStopRevisionsParents = new HashSet<>();
+  private boolean myBloomFiltersLoaded;
+  private CommitGraphBloomFilters myBloomFilters;
+  private Collection<String> myIncludedPaths;
+  private CheckoutRulesRevisionMemo myMemo;
+  private String myMemoRulesKey;
+  private long myMemoResetCounter;
+  private boolean myLimitReached;
 
   private final static Logger LOG = Logger.getInstance(CheckoutRulesRevWalk.class);
 
@@ -54,17 +63,47 @@ public class CheckoutRulesRevWalk extends LimitingRevWalk {
     myStopRevisionsParents.clear();
   }
 
+  /**
+   * Enables reuse of results memoized for the start revision or for its ancestors. A memoized result for
+   * an ancestor is reused only if all commits visited before it have a single parent, the rest of the walk
+   * is the same as the walk from the ancestor in this case.
+   */
+  public void setMemo(@NotNull CheckoutRulesRevisionMemo memo) {
+    myMemo = memo;
+    myMemoRulesKey = CheckoutRulesRevisionMemo.getRulesKey(myCheckoutRules);
+    myMemoResetCounter = memo.getResetCounter();
+  }
+
   @Nullable
   public RevCommit findMatchedCommit() throws IOException {
+    RevCommit result = findMatchedCommitInternal();
+    if (myMemo != null && !myLimitReached) {
+      String matched = result != null ? result.name() : null;
+      myMemo.put(myMemoRulesKey, ObjectId.fromString(myStartRevision), myStopRevisions,
+                 new CheckoutRulesRevisionMemo.Entry(matched, myVisitedRevisions, myReachedStopRevisions), myMemoResetCounter);
+    }
+    return result;
+  }
+
+  @Nullable
+  private RevCommit findMatchedCommitInternal() throws IOException {
     int maxNumberOfCheckedCommits = TeamCityProperties.getInteger(TEAMCITY_MAX_CHECKED_COMMITS_PROP, 10_000);
 
     markStart(parseCommit(ObjectId.fromString(GitUtils.versionRevision(myStartRevision))));
     rememberStopRevisionsParents();
     markStopRevisionsParentsAsUninteresting(this);
 
+    boolean linearHistory = true;
     while (next() != null) {
       RevCommit cc = getCurrentCommit();
 
+      if (linearHistory && myMemo != null) {
+        CheckoutRulesRevisionMemo.Entry memoized = myMemo.get(myMemoRulesKey, cc, myStopRevisions);
+        if (memoized != null) {
+          return applyMemoizedResult(memoized);
+        }
+      }
+
       if (myVisitedRevisions.isEmpty()) {
         // initialize the submodules resolver for the first revision only
         initSubmodulesResolver();
@@ -80,13 +119,26 @@ public class CheckoutRulesRevWalk extends LimitingRevWalk {
       if (myVisitedRevisions.size() >= maxNumberOfCheckedCommits) {
         LOG.info("Reached the limit of " + maxNumberOfCheckedCommits + " checked commits for the start revision: " + myStartRevision +
                  " and stop revisions: " + myStopRevisions + " in repository: " + getGitRoot().toString() + ", giving up");
+        myLimitReached = true;
         return null;
       }
+
+      if (cc.getParentCount() > 1) {
+        linearHistory = false;
+      }
     }
 
     return null;
   }
 
+  @Nullable
+  private RevCommit applyMemoizedResult(@NotNull CheckoutRulesRevisionMemo.Entry memoized) throws IOException {
+    myVisitedRevisions.addAll(memoized.getVisitedRevisions());
+    myReachedStopRevisions.addAll(memoized.getReachedStopRevisions());
+    String matched = memoized.getMatchedRevision();
+    return matched != null ? parseCommit(ObjectId.fromString(matched)) : null;
+  }
+
   private void checkIfStopRevision(@NotNull String revision) {
     if (myStopRevisions.contains(revision)) {
       myReachedStopRevisions.add(revision);
@@ -191,6 +243,9 @@ public class CheckoutRulesRevWalk extends LimitingRevWalk {
   }
 
   private boolean isAffectedByCheckoutRules(@NotNull GitVcsRoot gitVcsRoot, @Nullable RevCommit parent) throws IOException {
+    if (isNotChangedAccordingToBloomFilter(parent))
+      return false;
+
     try (VcsChangeTreeWalk tw = newVcsChangeTreeWalk()) {
       tw.setFilter(new IgnoreSubmoduleErrorsTreeFilter(gitVcsRoot));
       tw.setRecursive(true);
@@ -220,6 +275,60 @@ public class CheckoutRulesRevWalk extends LimitingRevWalk {
     return false;
   }
 
+  /**
+   * Bloom filters are computed against the first parent, so only this diff can be skipped.
+   * The filter contains parent directories of changed files, so it can be checked for include rule paths.
+   */
+  private boolean isNotChangedAccordingToBloomFilter(@Nullable RevCommit parent) {
+    RevCommit commit = getCurrentCommit();
+    if (parent != null && (commit.getParentCount() == 0 || commit.getParent(0) != parent))
+      return false;
+    CommitGraphBloomFilters filters = getBloomFilters();
+    return filters != null && filters.isNotChanged(commit, myIncludedPaths);
+  }
+
+  @Nullable
+  private CommitGraphBloomFilters getBloomFilters() {
+    if (myBloomFiltersLoaded)
+      return myBloomFilters;
+    myBloomFiltersLoaded = true;
+    // changes in submodules are not present in the filters of the main repository
+    if (getGitRoot().isCheckoutSubmodules() || !TeamCityProperties.getBooleanOrTrue(USE_COMMIT_GRAPH_PROP))
+      return null;
+    Collection<String> paths = new ArrayList<>();
+    for (IncludeRule rule : myCheckoutRules.getIncludeRules()) {
+      String path = trimSlashes(rule.getFrom());
+      if (path.isEmpty() || path.equals("."))
+        return null; // the whole repository is included
+      paths.add(path);
+    }
+    if (paths.isEmpty())
+      return null;
+    myIncludedPaths = paths;
+    myBloomFilters = CommitGraphBloomFilters.open(getRepository().getDirectory());
+    return myBloomFilters;
+  }
+
+  @Override
+  public void close() {
+    if (myBloomFilters != null) {
+      myBloomFilters.close();
+      myBloomFilters = null;
+    }
+    super.close();
+  }
+
+  @NotNull
+  private static String trimSlashes(@NotNull String path) {
+    int start = 0;
+    int end = path.length();
+    while (start < end && path.charAt(start) == '/')
+      start++;
+    while (end > start && path.charAt(end - 1) == '/')
+      end--;
+    return path.substring(start, end);
+  }
+
   @NotNull
   private VcsChangeTreeWalk newVcsChangeTreeWalk() {
     return new VcsChangeTreeWalk(getObjectReader(), getGitRoot().debugInfo(), getConfig().verboseTreeWalkLog());
@@ -0,0 +1,345 @@
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.FileRule;
+import jetbrains.buildServer.vcs.IncludeRule;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Memoizes results of the search for the latest revision matched by checkout rules in a single clone.
+ *
+ * <p>Entries are keyed by normalized checkout rules, start commit and stop revisions. An entry keeps
+ * the matched commit, the visited commits and the reached stop revisions, so a search from a descendant
+ * of a memoized start commit can stop as soon as it reaches it (see {@link CheckoutRulesRevWalk}).
+ * The result of the search depends only on the immutable commit graph, so entries are removed only
+ * when the revisions cache is reset.
+ *
+ * <p>The memo is bounded by the total number of visited commits in its entries, the least recently used
+ * entries are removed first. When the persistent cache is enabled, entries are appended to a file in
+ * the clone caches directory and read back on first access.
+ *
+ * ThreadSafe.
+ */
+public final class CheckoutRulesRevisionMemo {
+
+  private static final Logger LOG = Logger.getInstance(CheckoutRulesRevisionMemo.class.getName());
+  private static final String FILE_NAME = "checkoutRulesRevisions.memo";
+  private static final int MAGIC = 0x5443524d; //TCRM
+  private static final int VERSION = 1;
+
+  private final ServerPluginConfig myConfig;
+  private final File myRepositoryDir;
+  private final int myMaxVisitedCommits;
+  private final AtomicLong myResetCounter = new AtomicLong(0);
+  //the fields below are guarded by this
+  private final LinkedHashMap<Key, Entry> myEntries = new LinkedHashMap<>(16, 0.75f, true);
+  private long myVisitedCommits;
+  private boolean myLoaded;
+
+  CheckoutRulesRevisionMemo(@NotNull ServerPluginConfig config, @NotNull File repositoryDir) {
+    myConfig = config;
+    myRepositoryDir = repositoryDir;
+    myMaxVisitedCommits = Math.max(0, config.getCheckoutRulesRevisionMemoMaxVisitedCommits());
+  }
+
+
+  boolean isEnabled() {
+    return myMaxVisitedCommits > 0;
+  }
+
+
+  /**
+   * @return memoized result of the search or null if there is no such result
+   */
+  @Nullable
+  synchronized Entry get(@NotNull String rules, @NotNull AnyObjectId start, @NotNull Collection<String> stopRevisions) {
+    if (!isEnabled())
+      return null;
+    ensureLoaded();
+    return myEntries.get(new Key(rules, start, stopRevisions));
+  }
+
+
+  synchronized void put(@NotNull String rules,
+                        @NotNull AnyObjectId start,
+                        @NotNull Collection<String> stopRevisions,
+                        @NotNull Entry entry,
+                        long expectedResetCounter) {
+    if (!isEnabled() || myResetCounter.get() != expectedResetCounter || entry.getWeight() > myMaxVisitedCommits)
+      return;
+    ensureLoaded();
+    Key key = new Key(rules, start, stopRevisions);
+    if (myEntries.containsKey(key))
+      return;
+    add(key, entry);
+    if (myConfig.persistentCacheEnabled()) {
+      try {
+        append(key, entry);
+      } catch (IOException e) {
+        LOG.warnAndDebugDetails("Error while saving checkout rules revisions memo for repository " + myRepositoryDir, e);
+        FileUtil.delete(getMemoFile(myRepositoryDir));
+      }
+    }
+  }
+
+
+  long getResetCounter() {
+    return myResetCounter.get();
+  }
+
+
+  synchronized void reset() {
+    myResetCounter.incrementAndGet();
+    myEntries.clear();
+    myVisitedCommits = 0;
+    myLoaded = true;
+    FileUtil.delete(getMemoFile(myRepositoryDir));
+  }
+
+
+  synchronized int size() {
+    ensureLoaded();
+    return myEntries.size();
+  }
+
+
+  @NotNull
+  static String getRulesKey(@NotNull CheckoutRules rules) {
+    //only source paths affect matching of commits
+    List<String> result = new ArrayList<>();
+    for (IncludeRule rule : rules.getIncludeRules()) {
+      result.add("+:" + rule.getFrom());
+    }
+    for (FileRule rule : rules.getExcludeRules()) {
+      result.add("-:" + rule.getFrom());
+    }
+    Collections.sort(result);
+    return String.join("\n", result);
+  }
+
+
+  @NotNull
+  static File getMemoFile(@NotNull File repositoryDir) {
+    return new File(new File(repositoryDir, "caches"), FILE_NAME);
+  }
+
+
+  private void add(@NotNull Key key, @NotNull Entry entry) {
+    Entry old = myEntries.put(key, entry);
+    if (old != null)
+      myVisitedCommits -= old.getWeight();
+    myVisitedCommits += entry.getWeight();
+    Iterator<Entry> it = myEntries.values().iterator();
+    while (myVisitedCommits > myMaxVisitedCommits && it.hasNext()) {
+      myVisitedCommits -= it.next().getWeight();
+      it.remove();
+    }
+  }
+
+
+  private void ensureLoaded() {
+    if (myLoaded)
+      return;
+    myLoaded = true;
+    File file = getMemoFile(myRepositoryDir);
+    if (!myConfig.persistentCacheEnabled() || !file.isFile())
+      return;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION)
+        throw new IOException("Unsupported format");
+      while (true) {
+        in.mark(1);
+        if (in.read() == -1)
+          break;
+        in.reset();
+        add(Key.read(in), Entry.read(in, myMaxVisitedCommits));
+      }
+    } catch (Exception e) {
+      LOG.warnAndDebugDetails("Error while reading checkout rules revisions memo for repository " + myRepositoryDir + ", the memo will be rebuilt", e);
+      myEntries.clear();
+      myVisitedCommits = 0;
+      FileUtil.delete(file);
+    }
+  }
+
+
+  private void append(@NotNull Key key, @NotNull Entry entry) throws IOException {
+    File file = getMemoFile(myRepositoryDir);
+    //the file contains evicted entries as well, rewrite it once it can't fit into the memo
+    if (file.isFile() && file.length() > (long)myMaxVisitedCommits * Constants.OBJECT_ID_LENGTH * 2) {
+      rewrite(file);
+      return;
+    }
+    boolean newFile = !file.isFile();
+    if (newFile)
+      file.getParentFile().mkdirs();
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+      if (newFile) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+      }
+      key.write(out);
+      entry.write(out);
+    }
+  }
+
+
+  private void rewrite(@NotNull File file) throws IOException {
+    File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        for (Map.Entry<Key, Entry> e : myEntries.entrySet()) {
+          e.getKey().write(out);
+          e.getValue().write(out);
+        }
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      FileUtil.delete(tmp);
+    }
+  }
+
+
+  static final class Entry {
+    private final String myMatchedRevision;
+    private final byte[] myVisitedRevisions;//raw ids
+    private final List<String> myReachedStopRevisions;
+
+    Entry(@Nullable String matchedRevision, @NotNull Collection<String> visitedRevisions, @NotNull List<String> reachedStopRevisions) {
+      myMatchedRevision = matchedRevision;
+      myVisitedRevisions = new byte[visitedRevisions.size() * Constants.OBJECT_ID_LENGTH];
+      int offset = 0;
+      for (String revision : visitedRevisions) {
+        ObjectId.fromString(revision).copyRawTo(myVisitedRevisions, offset);
+        offset += Constants.OBJECT_ID_LENGTH;
+      }
+      myReachedStopRevisions = new ArrayList<>(reachedStopRevisions);
+    }
+
+    private Entry(@Nullable String matchedRevision, @NotNull byte[] visitedRevisions, @NotNull List<String> reachedStopRevisions) {
+      myMatchedRevision = matchedRevision;
+      myVisitedRevisions = visitedRevisions;
+      myReachedStopRevisions = reachedStopRevisions;
+    }
+
+    @Nullable
+    String getMatchedRevision() {
+      return myMatchedRevision;
+    }
+
+    @NotNull
+    Set<String> getVisitedRevisions() {
+      Set<String> result = new HashSet<>();
+      for (int offset = 0; offset < myVisitedRevisions.length; offset += Constants.OBJECT_ID_LENGTH) {
+        result.add(ObjectId.fromRaw(myVisitedRevisions, offset).name());
+      }
+      return result;
+    }
+
+    @NotNull
+    List<String> getReachedStopRevisions() {
+      return new ArrayList<>(myReachedStopRevisions);
+    }
+
+    private int getWeight() {
+      return 1 + myVisitedRevisions.length / Constants.OBJECT_ID_LENGTH;
+    }
+
+    private void write(@NotNull DataOutputStream out) throws IOException {
+      out.writeUTF(myMatchedRevision != null ? myMatchedRevision : "");
+      writeStrings(out, myReachedStopRevisions);
+      out.writeInt(myVisitedRevisions.length / Constants.OBJECT_ID_LENGTH);
+      out.write(myVisitedRevisions);
+    }
+
+    @NotNull
+    private static Entry read(@NotNull DataInputStream in, int maxVisitedCommits) throws IOException {
+      String matchedRevision = in.readUTF();
+      List<String> reachedStopRevisions = readStrings(in);
+      int visitedCount = in.readInt();
+      if (visitedCount < 0 || visitedCount > maxVisitedCommits)
+        throw new IOException("Unexpected number of visited commits " + visitedCount);
+      byte[] visited = new byte[visitedCount * Constants.OBJECT_ID_LENGTH];
+      in.readFully(visited);
+      return new Entry(matchedRevision.isEmpty() ? null : matchedRevision, visited, reachedStopRevisions);
+    }
+  }
+
+
+  private static final class Key {
+    private final String myRules;
+    private final ObjectId myStart;
+    private final List<String> myStopRevisions;
+
+    private Key(@NotNull String rules, @NotNull AnyObjectId start, @NotNull Collection<String> stopRevisions) {
+      myRules = rules;
+      myStart = start.toObjectId();
+      myStopRevisions = new ArrayList<>(new TreeSet<>(stopRevisions));
+    }
+
+    private void write(@NotNull DataOutputStream out) throws IOException {
+      out.writeUTF(myRules);
+      byte[] start = new byte[Constants.OBJECT_ID_LENGTH];
+      myStart.copyRawTo(start, 0);
+      out.write(start);
+      writeStrings(out, myStopRevisions);
+    }
+
+    @NotNull
+    private static Key read(@NotNull DataInputStream in) throws IOException {
+      String rules = in.readUTF();
+      byte[] start = new byte[Constants.OBJECT_ID_LENGTH];
+      in.readFully(start);
+      return new Key(rules, ObjectId.fromRaw(start), readStrings(in));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key key = (Key)o;
+      return myStart.equals((AnyObjectId)key.myStart) &&
+             myRules.equals(key.myRules) &&
+             myStopRevisions.equals(key.myStopRevisions);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(myRules, myStart, myStopRevisions);
+    }
+  }
+
+
+  private static void writeStrings(@NotNull DataOutputStream out, @NotNull List<String> strings) throws IOException {
+    out.writeInt(strings.size());
+    for (String s : strings) {
+      out.writeUTF(s);
+    }
+  }
+
+
+  @NotNull
+  private static List<String> readStrings(@NotNull DataInputStream in) throws IOException {
+    int size = in.readInt();
+    if (size < 0 || size > 100_000)
+      throw new IOException("Unexpected number of revisions " + size);
+    List<String> result = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      result.add(in.readUTF());
+    }
+    return result;
+  }
+}
@@ -6,11 +6,9 @@ import com.intellij.execution.configurations.GeneralCommandLine;
 import com.intellij.openapi.util.Pair;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -22,6 +20,7 @@ import jetbrains.buildServer.util.Dates;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.util.TimePrinter;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
 import jetbrains.buildServer.vcs.VcsException;
 import org.eclipse.jgit.internal.storage.file.FileRepository;
 import org.eclipse.jgit.internal.storage.file.PackFile;
@@ -41,6 +40,7 @@ public class Cleanup {
   private final ServerPluginConfig myConfig;
   private final GcErrors myGcErrors;
   private final AtomicReference<RunGitError> myNativeGitError = new AtomicReference<>();
+  private volatile GitVersion myNativeGitVersion;
   @NotNull
   private volatile Consumer<Runnable> myCleanupCallWrapper = Runnable::run;
 
@@ -88,6 +88,7 @@ public class Cleanup {
       rmLock.lock();
       boolean deleted;
       try {
+        myRepositoryManager.closeUnusedRepository(dir);
         deleted = FileUtil.delete(dir);
       } finally {
         rmLock.unlock();
@@ -181,38 +182,66 @@ public class Cleanup {
     Long freeDiskSpace = FileUtil.getFreeSpace(myRepositoryManager.getBaseMirrorsDir());
     CLEANUP.info("Use git at path '" + myConfig.getPathToGit() + "'");
     Collections.shuffle(allDirs);
-    int runGCCounter = 0;
+    //process repositories which most likely need gc first
+    Map<File, Long> expectedBenefit = new HashMap<>();
+    for (File dir : allDirs) {
+      expectedBenefit.put(dir, getExpectedGcBenefit(GcState.read(dir)));
+    }
+    allDirs.sort(Comparator.comparing(expectedBenefit::get, Comparator.reverseOrder()));
     CLEANUP.info("Git garbage collection started");
-    boolean runInPlace = myConfig.runInPlaceGc();
-    for (File gitDir : allDirs) {
-      String url = myRepositoryManager.getUrl(gitDir.getName());
-      if (url != null) {
-        CLEANUP.debug("[" + gitDir.getName() + "] repository url: '" + url + "'");
+    Queue<File> dirsToGc = new ConcurrentLinkedQueue<>(allDirs);
+    GcBudget budget = new GcBudget(myConfig.getNativeGCParallelPackSizeBudget(), freeDiskSpace);
+    boolean runGeometricRepack = isGeometricRepackEnabled();
+    final long deadlineNanos = startNanos + gcTimeQuotaNanos;
+    //set on interruption: running workers finish their current repository and don't take new ones
+    AtomicBoolean stopped = new AtomicBoolean();
+    Runnable worker = () -> runNativeGCWorker(dirsToGc, budget, runGeometricRepack, deadlineNanos, stopped);
+
+    //the current thread is one of the workers, so with a single thread gc runs sequentially as before
+    int threads = Math.min(myConfig.getNativeGCThreads(), allDirs.size());
+    ExecutorService executor = threads > 1 ? ExecutorsFactory.newFixedDaemonExecutor("Git garbage collection", threads - 1, threads - 1, threads) : null;
+    List<Future<?>> workers = new ArrayList<>();
+    try {
+      for (int i = 1; i < threads; i++) {
+        //the wrapper sets up the thread, e.g. allows running command line in it
+        workers.add(executor.submit(() -> myCleanupCallWrapper.accept(worker)));
       }
-      if (enoughDiskSpaceForGC(gitDir, freeDiskSpace)) {
-        if (runInPlace) {
-          ReentrantLock lock = myRepositoryManager.getWriteLock(gitDir);
-          lock.lock();
+      worker.run();
+    } catch (Exception e) {
+      CLEANUP.warnAndDebugDetails("Error while running git garbage collection", e);
+    } finally {
+      //workers are not interrupted: an interrupted gc leaves a repository copy or a temporary pack behind
+      boolean interrupted = false;
+      for (Future<?> w : workers) {
+        while (true) {
           try {
-            runNativeGC(gitDir);
-          } finally {
-            lock.unlock();
+            w.get();
+            break;
+          } catch (InterruptedException e) {
+            interrupted = true;
+            stopped.set(true);
+          } catch (ExecutionException e) {
+            CLEANUP.warnAndDebugDetails("Error while running git garbage collection", e.getCause());
+            break;
           }
-        } else {
-          runGcInCopy(gitDir);
         }
-      } else {
-        myGcErrors.registerError(gitDir, "Not enough disk space to run git gc");
-        CLEANUP.warn("[" + gitDir.getName() + "] not enough disk space to run git gc (" + String.valueOf(freeDiskSpace) + " " + pluralize("byte", freeDiskSpace) + ")");
       }
-      runGCCounter++;
-      final long repositoryFinishNanos = System.nanoTime();
-      if ((repositoryFinishNanos - startNanos) > gcTimeQuotaNanos) {
-        final int restRepositories = allDirs.size() - runGCCounter;
-        if (restRepositories > 0) {
-          CLEANUP.info("Git garbage collection quota exceeded, skip " + restRepositories + " repositories");
-          break;
-        }
+      if (executor != null)
+        executor.shutdown();
+      if (interrupted || Thread.currentThread().isInterrupted()) {
+        stopped.set(true);
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    final int restRepositories = dirsToGc.size();
+    if (restRepositories > 0) {
+      if (stopped.get()) {
+        CLEANUP.info("Git garbage collection interrupted, skip " + restRepositories + " repositories");
+      } else if (System.nanoTime() >= deadlineNanos) {
+        CLEANUP.info("Git garbage collection quota exceeded, skip " + restRepositories + " repositories");
+      } else {
+        CLEANUP.info("Git garbage collection stopped due to errors, skip " + restRepositories + " repositories");
       }
     }
     final long finishNanos = System.nanoTime();
@@ -221,15 +250,19 @@ public class Cleanup {
   }
 
 
-  private void runGcInCopy(@NotNull File originalRepo) {
+  /**
+   * @param force run gc even if the repository doesn't have too many packs or loose objects
+   */
+  @NotNull
+  private GcState.Outcome runGcInCopy(@NotNull File originalRepo, boolean force) {
     Lock rmLock = myRepositoryManager.getRmLock(originalRepo).readLock();
     rmLock.lock();
     File gcRepo;
     try {
-      if (!isGcNeeded(originalRepo)) {
+      if (!force && !isGcNeeded(originalRepo)) {
         CLEANUP.debug("[" + originalRepo.getName() + "] no git gc is needed");
         myGcErrors.clearError(originalRepo);
-        return;
+        return GcState.Outcome.NOT_NEEDED;
       }
 
       try {
@@ -237,7 +270,7 @@ public class Cleanup {
       } catch (Exception e) {
         myGcErrors.registerError(originalRepo, "Failed to create temporary repository for garbage collection", e);
         CLEANUP.warnAndDebugDetails("Failed to create temporary repository for garbage collection, original repository: " + originalRepo.getAbsolutePath(), e);
-        return;
+        return GcState.Outcome.FAILED;
       }
 
       CLEANUP.info("[" + originalRepo.getName() + "] run git gc in dedicated dir [" + gcRepo.getName() + "]");
@@ -249,7 +282,7 @@ public class Cleanup {
         myGcErrors.registerError(originalRepo, "Error while running garbage collection", e);
         CLEANUP.warnAndDebugDetails("Error while running garbage collection in " + originalRepo.getAbsolutePath(), e);
         FileUtil.delete(gcRepo);
-        return;
+        return GcState.Outcome.FAILED;
       }
     } finally {
       rmLock.unlock();
@@ -257,6 +290,8 @@ public class Cleanup {
 
     //remove alternates pointing to the original repo before swapping repositories
     FileUtil.delete(new File(gcRepo, "objects/info/alternates"));
+    //the copy has no commit-graph, write it when the copy contains all objects
+    writeCommitGraphIgnoringErrors(gcRepo);
 
     long swapStart = System.currentTimeMillis();
     File oldDir;
@@ -267,7 +302,7 @@ public class Cleanup {
       myGcErrors.registerError(originalRepo, "Error while creating temporary directory", e);
       CLEANUP.warnAndDebugDetails("Error while creating temporary directory for " + originalRepo.getAbsolutePath(), e);
       FileUtil.delete(gcRepo);
-      return;
+      return GcState.Outcome.FAILED;
     }
 
     //swap repositories with write rm lock which guarantees no one uses the original repository
@@ -276,10 +311,11 @@ public class Cleanup {
     rmWriteLock.lock();
     long lockDuration = System.currentTimeMillis() - lockStart;
     try {
+      myRepositoryManager.closeUnusedRepository(originalRepo);
       if (!renameDir(originalRepo, oldDir, 5)) {
         myGcErrors.registerError(originalRepo, "Failed to rename " + originalRepo.getName() + " to " + oldDir.getName());
         CLEANUP.warn("Failed to rename " + originalRepo.getName() + " to " + oldDir.getName() + " after several attempts");
-        return;
+        return GcState.Outcome.FAILED;
       }
       if (!renameDir(gcRepo, originalRepo, 5)) {
         myGcErrors.registerError(originalRepo, "Failed to rename " + gcRepo.getName() + " to " + originalRepo.getName());
@@ -287,7 +323,7 @@ public class Cleanup {
         if (!oldDir.renameTo(originalRepo)) {
           CLEANUP.warn("Failed to rename " + oldDir.getName() + " to " + originalRepo.getName());
         }
-        return;
+        return GcState.Outcome.FAILED;
       }
     } finally {
       rmWriteLock.unlock();
@@ -303,6 +339,247 @@ public class Cleanup {
       CLEANUP.info(msg);
     }
     myGcErrors.clearError(originalRepo);
+    return GcState.Outcome.SUCCESS;
+  }
+
+  private void runNativeGCWorker(@NotNull Queue<File> dirsToGc,
+                                 @NotNull GcBudget budget,
+                                 boolean runGeometricRepack,
+                                 long deadlineNanos,
+                                 @NotNull AtomicBoolean stopped) {
+    boolean runInPlace = myConfig.runInPlaceGc();
+    long gcStateMaxAgeMillis = TimeUnit.DAYS.toMillis(myConfig.getGcStateMaxAgeDays());
+    long fullGcIntervalMillis = TimeUnit.DAYS.toMillis(myConfig.getGeometricRepackFullGcIntervalDays());
+    while (true) {
+      if (stopped.get())
+        return;
+      File gitDir = dirsToGc.poll();
+      if (gitDir == null)
+        return;
+      GcState state = GcState.read(gitDir);
+      if (state != null && !state.isChangedSinceGc(gcStateMaxAgeMillis)) {
+        CLEANUP.debug("[" + gitDir.getName() + "] no objects were added since the last git gc, skip it");
+        continue;
+      }
+      String url = myRepositoryManager.getUrl(gitDir.getName());
+      if (url != null) {
+        CLEANUP.debug("[" + gitDir.getName() + "] repository url: '" + url + "'");
+      }
+      long packSize = getPackSize(gitDir);
+      try {
+        if (!budget.acquire(packSize)) {
+          myGcErrors.registerError(gitDir, "Not enough disk space to run git gc");
+          CLEANUP.warn("[" + gitDir.getName() + "] not enough disk space to run git gc (" + String.valueOf(budget.myFreeDiskSpace) + " " + pluralize("byte", budget.myFreeDiskSpace) + ")");
+          continue;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        stopped.set(true);
+        dirsToGc.add(gitDir);
+        return;
+      }
+      if (System.nanoTime() > deadlineNanos) {
+        //quota was exceeded while we waited for the budget
+        budget.release(packSize);
+        dirsToGc.add(gitDir);
+        return;
+      }
+      //geometric repack never drops unreachable objects, run a full gc periodically
+      boolean fullGc = !runGeometricRepack || state == null || state.isFullGcNeeded(fullGcIntervalMillis);
+      if (runGeometricRepack && fullGc)
+        CLEANUP.info("[" + gitDir.getName() + "] no full git gc during the last " + myConfig.getGeometricRepackFullGcIntervalDays() + " days, run it instead of geometric repack");
+      long gcStartTime = System.currentTimeMillis();
+      GcState.Outcome outcome;
+      try {
+        if (!fullGc) {
+          outcome = runGeometricRepack(gitDir);
+        } else if (runInPlace) {
+          ReentrantLock lock = myRepositoryManager.getWriteLock(gitDir);
+          lock.lock();
+          try {
+            outcome = runNativeGC(gitDir, !runGeometricRepack) ? GcState.Outcome.SUCCESS : GcState.Outcome.FAILED;
+            if (outcome == GcState.Outcome.SUCCESS)
+              writeCommitGraphIgnoringErrors(gitDir);
+          } finally {
+            lock.unlock();
+          }
+        } else {
+          outcome = runGcInCopy(gitDir, runGeometricRepack);
+        }
+      } finally {
+        budget.release(packSize);
+      }
+      saveGcState(gitDir, gcStartTime, outcome, fullGc);
+      if (System.nanoTime() > deadlineNanos)
+        return;
+    }
+  }
+
+  private static long getExpectedGcBenefit(@Nullable GcState state) {
+    if (state == null || state.getOutcome() == null)
+      return Long.MAX_VALUE;
+    //every fetch adds a pack, small fetches add loose objects instead (see fetch.unpackLimit)
+    return state.getPackCount() + state.getFetchesSinceGc() + state.getLooseObjectsEstimate() / 100;
+  }
+
+  private void saveGcState(@NotNull File gitDir, long gcStartTime, @NotNull GcState.Outcome outcome, boolean fullGc) {
+    int packCount = getPackSizes(gitDir).size();
+    long looseObjectsEstimate = estimateLooseObjects(gitDir);
+    ReentrantLock lock = myRepositoryManager.getWriteLock(gitDir);
+    lock.lock();
+    try {
+      GcState.update(gitDir, state -> {
+        state.gcFinished(gcStartTime, outcome, packCount, looseObjectsEstimate);
+        if (fullGc && outcome == GcState.Outcome.SUCCESS)
+          state.fullGcFinished(gcStartTime);
+      });
+    } catch (IOException e) {
+      CLEANUP.warnAndDebugDetails("Error while saving gc state in " + gitDir.getAbsolutePath(), e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static long estimateLooseObjects(@NotNull File gitDir) {
+    //SHA is evenly distributed, count objects in a single bucket like tooManyLooseObjects() does
+    String[] files = new File(gitDir, "objects/17").list();
+    if (files == null)
+      return 0;
+    int count = 0;
+    for (String fileName : files) {
+      if (PATTERN_LOOSE_OBJECT.matcher(fileName).matches())
+        count++;
+    }
+    return count * 256L;
+  }
+
+  private boolean isGeometricRepackEnabled() {
+    if (!myConfig.runGeometricRepack())
+      return false;
+    GitVersion version = myNativeGitVersion;
+    if (version == null || !GitVersion.isGeometricRepackSupported(version)) {
+      CLEANUP.info("Geometric repack requires git 2.34.0 or newer, detected git version: " + version + ", will run full repack");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Merges small packs into bigger ones in place leaving big packs as is, so the time and IO
+   * spent on repack are proportional to the size of recently fetched objects rather than to the
+   * repository size. Reachability bitmaps and commit-graph are updated incrementally as well.
+   *
+   * <p>Git cannot write per-pack bitmaps in an incremental repack, so the bitmap is written for
+   * the multi-pack-index and per-pack bitmaps are removed. JGit reads only per-pack bitmaps, so
+   * {@link GitMapFullPath} doesn't use bitmaps when geometric repack is enabled. Unreachable
+   * objects are not dropped, they are removed by a periodic full gc.
+   */
+  @NotNull
+  private GcState.Outcome runGeometricRepack(@NotNull File gitDir) {
+    Lock rmLock = myRepositoryManager.getRmLock(gitDir).readLock();
+    rmLock.lock();
+    try {
+      if (!isGcNeeded(gitDir)) {
+        CLEANUP.debug("[" + gitDir.getName() + "] no git gc is needed");
+        myGcErrors.clearError(gitDir);
+        return GcState.Outcome.NOT_NEEDED;
+      }
+
+      ReentrantLock lock = myRepositoryManager.getWriteLock(gitDir);
+      lock.lock();
+      try {
+        long start = System.currentTimeMillis();
+        Map<String, Long> packsBefore = getPackSizes(gitDir);
+        runGit(gitDir, myConfig.getRepackIdleTimeoutSeconds(),
+               "repack", "--geometric=" + myConfig.getGeometricRepackFactor(), "-d", "--write-midx", "--write-bitmap-index");
+        packRefs(gitDir);
+        writeCommitGraph(gitDir);
+        Map<String, Long> packsAfter = getPackSizes(gitDir);
+
+        long bytesRewritten = 0;
+        for (Map.Entry<String, Long> e : packsAfter.entrySet()) {
+          if (!packsBefore.containsKey(e.getKey()))
+            bytesRewritten += e.getValue();
+        }
+        int mergedPacks = 0;
+        for (String pack : packsBefore.keySet()) {
+          if (!packsAfter.containsKey(pack))
+            mergedPacks++;
+        }
+        CLEANUP.info("[" + gitDir.getName() + "] geometric repack merged " + mergedPacks + " " + pluralize("pack", mergedPacks) +
+                     " of " + packsBefore.size() + ", rewritten " + bytesRewritten + " " + pluralize("byte", bytesRewritten) +
+                     ", duration: " + TimePrinter.createMillisecondsFormatter().formatTime(System.currentTimeMillis() - start));
+      } finally {
+        lock.unlock();
+      }
+      myGcErrors.clearError(gitDir);
+      return GcState.Outcome.SUCCESS;
+    } catch (Exception e) {
+      myGcErrors.registerError(gitDir, "Error while running garbage collection", e);
+      CLEANUP.warnAndDebugDetails("Error while running geometric repack in " + gitDir.getAbsolutePath(), e);
+      return GcState.Outcome.FAILED;
+    } finally {
+      rmLock.unlock();
+    }
+  }
+
+  /**
+   * Updates commit-graph incrementally. Changed-path Bloom filters in it let {@link CheckoutRulesRevWalk}
+   * skip tree diffs, git keeps filters of existing commits and computes them only for new ones.
+   */
+  private void writeCommitGraph(@NotNull File gitDir) throws VcsException {
+    List<String> params = new ArrayList<>(Arrays.asList("commit-graph", "write", "--reachable", "--split"));
+    if (isCommitGraphChangedPathsEnabled())
+      params.add("--changed-paths");
+    runGit(gitDir, myConfig.getRepackIdleTimeoutSeconds(), params.toArray(new String[0]));
+  }
+
+  private void writeCommitGraphIgnoringErrors(@NotNull File gitDir) {
+    try {
+      writeCommitGraph(gitDir);
+    } catch (VcsException ignored) {
+      //already logged, repository is usable without commit-graph
+    }
+  }
+
+  private boolean isCommitGraphChangedPathsEnabled() {
+    GitVersion version = myNativeGitVersion;
+    return myConfig.writeCommitGraphChangedPaths() && version != null && GitVersion.isCommitGraphChangedPathsSupported(version);
+  }
+
+  @NotNull
+  private static Map<String, Long> getPackSizes(@NotNull File gitDir) {
+    Map<String, Long> result = new HashMap<>();
+    File[] packs = new File(gitDir, "objects/pack").listFiles((dir, name) -> name.startsWith("pack-") && name.endsWith(".pack"));
+    if (packs != null) {
+      for (File pack : packs) {
+        result.put(pack.getName(), pack.length());
+      }
+    }
+    return result;
+  }
+
+  private void runGit(@NotNull File gitDir, int idleTimeoutSeconds, @NotNull String... params) throws VcsException {
+    long start = System.currentTimeMillis();
+    GeneralCommandLine cmd = new GeneralCommandLine();
+    cmd.setWorkingDirectory(gitDir);
+    cmd.setExePath(myConfig.getPathToGit());
+    cmd.addParameters(params);
+    ExecResult result = SimpleCommandLineProcessRunner.runCommand(cmd, null, new SimpleCommandLineProcessRunner.RunCommandEventsAdapter() {
+      @Override
+      public Integer getOutputIdleSecondsTimeout() {
+        return idleTimeoutSeconds;
+      }
+      @Override
+      public void onProcessFinished(@NotNull final Process ps) {
+        CLEANUP.info("[" + gitDir.getName() + "] \"" + cmd.getCommandLineString() + "\" finished in " + TimePrinter.createMillisecondsFormatter().formatTime((System.currentTimeMillis() - start)));
+      }
+    });
+    VcsException commandError = CommandLineUtil.getCommandLineError("git " + params[0], result);
+    if (commandError != null) {
+      CLEANUP.warnAndDebugDetails("Error while running 'git " + params[0] + "' in \"" + gitDir.getAbsolutePath() + "\"", commandError);
+      throw commandError;
+    }
   }
 
   @SuppressWarnings({"BooleanMethodIsAlwaysInverted", "SameParameterValue"})
@@ -382,12 +659,10 @@ public class Cleanup {
     }
   }
 
-  private boolean enoughDiskSpaceForGC(@NotNull File gitDir, @Nullable Long freeDiskSpace) {
-    if (freeDiskSpace == null)
-      return true;
+  private long getPackSize(@NotNull File gitDir) {
     File objects = new File(gitDir, "objects");
     File pack = new File(objects, "pack");
-    return FileUtil.getTotalDirectorySize(pack) < freeDiskSpace;
+    return FileUtil.getTotalDirectorySize(pack);
   }
 
   private boolean tooManyPacks(@NotNull FileRepository repo) {
@@ -447,6 +722,7 @@ public class Cleanup {
 
     copyIfExist(new File(gitDir, "packed-refs"), result);
     copyIfExist(new File(gitDir, "timestamp"), result);
+    copyIfExist(new File(gitDir, GcState.FILE_NAME), result);
     copyIfExist(new File(gitDir, "config"), result);
     copyDirIfExist(new File(gitDir, "refs"), result);
     copyDirIfExist(new File(gitDir, "monitoring"), result);
@@ -548,6 +824,12 @@ public class Cleanup {
     } else {
       myNativeGitError.set(null);
     }
+    try {
+      myNativeGitVersion = GitVersion.parse(result.getStdout().trim());
+    } catch (IllegalArgumentException e) {
+      CLEANUP.debug("Cannot parse git version: " + e.getMessage());
+      myNativeGitVersion = null;
+    }
     return true;
   }
 
@@ -571,7 +853,17 @@ public class Cleanup {
       throw commandError;
   }
 
-  private void runNativeGC(final File bareGitDir) {
+  /**
+   * @return false if gc failed
+   */
+  private boolean runNativeGC(final File bareGitDir) {
+    return runNativeGC(bareGitDir, true);
+  }
+
+  /**
+   * @param auto run 'git gc --auto' which does nothing if the repository doesn't have too many packs or loose objects
+   */
+  private boolean runNativeGC(final File bareGitDir, boolean auto) {
     String pathToGit = myConfig.getPathToGit();
     try {
       final long start = System.currentTimeMillis();
@@ -580,7 +872,8 @@ public class Cleanup {
       cl.setExePath(pathToGit);
       cl.addParameter("--git-dir="+bareGitDir.getCanonicalPath());
       cl.addParameter("gc");
-      cl.addParameter("--auto");
+      if (auto)
+        cl.addParameter("--auto");
       cl.addParameter("--quiet");
 
       ExecResult result = SimpleCommandLineProcessRunner.runCommand(cl, null, new SimpleCommandLineProcessRunner.ProcessRunCallback() {
@@ -611,13 +904,61 @@ public class Cleanup {
         CLEANUP.debug("Output produced by 'git --git-dir=" + bareGitDir.getAbsolutePath() + " gc'");
         CLEANUP.debug(result.getStderr());
       }
+      return commandError == null;
     } catch (Exception e) {
       myGcErrors.registerError(bareGitDir, e);
       CLEANUP.warnAndDebugDetails("Error while running 'git --git-dir=" + bareGitDir.getAbsolutePath() + " gc'", e);
+      return false;
     }
   }
 
 
+  /**
+   * Limits the total size of packs of repositories processed by gc in parallel. Repack time,
+   * IO and memory are proportional to the size of packs, so a few big repositories are
+   * processed one by one while small ones are processed in parallel. Gc of a repository
+   * bigger than the budget runs when nothing else is running.
+   */
+  private static final class GcBudget {
+    private final long myBudget;
+    private final Long myFreeDiskSpace;
+    private long myReserved;
+    private int myRunning;
+
+    private GcBudget(long budget, @Nullable Long freeDiskSpace) {
+      myBudget = budget;
+      myFreeDiskSpace = freeDiskSpace;
+    }
+
+    /**
+     * Waits until gc of the specified size fits into the budget
+     * @return false if there is not enough disk space for gc of the specified size
+     */
+    synchronized boolean acquire(long packSize) throws InterruptedException {
+      while (true) {
+        //gc in a copy of repository needs disk space for packs of all repositories processed in parallel
+        boolean enoughDiskSpace = myFreeDiskSpace == null || myReserved + packSize < myFreeDiskSpace;
+        if (myRunning == 0) {
+          if (!enoughDiskSpace)
+            return false;
+          break;
+        }
+        if (enoughDiskSpace && myReserved + packSize <= myBudget)
+          break;
+        wait();
+      }
+      myReserved += packSize;
+      myRunning++;
+      return true;
+    }
+
+    synchronized void release(long packSize) {
+      myReserved -= packSize;
+      myRunning--;
+      notifyAll();
+    }
+  }
+
   @Nullable
   public RunGitError getNativeGitError() {
     return myNativeGitError.get();
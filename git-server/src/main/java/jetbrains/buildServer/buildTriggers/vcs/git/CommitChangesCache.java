@@ -0,0 +1,133 @@
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.io.File;
+import java.util.*;
+import jetbrains.buildServer.vcs.VcsChange;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Caches changed files computed for commits during changes collection.
+ *
+ * <p>When many branches of a clone are updated at once (e.g. after a merge to the default branch),
+ * the same commits are reported for every VCS root instance sharing the clone. The tree diff of
+ * a commit doesn't depend on the from/to states, so it is computed once and reused. Entries are
+ * keyed by clone directory, commit and the root settings affecting the diff; the author, committer
+ * and parents are cheap to compute and are not cached since they depend on the root user format.
+ *
+ * <p>The cache is bounded by the total number of cached changed files.
+ *
+ * ThreadSafe.
+ */
+public final class CommitChangesCache {
+
+  private final Cache<Key, Entry> myCache;
+  private final boolean myEnabled;
+
+  public CommitChangesCache(@NotNull ServerPluginConfig config) {
+    int maxChangedFiles = config.getCommitChangesCacheMaxChangedFiles();
+    myEnabled = maxChangedFiles > 0;
+    myCache = CacheBuilder.newBuilder()
+                          .<Key, Entry>weigher((key, entry) -> entry.getWeight())
+                          .maximumWeight(Math.max(0, maxChangedFiles))
+                          .build();
+  }
+
+
+  /**
+   * @return copy of changes and attributes cached for the commit or null if there is no cached data
+   */
+  @Nullable
+  Entry get(@NotNull File repositoryDir, @NotNull AnyObjectId commit, boolean checkoutSubmodules, boolean reportPerParentChangedFiles) {
+    if (!myEnabled)
+      return null;
+    Entry entry = myCache.getIfPresent(new Key(repositoryDir, commit, checkoutSubmodules, reportPerParentChangedFiles));
+    return entry != null ? entry.copy() : null;
+  }
+
+
+  void put(@NotNull File repositoryDir,
+           @NotNull AnyObjectId commit,
+           boolean checkoutSubmodules,
+           boolean reportPerParentChangedFiles,
+           @NotNull List<VcsChange> changes,
+           @NotNull Map<String, String> attributes) {
+    if (!myEnabled)
+      return;
+    myCache.put(new Key(repositoryDir, commit, checkoutSubmodules, reportPerParentChangedFiles), new Entry(changes, attributes).copy());
+  }
+
+
+  public long size() {
+    return myCache.size();
+  }
+
+
+  static final class Entry {
+    private final List<VcsChange> myChanges;
+    private final Map<String, String> myAttributes;
+
+    private Entry(@NotNull List<VcsChange> changes, @NotNull Map<String, String> attributes) {
+      myChanges = changes;
+      myAttributes = attributes;
+    }
+
+    @NotNull
+    List<VcsChange> getChanges() {
+      return myChanges;
+    }
+
+    @NotNull
+    Map<String, String> getAttributes() {
+      return myAttributes;
+    }
+
+    private int getWeight() {
+      return Math.max(1, myChanges.size());
+    }
+
+    @NotNull
+    private Entry copy() {
+      List<VcsChange> changes = new ArrayList<>(myChanges.size());
+      for (VcsChange change : myChanges) {
+        changes.add(new VcsChange(change.getType(), change.getFileName(), change.getRelativeFileName(), change.getBeforeChangeRevisionNumber(), change.getAfterChangeRevisionNumber()));
+      }
+      return new Entry(changes, new HashMap<>(myAttributes));
+    }
+  }
+
+
+  private static final class Key {
+    private final File myRepositoryDir;
+    private final ObjectId myCommit;
+    private final boolean myCheckoutSubmodules;
+    private final boolean myReportPerParentChangedFiles;
+
+    private Key(@NotNull File repositoryDir, @NotNull AnyObjectId commit, boolean checkoutSubmodules, boolean reportPerParentChangedFiles) {
+      myRepositoryDir = repositoryDir;
+      myCommit = commit.toObjectId();
+      myCheckoutSubmodules = checkoutSubmodules;
+      myReportPerParentChangedFiles = reportPerParentChangedFiles;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key key = (Key)o;
+      return myCheckoutSubmodules == key.myCheckoutSubmodules &&
+             myReportPerParentChangedFiles == key.myReportPerParentChangedFiles &&
+             myCommit.equals((AnyObjectId)key.myCommit) &&
+             myRepositoryDir.equals(key.myRepositoryDir);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(myRepositoryDir, myCommit, myCheckoutSubmodules, myReportPerParentChangedFiles);
+    }
+  }
+}
@@ -0,0 +1,310 @@
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.eclipse.jgit.internal.storage.file.MemoryMappedPackIndex;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.util.NB;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Reads changed-path Bloom filters from the commit-graph of a repository
+ * (written by {@code git commit-graph write --changed-paths}).
+ *
+ * <p>A filter of a commit contains paths changed comparing to its first parent together with all their
+ * parent directories, so it can prove that a commit didn't touch a path without a tree diff. Both a single
+ * {@code objects/info/commit-graph} file and split commit-graph chains are supported.
+ *
+ * <p>Commit-graph files are memory mapped, the mapping is released by {@link #close()}.
+ *
+ * @see <a href="https://git-scm.com/docs/gitformat-commit-graph">commit-graph format</a>
+ *
+ * ThreadSafe until closed.
+ */
+public final class CommitGraphBloomFilters implements AutoCloseable {
+
+  private static final Logger LOG = Logger.getInstance(CommitGraphBloomFilters.class.getName());
+
+  private static final int SIGNATURE = 0x43475048; //CGPH
+  private static final int CHUNK_OID_FANOUT = 0x4f494446; //OIDF
+  private static final int CHUNK_OID_LOOKUP = 0x4f49444c; //OIDL
+  private static final int CHUNK_BLOOM_INDEXES = 0x42494458; //BIDX
+  private static final int CHUNK_BLOOM_DATA = 0x42444154; //BDAT
+  private static final int HEADER_SIZE = 8;
+  private static final int CHUNK_LOOKUP_ENTRY_SIZE = 12;
+  private static final int BLOOM_DATA_HEADER_SIZE = 12;
+  private static final int SEED1 = 0x293ae76f;
+  private static final int SEED2 = 0x7e646e2c;
+
+  private final List<Layer> myLayers;
+
+  private CommitGraphBloomFilters(@NotNull List<Layer> layers) {
+    myLayers = layers;
+  }
+
+  /**
+   * @return Bloom filters of the commit-graph of the repository or null if there is no commit-graph
+   * or it doesn't have changed-path Bloom filters
+   */
+  @Nullable
+  public static CommitGraphBloomFilters open(@NotNull File gitDir) {
+    File infoDir = new File(gitDir, "objects" + File.separator + "info");
+    List<File> graphFiles = new ArrayList<>();
+    File chain = new File(infoDir, "commit-graphs" + File.separator + "commit-graph-chain");
+    File graph = new File(infoDir, "commit-graph");
+    try {
+      if (chain.isFile()) {
+        for (String line : Files.readAllLines(chain.toPath(), StandardCharsets.UTF_8)) {
+          line = line.trim();
+          if (!line.isEmpty())
+            graphFiles.add(new File(chain.getParentFile(), "graph-" + line + ".graph"));
+        }
+      } else if (graph.isFile()) {
+        graphFiles.add(graph);
+      }
+      if (graphFiles.isEmpty())
+        return null;
+
+      List<Layer> layers = new ArrayList<>(graphFiles.size());
+      boolean hasFilters = false;
+      try {
+        for (File f : graphFiles) {
+          Layer layer = Layer.read(f);
+          hasFilters |= layer.hasBloomFilters();
+          layers.add(layer);
+        }
+      } finally {
+        if (!hasFilters)
+          layers.forEach(Layer::unmap);
+      }
+      return hasFilters ? new CommitGraphBloomFilters(layers) : null;
+    } catch (Exception e) {
+      LOG.warnAndDebugDetails("Cannot read commit-graph in " + gitDir.getAbsolutePath(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Unmaps commit-graph files, filters cannot be used after that
+   */
+  @Override
+  public void close() {
+    myLayers.forEach(Layer::unmap);
+  }
+
+
+  /**
+   * @param paths paths relative to the repository root without leading and trailing slashes
+   * @return true if the Bloom filter of the commit proves that none of the given paths (or files under them)
+   * were changed comparing to the first parent of the commit; false if some of them might be changed or the
+   * commit has no filter
+   */
+  public boolean isNotChanged(@NotNull AnyObjectId commit, @NotNull Collection<String> paths) {
+    byte[] rawId = new byte[Constants.OBJECT_ID_LENGTH];
+    commit.copyRawTo(rawId, 0);
+    for (Layer layer : myLayers) {
+      int pos = layer.findCommit(rawId);
+      if (pos < 0)
+        continue;
+      if (!layer.hasBloomFilters())
+        return false;
+      for (String path : paths) {
+        if (layer.mightContain(pos, path))
+          return false;
+      }
+      return true;
+    }
+    return false;
+  }
+
+
+  private static final class Layer {
+    private final ByteBuffer myBuffer;
+    private final int myFanoutOffset;
+    private final int myOidsOffset;
+    private final int myBloomIndexesOffset;
+    private final int myBloomDataOffset;
+    private final int myHashVersion;
+    private final int myHashesNum;
+
+    private Layer(@NotNull ByteBuffer buffer,
+                  int fanoutOffset,
+                  int oidsOffset,
+                  int bloomIndexesOffset,
+                  int bloomDataOffset) {
+      myBuffer = buffer;
+      myFanoutOffset = fanoutOffset;
+      myOidsOffset = oidsOffset;
+      myBloomIndexesOffset = bloomIndexesOffset;
+      if (bloomDataOffset >= 0) {
+        myHashVersion = buffer.getInt(bloomDataOffset);
+        myHashesNum = buffer.getInt(bloomDataOffset + 4);
+        myBloomDataOffset = bloomDataOffset + BLOOM_DATA_HEADER_SIZE;
+      } else {
+        myHashVersion = 0;
+        myHashesNum = 0;
+        myBloomDataOffset = -1;
+      }
+    }
+
+    @NotNull
+    static Layer read(@NotNull File file) throws IOException {
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE)
+          throw new IOException("Commit-graph is too large: " + file.getAbsolutePath());
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        try {
+          if (size < HEADER_SIZE || buffer.getInt(0) != SIGNATURE)
+            throw new IOException("Bad commit-graph signature in " + file.getAbsolutePath());
+          int version = buffer.get(4);
+          int hashVersion = buffer.get(5);
+          if (version != 1 || hashVersion != 1)
+            throw new IOException("Unsupported commit-graph version " + version + "/" + hashVersion + " in " + file.getAbsolutePath());
+
+          int chunksNum = buffer.get(6) & 0xFF;
+          int fanout = -1, oids = -1, bloomIndexes = -1, bloomData = -1;
+          for (int i = 0; i < chunksNum; i++) {
+            int entry = HEADER_SIZE + i * CHUNK_LOOKUP_ENTRY_SIZE;
+            int id = buffer.getInt(entry);
+            int offset = (int)buffer.getLong(entry + 4);
+            switch (id) {
+              case CHUNK_OID_FANOUT: fanout = offset; break;
+              case CHUNK_OID_LOOKUP: oids = offset; break;
+              case CHUNK_BLOOM_INDEXES: bloomIndexes = offset; break;
+              case CHUNK_BLOOM_DATA: bloomData = offset; break;
+            }
+          }
+          if (fanout < 0 || oids < 0)
+            throw new IOException("Commit-graph without object ids: " + file.getAbsolutePath());
+          if (bloomIndexes < 0 || bloomData < 0)
+            bloomIndexes = bloomData = -1;
+          return new Layer(buffer, fanout, oids, bloomIndexes, bloomData);
+        } catch (IOException | RuntimeException e) {
+          MemoryMappedPackIndex.unmap(buffer);
+          throw e;
+        }
+      }
+    }
+
+    void unmap() {
+      MemoryMappedPackIndex.unmap(myBuffer);
+    }
+
+    boolean hasBloomFilters() {
+      //version 1 has a bug with non-ascii paths, it is handled in mightContain()
+      return myBloomDataOffset >= 0 && (myHashVersion == 1 || myHashVersion == 2) && myHashesNum > 0;
+    }
+
+    /**
+     * @return lexicographical position of the commit in the layer or -1 if the layer doesn't contain it
+     */
+    int findCommit(@NotNull byte[] rawId) {
+      int first = rawId[0] & 0xFF;
+      int low = first == 0 ? 0 : myBuffer.getInt(myFanoutOffset + (first - 1) * 4);
+      int high = myBuffer.getInt(myFanoutOffset + first * 4);
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        int cmp = compare(rawId, myOidsOffset + mid * Constants.OBJECT_ID_LENGTH);
+        if (cmp == 0)
+          return mid;
+        if (cmp < 0) {
+          high = mid;
+        } else {
+          low = mid + 1;
+        }
+      }
+      return -1;
+    }
+
+    private int compare(@NotNull byte[] rawId, int offset) {
+      for (int i = 0; i < Constants.OBJECT_ID_LENGTH; i += 4) {
+        int cmp = Integer.compareUnsigned(NB.decodeInt32(rawId, i), myBuffer.getInt(offset + i));
+        if (cmp != 0)
+          return cmp;
+      }
+      return 0;
+    }
+
+    boolean mightContain(int pos, @NotNull String path) {
+      int start = pos == 0 ? 0 : myBuffer.getInt(myBloomIndexesOffset + (pos - 1) * 4);
+      int end = myBuffer.getInt(myBloomIndexesOffset + pos * 4);
+      int length = end - start;
+      if (length <= 0)
+        return true; //filter was not computed
+      byte[] key = path.getBytes(StandardCharsets.UTF_8);
+      if (myHashVersion == 1 && !isAscii(key))
+        return true; //version 1 hashes non-ascii bytes as signed chars, the result depends on the platform which wrote the filter
+      int h1 = murmur3(SEED1, key);
+      int h2 = murmur3(SEED2, key);
+      long bits = (long)length * 8;
+      for (int i = 0; i < myHashesNum; i++) {
+        long hash = Integer.toUnsignedLong(h1 + i * h2);
+        long bit = hash % bits;
+        byte b = myBuffer.get(myBloomDataOffset + start + (int)(bit >>> 3));
+        if ((b & (1 << (bit & 7))) == 0)
+          return false;
+      }
+      return true;
+    }
+
+    private static boolean isAscii(@NotNull byte[] bytes) {
+      for (byte b : bytes) {
+        if (b < 0)
+          return false;
+      }
+      return true;
+    }
+  }
+
+
+  static int murmur3(int seed, @NotNull byte[] data) {
+    final int c1 = 0xcc9e2d51;
+    final int c2 = 0x1b873593;
+    int h = seed;
+    int blocks = data.length / 4;
+    for (int i = 0; i < blocks; i++) {
+      int k = (data[4 * i] & 0xFF) | (data[4 * i + 1] & 0xFF) << 8 | (data[4 * i + 2] & 0xFF) << 16 | (data[4 * i + 3] & 0xFF) << 24;
+      k *= c1;
+      k = Integer.rotateLeft(k, 15);
+      k *= c2;
+      h ^= k;
+      h = Integer.rotateLeft(h, 13);
+      h = h * 5 + 0xe6546b64;
+    }
+
+    int tail = blocks * 4;
+    int k1 = 0;
+    switch (data.length & 3) {
+      case 3:
+        k1 ^= (data[tail + 2] & 0xFF) << 16;
+      case 2:
+        k1 ^= (data[tail + 1] & 0xFF) << 8;
+      case 1:
+        k1 ^= data[tail] & 0xFF;
+        k1 *= c1;
+        k1 = Integer.rotateLeft(k1, 15);
+        k1 *= c2;
+        h ^= k1;
+    }
+
+    h ^= data.length;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
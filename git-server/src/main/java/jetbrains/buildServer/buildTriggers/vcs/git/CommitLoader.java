@@ -8,6 +8,7 @@ import java.util.Set;
 import java.util.function.Supplier;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsOperationRejectedException;
+import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -47,4 +48,7 @@ public interface CommitLoader {
   @Nullable
   RevCommit findCommit(@NotNull Repository r, @NotNull String sha);
 
+  @Nullable
+  RevCommit findCommit(@NotNull Repository r, @NotNull AnyObjectId commitId);
+
 }
\ No newline at end of file
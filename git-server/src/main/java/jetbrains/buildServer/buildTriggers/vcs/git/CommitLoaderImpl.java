@@ -6,7 +6,6 @@ import com.intellij.openapi.diagnostic.Logger;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -14,10 +13,10 @@ import jetbrains.buildServer.util.ExceptionUtil;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.vcs.RevisionNotFoundException;
 import jetbrains.buildServer.vcs.VcsException;
-import jetbrains.buildServer.vcs.VcsOperationRejectedException;
-import org.eclipse.jgit.errors.IncorrectObjectTypeException;
-import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.Repository;
@@ -92,8 +91,12 @@ public class CommitLoaderImpl implements CommitLoader {
     assert repositoryDir != null : "Non-local repository";
     final long start = System.currentTimeMillis();
 
-    ReentrantLock lock = myRepositoryManager.getWriteLock(repositoryDir);
-    lock.lock();
+    ReentrantLock lock = myRepositoryManager.getFetchScheduler().acquireUnlessFetched(repositoryDir, fetchURI, settings);
+    if (lock == null) {
+      PERFORMANCE_LOG.debug("[waitForWriteLock] repository: " + repositoryDir.getAbsolutePath() + ", took " + (System.currentTimeMillis() - start) +
+                            "ms, the same refs were fetched meanwhile");
+      return;
+    }
     try {
       final long finish = System.currentTimeMillis();
       final long waitTime = finish - start;
@@ -114,7 +117,9 @@ public class CommitLoaderImpl implements CommitLoader {
     if (settings.getRefSpecs().isEmpty()) return;
 
     Map<String, Ref> oldRefs = new HashMap<>(db.getAllRefs());
-    myGitRepoOperations.fetchCommand(fetchURI.toString()).fetch(db, fetchURI, settings);
+    myRepositoryManager.getFetchScheduler().fetch(db.getDirectory(), fetchURI, settings,
+                                                  () -> myGitRepoOperations.fetchCommand(fetchURI.toString()).fetch(db, fetchURI, settings));
+    GcState.objectsAdded(db.getDirectory());
     if (myPluginConfig.refreshObjectDatabaseAfterFetch()) {
       db.getObjectDatabase().refresh();
     }
@@ -123,23 +128,6 @@ public class CommitLoaderImpl implements CommitLoader {
   }
 
 
-  @NotNull
-  private ReentrantLock acquireWriteLock(@NotNull File repo, long timeout) throws VcsException {
-    final ReentrantLock lock = myRepositoryManager.getWriteLock(repo);
-    if (timeout > 0) {
-      try {
-        if (lock.tryLock(timeout, TimeUnit.SECONDS)) {
-          return lock;
-        }
-        throw new VcsOperationRejectedException("Write lock timeout: failed to acquire lock in " + timeout + StringUtil.pluralize(" second") + " for the Git clone directory: " + repo.getAbsolutePath());
-      } catch (InterruptedException e) {
-        throw new VcsException("Commit loader operation interrupted", e);
-      }
-    }
-    lock.lock();
-    return lock;
-  }
-
   @NotNull
   private static Collection<RefCommit> findRefsToFetch(@NotNull OperationContext context,
                                                        @NotNull Repository db,
@@ -153,7 +141,8 @@ public class CommitLoaderImpl implements CommitLoader {
       currentRefTips = loadCurrentRefTips(db, revisions);
     }
 
-    try (RevWalk walk = new RevWalk(db)) {
+    Set<ObjectId> localTips = null;
+    try (ObjectReader reader = db.newObjectReader()) {
       for (RefCommit r : revisions) {
         final String ref = GitUtils.expandRef(r.getRef());
         final String revNumber = GitUtils.versionRevision(r.getCommit());
@@ -175,15 +164,17 @@ public class CommitLoaderImpl implements CommitLoader {
             // In all other cases we just check if revisions exist in the local clone
             // This is done for all refs from the old ("from") state and also for all refs from the "to" state
             // after selective fetch was done - as a last resort we will attempt to fetch all refs (not selectively)
-            // to obtain revisions that are still missing
-            walk.parseCommit(ObjectId.fromString(revNumber));
+            // to obtain revisions that are still missing.
+            // Revisions of local refs are known to exist, other revisions are looked up in pack indexes without parsing commits
+            if (localTips == null) {
+              localTips = loadLocalTips(db);
+            }
+            final ObjectId revId = ObjectId.fromString(revNumber);
+            if (!localTips.contains(revId) && !reader.has(revId, Constants.OBJ_COMMIT))
+              refsToFetch.add(r);
           }
-        } catch (IncorrectObjectTypeException e) {
-          LOG.warn("Ref " + ref + " points to a non-commit " + revNumber + " for " + context.getGitRoot().debugInfo());
-        } catch (MissingObjectException e) {
-          refsToFetch.add(r);
         } catch (Exception e) {
-          LOG.warnAndDebugDetails("Unexpected exception while trying to parse commit " + revNumber,  e);
+          LOG.warnAndDebugDetails("Unexpected exception while trying to find commit " + revNumber,  e);
           refsToFetch.add(r);
         }
       }
@@ -211,6 +202,21 @@ public class CommitLoaderImpl implements CommitLoader {
     }
   }
 
+  private static @NotNull Set<ObjectId> loadLocalTips(@NotNull Repository db) {
+    final Set<ObjectId> result = new HashSet<>();
+    try {
+      for (Ref ref : db.getRefDatabase().getRefs()) {
+        if (ref.getObjectId() != null)
+          result.add(ref.getObjectId());
+        if (ref.getPeeledObjectId() != null)
+          result.add(ref.getPeeledObjectId());
+      }
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Unexpected exception while trying to load refs from the local clone: " + db.getDirectory().getAbsolutePath(), e);
+    }
+    return result;
+  }
+
   private static @NotNull Map<String, Ref> loadCurrentRefTips(@NotNull Repository db, @NotNull Collection<RefCommit> revisions) {
     Map<String, Ref> allRefsMap = new HashMap<>();
     try {
@@ -246,7 +252,8 @@ public class CommitLoaderImpl implements CommitLoader {
     if (refsToFetch.isEmpty()) return;
 
     final long start = System.currentTimeMillis();
-    final ReentrantLock lock = acquireWriteLock(repositoryDir, context.getPluginConfig().repositoryWriteLockTimeout());
+    final ReentrantLock lock = myRepositoryManager.getFetchScheduler().acquire(repositoryDir, fetchURI, context.getFetchPriority(),
+                                                                               context.getPluginConfig().repositoryWriteLockTimeout());
     try {
       final long finish = System.currentTimeMillis();
       final long waitTime = finish - start;
@@ -307,6 +314,15 @@ public class CommitLoaderImpl implements CommitLoader {
     }
   }
 
+  @Nullable
+  public RevCommit findCommit(@NotNull Repository r, @NotNull AnyObjectId commitId) {
+    try {
+      return getCommit(r, commitId.toObjectId());
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
   private void fetchBranchData(@NotNull GitVcsRoot root, @NotNull Repository repository)
     throws VcsException, IOException {
     final String refName = GitUtils.expandRef(root.getRef());
@@ -12,6 +12,8 @@ import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.buildTriggers.vcs.git.process.FetchProcessExecutor;
+import jetbrains.buildServer.buildTriggers.vcs.git.process.FetcherDaemonPool;
 import jetbrains.buildServer.buildTriggers.vcs.git.process.GitProcessExecutor;
 import jetbrains.buildServer.buildTriggers.vcs.git.process.GitProcessStuckMonitor;
 import jetbrains.buildServer.buildTriggers.vcs.git.process.RepositoryXmxStorage;
@@ -50,6 +52,7 @@ public class FetchCommandImpl implements FetchCommand {
   private final VcsRootSshKeyManager mySshKeyManager;
   private final GitTrustStoreProvider myGitTrustStoreProvider;
   private final SshKnownHostsManager mySshKnownHostsManager;
+  private final FetcherDaemonPool myFetcherDaemonPool;
 
   public FetchCommandImpl(@NotNull ServerPluginConfig config,
                           @NotNull TransportFactory transportFactory,
@@ -71,7 +74,14 @@ public class FetchCommandImpl implements FetchCommand {
     mySshKeyManager = sshKeyManager;
     myGitTrustStoreProvider = gitTrustStoreProvider;
     mySshKnownHostsManager = sshKnownHostsManager;
+    myFetcherDaemonPool = new FetcherDaemonPool(config);
+  }
 
+  /**
+   * Stops idle fetcher daemons
+   */
+  public void dispose() {
+    myFetcherDaemonPool.dispose();
   }
 
   public void fetch(@NotNull Repository db,
@@ -102,7 +112,8 @@ public class FetchCommandImpl implements FetchCommand {
 
     final Collection<RefSpec> specs = settings.getRefSpecs();
     final String debugInfo = getDebugInfo(repository, uri, specs);
-    final ProcessXmxProvider xmxProvider = new ProcessXmxProvider(new RepositoryXmxStorage(repository, "fetch"), myConfig, "fetch", debugInfo);
+    final RepositoryXmxStorage xmxStorage = new RepositoryXmxStorage(repository, "fetch");
+    final ProcessXmxProvider xmxProvider = new ProcessXmxProvider(xmxStorage, XmxPredictor.forFetch(myConfig, xmxStorage), myConfig, "fetch", debugInfo);
     Integer xmx = xmxProvider.getNextXmx();
     int attempt = 0;
     while (xmx != null) {
@@ -116,9 +127,10 @@ public class FetchCommandImpl implements FetchCommand {
         gitPropertiesFile = myFetcherProperties.getPropertiesFile();
         teamcityPrivateKey = getTeamCityPrivateKey(settings.getAuthSettings());
 
-        final GeneralCommandLine cl = createFetcherCommandLine(repository, uri, xmx);
+        final boolean daemon = myConfig.isFetcherDaemonEnabled();
+        final GeneralCommandLine cl = daemon ? createFetcherDaemonCommandLine(repository, xmx) : createFetcherCommandLine(repository, uri, xmx);
         final String commandLineString = cl.getCommandLineString();
-        final GitProcessExecutor processExecutor = new GitProcessExecutor(cl);
+        final FetchProcessExecutor processExecutor = daemon ? myFetcherDaemonPool.createExecutor(cl) : new GitProcessExecutor(cl);
 
         processStuckMonitor = new GitProcessStuckMonitor(gcDump, xmx.longValue(), commandLineString) {
           @Override
@@ -192,11 +204,17 @@ public class FetchCommandImpl implements FetchCommand {
 
         LOG.info("git fetch process finished for: " + uri + " in directory: " + repository.getDirectory() + ", took " + gitResult.getDuration() + "ms");
 
+        if (daemon) {
+          //daemon doesn't wait before fetch to change the timestamp of the packs dir, rescan packs explicitly
+          repository.getObjectDatabase().refresh();
+        }
+
         if (result.getStderr().length() > 0) {
           LOG.warn("Error output produced by git fetch:\n" + result.getStderr());
         }
 
         LOG.debug("git fetch process output:\n" + result.getStdout());
+        xmxProvider.processSucceeded(result.getStdout());
         break;
       } finally {
         if (teamcityPrivateKey != null) {
@@ -285,17 +303,31 @@ public class FetchCommandImpl implements FetchCommand {
   private GeneralCommandLine createFetcherCommandLine(
     @NotNull final Repository repository, @NotNull final URIish uri, long xmx
   ) {
+    GeneralCommandLine cl = createJavaCommandLine(repository.getDirectory(), xmx);
+    cl.addParameters(myConfig.getFetcherClassName(),
+                     uri.toString());//last parameter is not used in Fetcher, but is useful to distinguish fetch processes
+    return cl;
+  }
+
+  /**
+   * Daemons are reused for fetches into different repositories, so the command line doesn't depend on repository
+   */
+  private GeneralCommandLine createFetcherDaemonCommandLine(@NotNull final Repository repository, long xmx) {
+    GeneralCommandLine cl = createJavaCommandLine(repository.getDirectory().getParentFile(), xmx);
+    cl.addParameter(myConfig.getFetcherDaemonClassName());
+    return cl;
+  }
+
+  private GeneralCommandLine createJavaCommandLine(@NotNull File workingDir, long xmx) {
     GeneralCommandLine cl = new GeneralCommandLine();
-    cl.setWorkingDirectory(repository.getDirectory());
+    cl.setWorkingDirectory(workingDir);
     cl.setExePath(myConfig.getFetchProcessJavaPath());
     cl.addParameters(myConfig.getOptionsForSeparateProcess());
     cl.setPassParentEnvs(myConfig.passEnvToChildProcess());
     cl.setEnvParams(Collections.singletonMap("JDK_JAVA_OPTIONS", null)); // TW-64719
 
     cl.addParameters("-Xmx" + xmx + "M",
-                     "-cp", myConfig.getFetchClasspath(),
-                     myConfig.getFetcherClassName(),
-                     uri.toString());//last parameter is not used in Fetcher, but is useful to distinguish fetch processes
+                     "-cp", myConfig.getFetchClasspath());
     return cl;
   }
 
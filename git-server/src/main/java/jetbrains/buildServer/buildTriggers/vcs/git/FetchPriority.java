@@ -0,0 +1,22 @@
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+/**
+ * Priority of a fetch into a local clone, fetches waiting for the same clone
+ * are run in the order of declaration.
+ *
+ * @see FetchScheduler
+ */
+public enum FetchPriority {
+  /**
+   * Fetch for an operation someone waits for, e.g. a patch for a starting build or a file content
+   */
+  INTERACTIVE,
+  /**
+   * Fetch for changes collecting
+   */
+  COLLECT_CHANGES,
+  /**
+   * Fetch which just keeps a local clone up to date
+   */
+  BACKGROUND
+}
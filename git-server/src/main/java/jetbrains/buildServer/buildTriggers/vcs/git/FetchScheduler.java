@@ -0,0 +1,301 @@
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import jetbrains.buildServer.metrics.Counter;
+import jetbrains.buildServer.metrics.MetricDataType;
+import jetbrains.buildServer.metrics.NoOpCounter;
+import jetbrains.buildServer.metrics.ServerMetrics;
+import jetbrains.buildServer.metrics.Stoppable;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsOperationRejectedException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Orders fetches into local clones by their priority.
+ *
+ * <p>Fetches into a clone are serialized by its write lock. Without the scheduler a fetch
+ * waiting for the lock can be overtaken by any other fetch, so a background clone update
+ * could delay a fetch for a build patch. Fetches waiting in the scheduler acquire the lock
+ * in the order of their {@link FetchPriority priority}, fetches with the same priority are
+ * served in the order of arrival. Other users of the write lock, e.g. cleanup, are not ordered.
+ *
+ * <p>A fetch is not run if a fetch of the refs it needs started after it was scheduled
+ * and completed successfully.
+ *
+ * ThreadSafe.
+ */
+public class FetchScheduler {
+
+  private static final long LOCK_POLL_INTERVAL_MILLIS = 100;
+  private static final long QUEUE_POLL_INTERVAL_MILLIS = 1000;
+  private static final Counter NO_OP_COUNTER = new NoOpCounter();
+
+  private final RepositoryManager myRepositoryManager;
+  private final ServerPluginConfig myConfig;
+  //write lock of a clone -> its queue; the queue is dropped once the repository manager drops the lock
+  private final Map<ReentrantLock, FetchQueue> myQueues = Collections.synchronizedMap(new WeakHashMap<>());
+  //orders waiting and started fetches
+  private final AtomicLong mySequence = new AtomicLong();
+  private final ConcurrentMap<String, Counter> myWaitTimers = new ConcurrentHashMap<>();
+  private volatile ServerMetrics myServerMetrics;
+
+  public FetchScheduler(@NotNull RepositoryManager repositoryManager, @NotNull ServerPluginConfig config) {
+    myRepositoryManager = repositoryManager;
+    myConfig = config;
+  }
+
+  public void setServerMetrics(@NotNull ServerMetrics serverMetrics) {
+    myServerMetrics = serverMetrics;
+  }
+
+  /**
+   * Waits for the turn of the fetch and acquires the write lock of the clone.
+   * @param dir clone directory
+   * @param fetchURI url to fetch from
+   * @param priority fetch priority
+   * @param timeoutSeconds max time to wait, not positive value means no timeout
+   * @return acquired write lock which the caller must unlock
+   * @throws VcsOperationRejectedException if lock was not acquired in time
+   */
+  @NotNull
+  public ReentrantLock acquire(@NotNull File dir,
+                               @NotNull URIish fetchURI,
+                               @NotNull FetchPriority priority,
+                               long timeoutSeconds) throws VcsException {
+    final ReentrantLock lock = acquire(dir, fetchURI, null, priority, timeoutSeconds);
+    assert lock != null;
+    return lock;
+  }
+
+  /**
+   * Waits for the turn of the fetch and acquires the write lock of the clone unless
+   * a fetch covering the specified settings completes while the caller waits.
+   * @param dir clone directory
+   * @param fetchURI url to fetch from
+   * @param settings settings of the fetch
+   * @return acquired write lock which the caller must unlock, or null if the fetch is not needed
+   */
+  @Nullable
+  public ReentrantLock acquireUnlessFetched(@NotNull File dir,
+                                            @NotNull URIish fetchURI,
+                                            @NotNull FetchSettings settings) throws VcsException {
+    return acquire(dir, fetchURI, settings, settings.getPriority(), 0);
+  }
+
+  @Nullable
+  private ReentrantLock acquire(@NotNull File dir,
+                                @NotNull URIish fetchURI,
+                                @Nullable FetchSettings settings,
+                                @NotNull FetchPriority priority,
+                                long timeoutSeconds) throws VcsException {
+    final ReentrantLock lock = myRepositoryManager.getWriteLock(dir);
+    if (lock.isHeldByCurrentThread()) {
+      //the operation already owns the clone
+      lock.lock();
+      return lock;
+    }
+
+    final String url = fetchURI.toString();
+    final FetchQueue queue = getQueue(lock);
+    final Waiter waiter = new Waiter(priority, mySequence.incrementAndGet());
+    final long deadline = timeoutSeconds > 0 ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeoutSeconds) : Long.MAX_VALUE;
+    queue.add(waiter);
+    try (Stoppable ignored = getWaitTimer(url).startMsecsTimer()) {
+      while (true) {
+        if (settings != null && queue.isFetched(url, settings, waiter.mySequence))
+          return null;
+        final long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          throw new VcsOperationRejectedException("Write lock timeout: failed to acquire lock in " + timeoutSeconds + StringUtil.pluralize(" second") + " for the Git clone directory: " + dir.getAbsolutePath());
+        }
+        if (!queue.awaitTurn(waiter, Math.min(remaining, QUEUE_POLL_INTERVAL_MILLIS)))
+          continue;
+        //other lock users are not queued, so the lock can be busy even when it is our turn
+        if (lock.tryLock(Math.min(remaining, LOCK_POLL_INTERVAL_MILLIS), TimeUnit.MILLISECONDS)) {
+          if (settings != null && queue.isFetched(url, settings, waiter.mySequence)) {
+            lock.unlock();
+            return null;
+          }
+          return lock;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VcsException("Commit loader operation interrupted", e);
+    } finally {
+      queue.remove(waiter);
+    }
+  }
+
+  /**
+   * Runs the fetch, the caller must hold the write lock acquired via the scheduler.
+   * Fetches waiting for the clone are not run if the completed fetch covers them.
+   */
+  public void fetch(@NotNull File dir,
+                    @NotNull URIish fetchURI,
+                    @NotNull FetchSettings settings,
+                    @NotNull FetchAction action) throws IOException, VcsException {
+    final long sequence = mySequence.incrementAndGet();
+    action.run();
+    final FetchQueue queue = myQueues.get(myRepositoryManager.getWriteLock(dir));
+    if (queue != null)
+      queue.fetched(new CompletedFetch(fetchURI.toString(), settings, sequence));
+  }
+
+  /**
+   * @return true if there are fetches waiting for the clone
+   */
+  public boolean hasQueuedFetches(@NotNull File dir) {
+    final FetchQueue queue = myQueues.get(myRepositoryManager.getWriteLock(dir));
+    return queue != null && queue.hasWaiters();
+  }
+
+  @NotNull
+  private FetchQueue getQueue(@NotNull ReentrantLock lock) {
+    return myQueues.computeIfAbsent(lock, l -> new FetchQueue());
+  }
+
+  @NotNull
+  private Counter getWaitTimer(@NotNull String url) {
+    final ServerMetrics serverMetrics = myServerMetrics;
+    if (serverMetrics == null)
+      return NO_OP_COUNTER;
+    // urls are reported separately only for the specified repos to limit the number of metrics
+    final String repoUrl = myConfig.getFetchDurationMetricRepos().contains(url) ? url : "ALL";
+    return myWaitTimers.computeIfAbsent(repoUrl, k -> serverMetrics.metricBuilder("vcs.git.fetch.queueWait.duration")
+      .tags("repoUrl", repoUrl)
+      .dataType(MetricDataType.MILLISECONDS)
+      .experimental(true)
+      .description("Git plugin time fetches wait for their turn to fetch into a local clone")
+      .buildCounter());
+  }
+
+  public interface FetchAction {
+    void run() throws IOException, VcsException;
+  }
+
+  private static final class Waiter implements Comparable<Waiter> {
+    private final FetchPriority myPriority;
+    private final long mySequence;
+
+    private Waiter(@NotNull FetchPriority priority, long sequence) {
+      myPriority = priority;
+      mySequence = sequence;
+    }
+
+    @Override
+    public int compareTo(@NotNull Waiter other) {
+      final int result = myPriority.compareTo(other.myPriority);
+      return result != 0 ? result : Long.compare(mySequence, other.mySequence);
+    }
+  }
+
+  private static final class FetchQueue {
+    private final PriorityQueue<Waiter> myWaiters = new PriorityQueue<>();
+    //fetches completed while there were waiters, only fetches started after a waiter was queued can cover it
+    private final List<CompletedFetch> myCompletedFetches = new ArrayList<>();
+
+    synchronized void add(@NotNull Waiter waiter) {
+      myWaiters.add(waiter);
+      notifyAll();
+    }
+
+    synchronized void remove(@NotNull Waiter waiter) {
+      myWaiters.remove(waiter);
+      removeObsoleteFetches();
+      notifyAll();
+    }
+
+    synchronized boolean hasWaiters() {
+      return !myWaiters.isEmpty();
+    }
+
+    /**
+     * @return true if it is the turn of the waiter
+     */
+    synchronized boolean awaitTurn(@NotNull Waiter waiter, long timeoutMillis) throws InterruptedException {
+      if (myWaiters.peek() != waiter)
+        wait(timeoutMillis);
+      return myWaiters.peek() == waiter;
+    }
+
+    synchronized void fetched(@NotNull CompletedFetch fetch) {
+      myCompletedFetches.add(fetch);
+      removeObsoleteFetches();
+      notifyAll();
+    }
+
+    synchronized boolean isFetched(@NotNull String url, @NotNull FetchSettings settings, long waiterSequence) {
+      for (CompletedFetch fetch : myCompletedFetches) {
+        if (fetch.mySequence > waiterSequence && fetch.covers(url, settings))
+          return true;
+      }
+      return false;
+    }
+
+    private void removeObsoleteFetches() {
+      long minSequence = Long.MAX_VALUE;
+      for (Waiter w : myWaiters) {
+        minSequence = Math.min(minSequence, w.mySequence);
+      }
+      for (Iterator<CompletedFetch> it = myCompletedFetches.iterator(); it.hasNext(); ) {
+        if (it.next().mySequence < minSequence)
+          it.remove();
+      }
+    }
+  }
+
+  private static final class CompletedFetch {
+    private final String myUrl;
+    private final Collection<RefSpec> myRefSpecs;
+    private final FetchSettings.FetchMode myFetchMode;
+    private final boolean myRemotePrune;
+    private final long mySequence;
+
+    private CompletedFetch(@NotNull String url, @NotNull FetchSettings settings, long sequence) {
+      myUrl = url;
+      myRefSpecs = new ArrayList<>(settings.getRefSpecs());
+      myFetchMode = settings.getFetchMode();
+      myRemotePrune = settings.shouldDoRemotePrune();
+      mySequence = sequence;
+    }
+
+    boolean covers(@NotNull String url, @NotNull FetchSettings settings) {
+      if (!myUrl.equals(url) || settings.shouldDoRemotePrune() && !myRemotePrune)
+        return false;
+      final boolean tagsExcluded = myFetchMode == FetchSettings.FetchMode.FETCH_ALL_REFS_EXCEPT_TAGS;
+      if (tagsExcluded && settings.getFetchMode() == FetchSettings.FetchMode.FETCH_ALL_REFS)
+        return false;
+      for (RefSpec spec : settings.getRefSpecs()) {
+        if (tagsExcluded && spec.getSource() != null && spec.getSource().startsWith(Constants.R_TAGS))
+          return false;
+        if (myRefSpecs.stream().noneMatch(fetched -> covers(fetched, spec)))
+          return false;
+      }
+      return true;
+    }
+
+    private static boolean covers(@NotNull RefSpec fetched, @NotNull RefSpec spec) {
+      final String source = spec.getSource();
+      if (source == null || !fetched.matchSource(source) || spec.isForceUpdate() && !fetched.isForceUpdate())
+        return false;
+      final String destination = spec.getDestination();
+      if (destination == null)
+        return true;
+      final RefSpec expanded = fetched.isWildcard() ? fetched.expandFromSource(source) : fetched;
+      return destination.equals(expanded.getDestination());
+    }
+  }
+}
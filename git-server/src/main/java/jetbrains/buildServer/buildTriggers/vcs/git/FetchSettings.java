@@ -20,6 +20,7 @@ public class FetchSettings {
   private final Collection<RefSpec> myRefSpecs;
   private FetchMode myFetchMode;
   private boolean myDoRemotePrune = false;
+  private FetchPriority myPriority = FetchPriority.COLLECT_CHANGES;
 
   public FetchSettings(@NotNull AuthSettings authSettings) {
     this(authSettings, Collections.emptyList());
@@ -107,6 +108,15 @@ public class FetchSettings {
     return myDoRemotePrune;
   }
 
+  @NotNull
+  public FetchPriority getPriority() {
+    return myPriority;
+  }
+
+  public void setPriority(@NotNull FetchPriority priority) {
+    myPriority = priority;
+  }
+
   public static enum FetchMode {
     FETCH_REF_SPECS,
     FETCH_ALL_REFS,
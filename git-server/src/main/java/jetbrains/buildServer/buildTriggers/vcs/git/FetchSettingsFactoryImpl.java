@@ -40,6 +40,7 @@ public class FetchSettingsFactoryImpl implements FetchSettingsFactory {
                                          boolean fetchAllRefs, boolean includeTags) throws VcsException {
     final FetchSettings settings = new FetchSettings(context.getGitRoot().getAuthSettings(), context.getProgress(), refSpecs);
     settings.setFetchMode(FetchSettings.getFetchMode(fetchAllRefs, includeTags));
+    settings.setPriority(context.getFetchPriority());
     return settings;
   }
 
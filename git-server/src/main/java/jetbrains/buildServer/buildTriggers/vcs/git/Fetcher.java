@@ -20,6 +20,7 @@ import org.eclipse.jgit.transport.TrackingRefUpdate;
 import org.eclipse.jgit.transport.URIish;
 import org.jetbrains.annotations.NotNull;
 
+import javax.management.ListenerNotFoundException;
 import javax.management.Notification;
 import javax.management.NotificationEmitter;
 import javax.management.NotificationListener;
@@ -46,18 +47,36 @@ import static jetbrains.buildServer.buildTriggers.vcs.git.GitServerUtil.MB;
 public class Fetcher {
 
   public static void main(String[] args) throws IOException, VcsException, URISyntaxException {
+    if (!runFetch(GitServerUtil.readInput(), false)) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Runs a single fetch, fetch results are written to System.out, errors to System.err
+   *
+   * @param input  serialized fetch properties
+   * @param daemon true if fetch is run in a long-lived {@link FetcherDaemon}, in this case the logger
+   *               is already configured and the server rescans packs after fetch, so racy git workaround is not needed
+   * @return true if fetch succeeded
+   */
+  static boolean runFetch(@NotNull String input, boolean daemon) {
     boolean debug = false;
     ScheduledExecutorService exec = Executors.newScheduledThreadPool(1);
     GcListener gcListener = null;
     final long start = System.currentTimeMillis();
     try {
-      Map<String, String> properties = VcsUtil.stringToProperties(GitServerUtil.readInput());
+      Map<String, String> properties = VcsUtil.stringToProperties(input);
       String threadDumpFilePath = properties.remove(Constants.THREAD_DUMP_FILE);
       String gcDumpFilePath = properties.remove(Constants.GC_DUMP_FILE);
       String repositoryPath = properties.remove(Constants.REPOSITORY_DIR_PROPERTY_NAME);
       debug = "true".equals(properties.remove(Constants.VCS_DEBUG_ENABLED));
 
-      GitServerUtil.configureExternalProcessLogger(debug);
+      if (daemon) {
+        GitServerUtil.configureExternalProcessLogLevels(debug);
+      } else {
+        GitServerUtil.configureExternalProcessLogger(debug);
+      }
 
       String internalPropsFile = properties.remove(Constants.FETCHER_INTERNAL_PROPERTIES_FILE);
       GitServerUtil.configureInternalProperties(new File(internalPropsFile));
@@ -71,13 +90,14 @@ public class Fetcher {
       exec.scheduleAtFixedRate(new Monitoring(threadDumpFilePath, gitOutput), 10, 10, TimeUnit.SECONDS);
 
       SshKnownHostsManager knownHostsManager = new ConstantServerSshKnownHostsManager();
-      fetch(new File(repositoryPath), properties, progress, knownHostsManager, debug);
+      fetch(new File(repositoryPath), properties, progress, knownHostsManager, !daemon, debug);
+      gcListener.reportHeapUsage();
 
       if (System.currentTimeMillis() - start <= new PluginConfigImpl().getMonitoringFileThresholdMillis()) {
         FileUtil.delete(new File(threadDumpFilePath));
       }
       FileUtil.delete(new File(gcDumpFilePath));
-      return;
+      return true;
 
     } catch (Throwable t) {
       if (debug || isImportant(t)) {
@@ -87,9 +107,11 @@ public class Fetcher {
       }
     } finally {
       exec.shutdown();
+      if (gcListener != null) {
+        gcListener.stopListen();
+      }
     }
-
-    System.exit(1);
+    return false;
   }
 
   /**
@@ -97,6 +119,7 @@ public class Fetcher {
    *
    * @param repositoryDir     directory where run fetch
    * @param vcsRootProperties properties of vcsRoot
+   * @param racyGitWorkaround whether to wait before fetch, see {@link #workaroundRacyGit()}
    * @throws IOException
    * @throws VcsException
    * @throws URISyntaxException
@@ -105,6 +128,7 @@ public class Fetcher {
                             @NotNull Map<String, String> vcsRootProperties,
                             @NotNull ProgressMonitor progressMonitor,
                             @NotNull SshKnownHostsManager knownHostsManager,
+                            boolean racyGitWorkaround,
                             boolean debug) throws IOException, VcsException, URISyntaxException {
     final String fetchUrl = vcsRootProperties.get(Constants.FETCH_URL);
     final String refspecs = vcsRootProperties.get(Constants.REFSPEC);
@@ -118,9 +142,15 @@ public class Fetcher {
     TransportFactory transportFactory = new TransportFactoryImpl(config, new EmptyVcsRootSshKeyManager(), new GitTrustStoreProviderStatic(trustedCertificatesDir), knownHostsManager);
     Repository repository = GitServerUtil.getRepositoryWithDisabledAutoGc(repositoryDir);
 
-    workaroundRacyGit();
-    pruneRemovedBranches(config, repository, transportFactory, new URIish(fetchUrl), auth, debug);
-    logFetchResults(GitServerUtil.fetchAndCheckResults(config, repository, new URIish(fetchUrl), auth, transportFactory, progressMonitor, parseRefspecs(refspecs), config.ignoreMissingRemoteRef()));
+    try {
+      if (racyGitWorkaround) {
+        workaroundRacyGit();
+      }
+      pruneRemovedBranches(config, repository, transportFactory, new URIish(fetchUrl), auth, debug);
+      logFetchResults(GitServerUtil.fetchAndCheckResults(config, repository, new URIish(fetchUrl), auth, transportFactory, progressMonitor, parseRefspecs(refspecs), config.ignoreMissingRemoteRef()));
+    } finally {
+      repository.close();
+    }
   }
 
   private static void pruneRemovedBranches(@NotNull ServerPluginConfig config,
@@ -239,6 +269,8 @@ public class Fetcher {
 
     @NotNull
     private final File myGcDumpFile;
+    //notifications are delivered in a single thread
+    private volatile long myMaxUsedAfterGc = 0;
 
     private GcListener(@NotNull final String gcDumpFilePath) {
       myGcDumpFile = new File(gcDumpFilePath);
@@ -274,12 +306,13 @@ public class Fetcher {
       try {
         if ("com.sun.management.gc.notification".equals(notification.getType())) {
           CompositeData cd = (CompositeData)notification.getUserData();
+          final Object gcInfo = getGcInfo(cd);
+          final Pair<Long, Long> gcMemoryDiff = getGcMemoryDiff(gcInfo);
+          myMaxUsedAfterGc = Math.max(myMaxUsedAfterGc, gcMemoryDiff.getSecond());
           if (!cd.get("gcAction").toString().toLowerCase().contains("major")) {
             return;
           }
-          final Object gcInfo = getGcInfo(cd);
           final long duration = getGcDuration(gcInfo);
-          final Pair<Long, Long> gcMemoryDiff = getGcMemoryDiff(gcInfo);
           final long now = System.currentTimeMillis();
           FileUtil.writeFile(myGcDumpFile, now + " ; " + duration + " ; " + gcMemoryDiff.getFirst() + " ; " + gcMemoryDiff.getSecond() + "\n", "UTF-8");
         }
@@ -299,5 +332,29 @@ public class Fetcher {
         }
       }
     }
+
+    /**
+     * Reports max heap usage after gc to stdout, it is used to predict -Xmx for the next fetch
+     * @see XmxPredictor
+     */
+    void reportHeapUsage() {
+      if (myMaxUsedAfterGc > 0) {
+        System.out.println(XmxPredictor.HEAP_USAGE_PREFIX + myMaxUsedAfterGc);
+      }
+    }
+
+    void stopListen() {
+      if (!isGcEventListenerInitialized) {
+        return;
+      }
+      for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+        if (gcBean instanceof NotificationEmitter) {
+          try {
+            ((NotificationEmitter)gcBean).removeNotificationListener(this);
+          } catch (ListenerNotFoundException ignore) {
+          }
+        }
+      }
+    }
   }
 }
\ No newline at end of file
@@ -0,0 +1,179 @@
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Method main of this class is run in a long-lived separate process which runs fetches one by one,
+ * it saves JVM startup and classes loading for every fetch.
+ *
+ * <p>Fetches are received over stdin: a fetch is an int length followed by {@link Fetcher} input
+ * in UTF-8, a negative length or the end of stdin stops the process. While a fetch is running the process
+ * writes {@link #OUTPUT_FRAME output frames} with fetch stdout (e.g. progress) to its stdout as soon as
+ * it is flushed. A fetch ends with a {@link #RESULT_FRAME result frame} containing the exit code and fetch stderr.
+ * Bytes in frames are written as an int length followed by bytes in UTF-8.
+ *
+ * @see jetbrains.buildServer.buildTriggers.vcs.git.process.FetcherDaemonPool
+ */
+public class FetcherDaemon {
+
+  /** Frame with a part of fetch stdout: a byte frame type followed by bytes */
+  public static final int OUTPUT_FRAME = 1;
+  /** Last frame of a fetch: a byte frame type followed by an int exit code and stderr bytes */
+  public static final int RESULT_FRAME = 2;
+
+  public static void main(String[] args) throws IOException {
+    runFetches(input -> Fetcher.runFetch(input, true));
+  }
+
+  /**
+   * Runs fetches received over stdin until stdin is closed
+   *
+   * @param fetch runs a single fetch, tests can provide a fake fetch
+   */
+  public static void runFetches(@NotNull Fetch fetch) throws IOException {
+    final DataInputStream jobs = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+    final DataOutputStream results = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+
+    //stdout is used for results, everything written to System.out and System.err goes to the output of the current fetch
+    final PrintStream daemonErr = new PrintStream(new FileOutputStream(FileDescriptor.err), true);
+    final FetchOutput stdout = new FetchOutput(daemonErr);
+    final FetchOutput stderr = new FetchOutput(daemonErr);
+    System.setOut(new PrintStream(stdout, true, StandardCharsets.UTF_8.name()));
+    System.setErr(new PrintStream(stderr, true, StandardCharsets.UTF_8.name()));
+    GitServerUtil.configureExternalProcessLogger(false);
+
+    String input;
+    while ((input = readFetch(jobs)) != null) {
+      final OutputFrames fetchOut = new OutputFrames(results);
+      final ByteArrayOutputStream fetchErr = new ByteArrayOutputStream();
+      stdout.setTarget(fetchOut);
+      stderr.setTarget(fetchErr);
+      boolean success;
+      try {
+        success = fetch.run(input);
+      } finally {
+        System.out.flush();
+        System.err.flush();
+        stdout.setTarget(null);
+        stderr.setTarget(null);
+        fetchOut.close();
+      }
+      synchronized (results) {
+        results.writeByte(RESULT_FRAME);
+        results.writeInt(success ? 0 : 1);
+        writeBytes(results, fetchErr.toByteArray());
+        results.flush();
+      }
+    }
+  }
+
+  @Nullable
+  private static String readFetch(@NotNull DataInputStream in) throws IOException {
+    final int length;
+    try {
+      length = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    if (length < 0)
+      return null;
+    final byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeBytes(@NotNull DataOutputStream out, @NotNull byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  public interface Fetch {
+    /**
+     * @param input serialized fetch properties
+     * @return true if fetch succeeded
+     */
+    boolean run(@NotNull String input);
+  }
+
+  /**
+   * Sends output of the current fetch to the server in frames, a frame is sent on every flush,
+   * i.e. on every line written to System.out. Output written after close is dropped, so
+   * threads left by a fetch cannot send output after the result of the fetch.
+   */
+  private static class OutputFrames extends OutputStream {
+    private final DataOutputStream myResults;
+    private final ByteArrayOutputStream myBuffer = new ByteArrayOutputStream();
+    private boolean myClosed;
+
+    OutputFrames(@NotNull DataOutputStream results) {
+      myResults = results;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+      if (!myClosed)
+        myBuffer.write(b);
+    }
+
+    @Override
+    public synchronized void write(@NotNull byte[] b, int off, int len) {
+      if (!myClosed)
+        myBuffer.write(b, off, len);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+      if (myClosed || myBuffer.size() == 0)
+        return;
+      synchronized (myResults) {
+        myResults.writeByte(OUTPUT_FRAME);
+        writeBytes(myResults, myBuffer.toByteArray());
+        myResults.flush();
+      }
+      myBuffer.reset();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      flush();
+      myClosed = true;
+    }
+  }
+
+  /**
+   * Redirects output to the buffer of the current fetch, output written between fetches goes to the process stderr
+   */
+  private static class FetchOutput extends OutputStream {
+    private final OutputStream myDefault;
+    private volatile OutputStream myTarget;
+
+    FetchOutput(@NotNull OutputStream defaultOutput) {
+      myDefault = defaultOutput;
+    }
+
+    void setTarget(@Nullable OutputStream target) {
+      myTarget = target;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      final OutputStream target = myTarget;
+      (target != null ? target : myDefault).write(b);
+    }
+
+    @Override
+    public void write(@NotNull byte[] b, int off, int len) throws IOException {
+      final OutputStream target = myTarget;
+      (target != null ? target : myDefault).write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      final OutputStream target = myTarget;
+      (target != null ? target : myDefault).flush();
+    }
+  }
+}
@@ -0,0 +1,210 @@
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Garbage collection state of a local clone persisted in the clone directory.
+ *
+ * <p>Cleanup reads the state instead of scanning object directories of every clone, which
+ * is expensive when clones are located on a network file system. A clone is skipped if
+ * no objects were added to it since the last successful gc or gc check.
+ */
+public class GcState {
+
+  private static final Logger LOG = Logger.getInstance(GcState.class.getName());
+  public static final String FILE_NAME = "gc-state";
+  private static final AtomicBoolean ourObjectsAddedErrorReported = new AtomicBoolean();
+
+  public enum Outcome {
+    /** gc was not needed */
+    NOT_NEEDED,
+    /** gc was finished successfully */
+    SUCCESS,
+    /** gc failed, it should be retried during the next cleanup */
+    FAILED
+  }
+
+  private long myLastGcTime;
+  private long myLastFullGcTime;
+  private int myPackCount;
+  private long myLooseObjectsEstimate;
+  private long myLastFetchTime;
+  private int myFetchesSinceGc;
+  private Outcome myOutcome;
+
+  /**
+   * @return start time of the last gc or gc check
+   */
+  public long getLastGcTime() {
+    return myLastGcTime;
+  }
+
+  /**
+   * @return start time of the last gc which rewrote all packs and dropped unreachable objects,
+   * 0 if it is unknown
+   */
+  public long getLastFullGcTime() {
+    return myLastFullGcTime;
+  }
+
+  /**
+   * @return number of packs after the last gc or gc check
+   */
+  public int getPackCount() {
+    return myPackCount;
+  }
+
+  /**
+   * @return estimated number of loose objects after the last gc or gc check
+   */
+  public long getLooseObjectsEstimate() {
+    return myLooseObjectsEstimate;
+  }
+
+  /**
+   * @return time of the last fetch or other operation which added objects to the clone, e.g. a merge
+   */
+  public long getLastFetchTime() {
+    return myLastFetchTime;
+  }
+
+  /**
+   * @return number of fetches since the last gc or gc check, every fetch adds a pack or loose objects
+   */
+  public int getFetchesSinceGc() {
+    return myFetchesSinceGc;
+  }
+
+  @Nullable
+  public Outcome getOutcome() {
+    return myOutcome;
+  }
+
+  /**
+   * @param maxAgeMillis max time since the last gc after which the clone is checked anyway
+   * @return true if the clone could need gc since the last gc or gc check
+   */
+  public boolean isChangedSinceGc(long maxAgeMillis) {
+    return myOutcome == null ||
+           myOutcome == Outcome.FAILED ||
+           myLastFetchTime >= myLastGcTime ||
+           System.currentTimeMillis() - myLastGcTime > maxAgeMillis;
+  }
+
+  /**
+   * @param intervalMillis max time between full gcs
+   * @return true if incremental repacks should be followed by a full gc which drops unreachable objects
+   */
+  public boolean isFullGcNeeded(long intervalMillis) {
+    return System.currentTimeMillis() - myLastFullGcTime > intervalMillis;
+  }
+
+  public void fullGcFinished(long gcStartTime) {
+    myLastFullGcTime = gcStartTime;
+  }
+
+  public void gcFinished(long gcStartTime, @NotNull Outcome outcome, int packCount, long looseObjectsEstimate) {
+    myLastGcTime = gcStartTime;
+    myOutcome = outcome;
+    myPackCount = packCount;
+    myLooseObjectsEstimate = looseObjectsEstimate;
+    myFetchesSinceGc = 0;
+  }
+
+  /**
+   * Records that objects were added to the clone, so the next cleanup checks if it needs gc.
+   * Errors are logged, they don't affect the operation which added objects. Should be called
+   * under the write lock of the clone, see {@link #update(File, Consumer)}.
+   */
+  public static void objectsAdded(@NotNull File gitDir) {
+    try {
+      update(gitDir, state -> {
+        long now = System.currentTimeMillis();
+        //the first recorded operation of a clone is the initial fetch, it downloads only reachable objects
+        if (state.myLastFetchTime == 0 && state.myLastGcTime == 0 && state.myLastFullGcTime == 0)
+          state.myLastFullGcTime = now;
+        state.myLastFetchTime = now;
+        state.myFetchesSinceGc++;
+      });
+    } catch (IOException e) {
+      //the error most likely repeats on every fetch, report it once
+      if (ourObjectsAddedErrorReported.compareAndSet(false, true)) {
+        LOG.warnAndDebugDetails("Error while updating gc state in " + gitDir.getAbsolutePath() + ", cleanup may skip clones which need gc", e);
+      } else {
+        LOG.debug("Error while updating gc state in " + gitDir.getAbsolutePath(), e);
+      }
+    }
+  }
+
+  /**
+   * @return persisted state of the clone or null if state is not persisted or cannot be read
+   */
+  @Nullable
+  public static GcState read(@NotNull File gitDir) {
+    File file = new File(gitDir, FILE_NAME);
+    if (!file.isFile())
+      return null;
+    Properties props = new Properties();
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      props.load(in);
+    } catch (IOException e) {
+      LOG.debug("Error while reading gc state from " + file.getAbsolutePath(), e);
+      return null;
+    }
+    try {
+      GcState result = new GcState();
+      result.myLastGcTime = Long.parseLong(props.getProperty("lastGcTime", "0"));
+      result.myLastFullGcTime = Long.parseLong(props.getProperty("lastFullGcTime", "0"));
+      result.myPackCount = Integer.parseInt(props.getProperty("packCount", "0"));
+      result.myLooseObjectsEstimate = Long.parseLong(props.getProperty("looseObjectsEstimate", "0"));
+      result.myLastFetchTime = Long.parseLong(props.getProperty("lastFetchTime", "0"));
+      result.myFetchesSinceGc = Integer.parseInt(props.getProperty("fetchesSinceGc", "0"));
+      String outcome = props.getProperty("outcome");
+      result.myOutcome = outcome != null ? Outcome.valueOf(outcome) : null;
+      return result;
+    } catch (IllegalArgumentException e) {
+      LOG.debug("Broken gc state in " + file.getAbsolutePath(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Reads, updates and persists the state of the clone. The state is replaced atomically,
+   * so readers never see a partially written file.
+   *
+   * <p>Updates of the same clone are serialized by its write lock ({@link RepositoryManager#getWriteLock(File)}),
+   * the caller should hold it. Fetches already own the lock, so recording them doesn't add contention.
+   */
+  public static void update(@NotNull File gitDir, @NotNull Consumer<GcState> update) throws IOException {
+    if (!gitDir.isDirectory())
+      return;
+    GcState state = read(gitDir);
+    if (state == null)
+      state = new GcState();
+    update.accept(state);
+
+    Properties props = new Properties();
+    props.setProperty("lastGcTime", String.valueOf(state.myLastGcTime));
+    props.setProperty("lastFullGcTime", String.valueOf(state.myLastFullGcTime));
+    props.setProperty("packCount", String.valueOf(state.myPackCount));
+    props.setProperty("looseObjectsEstimate", String.valueOf(state.myLooseObjectsEstimate));
+    props.setProperty("lastFetchTime", String.valueOf(state.myLastFetchTime));
+    props.setProperty("fetchesSinceGc", String.valueOf(state.myFetchesSinceGc));
+    if (state.myOutcome != null)
+      props.setProperty("outcome", state.myOutcome.name());
+
+    File tmp = new File(gitDir, FILE_NAME + ".tmp");
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+      props.store(out, null);
+    }
+    Files.move(tmp.toPath(), new File(gitDir, FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
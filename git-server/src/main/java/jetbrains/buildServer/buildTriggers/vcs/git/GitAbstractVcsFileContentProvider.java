@@ -59,6 +59,7 @@ public abstract class GitAbstractVcsFileContentProvider implements VcsFileConten
     if (!isValid(version))
       return null;
     OperationContext context = myVcs.createContext(root, "compute parent revision of " + version);
+    context.setFetchPriority(FetchPriority.INTERACTIVE);
     try {
       GitVcsRoot gitRoot = context.getGitRoot();
       RevCommit c = myVcs.getCommitLoader().loadCommit(context, gitRoot, version);
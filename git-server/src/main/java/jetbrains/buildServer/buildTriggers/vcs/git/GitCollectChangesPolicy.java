@@ -8,6 +8,8 @@ import com.intellij.openapi.diagnostic.Logger;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 import jetbrains.buildServer.buildTriggers.vcs.git.gitProxy.*;
 import jetbrains.buildServer.buildTriggers.vcs.git.submodules.SubmoduleException;
@@ -130,17 +132,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
           return runCollectChangesWithTimer("gitProxy", operationId, root, project, false,
                                             () -> myGitProxyChangesCollector.collectChangesGitProxy(myConfig, root, fromState, toState, proxyCredentials, operationId, null, true, allowMissingTips));
         } catch (Throwable t) {
-          boolean shouldRunFallbackChangesCollections = TeamCityProperties.getBooleanOrTrue(GitProxyChangesCollector.ENABLE_JGIT_FALLBACK_CHANGES_COLLECTION);
-          if (t instanceof GitProxyChangesCollector.GitProxySubmoduleChangesNotSupported) {
-            LOG.info(String.format("Will not collect changes with gitProxy because changes in submodule were detected, will use jgit changes collection. " +
-                                   "State %s. Operation id %s",
-                                   GitProxyChangesCollector.getStateDiff(fromState, toState), operationId));
-            shouldRunFallbackChangesCollections = true;
-          } else {
-            LOG.warn(String.format("Failed to collect changes with gitProxy%s. Operation id %s",
-                                   shouldRunFallbackChangesCollections ? ", will collect changes with jgit" : "", operationId), t);
-          }
-          if (shouldRunFallbackChangesCollections) {
+          if (shouldRunFallbackChangesCollection(t, fromState, toState, operationId)) {
             return runCollectChangesWithTimer("jgitFallback", operationId, root, project, false, () -> collectGitChangesJgit(root, fromState, toState));
           } else {
             throw t;
@@ -150,11 +142,79 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
     }
   }
 
+  /**
+   * Streaming variant of {@link #collectChangesExtended}: collected changes are passed to the sink one by one
+   * in the same order instead of being accumulated in a list, so memory used by the collection doesn't depend
+   * on the number of collected changes.
+   *
+   * <p>Unlike the list-based variant, collection with gitProxy falls back to jgit only if no changes were passed
+   * to the sink yet, and gitProxy results are not compared with jgit ones.
+   *
+   * @return revisions which should be persisted for branches whose tips were not found by gitProxy,
+   * null if all tips were found (see {@link ChangesCollectionResult#setUpToDateState})
+   */
+  @Nullable
+  public Map<String, String> collectChanges(@NotNull VcsRoot root,
+                                            @NotNull RepositoryStateData fromState,
+                                            @NotNull RepositoryStateData toState,
+                                            boolean allowMissingTips,
+                                            @NotNull ModificationDataSink sink) throws VcsException {
+    SProject project = retrieveProject(root);
+    String operationId = UUID.randomUUID().toString().substring(0, 8); // used for logging
+    try (Stoppable stoppable = myCollectChangesMetric.startMsecsTimer()) {
+      final GitProxySettings proxyCredentials = myGitProxyChangesCollector.getGitProxyInfo(root, project);
+      if (!GitProxyChangesCollector.isGitProxyEnabled(project) || proxyCredentials == null) {
+        runCollectChangesWithTimer("jgit", operationId, root, project, false, () -> {
+          collectChangesJgit(root, fromState, toState, sink);
+          return null;
+        });
+        return null;
+      }
+
+      final int[] accepted = {0};
+      final ModificationDataSink countingSink = data -> {
+        accepted[0]++;
+        return sink.accept(data);
+      };
+      try {
+        return runCollectChangesWithTimer("gitProxy", operationId, root, project, false,
+                                          () -> myGitProxyChangesCollector.collectChangesGitProxy(myConfig, root, fromState, toState, proxyCredentials, operationId, null, true, allowMissingTips, countingSink));
+      } catch (Throwable t) {
+        if (accepted[0] == 0 && shouldRunFallbackChangesCollection(t, fromState, toState, operationId)) {
+          runCollectChangesWithTimer("jgitFallback", operationId, root, project, false, () -> {
+            collectChangesJgit(root, fromState, toState, sink);
+            return null;
+          });
+          return null;
+        } else {
+          throw t;
+        }
+      }
+    }
+  }
+
+  private static boolean shouldRunFallbackChangesCollection(@NotNull Throwable t,
+                                                            @NotNull RepositoryStateData fromState,
+                                                            @NotNull RepositoryStateData toState,
+                                                            @NotNull String operationId) {
+    boolean shouldRunFallbackChangesCollections = TeamCityProperties.getBooleanOrTrue(GitProxyChangesCollector.ENABLE_JGIT_FALLBACK_CHANGES_COLLECTION);
+    if (t instanceof GitProxyChangesCollector.GitProxySubmoduleChangesNotSupported) {
+      LOG.info(String.format("Will not collect changes with gitProxy because changes in submodule were detected, will use jgit changes collection. " +
+                             "State %s. Operation id %s",
+                             GitProxyChangesCollector.getStateDiff(fromState, toState), operationId));
+      shouldRunFallbackChangesCollections = true;
+    } else {
+      LOG.warn(String.format("Failed to collect changes with gitProxy%s. Operation id %s",
+                             shouldRunFallbackChangesCollections ? ", will collect changes with jgit" : "", operationId), t);
+    }
+    return shouldRunFallbackChangesCollections;
+  }
+
   private static class IgnoredCollectChangesFailure extends RuntimeException { }
 
-  private GitChangesCollectionResult runCollectChangesWithTimer(@NotNull String methodName, @NotNull String operationId, @NotNull VcsRoot root, @Nullable SProject project, boolean safeMode, Callable<GitChangesCollectionResult> operation) throws VcsException {
+  private <T> T runCollectChangesWithTimer(@NotNull String methodName, @NotNull String operationId, @NotNull VcsRoot root, @Nullable SProject project, boolean safeMode, Callable<T> operation) throws VcsException {
     long startTime = System.currentTimeMillis();
-    GitChangesCollectionResult result;
+    T result;
     try {
       result = operation.call();
     } catch (Exception e) {
@@ -206,27 +266,47 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
   private List<ModificationData> collectChangesJgit(@NotNull VcsRoot root,
                                                     @NotNull RepositoryStateData fromState,
                                                     @NotNull RepositoryStateData toState) throws VcsException {
+    List<ModificationData> changes = new ArrayList<>();
+    collectChangesJgit(root, fromState, toState, changes::add);
+    return changes;
+  }
+
+  private void collectChangesJgit(@NotNull VcsRoot root,
+                                  @NotNull RepositoryStateData fromState,
+                                  @NotNull RepositoryStateData toState,
+                                  @NotNull ModificationDataSink sink) throws VcsException {
     OperationContext context = myVcs.createContext(root, "collecting changes", createProgress());
     GitVcsRoot gitRoot = context.getGitRoot();
-    return myRepositoryManager.runWithDisabledRemove(gitRoot.getRepositoryDir(), () -> {
-      List<ModificationData> changes = new ArrayList<>();
+    myRepositoryManager.runWithDisabledRemove(gitRoot.getRepositoryDir(), () -> {
       try {
         Repository r = context.getRepository();
-        ModificationDataRevWalk revWalk = new ModificationDataRevWalk(myConfig, context);
+        ModificationDataRevWalk revWalk = new ModificationDataRevWalk(myConfig, context, myVcs.getCommitChangesCache());
         revWalk.sort(RevSort.TOPO);
         ensureRepositoryStateLoadedFor(context, fromState, toState);
         markStart(r, revWalk, toState);
         markUninteresting(r, revWalk, fromState, toState);
         markForLimitedBranches(r, revWalk, fromState, toState);
-        while (revWalk.next() != null) {
-          changes.add(revWalk.createModificationData());
-
-          final int limit = TeamCityProperties.getInteger("teamcity.git.collectChanges.maxChanges", Integer.MAX_VALUE);
-          if (changes.size() >= limit) {
+        final int limit = TeamCityProperties.getInteger("teamcity.git.collectChanges.maxChanges", Integer.MAX_VALUE);
+        final int[] collected = {0};
+        final ModificationDataSink limitingSink = data -> {
+          if (!sink.accept(data))
+            return false;
+          if (++collected[0] >= limit) {
             List<String> updatedBranches = getInterestingBranches(fromState, toState);
             LOG.warn("Reached the limit (" + limit + ") for the number of collected changes for VCS root: " + gitRoot.toString() + ", while collecting changes from state: " +
                      shortRepoStateDetails(fromState, updatedBranches) + ", to state: " + shortRepoStateDetails(toState, updatedBranches));
-            return changes;
+            return false;
+          }
+          return true;
+        };
+        final int parallelism = myConfig.getCollectChangesParallelism();
+        final ExecutorService executor = parallelism > 1 && revWalk.canComputeChangesInParallel() ? getTreeDiffExecutor(context) : null;
+        if (executor != null) {
+          revWalk.computeModificationData(executor, parallelism, limitingSink);
+        } else {
+          while (revWalk.next() != null) {
+            if (!limitingSink.accept(revWalk.createModificationData()))
+              break;
           }
         }
       } catch (Exception e) {
@@ -239,10 +319,19 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
       } finally {
         context.close();
       }
-      return changes;
     });
   }
 
+  @Nullable
+  private static ExecutorService getTreeDiffExecutor(@NotNull OperationContext context) {
+    try {
+      return context.getExecutors().getTreeDiffExecutor().get(TeamCityProperties.getInteger("teamcity.git.collectChanges.treeDiffThreads", Runtime.getRuntime().availableProcessors()));
+    } catch (RejectedExecutionException e) {
+      //the executor is shut down, compute changes sequentially
+      return null;
+    }
+  }
+
   @NotNull
   private String shortRepoStateDetails(@NotNull RepositoryStateData state, @NotNull List<String> updatedBranches) {
     StringBuilder result = new StringBuilder();
@@ -336,6 +425,18 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
                                                 @Nullable Set<String> visited,
                                                 @NotNull OperationContext context,
                                                 @NotNull GitVcsRoot gitRoot) throws VcsException {
+    CheckoutRulesRevisionMemo memo = getCheckoutRulesRevisionMemo(gitRoot);
+    if (memo != null) {
+      String start = GitUtils.versionRevision(startRevision);
+      CheckoutRulesRevisionMemo.Entry memoized = ObjectId.isId(start) ? memo.get(CheckoutRulesRevisionMemo.getRulesKey(rules), ObjectId.fromString(start), stopRevisions) : null;
+      if (memoized != null) {
+        if (visited != null) {
+          visited.addAll(memoized.getVisitedRevisions());
+        }
+        return new Result(memoized.getMatchedRevision(), memoized.getReachedStopRevisions());
+      }
+    }
+
     if (!stopRevisions.isEmpty() &&
         myVcs.isNativeGitOperationEnabled(gitRoot) &&
         rules.getExcludeRules().isEmpty() &&
@@ -349,6 +450,9 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
           return false;
         }
       };
+      if (memo != null) {
+        revWalk.setMemo(memo);
+      }
 
       try {
         Boolean hasInterestingCommits = null;
@@ -382,6 +486,9 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
     CheckoutRulesRevWalk revWalk = null;
     try {
       revWalk = new CheckoutRulesRevWalk(myConfig, context, rules);
+      if (memo != null) {
+        revWalk.setMemo(memo);
+      }
       return computeResult(startRevision, stopRevisions, visited, gitRoot, revWalk);
     } catch (Exception e) {
       throw context.wrapException(e);
@@ -393,6 +500,18 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRepositorie
     }
   }
 
+  /**
+   * @return memo of the search results or null if results cannot be reused for the root
+   */
+  @Nullable
+  private CheckoutRulesRevisionMemo getCheckoutRulesRevisionMemo(@NotNull GitVcsRoot gitRoot) {
+    // submodule errors are ignored during the search, results can change once submodule commits are fetched
+    if (gitRoot.isCheckoutSubmodules())
+      return null;
+    CheckoutRulesRevisionMemo memo = myVcs.getCheckoutRulesRevisionMemo(gitRoot.getRepositoryDir());
+    return memo.isEnabled() ? memo : null;
+  }
+
   private boolean hasCommitsAffectingPaths(@NotNull final String startRevision,
                                            @NotNull final Set<String> excludedRevisions,
                                            @NotNull final Collection<String> paths,
@@ -182,6 +182,7 @@ public class GitCommitSupport implements CommitSupport, GitServerExtension {
         ReentrantLock lock = myRepositoryManager.getWriteLock(gitRoot.getRepositoryDir());
         lock.lock();
         try {
+          GcState.objectsAdded(myDb.getDirectory());
           // For brand-new branch creation, the push must assert "ref does not exist" via zero-id;
           // otherwise we send the current tip's id so the push is a fast-forward.
           String expectedOldTip = myCreatingNewBranch ? ObjectId.zeroId().name() : lastCommit.name();
@@ -190,6 +191,7 @@ public class GitCommitSupport implements CommitSupport, GitServerExtension {
           Loggers.VCS.info("Change '" + commitSettings.getDescription() + "' was successfully committed");
           return CommitResult.markNewBranchCreated(result, myCreatingNewBranch);
         } finally {
+          myVcs.invalidateRemoteRefs(gitRoot);
           lock.unlock();
         }
       } catch (Exception e) {
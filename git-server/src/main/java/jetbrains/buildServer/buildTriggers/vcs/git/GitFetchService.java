@@ -26,6 +26,7 @@ public class GitFetchService implements FetchService, GitServerExtension {
                               @NotNull final CheckoutRules rules,
                               @NotNull final FetchRepositoryCallback callback) throws VcsException {
     final OperationContext ctx = myVcs.createContext(root, "Fetch", new FetchCallbackProgress(callback));
+    ctx.setFetchPriority(FetchPriority.BACKGROUND);
     GitVcsRoot gitRoot = ctx.getGitRoot();
     myVcs.getRepositoryManager().runWithDisabledRemove(gitRoot.getRepositoryDir(), () -> {
       try {
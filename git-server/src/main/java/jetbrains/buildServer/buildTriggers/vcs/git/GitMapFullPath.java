@@ -14,10 +14,16 @@ import jetbrains.buildServer.util.Disposable;
 import jetbrains.buildServer.util.NamedDaemonThreadFactory;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRootEntry;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.BitmapIndex;
+import org.eclipse.jgit.lib.BitmapObject;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.BitmapWalker;
+import org.eclipse.jgit.revwalk.ObjectWalk;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevObject;
 import org.eclipse.jgit.revwalk.RevSort;
@@ -50,6 +56,12 @@ public class GitMapFullPath {
   }
 
 
+  @NotNull
+  public RevisionsCache getRevisionsCache() {
+    return myCache;
+  }
+
+
   @NotNull
   public Collection<String> mapFullPath(@NotNull OperationContext context, @NotNull VcsRootEntry rootEntry, @NotNull String path) throws VcsException {
     GitVcsRoot root = context.getGitRoot(rootEntry.getVcsRoot());
@@ -111,21 +123,34 @@ public class GitMapFullPath {
                                              @NotNull GitVcsRoot root,
                                              @NotNull String revision,
                                              @NotNull RevisionCacheType type) throws VcsException, IOException {
-    Disposable threadName = NamedDaemonThreadFactory.patchThreadName("Looking for revision " + revision + " in repository: " + root.getRepositoryDir().getAbsolutePath());
+    if (!ObjectId.isId(revision)) {
+      if (LOG.isDebugEnabled())
+        LOG.debug("Root " + LogUtil.describe(root) + ", revision " + revision + " is not a commit id");
+      return false;
+    }
+    return repositoryContainsRevision(context, root, ObjectId.fromString(revision), type);
+  }
+
+
+  private boolean repositoryContainsRevision(@NotNull OperationContext context,
+                                             @NotNull GitVcsRoot root,
+                                             @NotNull AnyObjectId revision,
+                                             @NotNull RevisionCacheType type) throws VcsException, IOException {
+    Disposable threadName = NamedDaemonThreadFactory.patchThreadName("Looking for revision " + revision.name() + " in repository: " + root.getRepositoryDir().getAbsolutePath());
     try {
       RepositoryRevisionCache repositoryCache = myCache.getRepositoryCache(root.getRepositoryDir(), type);
       long resetCounter = repositoryCache.getResetCounter();
       Boolean hasRevision = repositoryCache.hasRevision(revision);
       if (hasRevision != null) {
         if (LOG.isDebugEnabled())
-          LOG.debug("RevisionCache hit: root " + LogUtil.describe(root) + (hasRevision ? " contains " : " doesn't contain ") + "revision " + revision);
+          LOG.debug("RevisionCache hit: root " + LogUtil.describe(root) + (hasRevision ? " contains " : " doesn't contain ") + "revision " + revision.name());
         return hasRevision;
       } else {
         if (LOG.isDebugEnabled())
-          LOG.debug("RevisionCache miss: root " + LogUtil.describe(root) + ", revision " + revision + ", lookup commit in repository");
+          LOG.debug("RevisionCache miss: root " + LogUtil.describe(root) + ", revision " + revision.name() + ", lookup commit in repository");
         hasRevision = myCommitLoader.findCommit(context.getRepository(root), revision) != null;
         if (LOG.isDebugEnabled())
-          LOG.debug("Root " + LogUtil.describe(root) + ", revision " + revision + (hasRevision ? " was found" : " wasn't found") + ", cache the result");
+          LOG.debug("Root " + LogUtil.describe(root) + ", revision " + revision.name() + (hasRevision ? " was found" : " wasn't found") + ", cache the result");
         repositoryCache.saveRevision(revision, hasRevision, resetCounter);
         return hasRevision;
       }
@@ -179,7 +204,7 @@ public class GitMapFullPath {
       if (myConfig.ignoreFetchedCommits()) {
         myCache.resetNegativeEntries(db.getDirectory());
       } else {
-        Set<String> newCommits = getNewCommits(db, oldRefs, newRefs);
+        List<? extends AnyObjectId> newCommits = getNewCommits(db, oldRefs, newRefs);
         myCache.resetNegativeEntries(db.getDirectory(), newCommits);
       }
     } catch (IOException e) {
@@ -187,7 +212,7 @@ public class GitMapFullPath {
     }
   }
 
-  private Set<String> getNewCommits(@NotNull Repository db, @NotNull Map<String, Ref> oldRefs, @NotNull Map<String, Ref> newRefs) throws IOException {
+  private List<? extends AnyObjectId> getNewCommits(@NotNull Repository db, @NotNull Map<String, Ref> oldRefs, @NotNull Map<String, Ref> newRefs) throws IOException {
     Set<ObjectId> updatedHeads = new HashSet<ObjectId>();
     Set<ObjectId> uninteresting = new HashSet<ObjectId>();
     for (Map.Entry<String, Ref> e : newRefs.entrySet()) {
@@ -204,12 +229,20 @@ public class GitMapFullPath {
 
     if (updatedHeads.isEmpty()) {
       // avoid expensive RevWalk.parseAny for uninteresting heads if there are no updated heads
-      return Collections.emptySet();
+      return Collections.emptyList();
+    }
+
+    //geometric repack replaces per-pack bitmaps with a multi-pack-index bitmap which JGit doesn't read
+    if (myConfig.isReachabilityBitmapsEnabled() && !myConfig.runGeometricRepack()) {
+      List<ObjectId> newCommits = getNewCommitsUsingBitmaps(db, updatedHeads, uninteresting);
+      if (newCommits != null)
+        return newCommits;
     }
 
     RevWalk revWalk = new RevWalk(db);
     try {
       revWalk.sort(RevSort.TOPO);
+      revWalk.setRetainBody(false);
       for (ObjectId id : updatedHeads) {
         RevObject obj = revWalk.parseAny(id);
         if (obj.getType() == Constants.OBJ_COMMIT)
@@ -220,10 +253,10 @@ public class GitMapFullPath {
         if (obj.getType() == Constants.OBJ_COMMIT)
           revWalk.markUninteresting((RevCommit) obj);
       }
-      Set<String> newCommits = new HashSet<String>();
+      List<RevCommit> newCommits = new ArrayList<>();
       RevCommit newCommit;
       while ((newCommit = revWalk.next()) != null) {
-        newCommits.add(newCommit.name());
+        newCommits.add(newCommit);
       }
       return newCommits;
     } finally {
@@ -232,6 +265,45 @@ public class GitMapFullPath {
   }
 
 
+  /**
+   * Computes commits reachable from the updated heads and not reachable from the old ones using pack bitmaps.
+   * Bitmaps are used only when every head has its own bitmap: BitmapWalker walks all trees and blobs
+   * of commits without bitmaps, which is much more expensive than the commit-only RevWalk. The order
+   * of returned commits is not topological, callers only use them to flip negative cache entries.
+   * @return new commits or null if bitmaps don't cover all heads
+   */
+  @Nullable
+  private static List<ObjectId> getNewCommitsUsingBitmaps(@NotNull Repository db,
+                                                          @NotNull Set<ObjectId> updatedHeads,
+                                                          @NotNull Set<ObjectId> uninteresting) throws IOException {
+    try (ObjectWalk walk = new ObjectWalk(db)) {
+      BitmapIndex bitmapIndex = walk.getObjectReader().getBitmapIndex();
+      if (bitmapIndex == null || !hasBitmaps(bitmapIndex, updatedHeads) || !hasBitmaps(bitmapIndex, uninteresting))
+        return null;
+      BitmapWalker bitmapWalker = new BitmapWalker(walk, bitmapIndex, NullProgressMonitor.INSTANCE);
+      BitmapIndex.BitmapBuilder oldObjects = bitmapWalker.findObjects(uninteresting, null, true);
+      walk.reset();
+      BitmapIndex.BitmapBuilder newObjects = bitmapWalker.findObjects(updatedHeads, oldObjects, true);
+      newObjects.andNot(oldObjects);
+      List<ObjectId> newCommits = new ArrayList<>();
+      for (BitmapObject obj : newObjects) {
+        if (obj.getType() == Constants.OBJ_COMMIT)
+          newCommits.add(obj.getObjectId().copy());
+      }
+      return newCommits;
+    }
+  }
+
+
+  private static boolean hasBitmaps(@NotNull BitmapIndex bitmapIndex, @NotNull Set<ObjectId> heads) {
+    for (ObjectId head : heads) {
+      if (bitmapIndex.getBitmap(head) == null)
+        return false;
+    }
+    return true;
+  }
+
+
   //Format: <hint revision>-<git revision hash>|<repository url>|<file relative path>
   public static class FullPath {
     private final String myPath;
@@ -149,6 +149,7 @@ public class GitMergeSupport implements MergeSupport, GitServerExtension {
     ReentrantLock lock = myRepositoryManager.getWriteLock(gitRoot.getRepositoryDir());
     lock.lock();
     try {
+      GcState.objectsAdded(db.getDirectory());
       myRepoOperations.pushCommand(gitRoot.getRepositoryPushURL().toString())
                       .push(db, gitRoot, dstBranch, commitId.name(), dstBranchLastCommit.name());
       return MergeResult.createMergeSuccessResult();
@@ -0,0 +1,35 @@
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Thread pools used by git operations, they are owned by {@link GitVcsSupport}
+ * and are shut down on its disposal.
+ */
+public class GitServerExecutors {
+
+  private final ResizableDaemonExecutor myPatchBlobLoadExecutor = new ResizableDaemonExecutor("Git patch blob loading", 1000);
+  private final ResizableDaemonExecutor myTreeDiffExecutor = new ResizableDaemonExecutor("Git changes collection", 1000);
+  private final ResizableDaemonExecutor mySubmodulesFetchExecutor = new ResizableDaemonExecutor("Git submodules fetch", 1000);
+
+  @NotNull
+  public ResizableDaemonExecutor getPatchBlobLoadExecutor() {
+    return myPatchBlobLoadExecutor;
+  }
+
+  @NotNull
+  public ResizableDaemonExecutor getTreeDiffExecutor() {
+    return myTreeDiffExecutor;
+  }
+
+  @NotNull
+  public ResizableDaemonExecutor getSubmodulesFetchExecutor() {
+    return mySubmodulesFetchExecutor;
+  }
+
+  public void dispose() {
+    myPatchBlobLoadExecutor.shutdown();
+    myTreeDiffExecutor.shutdown();
+    mySubmodulesFetchExecutor.shutdown();
+  }
+}
@@ -506,6 +506,20 @@ public class GitServerUtil {
   }
 
 
+  /**
+   * Installs the global JGit window cache sized according to the config
+   */
+  public static void configureWindowCache(int streamFileThresholdBytes, @NotNull ServerPluginConfig config) {
+    WindowCacheConfig cfg = new WindowCacheConfig();
+    cfg.setStreamFileThreshold(streamFileThresholdBytes);
+    cfg.setPackedGitLimit(config.getPackedGitLimitMb() * (long) WindowCacheConfig.MB);
+    cfg.setPackedGitOpenFiles(config.getPackedGitOpenFiles());
+    cfg.setDeltaBaseCacheLimit(config.getDeltaBaseCacheLimitMb() * WindowCacheConfig.MB);
+    cfg.setPackedGitMMAP(config.isPackedGitMmap());
+    cfg.install();
+  }
+
+
   public static void configureExternalProcessLogger(boolean debugEnabled) {
     LogInitializer.reconfigureLog4j((loggerContext, configuration) -> {
       LoggerConfig rootLogger = configuration.getRootLogger();
@@ -515,6 +529,14 @@ public class GitServerUtil {
       configuration.addAppender(consoleAppender);
       rootLogger.addAppender(consoleAppender, Level.INFO, null);
     });
+    configureExternalProcessLogLevels(debugEnabled);
+  }
+
+
+  /**
+   * Sets log levels in external process, can be called for every operation of a long-lived process
+   */
+  public static void configureExternalProcessLogLevels(boolean debugEnabled) {
     org.apache.log4j.Logger.getLogger("org.eclipse.jgit").setLevel(debugEnabled ? org.apache.log4j.Level.DEBUG : org.apache.log4j.Level.WARN);
     org.apache.log4j.Logger.getLogger("jetbrains.buildServer.buildTriggers.vcs.git").setLevel(debugEnabled ? org.apache.log4j.Level.DEBUG : org.apache.log4j.Level.INFO);
 
@@ -722,6 +744,50 @@ public class GitServerUtil {
     return ref.getObjectId();
   }
 
+  /**
+   * Returns prefixes of refs required for the current state of the root: refs matching its branch spec,
+   * its default branch and tags when they are reported. Only branches and tags are supported,
+   * any other pattern requires all refs.
+   *
+   * @return ref prefixes or an empty set if all refs are required
+   */
+  @NotNull
+  public static Set<String> getCurrentStateRefPrefixes(@NotNull GitVcsRoot root) {
+    Set<String> result = new HashSet<>();
+    if (!addRefPrefix(result, GitUtils.expandRef(root.getRef())))
+      return Collections.emptySet();
+    if (root.isReportTags())
+      result.add(org.eclipse.jgit.lib.Constants.R_TAGS);
+    String branchSpec = root.getBranchSpec();
+    if (branchSpec != null) {
+      for (String line : branchSpec.split("\\r?\\n")) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("-:"))
+          continue;
+        String pattern = line.startsWith("+:") ? line.substring(2).trim() : line;
+        if (pattern.equals("<default>"))
+          continue;
+        if (!addRefPrefix(result, pattern))
+          return Collections.emptySet();
+      }
+    }
+    return result;
+  }
+
+  private static boolean addRefPrefix(@NotNull Set<String> prefixes, @NotNull String refPattern) {
+    if (refPattern.contains("%"))
+      return false; // unresolved parameter
+    if (refPattern.startsWith(org.eclipse.jgit.lib.Constants.R_HEADS)) {
+      prefixes.add(org.eclipse.jgit.lib.Constants.R_HEADS);
+      return true;
+    }
+    if (refPattern.startsWith(org.eclipse.jgit.lib.Constants.R_TAGS)) {
+      prefixes.add(org.eclipse.jgit.lib.Constants.R_TAGS);
+      return true;
+    }
+    return false;
+  }
+
   public static boolean isTag(@NotNull Ref ref) {
     return isTag(ref.getName());
   }
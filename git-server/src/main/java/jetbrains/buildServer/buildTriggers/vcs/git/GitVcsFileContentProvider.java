@@ -42,6 +42,7 @@ public class GitVcsFileContentProvider extends GitAbstractVcsFileContentProvider
   @NotNull
   public byte[] getContent(@NotNull String filePath, @NotNull VcsRoot root, @NotNull String version) throws VcsException {
     OperationContext context = myVcs.createContext(root, "retrieving content, file: '" + filePath + "', version: '" + version +"'");
+    context.setFetchPriority(FetchPriority.INTERACTIVE);
     try {
       final long start = System.currentTimeMillis();
       Repository r = context.getRepository();
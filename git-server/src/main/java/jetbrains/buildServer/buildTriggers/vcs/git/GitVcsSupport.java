@@ -12,6 +12,7 @@ import jetbrains.buildServer.ExtensionHolder;
 import jetbrains.buildServer.buildTriggers.vcs.git.gitProxy.ChangesCollectorCache;
 import jetbrains.buildServer.buildTriggers.vcs.git.gitProxy.GitApiClientFactory;
 import jetbrains.buildServer.buildTriggers.vcs.git.patch.GitPatchBuilderDispatcher;
+import jetbrains.buildServer.buildTriggers.vcs.git.patch.GitPatchCache;
 import jetbrains.buildServer.metrics.*;
 import jetbrains.buildServer.serverSide.PropertiesProcessor;
 import jetbrains.buildServer.serverSide.oauth.TokenRefresher;
@@ -64,6 +65,10 @@ public class GitVcsSupport extends ServerVcsSupport
   private final SSLTrustStoreProvider mySslTrustStoreProvider;
   private final ParameterFactory myParameterFactory;
   private final ChangesCollectorCache myChangesCollectorCache;
+  private final CommitChangesCache myCommitChangesCache;
+  private final GitPatchCache myPatchCache;
+  private final RemoteRefsCache myRemoteRefsCache;
+  private final GitServerExecutors myExecutors = new GitServerExecutors();
 
   public GitVcsSupport(@NotNull GitRepoOperations gitRepoOperations,
                        @NotNull ServerPluginConfig config,
@@ -111,7 +116,7 @@ public class GitVcsSupport extends ServerVcsSupport
     myCommitLoader = commitLoader;
     mySshKeyManager = sshKeyManager;
     myProgressProvider = progressProvider;
-    setStreamFileThreshold();
+    configureWindowCache();
     resetCacheManager.registerHandler(resetCacheHandler);
     resetCacheManager.registerHandler(resetRevisionsCacheHandler);
     myGitTrustStoreProvider = gitTrustStoreProvider;
@@ -120,10 +125,17 @@ public class GitVcsSupport extends ServerVcsSupport
     mySslTrustStoreProvider = sslTrustStoreProvider;
     myParameterFactory = parameterFactory;
     myChangesCollectorCache = changesCollectorCache;
+    myCommitChangesCache = new CommitChangesCache(config);
+    myPatchCache = new GitPatchCache(config);
+    myRemoteRefsCache = new RemoteRefsCache(config);
 
     JSchConfigInitializer.initJSchConfig(JSch.class);
   }
 
+  public void dispose() {
+    myExecutors.dispose();
+  }
+
   public void setServerMetrics(@NotNull ServerMetrics serverMetrics) {
     myServerMetrics = serverMetrics;
     myCurrentStateMetric = serverMetrics.metricBuilder("vcs.git.currentState.duration")
@@ -131,6 +143,9 @@ public class GitVcsSupport extends ServerVcsSupport
                                         .dataType(MetricDataType.MILLISECONDS)
                                         .experimental(true)
                                         .buildCounter();
+    myRemoteRefsCache.setServerMetrics(serverMetrics);
+    WindowCacheMetrics.register(serverMetrics, myConfig, myRepositoryManager);
+    myRepositoryManager.getFetchScheduler().setServerMetrics(serverMetrics);
   }
 
   public void setExtensionHolder(@Nullable ExtensionHolder extensionHolder) {
@@ -145,7 +160,7 @@ public class GitVcsSupport extends ServerVcsSupport
     myExtensions.add(extension);
   }
 
-  private void setStreamFileThreshold() {
+  private void configureWindowCache() {
     int thresholdBytes = myConfig.getStreamFileThresholdMb() * WindowCacheConfig.MB;
     if (thresholdBytes <= 0) {
       //Config returns a threshold > 0, threshold in bytes can became non-positive due to integer overflow.
@@ -153,7 +168,7 @@ public class GitVcsSupport extends ServerVcsSupport
       //to be large, so use maximum possible value.
       thresholdBytes = Integer.MAX_VALUE;
     }
-    GitServerUtil.configureStreamFileThreshold(thresholdBytes);
+    GitServerUtil.configureWindowCache(thresholdBytes, myConfig);
   }
 
   @NotNull
@@ -197,7 +212,10 @@ public class GitVcsSupport extends ServerVcsSupport
     String refInRoot = gitRoot.getRef();
     String fullRef = GitUtils.expandRef(refInRoot);
     Map<String, String> branchRevisions = new HashMap<String, String>();
-    for (Ref ref : getRemoteRefs(gitRoot.getOriginalRoot()).values()) {
+    //only refs which can get into the state are requested, roots pointing to the same repository share ls-remote
+    Set<String> refPrefixes = myConfig.isCurrentStateRefPrefixesEnabled() ? GitServerUtil.getCurrentStateRefPrefixes(gitRoot) : Collections.emptySet();
+    Map<String, Ref> remoteRefs = myRemoteRefsCache.getRemoteRefs(gitRoot, refPrefixes, () -> doGetRemoteRefs(gitRoot.getOriginalRoot(), null, refPrefixes));
+    for (Ref ref : remoteRefs.values()) {
       if (!ref.getName().startsWith("ref"))
         continue;
       if (!gitRoot.isReportTags() && GitServerUtil.isTag(ref) && !fullRef.equals(ref.getName()))
@@ -220,6 +238,7 @@ public class GitVcsSupport extends ServerVcsSupport
                          @NotNull PatchBuilder builder,
                          @NotNull CheckoutRules checkoutRules) throws VcsException {
     OperationContext context = createContext(root, "patch building");
+    context.setFetchPriority(FetchPriority.INTERACTIVE);
     String fromRevision = fromVersion != null ? GitUtils.versionRevision(fromVersion) : null;
     String toRevision = GitUtils.versionRevision(toVersion);
     logBuildPatch(root, fromRevision, toRevision);
@@ -230,7 +249,8 @@ public class GitVcsSupport extends ServerVcsSupport
                                                                                 toRevision, checkoutRules,
                                                                                 trustedCertificatesDir == null ? null : trustedCertificatesDir.getAbsolutePath(),
                                                                                 myConfig.isSeparateProcessForPatch() && !isNativeGitOperationEnabled(gitRoot),
-                                                                                myTransportFactory);
+                                                                                myTransportFactory,
+                                                                                myPatchCache);
       try {
         myCommitLoader.loadCommit(context, gitRoot, toRevision);
         if (fromRevision != null) {
@@ -363,7 +383,7 @@ public class GitVcsSupport extends ServerVcsSupport
   }
 
   public OperationContext createContext(@NotNull VcsRoot root, @NotNull String operation, @NotNull GitProgress progress) {
-    return new OperationContext(myCommitLoader, myRepositoryManager, root, operation, progress, myConfig, myTokenRefresher);
+    return new OperationContext(myCommitLoader, myRepositoryManager, root, operation, progress, myConfig, myTokenRefresher, myExecutors);
   }
 
   @NotNull
@@ -549,23 +569,32 @@ public class GitVcsSupport extends ServerVcsSupport
 
   @NotNull
   public Map<String, Ref> getRemoteRefs(@NotNull final VcsRoot root, boolean useNativeGit) throws VcsException {
-    return doGetRemoteRefs(root, useNativeGit);
+    return doGetRemoteRefs(root, useNativeGit, Collections.emptySet());
   }
 
   @NotNull
   public Map<String, Ref> getRemoteRefs(@NotNull final VcsRoot root) throws VcsException {
-    return doGetRemoteRefs(root, null);
+    return doGetRemoteRefs(root, null, Collections.emptySet());
+  }
+
+  /**
+   * Forgets remote refs of the root's repository shared between roots, should be called after changing the remote repository
+   */
+  void invalidateRemoteRefs(@NotNull GitVcsRoot root) {
+    myRemoteRefsCache.invalidate(root);
   }
 
   @NotNull
-  private Map<String, Ref> doGetRemoteRefs(@NotNull final VcsRoot root, @Nullable Boolean useNativeGit) throws VcsException {
+  private Map<String, Ref> doGetRemoteRefs(@NotNull final VcsRoot root,
+                                           @Nullable Boolean useNativeGit,
+                                           @NotNull Collection<String> refPrefixes) throws VcsException {
     OperationContext context = createContext(root, "list remote refs");
     GitVcsRoot gitRoot = context.getGitRoot();
     try {
       Repository db = context.getRepository();
       Map<String, Ref> remoteRefs = doGetRemoteRefs(db, gitRoot, useNativeGit == null
                                                                  ? myGitRepoOperations.lsRemoteCommand(gitRoot.getRepositoryFetchURL().toString())
-                                                                 : myGitRepoOperations.lsRemoteCommand(useNativeGit));
+                                                                 : myGitRepoOperations.lsRemoteCommand(useNativeGit), refPrefixes);
       if (LOG.isDebugEnabled() && myConfig.logRemoteRefs())
         LOG.debug("Remote refs for VCS root " + LogUtil.describe(root) + ": " + remoteRefs);
       return remoteRefs;
@@ -578,8 +607,11 @@ public class GitVcsSupport extends ServerVcsSupport
 
 
   @NotNull
-  private Map<String, Ref> doGetRemoteRefs(@NotNull Repository db, @NotNull GitVcsRoot gitRoot, @NotNull LsRemoteCommand command) throws Exception {
-    return command.lsRemote(db, gitRoot, new FetchSettings(gitRoot.getAuthSettings(), createProgress()));
+  private Map<String, Ref> doGetRemoteRefs(@NotNull Repository db,
+                                           @NotNull GitVcsRoot gitRoot,
+                                           @NotNull LsRemoteCommand command,
+                                           @NotNull Collection<String> refPrefixes) throws Exception {
+    return command.lsRemote(db, gitRoot, new FetchSettings(gitRoot.getAuthSettings(), createProgress()), refPrefixes);
   }
 
   @NotNull
@@ -668,6 +700,16 @@ public class GitVcsSupport extends ServerVcsSupport
     return myRepositoryManager;
   }
 
+  @NotNull
+  public CommitChangesCache getCommitChangesCache() {
+    return myCommitChangesCache;
+  }
+
+  @NotNull
+  public CheckoutRulesRevisionMemo getCheckoutRulesRevisionMemo(@NotNull File repositoryDir) {
+    return myMapFullPath.getRevisionsCache().getCheckoutRulesRevisionMemo(repositoryDir);
+  }
+
   @NotNull
   @Override
   public String getVcsRootIdentity(@NotNull VcsRoot vcsRoot) throws VcsException {
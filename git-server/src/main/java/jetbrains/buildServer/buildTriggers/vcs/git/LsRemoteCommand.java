@@ -1,5 +1,6 @@
 package jetbrains.buildServer.buildTriggers.vcs.git;
 
+import java.util.Collection;
 import java.util.Map;
 import jetbrains.buildServer.vcs.VcsException;
 import org.eclipse.jgit.lib.Ref;
@@ -9,4 +10,16 @@ import org.jetbrains.annotations.NotNull;
 public interface LsRemoteCommand extends GitCommand {
   @NotNull
   Map<String, Ref> lsRemote(@NotNull Repository db, @NotNull GitVcsRoot gitRoot, @NotNull FetchSettings settings) throws VcsException;
+
+  /**
+   * Lists remote refs, refs with names not starting with any of the given prefixes may be omitted.
+   * An empty collection of prefixes means all refs are required.
+   */
+  @NotNull
+  default Map<String, Ref> lsRemote(@NotNull Repository db,
+                                    @NotNull GitVcsRoot gitRoot,
+                                    @NotNull FetchSettings settings,
+                                    @NotNull Collection<String> refPrefixes) throws VcsException {
+    return lsRemote(db, gitRoot, settings);
+  }
 }
@@ -3,8 +3,12 @@
 package jetbrains.buildServer.buildTriggers.vcs.git;
 
 import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import jetbrains.buildServer.buildTriggers.vcs.git.submodules.IgnoreSubmoduleErrorsTreeFilter;
 import jetbrains.buildServer.buildTriggers.vcs.git.submodules.MissingSubmoduleCommitInfo;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
@@ -31,62 +35,93 @@ class ModificationDataRevWalk extends LimitingRevWalk {
   private static final Logger LOG = Logger.getInstance(ModificationDataRevWalk.class.getName());
 
   private final int mySearchDepth;
+  private final CommitChangesCache myChangesCache;
 
-  ModificationDataRevWalk(@NotNull ServerPluginConfig config, @NotNull OperationContext context) throws VcsException {
+  ModificationDataRevWalk(@NotNull ServerPluginConfig config,
+                          @NotNull OperationContext context,
+                          @NotNull CommitChangesCache changesCache) throws VcsException {
     super(config, context);
     mySearchDepth = config.getFixedSubmoduleCommitSearchDepth();
+    myChangesCache = changesCache;
   }
 
   @NotNull
   public ModificationData createModificationData() throws IOException {
     checkCurrentCommit();
+    return new ModificationDataTask(getCurrentCommit(), shouldIgnoreSubmodulesErrors()).call();
+  }
 
-    final String commitId = getCurrentCommit().getId().name();
-    String message = GitServerUtil.getFullMessage(getCurrentCommit());
-    final PersonIdent authorIdent = GitServerUtil.getAuthorIdent(getCurrentCommit());
-    final Date authorDate = authorIdent.getWhen();
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("Collecting changes in commit " + commitId + ":" + message + " (" + authorDate + ") for " + getGitRoot().debugInfo());
-    }
+  /**
+   * @return true if changes of different commits can be computed concurrently, submodule-aware roots
+   * resolve submodules using the shared operation context and are processed sequentially
+   */
+  boolean canComputeChangesInParallel() {
+    return !getGitRoot().isCheckoutSubmodules();
+  }
 
-    final String parentVersion = getFirstParentVersion(getCurrentCommit());
-    final CommitChangesBuilder builder = new CommitChangesBuilder(getCurrentCommit(), commitId, parentVersion);
-    builder.collectCommitChanges();
-    final List<VcsChange> changes = builder.getChanges();
-
-    final String author = GitServerUtil.getUser(getGitRoot(), authorIdent);
-    final ModificationData result = new ModificationData(
-      authorDate,
-      changes,
-      message,
-      author,
-      getGitRoot().getOriginalRoot(),
-      commitId,
-      commitId);
-
-    Map<String, String> attributes = builder.getAttributes();
-    if (!attributes.isEmpty())
-      result.setAttributes(attributes);
-
-    final PersonIdent commiterIdent = GitServerUtil.getCommitterIdent(getCurrentCommit());
-    final String commiter = GitServerUtil.getUser(getGitRoot(), commiterIdent);
-    final Date commitDate = commiterIdent.getWhen();
-    if (!Objects.equals(authorDate, commitDate)) {
-      result.setAttribute(DBVcsModification.TEAMCITY_COMMIT_TIME, Long.toString(commitDate.getTime()));
-    }
-    if (!Objects.equals(author, commiter)) {
-      result.setAttribute(DBVcsModification.TEAMCITY_COMMIT_USER, commiter);
+  /**
+   * Walks the remaining commits and computes their changes using the given executor. The walk itself
+   * runs in the calling thread, at most {@code parallelism} commits are processed concurrently. Results
+   * are passed to the sink in the walk order.
+   *
+   * @param sink receives computed modifications, walk is stopped once sink returns false
+   */
+  void computeModificationData(@NotNull Executor executor,
+                               int parallelism,
+                               @NotNull ModificationDataSink sink) throws IOException, VcsException {
+    final AtomicBoolean stopped = new AtomicBoolean();
+    final Deque<FutureTask<ModificationData>> window = new ArrayDeque<>(parallelism);
+    try {
+      while (true) {
+        if (window.size() >= parallelism) {
+          if (!sink.accept(await(window.poll())))
+            return;
+          continue;
+        }
+        if (next() == null)
+          break;
+        final ModificationDataTask task = new ModificationDataTask(getCurrentCommit(), shouldIgnoreSubmodulesErrors());
+        final FutureTask<ModificationData> future = new FutureTask<>(() -> stopped.get() ? null : task.call());
+        window.add(future);
+        try {
+          executor.execute(future);
+        } catch (RejectedExecutionException e) {
+          future.run();
+        }
+      }
+      while (!window.isEmpty()) {
+        if (!sink.accept(await(window.poll())))
+          return;
+      }
+    } finally {
+      //tasks use the repository which is closed after the walk, wait for the running ones
+      stopped.set(true);
+      for (FutureTask<ModificationData> future : window) {
+        try {
+          future.get();
+        } catch (Exception ignored) {
+        }
+      }
     }
+  }
 
-    if (getCurrentCommit().getParentCount() > 0) {
-      for (RevCommit parent : getCurrentCommit().getParents()) {
-        parseBody(parent);
-        result.addParentRevision(parent.getId().name());
-      }
-    } else {
-      result.addParentRevision(ObjectId.zeroId().name());
+  @NotNull
+  private static ModificationData await(@NotNull FutureTask<ModificationData> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while computing changes");
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException)cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      if (cause instanceof Error)
+        throw (Error)cause;
+      throw new IOException(cause);
     }
-    return result;
   }
 
   private boolean shouldIgnoreSubmodulesErrors() {
@@ -105,10 +140,100 @@ class ModificationDataRevWalk extends LimitingRevWalk {
     }
   }
 
+  /**
+   * Computes modification data for a commit. Commit details are read in the constructor since
+   * they require the rev walk, changes are computed in {@link #call()} which can run in another thread.
+   */
+  private class ModificationDataTask implements Callable<ModificationData> {
+    private final RevCommit myCommit;
+    private final boolean myIgnoreSubmodulesErrors;
+    private final String myCommitId;
+    private final String myMessage;
+    private final PersonIdent myAuthorIdent;
+    private final PersonIdent myCommitterIdent;
+    private final String myParentVersion;
+    private final List<String> myParents = new ArrayList<>();
+
+    private ModificationDataTask(@NotNull RevCommit commit, boolean ignoreSubmodulesErrors) throws IOException {
+      myCommit = commit;
+      myIgnoreSubmodulesErrors = ignoreSubmodulesErrors;
+      myCommitId = commit.getId().name();
+      myMessage = GitServerUtil.getFullMessage(commit);
+      myAuthorIdent = GitServerUtil.getAuthorIdent(commit);
+      myCommitterIdent = GitServerUtil.getCommitterIdent(commit);
+      myParentVersion = getFirstParentVersion(commit);
+      if (commit.getParentCount() > 0) {
+        for (RevCommit parent : commit.getParents()) {
+          parseBody(parent);
+          myParents.add(parent.getId().name());
+        }
+      } else {
+        myParents.add(ObjectId.zeroId().name());
+      }
+    }
+
+    @NotNull
+    @Override
+    public ModificationData call() throws IOException {
+      final Date authorDate = myAuthorIdent.getWhen();
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Collecting changes in commit " + myCommitId + ":" + myMessage + " (" + authorDate + ") for " + getGitRoot().debugInfo());
+      }
+
+      final List<VcsChange> changes;
+      final Map<String, String> attributes;
+      final File repositoryDir = getGitRoot().getRepositoryDir();
+      final boolean checkoutSubmodules = getGitRoot().isCheckoutSubmodules();
+      final boolean reportPerParentChangedFiles = getConfig().reportPerParentChangedFiles();
+      final CommitChangesCache.Entry cached = myChangesCache.get(repositoryDir, myCommit, checkoutSubmodules, reportPerParentChangedFiles);
+      if (cached != null) {
+        changes = cached.getChanges();
+        attributes = cached.getAttributes();
+      } else {
+        final CommitChangesBuilder builder = new CommitChangesBuilder(myCommit, myCommitId, myParentVersion, myIgnoreSubmodulesErrors);
+        builder.collectCommitChanges();
+        changes = builder.getChanges();
+        attributes = builder.getAttributes();
+        if (!builder.hasBrokenSubmodules()) {
+          //changes computed with ignored submodule errors depend on the state of submodule repositories, don't cache them
+          myChangesCache.put(repositoryDir, myCommit, checkoutSubmodules, reportPerParentChangedFiles, changes, attributes);
+        }
+      }
+
+      final String author = GitServerUtil.getUser(getGitRoot(), myAuthorIdent);
+      final ModificationData result = new ModificationData(
+        authorDate,
+        changes,
+        myMessage,
+        author,
+        getGitRoot().getOriginalRoot(),
+        myCommitId,
+        myCommitId);
+
+      if (!attributes.isEmpty())
+        result.setAttributes(attributes);
+
+      final String commiter = GitServerUtil.getUser(getGitRoot(), myCommitterIdent);
+      final Date commitDate = myCommitterIdent.getWhen();
+      if (!Objects.equals(authorDate, commitDate)) {
+        result.setAttribute(DBVcsModification.TEAMCITY_COMMIT_TIME, Long.toString(commitDate.getTime()));
+      }
+      if (!Objects.equals(author, commiter)) {
+        result.setAttribute(DBVcsModification.TEAMCITY_COMMIT_USER, commiter);
+      }
+
+      for (String parent : myParents) {
+        result.addParentRevision(parent);
+      }
+      return result;
+    }
+  }
+
   private class CommitChangesBuilder {
     private final RevCommit commit;
     private final String currentVersion;
     private final String parentVersion;
+    private final boolean ignoreSubmodulesErrors;
     private final List<VcsChange> changes = new ArrayList<VcsChange>();
     private final Map<String, String> myAttributes = new HashMap<>();
     private final String repositoryDebugInfo = getGitRoot().debugInfo();
@@ -121,13 +246,16 @@ class ModificationDataRevWalk extends LimitingRevWalk {
      * @param commit current commit
      * @param currentVersion teamcity version of current commit (sha@time)
      * @param parentVersion parent version to use in VcsChange objects
+     * @param ignoreSubmodulesErrors whether to ignore submodule errors in the current commit
      */
     public CommitChangesBuilder(@NotNull final RevCommit commit,
                                 @NotNull final String currentVersion,
-                                @NotNull final String parentVersion) {
+                                @NotNull final String parentVersion,
+                                boolean ignoreSubmodulesErrors) {
       this.commit = commit;
       this.currentVersion = currentVersion;
       this.parentVersion = parentVersion;
+      this.ignoreSubmodulesErrors = ignoreSubmodulesErrors;
       // TODO currently we don't use missingSubmoduleCommitInfo, but later it should be stored in attributes(the format is to be defined) and display the information in the ui. See TW-91296
       missingSubmoduleCommitInfo = TeamCityProperties.getBoolean(Constants.COLLECT_BROKEN_SUBMODULES_INFO) ? new MissingSubmoduleCommitInfo() : null;
     }
@@ -147,14 +275,22 @@ class ModificationDataRevWalk extends LimitingRevWalk {
       return missingSubmoduleCommitInfo;
     }
 
+    /**
+     * @return true if broken submodules were detected while collecting changes
+     */
+    public boolean hasBrokenSubmodules() {
+      return filter.hasBrokenSubmodules();
+    }
+
     /**
      * collect changes for the commit
      */
     public void collectCommitChanges() throws IOException {
+      new SubmodulePrefetcher(getContext()).prefetch(getGitRoot(), getRepository(), commit);
       try (VcsChangeTreeWalk tw = new VcsChangeTreeWalk(getRepository(), repositoryDebugInfo, getConfig().verboseTreeWalkLog())) {
         tw.setFilter(filter);
         tw.setRecursive(true);
-        getContext().addTree(getGitRoot(), tw, getRepository(), commit, missingSubmoduleCommitInfo, shouldIgnoreSubmodulesErrors());
+        getContext().addTree(getGitRoot(), tw, getRepository(), commit, missingSubmoduleCommitInfo, ignoreSubmodulesErrors);
         RevCommit[] parents = commit.getParents();
         boolean reportPerParentChangedFiles =
           getConfig().reportPerParentChangedFiles() && parents.length > 1; // report only for merge commits
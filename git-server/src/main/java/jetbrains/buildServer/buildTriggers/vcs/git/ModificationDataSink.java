@@ -0,0 +1,20 @@
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.vcs.ModificationData;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Receives changes as soon as they are collected.
+ *
+ * <p>Changes collection waits until the sink accepts a change, so a slow sink throttles
+ * the collection instead of letting collected changes pile up in memory.
+ */
+public interface ModificationDataSink {
+
+  /**
+   * Called for every collected change in the order of the changes collection result
+   * @return false if the collection should be stopped
+   */
+  boolean accept(@NotNull ModificationData data) throws VcsException;
+}
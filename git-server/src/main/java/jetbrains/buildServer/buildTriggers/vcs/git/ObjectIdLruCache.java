@@ -0,0 +1,271 @@
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import java.util.Arrays;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.MutableObjectId;
+import org.eclipse.jgit.util.NB;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * LRU map from object id to boolean which doesn't allocate objects per entry.
+ *
+ * <p>Ids are stored as two longs and an int in parallel arrays, the hash table is open-addressed
+ * with linear probing and contains indexes of entries, the LRU order is kept in a doubly-linked
+ * list of entry indexes.
+ *
+ * ThreadSafe.
+ */
+final class ObjectIdLruCache {
+
+  private static final int NONE = -1;
+
+  private final int myCapacity;
+  private final long[] myKeys1;
+  private final long[] myKeys2;
+  private final int[] myKeys3;
+  private final boolean[] myValues;
+  private final int[] myPrev;
+  private final int[] myNext;
+  private final int[] myTable;//entry index + 1, 0 for empty slot
+  private final int myMask;
+  private final byte[] myRawId = new byte[Constants.OBJECT_ID_LENGTH];
+  private final MutableObjectId myVisitedId = new MutableObjectId();
+  private int mySize;
+  private int myAllocated;
+  private int myFree = NONE;//list of removed entries linked via myNext
+  private int myEldest = NONE;
+  private int myYoungest = NONE;
+
+  ObjectIdLruCache(int capacity) {
+    myCapacity = Math.max(1, capacity);
+    myKeys1 = new long[myCapacity];
+    myKeys2 = new long[myCapacity];
+    myKeys3 = new int[myCapacity];
+    myValues = new boolean[myCapacity];
+    myPrev = new int[myCapacity];
+    myNext = new int[myCapacity];
+    int tableSize = Integer.highestOneBit(myCapacity * 2 - 1) << 1;
+    myTable = new int[tableSize];
+    myMask = tableSize - 1;
+  }
+
+  interface EntryVisitor {
+    /**
+     * @param id mutable id valid only during the call
+     */
+    void visit(@NotNull AnyObjectId id, boolean value);
+  }
+
+
+  /**
+   * @return cached value and marks the entry as the most recently used, null if there is no entry for the id
+   */
+  @Nullable
+  synchronized Boolean get(@NotNull AnyObjectId id) {
+    int entry = find(id);
+    if (entry == NONE)
+      return null;
+    unlink(entry);
+    linkYoungest(entry);
+    return myValues[entry] ? Boolean.TRUE : Boolean.FALSE;
+  }
+
+
+  /**
+   * @return cached value without changing the LRU order, null if there is no entry for the id
+   */
+  @Nullable
+  synchronized Boolean peek(@NotNull AnyObjectId id) {
+    int entry = find(id);
+    if (entry == NONE)
+      return null;
+    return myValues[entry] ? Boolean.TRUE : Boolean.FALSE;
+  }
+
+
+  synchronized void put(@NotNull AnyObjectId id, boolean value) {
+    id.copyRawTo(myRawId, 0);
+    put(myRawId, 0, value);
+  }
+
+
+  /**
+   * Puts the value for the id stored in raw form at the specified offset of the buffer
+   */
+  synchronized void put(@NotNull byte[] rawId, int offset, boolean value) {
+    long key1 = NB.decodeInt64(rawId, offset);
+    long key2 = NB.decodeInt64(rawId, offset + 8);
+    int key3 = NB.decodeInt32(rawId, offset + 16);
+    int slot = findSlot(key1, key2, key3);
+    int entry;
+    if (myTable[slot] != 0) {
+      entry = myTable[slot] - 1;
+      unlink(entry);
+    } else {
+      if (mySize == myCapacity) {
+        removeEntry(myEldest);
+        slot = findSlot(key1, key2, key3);
+      }
+      entry = allocate();
+      myKeys1[entry] = key1;
+      myKeys2[entry] = key2;
+      myKeys3[entry] = key3;
+      myTable[slot] = entry + 1;
+      mySize++;
+    }
+    myValues[entry] = value;
+    linkYoungest(entry);
+  }
+
+
+  /**
+   * Removes all entries with the given value
+   * @return true if any entry was removed
+   */
+  synchronized boolean removeValues(boolean value) {
+    boolean removed = false;
+    int entry = myEldest;
+    while (entry != NONE) {
+      int next = myNext[entry];
+      if (myValues[entry] == value) {
+        removeEntry(entry);
+        removed = true;
+      }
+      entry = next;
+    }
+    return removed;
+  }
+
+
+  /**
+   * Visits entries starting from the least recently used one, visitor must not modify the cache
+   */
+  synchronized void forEachEntry(@NotNull EntryVisitor visitor) {
+    for (int entry = myEldest; entry != NONE; entry = myNext[entry]) {
+      NB.encodeInt64(myRawId, 0, myKeys1[entry]);
+      NB.encodeInt64(myRawId, 8, myKeys2[entry]);
+      NB.encodeInt32(myRawId, 16, myKeys3[entry]);
+      myVisitedId.fromRaw(myRawId, 0);
+      visitor.visit(myVisitedId, myValues[entry]);
+    }
+  }
+
+
+  synchronized int size() {
+    return mySize;
+  }
+
+
+  synchronized void clear() {
+    Arrays.fill(myTable, 0);
+    mySize = 0;
+    myAllocated = 0;
+    myFree = NONE;
+    myEldest = NONE;
+    myYoungest = NONE;
+  }
+
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder result = new StringBuilder("{");
+    forEachEntry((id, value) -> {
+      if (result.length() > 1)
+        result.append(", ");
+      result.append(id.name()).append('=').append(value);
+    });
+    return result.append('}').toString();
+  }
+
+
+  private int find(@NotNull AnyObjectId id) {
+    id.copyRawTo(myRawId, 0);
+    int slot = findSlot(NB.decodeInt64(myRawId, 0), NB.decodeInt64(myRawId, 8), NB.decodeInt32(myRawId, 16));
+    return myTable[slot] - 1;
+  }
+
+
+  /**
+   * @return slot containing the entry with the given key or an empty slot where it should be inserted
+   */
+  private int findSlot(long key1, long key2, int key3) {
+    int slot = hash(key1, key2, key3) & myMask;
+    while (true) {
+      int entry = myTable[slot] - 1;
+      if (entry == NONE || myKeys1[entry] == key1 && myKeys2[entry] == key2 && myKeys3[entry] == key3)
+        return slot;
+      slot = (slot + 1) & myMask;
+    }
+  }
+
+
+  private void removeEntry(int entry) {
+    int slot = findSlot(myKeys1[entry], myKeys2[entry], myKeys3[entry]);
+    //backward shift deletion: move subsequent entries of the probe sequence into the freed slot
+    int next = slot;
+    while (true) {
+      next = (next + 1) & myMask;
+      if (myTable[next] == 0)
+        break;
+      int e = myTable[next] - 1;
+      int home = hash(myKeys1[e], myKeys2[e], myKeys3[e]) & myMask;
+      boolean homeInRange = slot <= next ? slot < home && home <= next : slot < home || home <= next;
+      if (homeInRange)
+        continue;
+      myTable[slot] = myTable[next];
+      slot = next;
+    }
+    myTable[slot] = 0;
+    unlink(entry);
+    myNext[entry] = myFree;
+    myFree = entry;
+    mySize--;
+  }
+
+
+  private int allocate() {
+    if (myFree != NONE) {
+      int entry = myFree;
+      myFree = myNext[entry];
+      return entry;
+    }
+    return myAllocated++;
+  }
+
+
+  private void unlink(int entry) {
+    int prev = myPrev[entry];
+    int next = myNext[entry];
+    if (prev == NONE) {
+      myEldest = next;
+    } else {
+      myNext[prev] = next;
+    }
+    if (next == NONE) {
+      myYoungest = prev;
+    } else {
+      myPrev[next] = prev;
+    }
+  }
+
+
+  private void linkYoungest(int entry) {
+    myPrev[entry] = myYoungest;
+    myNext[entry] = NONE;
+    if (myYoungest == NONE) {
+      myEldest = entry;
+    } else {
+      myNext[myYoungest] = entry;
+    }
+    myYoungest = entry;
+  }
+
+
+  private static int hash(long key1, long key2, int key3) {
+    long h = key1 ^ key2 ^ key3;
+    int result = (int) (h ^ (h >>> 32)) * 0x9E3779B9;
+    return result ^ (result >>> 16);
+  }
+}
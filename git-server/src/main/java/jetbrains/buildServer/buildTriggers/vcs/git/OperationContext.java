@@ -6,17 +6,24 @@ import com.intellij.openapi.diagnostic.Logger;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 import java.util.*;
+import jetbrains.buildServer.buildTriggers.vcs.git.commitInfo.CachedDotGitModulesResolver;
 import jetbrains.buildServer.buildTriggers.vcs.git.submodules.MissingSubmoduleCommitInfo;
 import jetbrains.buildServer.buildTriggers.vcs.git.submodules.SubmoduleResolverImpl;
+import jetbrains.buildServer.buildTriggers.vcs.git.submodules.SubmoduleUrlResolver;
+import jetbrains.buildServer.buildTriggers.vcs.git.submodules.SubmodulesConfig;
 import jetbrains.buildServer.serverSide.oauth.TokenRefresher;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.vcs.CheckoutRules;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
+import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.errors.NoRemoteRepositoryException;
 import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.BlobBasedConfig;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.StoredConfig;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -46,6 +53,12 @@ public class OperationContext {
   private final ServerPluginConfig myPluginConfig;
   private final Map<String, StoredConfig> myConfigsCache = new HashMap<String, StoredConfig>(); //repository path -> its config
   private final TokenRefresher myTokenRefresher;
+  private final GitServerExecutors myExecutors;
+  private final Map<String, CachedDotGitModulesResolver> myDotGitModulesResolvers = new HashMap<String, CachedDotGitModulesResolver>(); //repository path -> parsed .gitmodules
+  private final Map<String, Map<ObjectId, RevCommit>> myCommits = new HashMap<String, Map<ObjectId, RevCommit>>(); //repository path -> loaded commits
+  private final Map<String, URIish> mySubmoduleUrls = new HashMap<String, URIish>(); //repository path + submodule url -> resolved url
+  private final Map<String, File> myMirrorDirs = new HashMap<String, File>(); //url -> mirror dir
+  private FetchPriority myFetchPriority = FetchPriority.COLLECT_CHANGES;
 
   public OperationContext(@NotNull final CommitLoader commitLoader,
                           @NotNull final RepositoryManager repositoryManager,
@@ -53,7 +66,8 @@ public class OperationContext {
                           @NotNull final String operation,
                           @NotNull final GitProgress progress,
                           @NotNull final ServerPluginConfig pluginConfig,
-                          @Nullable final TokenRefresher tokenRefresher) {
+                          @Nullable final TokenRefresher tokenRefresher,
+                          @NotNull final GitServerExecutors executors) {
     myCommitLoader = commitLoader;
     myRepositoryManager = repositoryManager;
     myRoot = root;
@@ -61,6 +75,7 @@ public class OperationContext {
     myProgress = progress;
     myPluginConfig = pluginConfig;
     myTokenRefresher = tokenRefresher;
+    myExecutors = executors;
   }
 
 
@@ -68,6 +83,20 @@ public class OperationContext {
     return myRoot;
   }
 
+  @NotNull
+  public FetchPriority getFetchPriority() {
+    return myFetchPriority;
+  }
+
+  public void setFetchPriority(@NotNull FetchPriority fetchPriority) {
+    myFetchPriority = fetchPriority;
+  }
+
+  @NotNull
+  public GitServerExecutors getExecutors() {
+    return myExecutors;
+  }
+
   public Repository getRepository() throws VcsException {
     return getRepository(getGitRoot());
   }
@@ -87,12 +116,18 @@ public class OperationContext {
 
   @NotNull
   public File getRepositoryDir(@NotNull URIish uri) {
-    return myRepositoryManager.getMirrorDir(uri.toString());
+    String url = uri.toString();
+    File result = myMirrorDirs.get(url);
+    if (result == null) {
+      result = myRepositoryManager.getMirrorDir(url);
+      myMirrorDirs.put(url, result);
+    }
+    return result;
   }
 
   @NotNull
   public Repository getRepositoryFor(@NotNull final URIish uri) throws VcsException {
-    File dir = myRepositoryManager.getMirrorDir(uri.toString());
+    File dir = getRepositoryDir(uri);
     Repository result = myRepositories.get(dir.getPath());
     if (result != null)
       return result;
@@ -118,6 +153,71 @@ public class OperationContext {
     return result;
   }
 
+  /**
+   * Returns submodules configuration of the commit. Configurations are cached by the .gitmodules blob,
+   * so it is parsed once per operation even if many commits are processed.
+   * @return submodules configuration or null if the commit has no .gitmodules
+   * @throws IOException if .gitmodules cannot be loaded or is invalid
+   */
+  @Nullable
+  public SubmodulesConfig getSubmodulesConfig(@NotNull Repository db, @NotNull RevCommit commit) throws IOException {
+    ObjectId dotGitModules;
+    try (TreeWalk tw = TreeWalk.forPath(db, SubmoduleResolverImpl.GITMODULES_FILE_NAME, commit.getTree())) {
+      if (tw == null)
+        return null;
+      dotGitModules = tw.getObjectId(0);
+    }
+    String repositoryPath = db.getDirectory().getAbsolutePath();
+    CachedDotGitModulesResolver resolver = myDotGitModulesResolvers.get(repositoryPath);
+    if (resolver == null) {
+      StoredConfig config = getConfig(db);
+      //unlike DotGitModulesResolverImpl, fail on invalid configs, the caller reports them as errors
+      resolver = new CachedDotGitModulesResolver(blob -> {
+        try {
+          return new SubmodulesConfig(config, new BlobBasedConfig(null, db, blob));
+        } catch (ConfigInvalidException e) {
+          throw new IOException("Invalid submodule configuration " + blob.name() + ": " + e.getMessage(), e);
+        }
+      });
+      myDotGitModulesResolvers.put(repositoryPath, resolver);
+    }
+    return resolver.forBlob(dotGitModules);
+  }
+
+  /**
+   * Loads the commit, commits are cached for the duration of the operation
+   * @throws IOException if commit is not found or cannot be loaded
+   */
+  @NotNull
+  public RevCommit getCommit(@NotNull Repository r, @NotNull ObjectId commitId) throws IOException {
+    Map<ObjectId, RevCommit> commits = myCommits.get(r.getDirectory().getAbsolutePath());
+    if (commits == null) {
+      commits = new HashMap<ObjectId, RevCommit>();
+      myCommits.put(r.getDirectory().getAbsolutePath(), commits);
+    }
+    RevCommit result = commits.get(commitId);
+    if (result == null) {
+      //missing commits are not cached, they can appear after fetch
+      result = myCommitLoader.getCommit(r, commitId);
+      commits.put(commitId.copy(), result);
+    }
+    return result;
+  }
+
+  /**
+   * Resolves url of the submodule of the given repository, results are cached for the duration of the operation
+   */
+  @NotNull
+  public URIish resolveSubmoduleUrl(@NotNull Repository r, @NotNull String submoduleUrl) throws URISyntaxException {
+    String key = r.getDirectory().getAbsolutePath() + "\n" + submoduleUrl;
+    URIish result = mySubmoduleUrls.get(key);
+    if (result == null) {
+      result = new URIish(SubmoduleUrlResolver.resolveSubmoduleUrl(myPluginConfig, getConfig(r), submoduleUrl));
+      mySubmoduleUrls.put(key, result);
+    }
+    return result;
+  }
+
   public void fetchSubmodule(@NotNull Repository db,
                              @NotNull URIish fetchURI,
                              @NotNull Collection<RefSpec> refSpecs,
@@ -125,17 +225,19 @@ public class OperationContext {
     if (alreadyFetched(fetchURI, refSpecs))
       return;
     try {
-      myCommitLoader.fetch(db, fetchURI, new FetchSettings(auth, refSpecs));
+      FetchSettings settings = new FetchSettings(auth, refSpecs);
+      settings.setPriority(myFetchPriority);
+      myCommitLoader.fetch(db, fetchURI, settings);
     } finally {
       markAsFetched(fetchURI, refSpecs);
     }
   }
 
-  private boolean alreadyFetched(@NotNull URIish uri, @NotNull Collection<RefSpec> refSpecs) {
+  boolean alreadyFetched(@NotNull URIish uri, @NotNull Collection<RefSpec> refSpecs) {
     return myAlreadyFetched.contains(makeKey(uri, refSpecs));
   }
 
-  private void markAsFetched(@NotNull URIish uri, @NotNull Collection<RefSpec> refSpecs) {
+  void markAsFetched(@NotNull URIish uri, @NotNull Collection<RefSpec> refSpecs) {
     myAlreadyFetched.add(makeKey(uri, refSpecs));
   }
 
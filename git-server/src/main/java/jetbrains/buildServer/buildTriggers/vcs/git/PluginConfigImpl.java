@@ -264,6 +264,18 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return TeamCityProperties.getInteger("teamcity.server.git.gc.quota.minutes", 300);
   }
 
+  public int getNativeGCThreads() {
+    return Math.max(1, TeamCityProperties.getInteger("teamcity.server.git.gc.threads", 1));
+  }
+
+  public long getNativeGCParallelPackSizeBudget() {
+    return TeamCityProperties.getLong("teamcity.server.git.gc.parallelPackSizeBudgetMb", 4096) * 1024 * 1024;
+  }
+
+  public int getGcStateMaxAgeDays() {
+    return TeamCityProperties.getInteger("teamcity.server.git.gc.stateMaxAgeDays", 7);
+  }
+
   public String getFetchClasspath() {
     Set<Class> classes = fetchProcessClasses();
     return ClasspathUtil.composeClasspath(classes.toArray(new Class[classes.size()]), null, null);
@@ -274,6 +286,26 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return Fetcher.class.getName();
   }
 
+  public boolean isFetcherDaemonEnabled() {
+    return TeamCityProperties.getBoolean("teamcity.git.fetcherDaemon.enabled");
+  }
+
+  public String getFetcherDaemonClassName() {
+    return FetcherDaemon.class.getName();
+  }
+
+  public int getFetcherDaemonPoolSize() {
+    return TeamCityProperties.getInteger("teamcity.git.fetcherDaemon.poolSize", 4);
+  }
+
+  public int getFetcherDaemonMaxJobs() {
+    return TeamCityProperties.getInteger("teamcity.git.fetcherDaemon.maxJobs", 100);
+  }
+
+  public int getFetcherDaemonIdleTimeoutSeconds() {
+    return TeamCityProperties.getInteger("teamcity.git.fetcherDaemon.idleTimeoutSeconds", (int) TimeUnit.MINUTES.toSeconds(10));
+  }
+
   public String getPatchClasspath() {
     Set<Class> classes = fetchProcessClasses();
     classes.add(AbstractPatchBuilder.class);
@@ -535,6 +567,79 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return TeamCityProperties.getInteger("teamcity.git.map.full.path.revision.cache.size", 100);
   }
 
+  public int getCommitChangesCacheMaxChangedFiles() {
+    return TeamCityProperties.getInteger("teamcity.git.collectChanges.commitCache.maxChangedFiles", 100000);
+  }
+
+  public int getCollectChangesParallelism() {
+    return TeamCityProperties.getInteger("teamcity.git.collectChanges.parallelism", 1);
+  }
+
+  public int getSubmodulesFetchParallelism() {
+    return TeamCityProperties.getInteger("teamcity.git.collectChanges.submodulesFetchParallelism", 4);
+  }
+
+  public long getRemoteRefsCacheTtlMillis() {
+    return TeamCityProperties.getInteger("teamcity.git.remoteRefs.cacheTtlSeconds", 0) * 1000L;
+  }
+
+  public boolean isCurrentStateRefPrefixesEnabled() {
+    return TeamCityProperties.getBooleanOrTrue("teamcity.git.currentState.refPrefixes.enabled");
+  }
+
+  public long getNativeGitScriptsCacheTtlMillis() {
+    return TeamCityProperties.getInteger("teamcity.git.nativeOperations.scriptsCacheTtlSeconds", 600) * 1000L;
+  }
+
+  public long getRepositoryIdleTimeoutMillis() {
+    return TeamCityProperties.getInteger("teamcity.git.repositoryIdleTimeoutSeconds", 0) * 1000L;
+  }
+
+  public int getWarmRepositoriesCount() {
+    return TeamCityProperties.getInteger("teamcity.git.warmRepositories.count", 0);
+  }
+
+  //defaults are the JGit defaults
+  public int getPackedGitLimitMb() {
+    return TeamCityProperties.getInteger("teamcity.git.windowCache.packedGitLimitMb", 10);
+  }
+
+  public int getPackedGitOpenFiles() {
+    return TeamCityProperties.getInteger("teamcity.git.windowCache.packedGitOpenFiles", 128);
+  }
+
+  public int getDeltaBaseCacheLimitMb() {
+    return TeamCityProperties.getInteger("teamcity.git.windowCache.deltaBaseCacheLimitMb", 10);
+  }
+
+  public boolean isPackedGitMmap() {
+    return TeamCityProperties.getBoolean("teamcity.git.windowCache.packedGitMmap");
+  }
+
+  public boolean isReachabilityBitmapsEnabled() {
+    return TeamCityProperties.getBoolean("teamcity.git.reachabilityBitmaps.enabled");
+  }
+
+  public int getCheckoutRulesRevisionMemoMaxVisitedCommits() {
+    return TeamCityProperties.getInteger("teamcity.git.checkoutRulesRevision.memo.maxVisitedCommits", 100000);
+  }
+
+  public int getPatchBlobLoadThreads() {
+    return TeamCityProperties.getInteger("teamcity.git.patch.blobLoad.threads", 4);
+  }
+
+  public int getPatchBlobLoadBatchSize() {
+    return TeamCityProperties.getInteger("teamcity.git.patch.blobLoad.batchSize", 1000);
+  }
+
+  public long getPatchBlobLoadMaxMemoryBytes() {
+    return TeamCityProperties.getLong("teamcity.git.patch.blobLoad.maxMemoryMb", 64) * 1024 * 1024;
+  }
+
+  public long getPatchCacheMaxSizeBytes() {
+    return TeamCityProperties.getLong("teamcity.git.patchCache.maxSizeMb", 0) * 1024 * 1024;
+  }
+
   public long getConnectionRetryIntervalMillis() {
     return TeamCityProperties.getInteger(CONNECTION_RETRY_INTERVAL_SECONDS, 4) * 1000L;
   }
@@ -664,6 +769,26 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return StringUtil.splitCommandArgumentsAndUnquote(TeamCityProperties.getProperty("teamcity.git.repack.args", "-a -d --max-pack-size=400m"));
   }
 
+  @Override
+  public boolean runGeometricRepack() {
+    return TeamCityProperties.getBoolean("teamcity.git.geometricRepack");
+  }
+
+  @Override
+  public int getGeometricRepackFactor() {
+    return Math.max(2, TeamCityProperties.getInteger("teamcity.git.geometricRepack.factor", 2));
+  }
+
+  @Override
+  public int getGeometricRepackFullGcIntervalDays() {
+    return Math.max(1, TeamCityProperties.getInteger("teamcity.git.geometricRepack.fullGcIntervalDays", 7));
+  }
+
+  @Override
+  public boolean writeCommitGraphChangedPaths() {
+    return TeamCityProperties.getBooleanOrTrue("teamcity.git.commitGraph.changedPaths");
+  }
+
   @Override
   public int getPackRefsIdleTimeoutSeconds() {
     return TeamCityProperties.getInteger("teamcity.git.packRefsIdleTimeoutSeconds", (int) TimeUnit.MINUTES.toSeconds(5));
@@ -699,6 +824,16 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return TeamCityProperties.getFloat("teamcity.git.fetch.process.max.memory.multiply.factor", FETCH_PROCESS_MAX_MEMORY_MULT_FACTOR_DEFAULT);
   }
 
+  @Override
+  public boolean isXmxPredictionEnabled() {
+    return TeamCityProperties.getBooleanOrTrue("teamcity.git.process.xmxPrediction.enabled");
+  }
+
+  @Override
+  public float getXmxPredictionHeadroom() {
+    return Math.max(1, TeamCityProperties.getFloat("teamcity.git.process.xmxPrediction.headroom", 1.5f));
+  }
+
   @Override
   public boolean fetchAllRefsEnabled() {
     return TeamCityProperties.getBooleanOrTrue("teamcity.git.fetch.all.refs.enabled");
@@ -21,6 +21,7 @@ public class ProcessXmxProvider {
   private final static Logger LOG = Logger.getInstance(ProcessXmxProvider.class.getName());
 
   @NotNull private final XmxStorage myStorage;
+  @Nullable private final XmxPredictor myPredictor;
   @NotNull private final String myDebugInfo;
   @NotNull private final String myProcess;
 
@@ -38,7 +39,16 @@ public class ProcessXmxProvider {
                             @NotNull final ServerPluginConfig config,
                             @NotNull final String process,
                             @NotNull final String debugInfo) {
+    this(storage, null, config, process, debugInfo);
+  }
+
+  public ProcessXmxProvider(@NotNull final XmxStorage storage,
+                            @Nullable final XmxPredictor predictor,
+                            @NotNull final ServerPluginConfig config,
+                            @NotNull final String process,
+                            @NotNull final String debugInfo) {
     myStorage = storage;
+    myPredictor = predictor;
     myProcess = process;
     myDebugInfo = debugInfo;
 
@@ -56,6 +66,16 @@ public class ProcessXmxProvider {
 
     /** @param xmx xmx value in MB to be stored for future attempts */
     void write(@Nullable Integer xmx);
+
+    /** @return observations of the last successful run or null if none available */
+    @Nullable
+    default XmxPredictor.Sample readSample() {
+      return null;
+    }
+
+    /** @param sample observations of a successful run to be used by {@link XmxPredictor} in future runs */
+    default void writeSample(@NotNull XmxPredictor.Sample sample) {
+    }
   }
 
   @Nullable
@@ -75,6 +95,20 @@ public class ProcessXmxProvider {
     return saveAndReturn(logIncreasedXmx(getNext()));
   }
 
+  /**
+   * Should be called when the process run with the last returned xmx succeeded
+   * @param output output of the process
+   */
+  public void processSucceeded(@NotNull String output) {
+    if (myPredictor == null || myPrev == null || isExplicitXmxProvided() || isXmxIncreaseDisabled())
+      return;
+    try {
+      myPredictor.processSucceeded(myPrev, output);
+    } catch (Exception e) {
+      warn("Failed to save -Xmx prediction data: " + e);
+    }
+  }
+
   @NotNull
   private Integer getNext() {
     int next = isFirstAttempt() ? getInitialXmx() : (int)(myPrev * myMultFactor);
@@ -83,6 +117,11 @@ public class ProcessXmxProvider {
 
   private int getInitialXmx() {
     Integer init = myStorage.read();
+    final Integer predicted = predictXmx();
+    if (predicted != null && predicted > (init == null ? myDefaultStartXmx : init)) {
+      debug("Using predicted -Xmx: " + predicted + "M" + (init == null ? "" : ", previously cached -Xmx: " + init + "M"));
+      return predicted;
+    }
     if (init == null) {
       debug("Using default initial -Xmx: " + myDefaultStartXmx + "M");
       return myDefaultStartXmx;
@@ -91,6 +130,18 @@ public class ProcessXmxProvider {
     return init;
   }
 
+  @Nullable
+  private Integer predictXmx() {
+    if (myPredictor == null)
+      return null;
+    try {
+      return myPredictor.predictXmx();
+    } catch (Exception e) {
+      warn("Failed to predict -Xmx: " + e);
+      return null;
+    }
+  }
+
   @Nullable
   private Integer saveAndReturn(@Nullable Integer xmx) {
     if (xmx == null) return null;
@@ -0,0 +1,181 @@
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.metrics.Counter;
+import jetbrains.buildServer.metrics.NoOpCounter;
+import jetbrains.buildServer.metrics.ServerMetrics;
+import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Coalesces listing of remote refs for VCS roots pointing to the same repository.
+ *
+ * <p>Requests are keyed by the fetch url and the authentication settings of a root. Concurrent requests
+ * with the same key wait for a single ls-remote, its result is reused for the configured time.
+ *
+ * ThreadSafe.
+ */
+public final class RemoteRefsCache {
+
+  private static final Counter NO_OP_COUNTER = new NoOpCounter();
+
+  private final ServerPluginConfig myConfig;
+  private final ConcurrentMap<String, Entry> myEntries = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Counter> myHitCounters = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Counter> myMissCounters = new ConcurrentHashMap<>();
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+  private volatile ServerMetrics myServerMetrics;
+
+  public RemoteRefsCache(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+  public interface RefsLoader {
+    @NotNull
+    Map<String, Ref> load() throws VcsException;
+  }
+
+  void setServerMetrics(@NotNull ServerMetrics serverMetrics) {
+    myServerMetrics = serverMetrics;
+  }
+
+  /**
+   * Returns remote refs of the root, the loader is called only if there is neither an ls-remote
+   * for the same repository and ref prefixes in progress nor its recent result
+   * @return unmodifiable map of remote refs
+   */
+  @NotNull
+  public Map<String, Ref> getRemoteRefs(@NotNull GitVcsRoot root,
+                                 @NotNull Collection<String> refPrefixes,
+                                 @NotNull RefsLoader loader) throws VcsException {
+    String url = root.getRepositoryFetchURL().toString();
+    String key = getKey(url, root.getAuthSettings(), refPrefixes);
+    long ttl = myConfig.getRemoteRefsCacheTtlMillis();
+    while (true) {
+      long now = System.currentTimeMillis();
+      Entry entry = myEntries.get(key);
+      if (entry != null && (!entry.myRefs.isDone() || now - entry.myStartTime < ttl)) {
+        myHits.incrementAndGet();
+        getCounter(myHitCounters, url, "vcs.git.remoteRefs.cache.hits", "Git plugin remote refs requests served by a shared ls-remote").increment();
+        return await(entry);
+      }
+
+      Entry newEntry = new Entry(now);
+      boolean owner = entry == null ? myEntries.putIfAbsent(key, newEntry) == null : myEntries.replace(key, entry, newEntry);
+      if (!owner)
+        continue;
+
+      myMisses.incrementAndGet();
+      getCounter(myMissCounters, url, "vcs.git.remoteRefs.cache.misses", "Git plugin remote refs requests which run ls-remote").increment();
+      try {
+        Map<String, Ref> refs = Collections.unmodifiableMap(loader.load());
+        newEntry.myRefs.complete(refs);
+        if (ttl <= 0)
+          myEntries.remove(key, newEntry);
+        return refs;
+      } catch (VcsException | RuntimeException | Error e) {
+        //errors are reported to concurrent requests, but not cached
+        newEntry.myRefs.completeExceptionally(e);
+        myEntries.remove(key, newEntry);
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Forgets cached refs of the repository, e.g. after a push to it
+   */
+  public void invalidate(@NotNull GitVcsRoot root) {
+    String prefix = root.getRepositoryFetchURL().toString() + "\n";
+    myEntries.entrySet().removeIf(e -> e.getKey().startsWith(prefix) && e.getValue().myRefs.isDone());
+  }
+
+  /**
+   * @return number of requests served by a running or a recent ls-remote
+   */
+  public long getHitsCount() {
+    return myHits.get();
+  }
+
+  /**
+   * @return number of requests which run ls-remote
+   */
+  public long getMissesCount() {
+    return myMisses.get();
+  }
+
+  @NotNull
+  private static Map<String, Ref> await(@NotNull Entry entry) throws VcsException {
+    try {
+      return entry.myRefs.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VcsException("Interrupted while waiting for remote refs", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof VcsException)
+        throw (VcsException)cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      if (cause instanceof Error)
+        throw (Error)cause;
+      throw new VcsException(cause);
+    }
+  }
+
+  @NotNull
+  private Counter getCounter(@NotNull ConcurrentMap<String, Counter> counters,
+                             @NotNull String url,
+                             @NotNull String name,
+                             @NotNull String description) {
+    ServerMetrics serverMetrics = myServerMetrics;
+    if (serverMetrics == null)
+      return NO_OP_COUNTER;
+    // urls are reported separately only for the specified repos to limit the number of metrics
+    String repoUrl = myConfig.getFetchDurationMetricRepos().contains(url) ? url : "ALL";
+    return counters.computeIfAbsent(repoUrl, k -> serverMetrics.metricBuilder(name)
+      .tags("repoUrl", repoUrl)
+      .description(description)
+      .experimental(true)
+      .buildCounter());
+  }
+
+  @NotNull
+  private static String getKey(@NotNull String url, @Nullable AuthSettings auth, @NotNull Collection<String> refPrefixes) {
+    StringBuilder authKey = new StringBuilder();
+    if (auth != null) {
+      for (Map.Entry<String, String> e : new TreeMap<>(auth.toMap()).entrySet()) {
+        authKey.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+      }
+    }
+    //don't keep credentials in the cache keys
+    MessageDigest digest = Constants.newMessageDigest();
+    digest.update(authKey.toString().getBytes(StandardCharsets.UTF_8));
+    return url + "\n" + ObjectId.fromRaw(digest.digest()).name() + "\n" + new TreeSet<>(refPrefixes);
+  }
+
+  private static final class Entry {
+    private final long myStartTime;
+    private final CompletableFuture<Map<String, Ref>> myRefs = new CompletableFuture<>();
+
+    private Entry(long startTime) {
+      myStartTime = startTime;
+    }
+  }
+}
@@ -28,9 +28,21 @@ public interface RepositoryManager extends MirrorManager {
 
   void closeRepository(@NotNull Repository repository);
 
+  /**
+   * Closes the repository kept opened after its last usage, should be called
+   * with the rm write lock held before the repository directory is modified
+   */
+  void closeUnusedRepository(@NotNull File dir);
+
   @NotNull
   ReentrantLock getWriteLock(@NotNull File dir);
 
+  /**
+   * @return scheduler ordering fetches which wait for write locks of clones
+   */
+  @NotNull
+  FetchScheduler getFetchScheduler();
+
   @NotNull
   ReadWriteLock getRmLock(@NotNull File dir);
 
@@ -60,12 +60,16 @@ public final class RepositoryManagerImpl implements RepositoryManager {
   //repo dir -> last access time (nano seconds)
   private final ConcurrentMap<File, Long> myLastAccessTime = new ConcurrentHashMap<>();
 
-  private final AutoCloseRepositoryCache myRepositoryCache = new AutoCloseRepositoryCache();
+  private final AutoCloseRepositoryCache myRepositoryCache;
+
+  private final FetchScheduler myFetchScheduler;
 
   private final ServerPluginConfig myConfig;
 
   public RepositoryManagerImpl(@NotNull final ServerPluginConfig config, @NotNull final MirrorManager mirrorManager) {
     myConfig = config;
+    myRepositoryCache = new AutoCloseRepositoryCache(config);
+    myFetchScheduler = new FetchScheduler(this, config);
     myExpirationTimeout = config.getMirrorExpirationTimeoutMillis();
     myMirrorManager = mirrorManager;
   }
@@ -145,7 +149,7 @@ public final class RepositoryManagerImpl implements RepositoryManager {
     Repository result = myRepositoryCache.get(RepositoryCache.FileKey.exact(dir, FS.DETECTED));
     if (result == null)
       return createRepository(dir, canonicalURI);
-    String existingRemote = result.getConfig().getString("teamcity", null, "remote");
+    String existingRemote = myRepositoryCache.getRemote(result);
     if (existingRemote == null) {
       myRepositoryCache.release(result, true);
       invalidate(dir);
@@ -162,6 +166,10 @@ public final class RepositoryManagerImpl implements RepositoryManager {
     myRepositoryCache.release(repository, false);
   }
 
+  public void closeUnusedRepository(@NotNull File dir) {
+    myRepositoryCache.releaseUnused(RepositoryCache.FileKey.exact(dir, FS.DETECTED));
+  }
+
   @NotNull
   private Repository createRepository(@NotNull final File dir, @NotNull final URIish fetchUrl) throws VcsException {
     return runWithDisabledRemove(dir, () -> {
@@ -217,6 +225,12 @@ public final class RepositoryManagerImpl implements RepositoryManager {
   }
 
 
+  @NotNull
+  public FetchScheduler getFetchScheduler() {
+    return myFetchScheduler;
+  }
+
+
   @NotNull
   public ReadWriteLock getRmLock(@NotNull final File dir) {
     return getOrCreate(myRmLocks, getCanonicalName(dir), new ReentrantReadWriteLock());
@@ -2,103 +2,115 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.git;
 
+import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.util.FileUtil;
-import jetbrains.buildServer.util.RecentEntriesCache;
-import jetbrains.buildServer.util.StringPool;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
-import java.util.HashSet;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Objects;
-import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Revisions cache for single repository.
+ * Persisted in the append-only {@link RevisionCacheJournal} which is compacted in background.
  * ThreadSafe.
  */
 public final class RepositoryRevisionCache {
+  private static final Logger LOG = Logger.getInstance(RepositoryRevisionCache.class.getName());
+  private static final int MIN_COMPACTION_RECORDS = 1024;
+
   private final ServerPluginConfig myConfig;
   private final File myRepositoryDir;
   private final RevisionCacheType myType;
-  private final RecentEntriesCache<String, Boolean> myCache;//revision (SHA) -> does this repository have such revision
+  private final int myCacheSize;
+  private final Executor myCompactionExecutor;
+  private final ObjectIdLruCache myCache;//revision -> does this repository have such revision
   private final AtomicLong myResetCounter = new AtomicLong(0);
+  //the fields below are guarded by myCache
+  private long myJournalRecords;//number of records in the journal file
+  private long myJournalGeneration;//changes every time the journal file is replaced or removed
+  private boolean myCompactionScheduled;
 
   public RepositoryRevisionCache(@NotNull ServerPluginConfig config,
                                  @NotNull File repositoryDir,
                                  @NotNull RevisionCacheType type,
-                                 int cacheSize) {
+                                 int cacheSize,
+                                 @NotNull Executor compactionExecutor) {
     myConfig = config;
     myRepositoryDir = repositoryDir;
     myType = type;
-    myCache = new RecentEntriesCache<>(cacheSize);
+    myCacheSize = cacheSize;
+    myCompactionExecutor = compactionExecutor;
+    myCache = new ObjectIdLruCache(cacheSize);
   }
 
   /**
    * @return true if repository has revision, false if doesn't, null if there is no data on this revision
    */
   @Nullable
-  public Boolean hasRevision(@NotNull String revision) {
+  public Boolean hasRevision(@NotNull AnyObjectId revision) {
     return myCache.get(revision);
   }
 
 
-  public void saveRevision(@NotNull String revision, boolean has, long expectedResetCounter) throws IOException {
+  public void saveRevision(@NotNull AnyObjectId revision, boolean has, long expectedResetCounter) throws IOException {
     synchronized (myCache) {
       if (myResetCounter.get() != expectedResetCounter)
         return;
       Boolean existing = hasRevision(revision);
       if (existing == null || has != existing) {
-        saveRevision(revision, has);
-        write();
+        myCache.put(revision, has);
+        byte[] record = new byte[RevisionCacheJournal.RECORD_SIZE];
+        RevisionCacheJournal.writeRecord(record, 0, has ? RevisionCacheJournal.OP_CONTAINS : RevisionCacheJournal.OP_DOES_NOT_CONTAIN, revision);
+        append(record, record.length);
       }
     }
   }
 
 
-  private void saveRevision(@NotNull String revision, boolean has) {
-    myCache.put(StringPool.getFromPool(revision), has);
-  }
-
-
   void resetNegativeEntries() throws IOException {
     synchronized (myCache) {
       myResetCounter.incrementAndGet();
-      AtomicBoolean updated = new AtomicBoolean(false);
-      myCache.removeValues(hasValue -> {
-        if (!hasValue) {
-          updated.set(true);
-          return true;
-        } else {
-          return false;
-        }
-      });
-      if (updated.get())
-        write();
+      if (myCache.removeValues(false)) {
+        byte[] record = RevisionCacheJournal.resetNegativeEntriesRecord();
+        append(record, record.length);
+      }
     }
   }
 
 
-  void resetNegativeEntries(@NotNull Set<String> newCommits) throws IOException {
+  void resetNegativeEntries(@NotNull Collection<? extends AnyObjectId> newCommits) throws IOException {
     synchronized (myCache) {
       //we should increment reset counter even if newCommits were not cached,
       //because concurrent map-full-path might be about to cache the commit
       myResetCounter.incrementAndGet();
 
       //instead of removing negative entries - turn them into positive, this saves 1 commit lookup
-      Set<String> forUpdate = new HashSet<>();
-      myCache.forEachEntry((commit, contains) -> {
-        if (newCommits.contains(commit) && Boolean.FALSE.equals(contains))
-          forUpdate.add(commit);
-        return true;
-      });
-      for (String commit : forUpdate) {
-        saveRevision(commit, true);
+      byte[] records = null;
+      int length = 0;
+      for (AnyObjectId commit : newCommits) {
+        if (!Boolean.FALSE.equals(myCache.peek(commit)))
+          continue;
+        myCache.put(commit, true);
+        if (records == null)
+          records = new byte[Math.min(newCommits.size(), myCacheSize) * RevisionCacheJournal.RECORD_SIZE];
+        if (length == records.length)
+          records = Arrays.copyOf(records, records.length * 2);
+        RevisionCacheJournal.writeRecord(records, length, RevisionCacheJournal.OP_CONTAINS, commit);
+        length += RevisionCacheJournal.RECORD_SIZE;
       }
-      if (!forUpdate.isEmpty())
-        write();
+      if (records != null)
+        append(records, length);
     }
   }
 
@@ -107,7 +119,7 @@ public final class RepositoryRevisionCache {
     synchronized (myCache) {
       myResetCounter.incrementAndGet();
       myCache.clear();
-      FileUtil.delete(getCacheFile(myRepositoryDir, myType));
+      deleteJournal();
     }
   }
 
@@ -117,27 +129,122 @@ public final class RepositoryRevisionCache {
   }
 
 
-  private void write() throws IOException {
+  /**
+   * Appends records describing the latest cache update to the journal,
+   * must be called under the cache lock
+   */
+  private void append(@NotNull byte[] records, int length) throws IOException {
     if (!myConfig.persistentCacheEnabled()) {
-      FileUtil.delete(getCacheFile(myRepositoryDir, myType));
+      deleteJournal();
       return;
     }
 
-    File cache = getCacheFile(myRepositoryDir, myType);
-    cache.getParentFile().mkdirs();
-    try (PrintStream printer = new PrintStream(new BufferedOutputStream(new FileOutputStream(cache)))) {
-      myCache.forEachEntry((revision, contains) -> {
-        if (contains != null) {
-          printer.print(contains ? '+' : '-');
-          printer.print(revision);
-          printer.println();
-        }
-        return true;
-      });
+    File journal = getCacheFile(myRepositoryDir, myType);
+    if (!journal.isFile()) {
+      //journal was removed, e.g. persistence was disabled for a while, store all entries we have in memory
+      write();
+      return;
+    }
+
+    if (length == 0)
+      return;
+    RevisionCacheJournal.append(journal, records, length);
+    myJournalRecords += length / RevisionCacheJournal.RECORD_SIZE;
+    if (myJournalRecords > Math.max(2L * myCacheSize, MIN_COMPACTION_RECORDS))
+      scheduleCompaction();
+  }
+
+
+  /**
+   * Replaces the journal with the current cache content, must be called under the cache lock
+   */
+  private void write() throws IOException {
+    File journal = getCacheFile(myRepositoryDir, myType);
+    journal.getParentFile().mkdirs();
+    File tmp = getTempFile(journal, ".tmp");
+    try {
+      Snapshot snapshot = createSnapshot();
+      RevisionCacheJournal.write(tmp, snapshot.myRecords, snapshot.myLength);
+      Files.move(tmp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      myJournalRecords = snapshot.myLength / RevisionCacheJournal.RECORD_SIZE;
+      myJournalGeneration++;
+    } finally {
+      FileUtil.delete(tmp);
+    }
+  }
+
+
+  private void deleteJournal() {
+    myJournalGeneration++;
+    myJournalRecords = 0;
+    FileUtil.delete(getCacheFile(myRepositoryDir, myType));
+    FileUtil.delete(getLegacyCacheFile(myRepositoryDir, myType));
+  }
+
+
+  private void scheduleCompaction() {
+    if (myCompactionScheduled)
+      return;
+    myCompactionScheduled = true;
+    try {
+      myCompactionExecutor.execute(this::compact);
+    } catch (RejectedExecutionException e) {
+      //will retry on the next append
+      myCompactionScheduled = false;
+    }
+  }
+
+
+  /**
+   * Rewrites the journal so that it contains only the current cache entries. The snapshot is written
+   * without holding the cache lock, records appended meanwhile are copied to the new journal before
+   * it replaces the old one.
+   */
+  private void compact() {
+    File journal = getCacheFile(myRepositoryDir, myType);
+    File tmp = getTempFile(journal, ".compact");
+    Snapshot snapshot;
+    long generation;
+    long snapshotJournalLength;
+    synchronized (myCache) {
+      myCompactionScheduled = false;
+      if (!myConfig.persistentCacheEnabled() || !journal.isFile())
+        return;
+      snapshot = createSnapshot();
+      generation = myJournalGeneration;
+      snapshotJournalLength = RevisionCacheJournal.getLength(myJournalRecords);
+    }
+
+    try {
+      RevisionCacheJournal.write(tmp, snapshot.myRecords, snapshot.myLength);
+      synchronized (myCache) {
+        if (generation != myJournalGeneration || !journal.isFile())
+          return;
+        long tailRecords = RevisionCacheJournal.copyTail(journal, snapshotJournalLength, tmp);
+        Files.move(tmp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        myJournalRecords = snapshot.myLength / RevisionCacheJournal.RECORD_SIZE + tailRecords;
+        myJournalGeneration++;
+      }
+    } catch (Exception e) {
+      LOG.warnAndDebugDetails("Error while compacting revisions cache " + journal.getAbsolutePath(), e);
+    } finally {
+      FileUtil.delete(tmp);
     }
   }
 
 
+  @NotNull
+  private Snapshot createSnapshot() {
+    byte[] records = new byte[myCache.size() * RevisionCacheJournal.RECORD_SIZE];
+    int[] length = {0};
+    myCache.forEachEntry((revision, contains) -> {
+      RevisionCacheJournal.writeRecord(records, length[0], contains ? RevisionCacheJournal.OP_CONTAINS : RevisionCacheJournal.OP_DOES_NOT_CONTAIN, revision);
+      length[0] += RevisionCacheJournal.RECORD_SIZE;
+    });
+    return new Snapshot(records, length[0]);
+  }
+
+
   public boolean equals(Object o) {
     if (!(o instanceof RepositoryRevisionCache))
       return false;
@@ -149,19 +256,15 @@ public final class RepositoryRevisionCache {
     if (!myRepositoryDir.equals(other.myRepositoryDir))
       return false;
 
-    Set<String> processed = new HashSet<>();
-    for (String revision : myCache.keySet()) {
-      Boolean contains1 = hasRevision(revision);
-      Boolean contains2 = other.hasRevision(revision);
-      if (!Objects.equals(contains1, contains2))
-        return false;
-      processed.add(revision);
-    }
-    for (String revision : other.myCache.keySet()) {
-      if (processed.add(revision) && other.hasRevision(revision) != null)
-        return false;
-    }
-    return true;
+    if (myCache.size() != other.myCache.size())
+      return false;
+
+    AtomicBoolean result = new AtomicBoolean(true);
+    myCache.forEachEntry((revision, contains) -> {
+      if (!Objects.equals(contains, other.myCache.peek(revision)))
+        result.set(false);
+    });
+    return result.get();
   }
 
 
@@ -175,35 +278,91 @@ public final class RepositoryRevisionCache {
   public static RepositoryRevisionCache read(@NotNull ServerPluginConfig config,
                                              @NotNull File repositoryDir,
                                              @NotNull RevisionCacheType type,
-                                             int size) throws IOException {
-    File cache = getCacheFile(repositoryDir, type);
-    if (cache.isFile()) {
-      RepositoryRevisionCache result = new RepositoryRevisionCache(config, repositoryDir, type, size);
-      for (String line : FileUtil.readFile(cache)) {
-        if (!line.isEmpty()) {
-          char c = line.charAt(0);
-          switch (c) {
-            case '+':
-              result.saveRevision(line.substring(1), true);
-              break;
-            case '-':
-              result.saveRevision(line.substring(1), false);
-              break;
-            default:
-              throw new IOException("Bad cache line '" + line + "'");
-          }
+                                             int size,
+                                             @NotNull Executor compactionExecutor) throws IOException {
+    RepositoryRevisionCache result = new RepositoryRevisionCache(config, repositoryDir, type, size, compactionExecutor);
+    File journal = getCacheFile(repositoryDir, type);
+    File legacyCache = getLegacyCacheFile(repositoryDir, type);
+    if (journal.isFile()) {
+      result.readJournal(journal);
+    } else if (legacyCache.isFile()) {
+      result.readLegacyCache(legacyCache);
+      synchronized (result.myCache) {
+        result.write();
+      }
+      FileUtil.delete(legacyCache);
+    }
+    return result;
+  }
+
+
+  private void readJournal(@NotNull File journal) throws IOException {
+    synchronized (myCache) {
+      long records = RevisionCacheJournal.read(journal, new RevisionCacheJournal.Visitor() {
+        @Override
+        public void visitRevision(@NotNull byte[] raw, int offset, boolean contains) {
+          myCache.put(raw, offset, contains);
+        }
+
+        @Override
+        public void visitNegativeEntriesReset() {
+          myCache.removeValues(false);
         }
+      });
+      myJournalRecords = records;
+      if (journal.length() != RevisionCacheJournal.getLength(records)) {
+        //incomplete record at the end of the journal, appending after it would corrupt all subsequent records
+        write();
+      }
+    }
+  }
+
+
+  /**
+   * Reads the text format used before the journal was introduced: one '+sha' or '-sha' entry per line,
+   * entries which are not full SHA-1s are skipped
+   */
+  private void readLegacyCache(@NotNull File cache) throws IOException {
+    for (String line : FileUtil.readFile(cache)) {
+      if (!line.isEmpty()) {
+        char c = line.charAt(0);
+        if (c != '+' && c != '-')
+          throw new IOException("Bad cache line '" + line + "'");
+        String revision = line.substring(1);
+        if (ObjectId.isId(revision))
+          myCache.put(ObjectId.fromString(revision), c == '+');
       }
-      return result;
-    } else {
-      return new RepositoryRevisionCache(config, repositoryDir, type, size);
     }
   }
 
 
   @NotNull
   public static File getCacheFile(@NotNull File repositoryDir, @NotNull RevisionCacheType type) {
+    File cachesDir = new File(repositoryDir, "caches");
+    return new File(cachesDir, type.getFileName() + ".journal");
+  }
+
+
+  @NotNull
+  public static File getLegacyCacheFile(@NotNull File repositoryDir, @NotNull RevisionCacheType type) {
     File cachesDir = new File(repositoryDir, "caches");
     return new File(cachesDir, type.getFileName());
   }
+
+
+  @NotNull
+  private static File getTempFile(@NotNull File journal, @NotNull String suffix) {
+    return new File(journal.getParentFile(), journal.getName() + suffix);
+  }
+
+
+  private static final class Snapshot {
+    private final byte[] myRecords;
+    private final int myLength;
+
+    private Snapshot(@NotNull byte[] records, int length) {
+      myRecords = records;
+      myLength = length;
+    }
+  }
 }
\ No newline at end of file
@@ -0,0 +1,65 @@
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Fixed size pool of daemon threads created on the first use. The number of threads
+ * is passed on every use, so the pool follows changes of the configuration without restart.
+ * Idle threads are stopped after a minute. Once {@link #shutdown() shut down}, the pool
+ * rejects all tasks.
+ *
+ * ThreadSafe.
+ */
+public final class ResizableDaemonExecutor {
+
+  private final String myName;
+  private final int myQueueSize;
+  private ThreadPoolExecutor myExecutor;
+  private boolean myShutdown;
+
+  public ResizableDaemonExecutor(@NotNull String name, int queueSize) {
+    myName = name;
+    myQueueSize = queueSize;
+  }
+
+  /**
+   * @param threads the current configured number of threads
+   * @return executor with the specified number of threads
+   * @throws RejectedExecutionException if the pool is shut down
+   */
+  @NotNull
+  public synchronized ExecutorService get(int threads) {
+    if (myShutdown)
+      throw new RejectedExecutionException(myName + " executor is shut down");
+    int poolSize = Math.max(1, threads);
+    if (myExecutor == null) {
+      myExecutor = new ThreadPoolExecutor(poolSize, poolSize, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(myQueueSize), new NamedDaemonThreadFactory(myName));
+      myExecutor.allowCoreThreadTimeOut(true);
+    } else if (myExecutor.getMaximumPoolSize() != poolSize) {
+      //core size cannot be greater than max size
+      if (poolSize > myExecutor.getMaximumPoolSize()) {
+        myExecutor.setMaximumPoolSize(poolSize);
+        myExecutor.setCorePoolSize(poolSize);
+      } else {
+        myExecutor.setCorePoolSize(poolSize);
+        myExecutor.setMaximumPoolSize(poolSize);
+      }
+    }
+    return myExecutor;
+  }
+
+  /**
+   * Stops the running tasks, tasks submitted afterwards are rejected
+   */
+  public synchronized void shutdown() {
+    myShutdown = true;
+    if (myExecutor != null)
+      myExecutor.shutdownNow();
+  }
+}
@@ -0,0 +1,140 @@
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Binary append-only storage format of the {@link RepositoryRevisionCache}.
+ *
+ * <p>The file starts with a {@link #HEADER} followed by fixed-size records: a one-byte operation
+ * and a raw 20-byte commit id. Records are replayed in order, so the last record for a commit wins
+ * and the order of records defines the order of entries in the LRU cache.
+ *
+ * Not thread-safe, callers are expected to synchronize access to the file.
+ */
+final class RevisionCacheJournal {
+
+  static final byte[] HEADER = {'T', 'C', 'R', 'C', 1};
+  static final int RECORD_SIZE = 1 + Constants.OBJECT_ID_LENGTH;
+
+  static final byte OP_DOES_NOT_CONTAIN = 0;
+  static final byte OP_CONTAINS = 1;
+  /** Drops all negative entries replayed so far, commit id is ignored */
+  static final byte OP_RESET_NEGATIVE_ENTRIES = 2;
+
+  private RevisionCacheJournal() {
+  }
+
+  interface Visitor {
+    void visitRevision(@NotNull byte[] raw, int offset, boolean contains);
+
+    void visitNegativeEntriesReset();
+  }
+
+
+  static void writeRecord(@NotNull byte[] buffer, int offset, byte op, @NotNull AnyObjectId revision) {
+    buffer[offset] = op;
+    revision.copyRawTo(buffer, offset + 1);
+  }
+
+
+  @NotNull
+  static byte[] resetNegativeEntriesRecord() {
+    byte[] record = new byte[RECORD_SIZE];
+    record[0] = OP_RESET_NEGATIVE_ENTRIES;
+    return record;
+  }
+
+
+  static long getLength(long records) {
+    return HEADER.length + records * RECORD_SIZE;
+  }
+
+
+  /**
+   * Replays the journal. The file is read through a buffered stream rather than mapped: a mapped
+   * buffer keeps the file open until it is collected by GC, and on Windows the journal cannot be
+   * replaced or deleted meanwhile.
+   *
+   * @return number of complete records in the journal; an incomplete record at the end
+   * (e.g. after a crash in the middle of an append) is ignored
+   * @throws IOException if journal cannot be read or has unknown format
+   */
+  static long read(@NotNull File journal, @NotNull Visitor visitor) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal), 64 * 1024))) {
+      long size = journal.length();
+      if (size < HEADER.length)
+        throw new IOException("Bad revisions cache header in " + journal.getAbsolutePath());
+
+      byte[] header = new byte[HEADER.length];
+      in.readFully(header);
+      if (!Arrays.equals(header, HEADER))
+        throw new IOException("Bad revisions cache header in " + journal.getAbsolutePath());
+
+      long records = (size - HEADER.length) / RECORD_SIZE;
+      byte[] record = new byte[RECORD_SIZE];
+      for (long i = 0; i < records; i++) {
+        in.readFully(record);
+        switch (record[0]) {
+          case OP_CONTAINS:
+            visitor.visitRevision(record, 1, true);
+            break;
+          case OP_DOES_NOT_CONTAIN:
+            visitor.visitRevision(record, 1, false);
+            break;
+          case OP_RESET_NEGATIVE_ENTRIES:
+            visitor.visitNegativeEntriesReset();
+            break;
+          default:
+            throw new IOException("Bad revisions cache record #" + i + " in " + journal.getAbsolutePath());
+        }
+      }
+      return records;
+    }
+  }
+
+
+  /**
+   * Appends the first {@code length} bytes of the records buffer to the existing journal
+   */
+  static void append(@NotNull File journal, @NotNull byte[] records, int length) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(journal, true)) {
+      out.write(records, 0, length);
+    }
+  }
+
+
+  /**
+   * Writes a new journal with the given records
+   */
+  static void write(@NotNull File journal, @NotNull byte[] records, int length) throws IOException {
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(journal))) {
+      out.write(HEADER);
+      out.write(records, 0, length);
+    }
+  }
+
+
+  /**
+   * Copies records written to the source journal after the specified offset to the end of the target file
+   *
+   * @return number of copied records
+   */
+  static long copyTail(@NotNull File source, long offset, @NotNull File target) throws IOException {
+    try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+         FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      long tailRecords = Math.max(0, in.size() - offset) / RECORD_SIZE;
+      long tailLength = tailRecords * RECORD_SIZE;
+      long copied = 0;
+      while (copied < tailLength) {
+        copied += in.transferTo(offset + copied, tailLength - copied, out);
+      }
+      return tailRecords;
+    }
+  }
+}
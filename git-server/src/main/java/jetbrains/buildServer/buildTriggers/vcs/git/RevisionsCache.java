@@ -3,13 +3,17 @@
 package jetbrains.buildServer.buildTriggers.vcs.git;
 
 import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import org.eclipse.jgit.lib.AnyObjectId;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Set;
+import java.util.Collection;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Revisions cache for whole server.
@@ -21,6 +25,10 @@ public final class RevisionsCache {
   private final ServerPluginConfig myConfig;
   //repositoryId -> per repository cache
   private final ConcurrentMap<String, RepositoryRevisionCache> myCache = new ConcurrentHashMap<>();
+  //repositoryPath -> checkout rules revision memo
+  private final ConcurrentMap<String, CheckoutRulesRevisionMemo> myCheckoutRulesMemos = new ConcurrentHashMap<>();
+  //compacts journals of per repository caches in background
+  private final ExecutorService myCompactionExecutor = ExecutorsFactory.newFixedDaemonExecutor("Git revisions cache compaction", 1, 1, 1000);
   private volatile int myRepositoriesCount;
 
   public RevisionsCache(@NotNull ServerPluginConfig config) {
@@ -40,7 +48,7 @@ public final class RevisionsCache {
         for (RevisionCacheType type : RevisionCacheType.values()) {
           int cacheSize = getCacheSize(type);
           try {
-            myCache.put(getRepositoryId(repoDir, type), RepositoryRevisionCache.read(myConfig, repoDir, type, cacheSize));
+            myCache.put(getRepositoryId(repoDir, type), RepositoryRevisionCache.read(myConfig, repoDir, type, cacheSize, myCompactionExecutor));
           } catch (Exception e) {
             LOG.warnAndDebugDetails("Error while initializing revisions cache for repository " + repoDir, e);
           }
@@ -70,13 +78,13 @@ public final class RevisionsCache {
   }
 
 
-  public void resetNegativeEntries(@NotNull File repositoryDir, @NotNull Set<String> newCommits) throws IOException {
+  public void resetNegativeEntries(@NotNull File repositoryDir, @NotNull Collection<? extends AnyObjectId> newCommits) throws IOException {
     for (RevisionCacheType type : RevisionCacheType.values()) {
       String repositoryId = getRepositoryId(repositoryDir, type);
       RepositoryRevisionCache repositoryCache = myCache.get(repositoryId);
       if (repositoryCache != null) {
         if (LOG.isDebugEnabled())
-          LOG.debug("Invalidate cache for repository " + repositoryDir + ", new commits " + newCommits);
+          LOG.debug("Invalidate cache for repository " + repositoryDir + ", new commits count " + newCommits.size());
         repositoryCache.resetNegativeEntries(newCommits);
       }
     }
@@ -87,6 +95,17 @@ public final class RevisionsCache {
     for (RepositoryRevisionCache repoCache : myCache.values()) {
       repoCache.reset();
     }
+    for (CheckoutRulesRevisionMemo memo : myCheckoutRulesMemos.values()) {
+      memo.reset();
+    }
+    //memos are read lazily, remove files of memos which were not read yet
+    File[] repoDirs = myConfig.getCachesDir().listFiles();
+    if (repoDirs != null) {
+      for (File repoDir : repoDirs) {
+        if (!myCheckoutRulesMemos.containsKey(repoDir.getAbsolutePath()))
+          FileUtil.delete(CheckoutRulesRevisionMemo.getMemoFile(repoDir));
+      }
+    }
   }
 
 
@@ -95,7 +114,7 @@ public final class RevisionsCache {
     String repositoryId = getRepositoryId(repositoryDir, type);
     RepositoryRevisionCache result = myCache.get(repositoryId);
     if (result == null) {
-      result = new RepositoryRevisionCache(myConfig, repositoryDir, type, getCacheSize(type));
+      result = new RepositoryRevisionCache(myConfig, repositoryDir, type, getCacheSize(type), myCompactionExecutor);
       RepositoryRevisionCache old = myCache.putIfAbsent(repositoryId, result);
       result = (old == null) ? result : old;
     }
@@ -103,8 +122,19 @@ public final class RevisionsCache {
   }
 
 
+  @NotNull
+  public CheckoutRulesRevisionMemo getCheckoutRulesRevisionMemo(@NotNull File repositoryDir) {
+    return myCheckoutRulesMemos.computeIfAbsent(repositoryDir.getAbsolutePath(), path -> new CheckoutRulesRevisionMemo(myConfig, repositoryDir));
+  }
+
+
   @NotNull
   private String getRepositoryId(@NotNull File repositoryDir, @NotNull RevisionCacheType type) {
     return repositoryDir.getAbsolutePath() + "_" + type.name();
   }
+
+
+  public void dispose() {
+    myCompactionExecutor.shutdownNow();
+  }
 }
\ No newline at end of file
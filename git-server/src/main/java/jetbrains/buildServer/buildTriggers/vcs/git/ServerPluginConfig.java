@@ -50,6 +50,18 @@ public interface ServerPluginConfig extends PluginConfig {
 
   float getFetchProcessMemoryMultiplyFactor();
 
+  /**
+   * @return true if -Xmx of separate fetch processes is predicted from the heap usage of recent fetches
+   * and -Xmx of separate patch processes is predicted from the repository growth
+   * @see XmxPredictor
+   */
+  boolean isXmxPredictionEnabled();
+
+  /**
+   * @return factor applied to the heap usage expected in the next fetch when fetch -Xmx is predicted
+   */
+  float getXmxPredictionHeadroom();
+
   boolean isSeparateProcessForFetch();
 
   boolean isSeparateProcessForPatch();
@@ -61,12 +73,49 @@ public interface ServerPluginConfig extends PluginConfig {
 
   int getNativeGCQuotaMinutes();
 
+  /**
+   * @return max number of repositories processed by native gc in parallel
+   */
+  int getNativeGCThreads();
+
+  /**
+   * @return max total size of packs in bytes of repositories processed by native gc in parallel
+   */
+  long getNativeGCParallelPackSizeBudget();
+
+  /**
+   * @return number of days after which a repository is checked by gc even if no objects were added to it
+   */
+  int getGcStateMaxAgeDays();
+
 
   String getFetchClasspath();
 
 
   String getFetcherClassName();
 
+  /**
+   * @return true if fetches in a separate process are run in a pool of long-lived fetch processes
+   */
+  boolean isFetcherDaemonEnabled();
+
+  String getFetcherDaemonClassName();
+
+  /**
+   * @return max number of idle fetch processes in the pool
+   */
+  int getFetcherDaemonPoolSize();
+
+  /**
+   * @return number of fetches after which a long-lived fetch process is stopped
+   */
+  int getFetcherDaemonMaxJobs();
+
+  /**
+   * @return time after which an idle long-lived fetch process is stopped
+   */
+  int getFetcherDaemonIdleTimeoutSeconds();
+
   String getPatchClasspath();
 
   String getPatchBuilderClassName();
@@ -102,6 +151,49 @@ public interface ServerPluginConfig extends PluginConfig {
 
   int getMapFullPathRevisionCacheSize();
 
+  int getCommitChangesCacheMaxChangedFiles();
+
+  int getCollectChangesParallelism();
+
+  int getSubmodulesFetchParallelism();
+
+  long getRemoteRefsCacheTtlMillis();
+
+  boolean isCurrentStateRefPrefixesEnabled();
+
+  long getNativeGitScriptsCacheTtlMillis();
+
+  long getRepositoryIdleTimeoutMillis();
+
+  /**
+   * @return number of most recently used repositories kept opened when they are not used
+   */
+  int getWarmRepositoriesCount();
+
+  int getPackedGitLimitMb();
+
+  int getPackedGitOpenFiles();
+
+  int getDeltaBaseCacheLimitMb();
+
+  boolean isPackedGitMmap();
+
+  /**
+   * @return true if commits fetched into a clone should be computed using its pack bitmaps when all fetched
+   * and previous ref tips have bitmaps, disabled by default
+   */
+  boolean isReachabilityBitmapsEnabled();
+
+  int getCheckoutRulesRevisionMemoMaxVisitedCommits();
+
+  int getPatchBlobLoadThreads();
+
+  int getPatchBlobLoadBatchSize();
+
+  long getPatchBlobLoadMaxMemoryBytes();
+
+  long getPatchCacheMaxSizeBytes();
+
   long getConnectionRetryIntervalMillis();
 
   int getConnectionRetryAttempts();
@@ -152,6 +244,21 @@ public interface ServerPluginConfig extends PluginConfig {
   @NotNull
   List<String> getRepackCommandArguments();
 
+  boolean runGeometricRepack();
+
+  int getGeometricRepackFactor();
+
+  /**
+   * @return max number of days between full gcs of a clone when geometric repack is enabled, geometric
+   * repack never drops unreachable objects
+   */
+  int getGeometricRepackFullGcIntervalDays();
+
+  /**
+   * @return true if commit-graph written by cleanup and fetch should contain changed-path Bloom filters
+   */
+  boolean writeCommitGraphChangedPaths();
+
   int getPackRefsIdleTimeoutSeconds();
 
   boolean treatMissingBranchTipAsRecoverableError();
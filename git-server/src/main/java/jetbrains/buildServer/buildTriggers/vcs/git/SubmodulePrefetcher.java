@@ -0,0 +1,181 @@
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import jetbrains.buildServer.buildTriggers.vcs.git.submodules.Submodule;
+import jetbrains.buildServer.buildTriggers.vcs.git.submodules.SubmodulesConfig;
+import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Fetches submodules changed by a commit before its changes are collected.
+ *
+ * <p>Submodule-aware tree walk fetches a missing submodule commit when it reaches the submodule,
+ * so submodules changed by a commit are fetched one after another. The prefetcher finds gitlinks
+ * changed by the commit comparing to its parents, and fetches submodule repositories missing the
+ * referenced commits concurrently. The tree walk then finds the commits locally. Submodules of
+ * submodules are still fetched by the tree walk.
+ */
+class SubmodulePrefetcher {
+
+  private static final Logger LOG = Logger.getInstance(SubmodulePrefetcher.class.getName());
+
+  private static final List<RefSpec> REF_SPECS = Collections.singletonList(new RefSpec("+refs/*:refs/*"));
+
+  private final OperationContext myContext;
+
+  SubmodulePrefetcher(@NotNull OperationContext context) {
+    myContext = context;
+  }
+
+  /**
+   * Fetches submodules changed by the commit, parents of the commit must be parsed
+   */
+  void prefetch(@NotNull GitVcsRoot root, @NotNull Repository db, @NotNull RevCommit commit) throws IOException {
+    int parallelism = myContext.getPluginConfig().getSubmodulesFetchParallelism();
+    if (parallelism <= 1 || !root.isCheckoutSubmodules())
+      return;
+
+    Map<URIish, Repository> missing;
+    try {
+      missing = findSubmodulesToFetch(db, commit);
+    } catch (Exception e) {
+      //submodules will be fetched by the tree walk which reports errors
+      LOG.debug("Cannot find submodules changed in the commit " + commit.name() + " of " + root.debugInfo(), e);
+      return;
+    }
+    //a single submodule is fetched by the tree walk as before
+    if (missing.size() < 2)
+      return;
+
+    if (LOG.isDebugEnabled())
+      LOG.debug("Fetch " + missing.size() + " submodules changed in the commit " + commit.name() + " of " + root.debugInfo());
+    AuthSettings auth = root.getAuthSettings();
+    GitProgress progress = myContext.getProgress();
+    FetchPriority priority = myContext.getFetchPriority();
+    CommitLoader commitLoader = myContext.getCommitLoader();
+    RepositoryManager repositoryManager = myContext.getRepositoryManager();
+    Map<URIish, FutureTask<Void>> fetches = new LinkedHashMap<>();
+    for (Map.Entry<URIish, Repository> e : missing.entrySet()) {
+      URIish uri = e.getKey();
+      Repository r = e.getValue();
+      File dir = r.getDirectory();
+      //fetch acquires the write lock of the repository, so a concurrent fetch of the same submodule waits for it
+      FutureTask<Void> fetch = new FutureTask<>(() -> {
+        repositoryManager.runWithDisabledRemove(dir, () -> {
+          try {
+            FetchSettings settings = new FetchSettings(auth, progress, REF_SPECS);
+            settings.setPriority(priority);
+            commitLoader.fetch(r, uri, settings);
+          } catch (IOException ex) {
+            throw new VcsException(ex);
+          }
+        });
+        return null;
+      });
+      fetches.put(uri, fetch);
+    }
+
+    ResizableDaemonExecutor executor = myContext.getExecutors().getSubmodulesFetchExecutor();
+    for (FutureTask<Void> fetch : fetches.values()) {
+      try {
+        executor.get(parallelism).execute(fetch);
+      } catch (RejectedExecutionException e) {
+        fetch.run();
+      }
+    }
+
+    for (Map.Entry<URIish, FutureTask<Void>> e : fetches.entrySet()) {
+      try {
+        e.getValue().get();
+        myContext.markAsFetched(e.getKey(), REF_SPECS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while fetching submodules");
+      } catch (ExecutionException ex) {
+        //the tree walk will fetch the submodule again and report an error
+        LOG.debug("Failed to fetch submodule " + e.getKey() + " for " + root.debugInfo(), ex.getCause());
+      }
+    }
+  }
+
+  /**
+   * @return submodule repositories which don't contain commits referenced by gitlinks changed in the commit
+   */
+  @NotNull
+  private Map<URIish, Repository> findSubmodulesToFetch(@NotNull Repository db, @NotNull RevCommit commit) throws Exception {
+    SubmodulesConfig config = myContext.getSubmodulesConfig(db, commit);
+    if (config == null)
+      return Collections.emptyMap();
+
+    TreeFilter submodulesFilter = createSubmodulesFilter(config);
+    if (submodulesFilter == null)
+      return Collections.emptyMap();
+
+    Map<URIish, Repository> result = new LinkedHashMap<>();
+    try (TreeWalk tw = new TreeWalk(db)) {
+      tw.setRecursive(true);
+      tw.addTree(commit.getTree());
+      for (RevCommit parent : commit.getParents()) {
+        tw.addTree(parent.getTree());
+      }
+      //enter only directories containing submodules
+      tw.setFilter(commit.getParentCount() > 0 ? AndTreeFilter.create(submodulesFilter, TreeFilter.ANY_DIFF) : submodulesFilter);
+      while (tw.next()) {
+        if (tw.getFileMode(0) != FileMode.GITLINK)
+          continue;
+        Submodule submodule = config.findSubmodule(tw.getPathString());
+        if (submodule == null)
+          continue;
+        URIish uri = myContext.resolveSubmoduleUrl(db, submodule.getUrl());
+        if (result.containsKey(uri) || myContext.alreadyFetched(uri, REF_SPECS))
+          continue;
+        Repository r = myContext.getRepositoryFor(uri);
+        if (!hasCommit(r, tw.getObjectId(0)))
+          result.put(uri, r);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return filter accepting paths of submodules from the .gitmodules or null if there are no submodules
+   */
+  @Nullable
+  private static TreeFilter createSubmodulesFilter(@NotNull SubmodulesConfig config) {
+    Set<String> paths = new HashSet<>();
+    for (Submodule submodule : config.getSubmodules()) {
+      //only gitlinks at these exact paths are resolved by findSubmodule()
+      String path = submodule.getPath();
+      if (path != null && !path.isEmpty())
+        paths.add(path);
+    }
+    return paths.isEmpty() ? null : PathFilterGroup.createFromStrings(paths);
+  }
+
+  private boolean hasCommit(@NotNull Repository r, @NotNull ObjectId commit) {
+    try {
+      myContext.getCommit(r, commit);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import java.io.File;
+import java.util.Map;
+import jetbrains.buildServer.metrics.ServerMetrics;
+import org.eclipse.jgit.storage.file.WindowCacheStats;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Reports statistics of the global JGit window cache which keeps pack file windows
+ * of all repositories opened by the server.
+ */
+final class WindowCacheMetrics {
+
+  private WindowCacheMetrics() {
+  }
+
+  static void register(@NotNull ServerMetrics serverMetrics,
+                       @NotNull ServerPluginConfig config,
+                       @NotNull RepositoryManager repositoryManager) {
+    serverMetrics.metricBuilder("vcs.git.windowCache.hitRatio")
+      .description("Git plugin JGit window cache hit ratio")
+      .experimental(true)
+      .buildGauge(() -> WindowCacheStats.getStats().getHitRatio());
+    serverMetrics.metricBuilder("vcs.git.windowCache.openFiles")
+      .description("Git plugin pack files opened by JGit window cache")
+      .experimental(true)
+      .buildGauge(() -> (double) WindowCacheStats.getStats().getOpenFileCount());
+    serverMetrics.metricBuilder("vcs.git.windowCache.openBytes")
+      .tags("repoUrl", "ALL")
+      .description("Git plugin bytes of pack files loaded into JGit window cache")
+      .experimental(true)
+      .buildGauge(() -> (double) WindowCacheStats.getStats().getOpenByteCount());
+
+    // urls are reported separately only for the specified repos to limit the number of metrics
+    for (String url : config.getFetchDurationMetricRepos()) {
+      File dir = repositoryManager.getMirrorDir(url);
+      serverMetrics.metricBuilder("vcs.git.windowCache.openBytes")
+        .tags("repoUrl", url)
+        .description("Git plugin bytes of pack files loaded into JGit window cache")
+        .experimental(true)
+        .buildGauge(() -> (double) getOpenBytes(dir));
+    }
+  }
+
+  private static long getOpenBytes(@NotNull File repositoryDir) {
+    //the window cache identifies repositories by the path of their directory
+    Map<String, Long> openBytes = WindowCacheStats.getStats().getOpenByteCountPerRepository();
+    Long result = openBytes.get(repositoryDir.getPath());
+    if (result == null)
+      result = openBytes.get(repositoryDir.getAbsolutePath());
+    return result != null ? result : 0;
+  }
+}
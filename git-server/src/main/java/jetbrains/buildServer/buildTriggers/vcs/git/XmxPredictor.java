@@ -0,0 +1,262 @@
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.GitServerUtil.MB;
+
+/**
+ * Predicts -Xmx for separate fetch or patch process before the process is started.
+ *
+ * <p>A fetch changes the repository, so the repository before the fetch says nothing about the heap
+ * the fetch needs. Fetch -Xmx is predicted from the heap usage after gc reported by recent fetches:
+ * the usage is extrapolated by its trend and multiplied by headroom, so -Xmx is increased before
+ * a fetch runs out of memory.
+ *
+ * <p>A patch is built from objects already present in the repository, so patch -Xmx of the previous
+ * successful run is scaled by the growth of the repository pack size and object count since that run.
+ *
+ * <p>Without prediction several runs fail with out of memory error before the -Xmx multiplied by
+ * {@link ServerPluginConfig#getFetchProcessMemoryMultiplyFactor()} is enough.
+ *
+ * @see ProcessXmxProvider
+ */
+public class XmxPredictor {
+
+  private static final Logger LOG = Logger.getInstance(XmxPredictor.class.getName());
+  /** Prefix of the line with the max heap usage after gc in bytes in the output of the process */
+  public static final String HEAP_USAGE_PREFIX = "max heap usage after gc (bytes): ";
+  /** Number of recent runs whose heap usage is remembered */
+  public static final int HEAP_USAGE_HISTORY_SIZE = 5;
+  private static final int XMX_GRANULARITY_MB = 128;
+
+  private final File myRepositoryDir;
+  private final ProcessXmxProvider.XmxStorage myStorage;
+  private final float myHeadroom;
+  //stats collected for the prediction, they describe the repository the process runs against
+  private RepositoryStats myStats;
+
+  /**
+   * @param repositoryDir repository whose growth is used for prediction or null if prediction uses
+   *                      heap usage reported by the process
+   */
+  public XmxPredictor(@Nullable File repositoryDir, @NotNull ProcessXmxProvider.XmxStorage storage, float headroom) {
+    myRepositoryDir = repositoryDir;
+    myStorage = storage;
+    myHeadroom = headroom;
+  }
+
+  /**
+   * @return predictor for fetch processes or null if prediction is disabled
+   */
+  @Nullable
+  public static XmxPredictor forFetch(@NotNull ServerPluginConfig config, @NotNull ProcessXmxProvider.XmxStorage storage) {
+    return config.isXmxPredictionEnabled() ? new XmxPredictor(null, storage, config.getXmxPredictionHeadroom()) : null;
+  }
+
+  /**
+   * @return predictor for patch processes in the repository or null if prediction is disabled
+   */
+  @Nullable
+  public static XmxPredictor forPatch(@NotNull ServerPluginConfig config, @NotNull File repositoryDir, @NotNull ProcessXmxProvider.XmxStorage storage) {
+    return config.isXmxPredictionEnabled() ? new XmxPredictor(repositoryDir, storage, config.getXmxPredictionHeadroom()) : null;
+  }
+
+  /**
+   * @return predicted -Xmx in MB or null if there is no successful run to predict from
+   */
+  @Nullable
+  public Integer predictXmx() {
+    final Sample sample = myStorage.readSample();
+    if (sample == null)
+      return null;
+    final double needed;
+    if (myRepositoryDir == null) {
+      final Integer heapUsage = projectHeapUsage(sample.getHeapUsages());
+      if (heapUsage == null)
+        return null;
+      needed = heapUsage * myHeadroom;
+    } else {
+      if (sample.getStats() == null)
+        return null;
+      myStats = RepositoryStats.collect(myRepositoryDir);
+      needed = sample.getXmx() * Math.max(1, Math.max(ratio(myStats.getPackSize(), sample.getStats().getPackSize()),
+                                                      ratio(myStats.getObjectCount(), sample.getStats().getObjectCount())));
+    }
+    final int result = roundUp(needed);
+    if (LOG.isDebugEnabled())
+      LOG.debug("Predicted -Xmx " + result + "M" + (myRepositoryDir != null ? " for " + myRepositoryDir.getAbsolutePath() : "") +
+                ": previous run " + sample + (myStats != null ? ", current " + myStats : ""));
+    return result;
+  }
+
+  /**
+   * Remembers the successful run for the future predictions
+   * @param xmx -Xmx of the process in MB
+   * @param output output of the process
+   */
+  public void processSucceeded(int xmx, @NotNull String output) {
+    if (myRepositoryDir == null) {
+      final Long heapUsage = parseHeapUsage(output);
+      if (heapUsage == null)
+        return;
+      final Sample previous = myStorage.readSample();
+      final List<Integer> heapUsages = new ArrayList<>(previous != null ? previous.getHeapUsages() : Collections.emptyList());
+      heapUsages.add((int)(heapUsage / MB));
+      while (heapUsages.size() > HEAP_USAGE_HISTORY_SIZE) {
+        heapUsages.remove(0);
+      }
+      myStorage.writeSample(new Sample(xmx, heapUsages, null));
+    } else {
+      final RepositoryStats stats = myStats != null ? myStats : RepositoryStats.collect(myRepositoryDir);
+      myStorage.writeSample(new Sample(xmx, Collections.emptyList(), stats));
+    }
+  }
+
+  @Nullable
+  static Long parseHeapUsage(@NotNull String output) {
+    Long result = null;
+    for (String line : output.split("\n")) {
+      line = line.trim();
+      if (!line.startsWith(HEAP_USAGE_PREFIX))
+        continue;
+      try {
+        result = Long.parseLong(line.substring(HEAP_USAGE_PREFIX.length()));
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return heap usage expected in the next run: the last usage increased by the average growth per run
+   */
+  @Nullable
+  private static Integer projectHeapUsage(@NotNull List<Integer> heapUsages) {
+    if (heapUsages.isEmpty())
+      return null;
+    final int first = heapUsages.get(0);
+    final int last = heapUsages.get(heapUsages.size() - 1);
+    final int growthPerRun = heapUsages.size() > 1 ? Math.max(0, (last - first) / (heapUsages.size() - 1)) : 0;
+    return last + growthPerRun;
+  }
+
+  private static double ratio(long current, long previous) {
+    return previous > 0 ? (double)current / previous : 1;
+  }
+
+  private static int roundUp(double xmx) {
+    return (int)Math.ceil(xmx / XMX_GRANULARITY_MB) * XMX_GRANULARITY_MB;
+  }
+
+
+  /**
+   * Observations of a successful run
+   */
+  public static final class Sample {
+    private final int myXmx;
+    private final List<Integer> myHeapUsages;
+    private final RepositoryStats myStats;
+
+    public Sample(int xmx, @NotNull List<Integer> heapUsages, @Nullable RepositoryStats stats) {
+      myXmx = xmx;
+      myHeapUsages = heapUsages;
+      myStats = stats;
+    }
+
+    /**
+     * @return -Xmx of the run in MB
+     */
+    public int getXmx() {
+      return myXmx;
+    }
+
+    /**
+     * @return max heap usage after gc in MB reported by recent runs, the last run goes last;
+     * empty if the process doesn't report it
+     */
+    @NotNull
+    public List<Integer> getHeapUsages() {
+      return myHeapUsages;
+    }
+
+    /**
+     * @return repository stats the run was predicted from or null if the prediction doesn't depend on them
+     */
+    @Nullable
+    public RepositoryStats getStats() {
+      return myStats;
+    }
+
+    @Override
+    public String toString() {
+      return "-Xmx" + myXmx + "M" + (myHeapUsages.isEmpty() ? "" : ", heap usage " + myHeapUsages + "M") + (myStats != null ? ", " + myStats : "");
+    }
+  }
+
+
+  public static final class RepositoryStats {
+    private final long myPackSize;
+    private final long myObjectCount;
+
+    public RepositoryStats(long packSize, long objectCount) {
+      myPackSize = packSize;
+      myObjectCount = objectCount;
+    }
+
+    /**
+     * Collects stats without opening the repository: object count is read from pack index headers,
+     * loose objects are not counted
+     */
+    @NotNull
+    public static RepositoryStats collect(@NotNull File repositoryDir) {
+      long packSize = 0;
+      long objectCount = 0;
+      final File[] files = new File(repositoryDir, "objects/pack").listFiles();
+      if (files != null) {
+        for (File f : files) {
+          final String name = f.getName();
+          if (name.endsWith(".pack")) {
+            packSize += f.length();
+          } else if (name.endsWith(".idx")) {
+            objectCount += readObjectCount(f);
+          }
+        }
+      }
+      return new RepositoryStats(packSize, objectCount);
+    }
+
+    public long getPackSize() {
+      return myPackSize;
+    }
+
+    public long getObjectCount() {
+      return myObjectCount;
+    }
+
+    @Override
+    public String toString() {
+      return "packs " + myPackSize / MB + "M, objects " + myObjectCount;
+    }
+
+    private static long readObjectCount(@NotNull File idx) {
+      try (RandomAccessFile f = new RandomAccessFile(idx, "r")) {
+        //version 2 index starts with a magic and a version, the last fan-out entry is the number of objects
+        final int first = f.readInt();
+        final long fanOutStart = first == 0xff744f63 ? 8 : 0;
+        f.seek(fanOutStart + 255 * 4);
+        return f.readInt() & 0xffffffffL;
+      } catch (IOException e) {
+        LOG.debug("Cannot read object count from " + idx.getAbsolutePath(), e);
+        return 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package jetbrains.buildServer.buildTriggers.vcs.git.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import jetbrains.buildServer.buildTriggers.vcs.git.AuthSettings;
+import jetbrains.buildServer.buildTriggers.vcs.git.ServerPluginConfig;
+import jetbrains.buildServer.buildTriggers.vcs.git.command.credentials.ScriptGen;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Reuses the credential helper script between native git commands.
+ *
+ * <p>The credential helper script doesn't depend on credentials and is shared by all commands, the shared script
+ * doesn't delete itself on 'erase'. It is deleted when no command uses it for the configured time. Caching is
+ * disabled when the time is not positive. Askpass scripts contain passwords and are not cached.
+ *
+ * ThreadSafe.
+ */
+public class CachingScriptGen extends ScriptGen {
+
+  private static final String CREDENTIAL_HELPER_KEY = "credHelper";
+
+  private final ServerPluginConfig myConfig;
+  private final ScriptGen myDelegate;
+  private final Map<String, CachedScript> myScripts = new HashMap<>();
+  //generated script -> key of its entry in myScripts
+  private final Map<File, String> myScriptKeys = new HashMap<>();
+
+  public CachingScriptGen(@NotNull ServerPluginConfig config, @NotNull File tempDir, @NotNull ScriptGen delegate) {
+    super(tempDir);
+    myConfig = config;
+    myDelegate = delegate;
+  }
+
+  @NotNull
+  @Override
+  public File generateAskPass(@NotNull AuthSettings authSettings) throws IOException {
+    return myDelegate.generateAskPass(authSettings);
+  }
+
+  @NotNull
+  @Override
+  public File generateAskPass(@Nullable String password) throws IOException {
+    return myDelegate.generateAskPass(password);
+  }
+
+  @NotNull
+  @Override
+  public File generateCredentialHelper() throws IOException {
+    return getScript(CREDENTIAL_HELPER_KEY, () -> myDelegate.generateCredentialHelper(false));
+  }
+
+  @NotNull
+  @Override
+  public File generateCredentialHelper(boolean deleteOnErase) throws IOException {
+    return deleteOnErase ? myDelegate.generateCredentialHelper(true) : generateCredentialHelper();
+  }
+
+  @Override
+  public synchronized boolean release(@NotNull File script) {
+    long now = System.currentTimeMillis();
+    String key = myScriptKeys.get(script);
+    CachedScript cached = key != null ? myScripts.get(key) : null;
+    if (cached != null) {
+      cached.myUsages--;
+      cached.myLastUsed = now;
+    }
+    removeUnused(now);
+    return cached == null;
+  }
+
+  @NotNull
+  private synchronized File getScript(@NotNull String key, @NotNull Generator generator) throws IOException {
+    long now = System.currentTimeMillis();
+    removeUnused(now);
+    if (myConfig.getNativeGitScriptsCacheTtlMillis() <= 0)
+      return generator.generate();
+    CachedScript cached = myScripts.get(key);
+    if (cached == null) {
+      cached = new CachedScript(generateScript(key, generator));
+      myScripts.put(key, cached);
+    } else if (!cached.myScript.isFile()) {
+      //the script was deleted by someone else, commands using it release the entry by the old file
+      cached.myScript = generateScript(key, generator);
+    }
+    cached.myUsages++;
+    cached.myLastUsed = now;
+    return cached.myScript;
+  }
+
+  @NotNull
+  private File generateScript(@NotNull String key, @NotNull Generator generator) throws IOException {
+    File script = generator.generate();
+    script.deleteOnExit();
+    myScriptKeys.put(script, key);
+    return script;
+  }
+
+  private void removeUnused(long now) {
+    long ttl = myConfig.getNativeGitScriptsCacheTtlMillis();
+    for (Iterator<Map.Entry<String, CachedScript>> it = myScripts.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<String, CachedScript> e = it.next();
+      CachedScript s = e.getValue();
+      if (s.myUsages <= 0 && now - s.myLastUsed >= ttl) {
+        it.remove();
+        for (Iterator<Map.Entry<File, String>> keysIt = myScriptKeys.entrySet().iterator(); keysIt.hasNext(); ) {
+          Map.Entry<File, String> scriptKey = keysIt.next();
+          if (scriptKey.getValue().equals(e.getKey())) {
+            keysIt.remove();
+            FileUtil.delete(scriptKey.getKey());
+          }
+        }
+      }
+    }
+  }
+
+  private interface Generator {
+    @NotNull
+    File generate() throws IOException;
+  }
+
+  private static final class CachedScript {
+    private File myScript;
+    private int myUsages;
+    private long myLastUsed;
+
+    private CachedScript(@NotNull File script) {
+      myScript = script;
+    }
+  }
+}
@@ -12,6 +12,7 @@ import jetbrains.buildServer.buildTriggers.vcs.git.PushCommand;
 import jetbrains.buildServer.buildTriggers.vcs.git.TagCommand;
 import jetbrains.buildServer.buildTriggers.vcs.git.*;
 import jetbrains.buildServer.buildTriggers.vcs.git.agent.command.RepackCommand;
+import jetbrains.buildServer.buildTriggers.vcs.git.command.credentials.ScriptGen;
 import jetbrains.buildServer.buildTriggers.vcs.git.command.impl.CommandUtil;
 import jetbrains.buildServer.buildTriggers.vcs.git.command.impl.GitFacadeImpl;
 import jetbrains.buildServer.buildTriggers.vcs.git.command.ssl.SslOperations;
@@ -44,11 +45,15 @@ public class NativeGitCommands implements FetchCommand, LsRemoteCommand, PushCom
 
   private static final String ALL_REF_SPEC = "+refs/*:refs/*";
   private static final String EXCLUDE_TAGS_REF_SPEC = "^refs/tags/*";
+  private static final String HEADS_PREFIX = "refs/heads/";
+  private static final String TAGS_PREFIX = "refs/tags/";
+  private static final List<String> LS_REMOTE_REF_PREFIXES = Arrays.asList(HEADS_PREFIX, TAGS_PREFIX);
 
   private final ServerPluginConfig myConfig;
   private final GitDetector myGitDetector;
   private final VcsRootSshKeyManager mySshKeyManager;
   private final SshKnownHostsManager myKnownHostsManager;
+  private final ScriptGen myScriptGen;
 
   private final File myTrustedCertificatesDir;
 
@@ -64,6 +69,8 @@ public class NativeGitCommands implements FetchCommand, LsRemoteCommand, PushCom
     mySshKeyManager = sshKeyManager;
     myTrustedCertificatesDir = trustedCertificatesDir;
     myKnownHostsManager = knownHostsManager;
+    final File tempDir = new File(FileUtil.getTempDirectory());
+    myScriptGen = new CachingScriptGen(config, tempDir, GitFacadeImpl.createScriptGen(tempDir));
   }
 
   private boolean shouldGenerateMergedSslCertificate(@NotNull String pemContent, @NotNull File cachedSslDirectory) throws VcsException {
@@ -163,7 +170,7 @@ public class NativeGitCommands implements FetchCommand, LsRemoteCommand, PushCom
   public void prune(@NotNull Repository db, @NotNull URIish fetchURI, @NotNull FetchSettings settings) throws VcsException {
     final GitExec gitExec = myGitDetector.detectGit();
     final Context ctx = new ContextImpl(null, myConfig, gitExec, settings.getProgress(), myKnownHostsManager);
-    final GitFacadeImpl gitFacade = new GitFacadeImpl(db.getDirectory(), ctx);
+    final GitFacadeImpl gitFacade = new GitFacadeImpl(db.getDirectory(), ctx, myScriptGen);
     gitFacade.setSshKeyManager(mySshKeyManager);
 
     executeCommand(ctx, "prune", LogUtil.describe(db, fetchURI), () -> {
@@ -182,9 +189,9 @@ public class NativeGitCommands implements FetchCommand, LsRemoteCommand, PushCom
   private void setCommitGraphRefresh(@NotNull Repository db, @NotNull FetchSettings settings, @NotNull jetbrains.buildServer.buildTriggers.vcs.git.command.FetchCommand fetch) throws VcsException {
     final GitExec gitExec = myGitDetector.detectGit();
     final Context ctx = new ContextImpl(null, myConfig, gitExec, settings.getProgress(), myKnownHostsManager);
-    final GitFacadeImpl gitFacade = new GitFacadeImpl(db.getDirectory(), ctx);
+    final GitFacadeImpl gitFacade = new GitFacadeImpl(db.getDirectory(), ctx, myScriptGen);
     gitFacade.setSshKeyManager(mySshKeyManager);
-    fetch.setRefreshCommitGraphIfCorrupted(gitFacade);
+    fetch.setRefreshCommitGraphIfCorrupted(gitFacade, myConfig.writeCommitGraphChangedPaths() && GitVersion.isCommitGraphChangedPathsSupported(ctx.getGitVersion()));
   }
 
   private jetbrains.buildServer.buildTriggers.vcs.git.command.FetchCommand createFetchCommand(@NotNull Repository db,
@@ -271,7 +278,7 @@ public class NativeGitCommands implements FetchCommand, LsRemoteCommand, PushCom
   public void fetch(@NotNull Repository db, @NotNull URIish fetchURI, @NotNull FetchSettings settings) throws IOException, VcsException {
     final GitExec gitExec = myGitDetector.detectGit();
     final Context ctx = new ContextImpl(null, myConfig, gitExec, settings.getProgress(), myKnownHostsManager);
-    final GitFacadeImpl gitFacade = new GitFacadeImpl(db.getDirectory(), ctx);
+    final GitFacadeImpl gitFacade = new GitFacadeImpl(db.getDirectory(), ctx, myScriptGen);
     gitFacade.setSshKeyManager(mySshKeyManager);
     Collection<String> resultRefSpecs = defineRefSpecsForFetch(settings);
 
@@ -291,7 +298,7 @@ public class NativeGitCommands implements FetchCommand, LsRemoteCommand, PushCom
   @Override
   public InitCommandResult init(@NotNull String path, boolean bare, String initialBranch) throws VcsException {
     final Context ctx = new ContextImpl(null, myConfig, myGitDetector.detectGit(), myKnownHostsManager);
-    final GitFacadeImpl gitFacade = new GitFacadeImpl(new File(path), ctx);
+    final GitFacadeImpl gitFacade = new GitFacadeImpl(new File(path), ctx, myScriptGen);
 
     final File gitDir = new File(path, ".git");
     InitCommandResult res;
@@ -319,7 +326,7 @@ public class NativeGitCommands implements FetchCommand, LsRemoteCommand, PushCom
   @Override
   public void addConfigParameter(String path, GitConfigCommand.Scope scope, String name, String value) throws VcsException {
     final Context ctx = new ContextImpl(null, myConfig, myGitDetector.detectGit(), myKnownHostsManager);
-    final GitFacadeImpl gitFacade = new GitFacadeImpl(new File(path), ctx);
+    final GitFacadeImpl gitFacade = new GitFacadeImpl(new File(path), ctx, myScriptGen);
     executeCommand(ctx, "gitConfig", "Set config parameters", () -> {
       final GitConfigCommand gitConfigCommand = gitFacade.gitConfig()
                                                          .setScope(scope)
@@ -333,7 +340,7 @@ public class NativeGitCommands implements FetchCommand, LsRemoteCommand, PushCom
   @Override
   public void removeConfigParameter(String path, GitConfigCommand.Scope scope, String name) throws VcsException {
     final Context ctx = new ContextImpl(null, myConfig, myGitDetector.detectGit(), myKnownHostsManager);
-    final GitFacadeImpl gitFacade = new GitFacadeImpl(new File(path), ctx);
+    final GitFacadeImpl gitFacade = new GitFacadeImpl(new File(path), ctx, myScriptGen);
     executeCommand(ctx, "gitConfig", "Remove config parameters", () -> {
       final GitConfigCommand gitConfigCommand = gitFacade.gitConfig()
                                                          .setScope(scope)
@@ -347,7 +354,7 @@ public class NativeGitCommands implements FetchCommand, LsRemoteCommand, PushCom
   @Override
   public void repack(String path) throws VcsException {
     final Context ctx = new ContextImpl(null, myConfig, myGitDetector.detectGit(), myKnownHostsManager);
-    final GitFacadeImpl gitFacade = new GitFacadeImpl(new File(path), ctx);
+    final GitFacadeImpl gitFacade = new GitFacadeImpl(new File(path), ctx, myScriptGen);
     executeCommand(ctx, "gitConfig", "Remove config parameters", () -> {
       final RepackCommand repackCommand = gitFacade.repack();
       repackCommand.call();
@@ -358,7 +365,7 @@ public class NativeGitCommands implements FetchCommand, LsRemoteCommand, PushCom
   @Override
   public void add(String repositoryPath, List<String> paths) throws VcsException {
     final Context ctx = new ContextImpl(null, myConfig, myGitDetector.detectGit(), myKnownHostsManager);
-    final GitFacadeImpl gitFacade = new GitFacadeImpl(new File(repositoryPath), ctx);
+    final GitFacadeImpl gitFacade = new GitFacadeImpl(new File(repositoryPath), ctx, myScriptGen);
 
     executeCommand(ctx, "add", "add files in repository: " + repositoryPath, () -> {
       final AddCommand addCommand =
@@ -374,7 +381,7 @@ public class NativeGitCommands implements FetchCommand, LsRemoteCommand, PushCom
   public void commit(String repositoryPath, @NotNull CommitSettings commitSettings) throws VcsException {
 
     final Context ctx = new ContextImpl(null, myConfig, myGitDetector.detectGit(), myKnownHostsManager);
-    final GitFacadeImpl gitFacade = new GitFacadeImpl(new File(repositoryPath), ctx);
+    final GitFacadeImpl gitFacade = new GitFacadeImpl(new File(repositoryPath), ctx, myScriptGen);
 
     executeCommand(ctx, "commit", "commit files in repository: " + repositoryPath, () -> {
       final CommitCommand commitCommand =
@@ -394,7 +401,7 @@ public class NativeGitCommands implements FetchCommand, LsRemoteCommand, PushCom
   @Override
   public int fsck(@NotNull String repositoryPath) throws VcsException {
     final Context ctx = new ContextImpl(null, myConfig, myGitDetector.detectGit(), myKnownHostsManager);
-    final GitFacadeImpl gitFacade = new GitFacadeImpl(new File(repositoryPath), ctx);
+    final GitFacadeImpl gitFacade = new GitFacadeImpl(new File(repositoryPath), ctx, myScriptGen);
 
     return executeCommand(ctx, "fsck", "git fsck for repository: " + repositoryPath, () -> {
       final FsckCommand fsckCommand = gitFacade.fsck();
@@ -405,8 +412,23 @@ public class NativeGitCommands implements FetchCommand, LsRemoteCommand, PushCom
   @NotNull
   @Override
   public Map<String, Ref> lsRemote(@NotNull Repository db, @NotNull GitVcsRoot gitRoot, @NotNull FetchSettings settings) throws VcsException {
+    return lsRemote(db, gitRoot, settings, Collections.emptyList());
+  }
+
+  /**
+   * Git command line cannot pass arbitrary ref prefixes to the server, so only prefixes covered by --heads and --tags
+   * are used. With protocol v2 they are sent to the server as ref-prefix arguments and the server advertises only
+   * matching refs, servers without v2 support advertise all refs and git filters them.
+   */
+  @NotNull
+  @Override
+  public Map<String, Ref> lsRemote(@NotNull Repository db,
+                                   @NotNull GitVcsRoot gitRoot,
+                                   @NotNull FetchSettings settings,
+                                   @NotNull Collection<String> refPrefixes) throws VcsException {
+    final boolean filterRefs = !refPrefixes.isEmpty() && LS_REMOTE_REF_PREFIXES.containsAll(refPrefixes);
     final Context ctx = new ContextImpl(gitRoot, myConfig, myGitDetector.detectGit(), settings.getProgress(), myKnownHostsManager);
-    final GitFacadeImpl gitFacade = new GitFacadeImpl(db.getDirectory(), ctx);
+    final GitFacadeImpl gitFacade = new GitFacadeImpl(db.getDirectory(), ctx, myScriptGen);
     gitFacade.setSshKeyManager(mySshKeyManager);
 
     return executeCommand(ctx, "ls-remote", LogUtil.describe(gitRoot), () -> {
@@ -418,6 +440,13 @@ public class NativeGitCommands implements FetchCommand, LsRemoteCommand, PushCom
                  .setRetryAttempts(myConfig.getConnectionRetryAttempts())
                  .setRepoUrl(gitRoot.getRepositoryFetchURL().get())
                  .trace(myConfig.getGitTraceEnv());
+      if (filterRefs) {
+        lsRemote.addConfig("protocol.version", "2");
+        if (refPrefixes.contains(HEADS_PREFIX))
+          lsRemote.setHeads();
+        if (refPrefixes.contains(TAGS_PREFIX))
+          lsRemote.setTags();
+      }
       return lsRemote.call().stream().collect(Collectors.toMap(Ref::getName, ref -> ref));
     }, gitFacade);
   }
@@ -429,7 +458,7 @@ public class NativeGitCommands implements FetchCommand, LsRemoteCommand, PushCom
     final String fullRef = GitUtils.expandRef(ref);
 
     final Context ctx = new ContextImpl(gitRoot, myConfig, myGitDetector.detectGit(), myKnownHostsManager);
-    final GitFacadeImpl gitFacade = new GitFacadeImpl(db.getDirectory(), ctx);
+    final GitFacadeImpl gitFacade = new GitFacadeImpl(db.getDirectory(), ctx, myScriptGen);
     gitFacade.setSshKeyManager(mySshKeyManager);
 
     gitFacade.updateRef().setRef(fullRef).setRevision(commit).setOldValue(lastCommit).call();
@@ -464,7 +493,7 @@ public class NativeGitCommands implements FetchCommand, LsRemoteCommand, PushCom
   public String tag(@NotNull OperationContext context, @NotNull String tag, @Nullable String message, @NotNull String commit) throws VcsException {
     final Context ctx = new ContextImpl(context.getGitRoot(), myConfig, myGitDetector.detectGit(), myKnownHostsManager);
     final Repository db = context.getRepository();
-    final GitFacadeImpl gitFacade = new GitFacadeImpl(db.getDirectory(), ctx);
+    final GitFacadeImpl gitFacade = new GitFacadeImpl(db.getDirectory(), ctx, myScriptGen);
     gitFacade.setSshKeyManager(mySshKeyManager);
 
     final GitVcsRoot gitRoot = context.getGitRoot();
@@ -562,7 +591,7 @@ public class NativeGitCommands implements FetchCommand, LsRemoteCommand, PushCom
                                    @NotNull final String startRevision,
                                    @NotNull final Collection<String> excludedRevisions) throws VcsException {
     final Context ctx = new ContextImpl(gitRoot, myConfig, myGitDetector.detectGit(), GitProgress.NO_OP, myKnownHostsManager);
-    final GitFacadeImpl gitFacade = new GitFacadeImpl(db.getDirectory(), ctx);
+    final GitFacadeImpl gitFacade = new GitFacadeImpl(db.getDirectory(), ctx, myScriptGen);
     gitFacade.setSshKeyManager(mySshKeyManager);
 
     return executeCommand(ctx, "diff", LogUtil.describe(gitRoot), () -> gitFacade.diff()
@@ -581,7 +610,7 @@ public class NativeGitCommands implements FetchCommand, LsRemoteCommand, PushCom
                                            int maxCommits,
                                            @NotNull Collection<String> paths) throws VcsException {
     final Context ctx = new ContextImpl(gitRoot, myConfig, myGitDetector.detectGit(), GitProgress.NO_OP, myKnownHostsManager);
-    final GitFacadeImpl gitFacade = new GitFacadeImpl(db.getDirectory(), ctx);
+    final GitFacadeImpl gitFacade = new GitFacadeImpl(db.getDirectory(), ctx, myScriptGen);
     gitFacade.setSshKeyManager(mySshKeyManager);
 
     return executeCommand(ctx, "log", LogUtil.describe(gitRoot), () -> gitFacade.commitsByPaths()
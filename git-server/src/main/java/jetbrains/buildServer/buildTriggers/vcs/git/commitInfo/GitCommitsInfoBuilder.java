@@ -40,6 +40,7 @@ public class GitCommitsInfoBuilder implements CommitsInfoBuilder, GitServerExten
                              @NotNull final CheckoutRules rules,
                              @NotNull final CommitsConsumer consumer) throws VcsException {
     final OperationContext ctx = myVcs.createContext(root, "collecting commits");
+    ctx.setFetchPriority(FetchPriority.BACKGROUND);
     GitVcsRoot gitRoot = ctx.getGitRoot();
     myVcs.getRepositoryManager().runWithDisabledRemove(gitRoot.getRepositoryDir(), () -> {
       try {
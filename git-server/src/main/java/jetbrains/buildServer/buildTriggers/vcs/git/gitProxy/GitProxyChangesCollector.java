@@ -165,15 +165,36 @@ public class GitProxyChangesCollector {
                                                                                    @Nullable Map<String, List<String>> commitIdToSubmodulePrefixes,
                                                                                    boolean exceptionOnSubmoduleChanges,
                                                                                    boolean allowMissingTips) throws VcsException {
+    List<ModificationData> modificationDataList = new ArrayList<>();
+    Map<String, String> branchRevisionMapping = collectChangesGitProxy(gitPluginConfig, root, fromState, toState, proxyCredentials, operationId, commitIdToSubmodulePrefixes,
+                                                                       exceptionOnSubmoduleChanges, allowMissingTips, modificationDataList::add);
+    return new GitCollectChangesPolicy.GitChangesCollectionResult(modificationDataList, branchRevisionMapping);
+  }
+
+  /**
+   * Collects changes page by page and passes them to the sink as soon as a page is processed, so unless
+   * results caching is enabled only a single page of changes is kept in memory.
+   *
+   * @return revisions which should be persisted for branches whose tips were not found, null if all tips were found
+   */
+  @Nullable
+  public Map<String, String> collectChangesGitProxy(@NotNull ServerPluginConfig gitPluginConfig,
+                                                    @NotNull VcsRoot root,
+                                                    @NotNull RepositoryStateData fromState,
+                                                    @NotNull RepositoryStateData toState,
+                                                    @NotNull GitProxySettings proxyCredentials,
+                                                    @NotNull String operationId,
+                                                    @Nullable Map<String, List<String>> commitIdToSubmodulePrefixes,
+                                                    boolean exceptionOnSubmoduleChanges,
+                                                    boolean allowMissingTips,
+                                                    @NotNull ModificationDataSink sink) throws VcsException {
 
     GitApiClient<GitRepoApi> client = getClient(proxyCredentials, root, operationId);
     if (client == null) {
-      return GitCollectChangesPolicy.GitChangesCollectionResult.empty();
+      return null;
     }
-    List<ModificationData> modificationDataList = collectChangesGitProxyInternal(root, fromState, toState, client, operationId, commitIdToSubmodulePrefixes,
-                                                                                 exceptionOnSubmoduleChanges);
 
-    // now we need to verify that branch tips from toState were collected and if not
+    // we need to verify that branch tips from toState were collected and if not
     // we need either to return the information about such branches or throw an exception(depends on allowMissingTips)
     Map<String, Boolean> toStateChangedRevision = new HashMap<>();
     Map<String, String> fromStateRevisions = fromState.getBranchRevisions();
@@ -183,9 +204,15 @@ public class GitProxyChangesCollector {
       }
     }
 
-    for (ModificationData modificationData : modificationDataList) {
-      String revision = modificationData.getVersion();
-      toStateChangedRevision.computeIfPresent(revision, (key, value) -> true);
+    final boolean[] stopped = {false};
+    collectChangesGitProxyInternal(root, fromState, toState, client, operationId, commitIdToSubmodulePrefixes, exceptionOnSubmoduleChanges, modificationData -> {
+      toStateChangedRevision.computeIfPresent(modificationData.getVersion(), (key, value) -> true);
+      stopped[0] = !sink.accept(modificationData);
+      return !stopped[0];
+    });
+    if (stopped[0]) {
+      // the sink doesn't need the rest of changes, it cannot use the information on missing tips either
+      return null;
     }
 
     List<String> missingTipRevisions = toStateChangedRevision.entrySet().stream().filter(entry -> !entry.getValue()).map(entry -> entry.getKey()).collect(Collectors.toList());
@@ -206,7 +233,7 @@ public class GitProxyChangesCollector {
               branchRevisionMapping.put(entry.getKey(), null);
             }
           }
-          return new GitCollectChangesPolicy.GitChangesCollectionResult(modificationDataList, branchRevisionMapping);
+          return branchRevisionMapping;
         } else {
           // otherwise throw exception the same as in CommitLoaderImpl#findRefsToFetch
           final VcsException error = new VcsException("Revisions missing in the local repository: " + StringUtil.join(missingTipsSet, ", "));
@@ -216,36 +243,37 @@ public class GitProxyChangesCollector {
       }
     }
 
-    return new GitCollectChangesPolicy.GitChangesCollectionResult(modificationDataList, null);
+    return null;
   }
 
   /**
    * @param commitIdToSubmodulePrefixes commit id to list of paths to submodules that were changed in that commit
    * @throws VcsException
    */
-  @NotNull
-  private List<ModificationData> collectChangesGitProxyInternal(@NotNull VcsRoot root,
-                                                       @NotNull RepositoryStateData fromState,
-                                                       @NotNull RepositoryStateData toState,
-                                                       @NotNull GitApiClient<GitRepoApi> client,
-                                                       @NotNull String operationId,
-                                                       @Nullable Map<String, List<String>> commitIdToSubmodulePrefixes,
-                                                       boolean exceptionOnSubmoduleChanges) throws VcsException {
+  private void collectChangesGitProxyInternal(@NotNull VcsRoot root,
+                                              @NotNull RepositoryStateData fromState,
+                                              @NotNull RepositoryStateData toState,
+                                              @NotNull GitApiClient<GitRepoApi> client,
+                                              @NotNull String operationId,
+                                              @Nullable Map<String, List<String>> commitIdToSubmodulePrefixes,
+                                              boolean exceptionOnSubmoduleChanges,
+                                              @NotNull ModificationDataSink sink) throws VcsException {
     GitVcsRoot gitRoot = new SGitVcsRoot(myRepositoryManager, root, new URIishHelperImpl(), null);
     String url = root.getProperty(Constants.FETCH_URL);
     if (url == null) {
-      return Collections.emptyList();
+      return;
     }
 
     if (TeamCityProperties.getBoolean(GIT_PROXY_CACHING_PROPERTY)) {
+      // the cached result is shared with other requests, so it has to be collected completely
+      List<ModificationData> result;
       ChangesCollectorCache.Key cacheKey = myCache.getKey(fromState, toState, url);
       ChangesCollectorCache.Result futureResult = myCache.getOrCreateNew(cacheKey, root);
       if (futureResult.getType() == ChangesCollectorCache.ResultType.NEW) {
         try {
-          List<ModificationData> result =
-            doCollectChanges(gitRoot, root, client, fromState, toState, operationId, commitIdToSubmodulePrefixes, exceptionOnSubmoduleChanges);
+          result = new ArrayList<>();
+          doCollectChanges(gitRoot, root, client, fromState, toState, operationId, commitIdToSubmodulePrefixes, exceptionOnSubmoduleChanges, result::add);
           futureResult.complete(result);
-          return result;
         } catch (Throwable t) {
           futureResult.completeExceptionally(t);
           throw t;
@@ -257,24 +285,29 @@ public class GitProxyChangesCollector {
           } else {
             LOG.info("Reusing result of other changes collection operation. Git operation id " + operationId);
           }
-          return futureResult.getResult(getTotalTimeoutSeconds());
+          result = futureResult.getResult(getTotalTimeoutSeconds());
         } catch (Throwable t) {
           throw new VcsException(t);
         }
       }
+      for (ModificationData data : result) {
+        if (!sink.accept(data))
+          break;
+      }
     } else {
-      return doCollectChanges(gitRoot, root, client, fromState, toState, operationId, commitIdToSubmodulePrefixes, exceptionOnSubmoduleChanges);
+      doCollectChanges(gitRoot, root, client, fromState, toState, operationId, commitIdToSubmodulePrefixes, exceptionOnSubmoduleChanges, sink);
     }
   }
 
-  private List<ModificationData> doCollectChanges(@NotNull GitVcsRoot gitRoot,
-                                                  @NotNull VcsRoot root,
-                                                  GitApiClient<GitRepoApi> client,
-                                                  @NotNull RepositoryStateData fromState,
-                                                  @NotNull RepositoryStateData toState,
-                                                  @NotNull String operationId,
-                                                  @Nullable Map<String, List<String>> commitIdToSubmodulePrefixes,
-                                                  boolean exceptionOnSubmoduleChanges) throws VcsException {
+  private void doCollectChanges(@NotNull GitVcsRoot gitRoot,
+                                @NotNull VcsRoot root,
+                                GitApiClient<GitRepoApi> client,
+                                @NotNull RepositoryStateData fromState,
+                                @NotNull RepositoryStateData toState,
+                                @NotNull String operationId,
+                                @Nullable Map<String, List<String>> commitIdToSubmodulePrefixes,
+                                boolean exceptionOnSubmoduleChanges,
+                                @NotNull ModificationDataSink sink) throws VcsException {
     LinkedHashSet<String> commitPatterns = new LinkedHashSet<>();
     for (Map.Entry<String, String> entry: fromState.getBranchRevisions().entrySet()) {
       commitPatterns.add("^" + entry.getValue());
@@ -288,71 +321,72 @@ public class GitProxyChangesCollector {
       }
     }
 
-    Map<String, CommitInfo> commitInfoMap = new HashMap<>();
-    List<CommitChange> changes = retrieveChanges(client, commitPatterns, commitInfoMap);
-
-    List<ModificationData> result = new ArrayList<>();
-    int i = changes.size() - 1;
-    // traverse the list of changes from the end and remove elements from the end of 'changes' list after processing to make it possible for gc to collect those objects later
-    while (i >= 0) {
-      CommitInfo info = commitInfoMap.get(changes.get(i).revision);
-      List<CommitChange> mergeEdgeChanges = null;
-      // find diff for other edges of merge commit, when inferMergeCommitChanges was set to false separate commit changes are returned for each edge of the merge commit
-      while (i - 1 >= 0 && changes.get(i - 1).revision.equals(info.id)) {
-        if (mergeEdgeChanges == null) {
-          mergeEdgeChanges = new ArrayList<>();
+    retrieveChanges(client, commitPatterns, (changes, commitInfoMap) -> {
+      int i = 0;
+      while (i < changes.size()) {
+        CommitChange change = changes.get(i++);
+        List<CommitChange> mergeEdgeChanges = null;
+        // find diff for other edges of merge commit, when inferMergeCommitChanges was set to false separate commit changes are returned for each edge of the merge commit
+        while (i < changes.size() && changes.get(i).revision.equals(change.revision)) {
+          if (mergeEdgeChanges == null) {
+            mergeEdgeChanges = new ArrayList<>();
+          }
+          mergeEdgeChanges.add(changes.get(i++));
         }
-        mergeEdgeChanges.add(changes.get(i));
-        changes.remove(i);  // remove last object for gc
-        i--;
-      }
-      if (mergeEdgeChanges != null) {
-        Collections.reverse(mergeEdgeChanges);
-      }
-      CommitChange change = changes.get(i);
-      changes.remove(i); //remove last object for gc
-      i--;
-      if (info == null) {
-        LOG.error("There is no commit info for returned revision " + change.revision + "Operation id " + operationId);
-        continue;
+        CommitInfo info = commitInfoMap.get(change.revision);
+        if (info == null) {
+          LOG.error("There is no commit info for returned revision " + change.revision + "Operation id " + operationId);
+          continue;
+        }
+        if (!sink.accept(createModificationDataGitProxy(info, change, gitRoot, root, mergeEdgeChanges, commitIdToSubmodulePrefixes, exceptionOnSubmoduleChanges)))
+          return false;
       }
-      commitInfoMap.remove(change.revision); // remove for gc
-      result.add(createModificationDataGitProxy(info, change, gitRoot, root, mergeEdgeChanges, commitIdToSubmodulePrefixes, exceptionOnSubmoduleChanges));
-    }
-    Collections.reverse(result);
-    return result;
+      return true;
+    });
+  }
+
+  private interface ChangesPageConsumer {
+    /**
+     * @param changes changes of commits from the page, all changes of a commit are on the same page
+     * @param commitInfoMap info of commits from the page
+     * @return false if no more pages should be retrieved
+     */
+    boolean accept(@NotNull List<CommitChange> changes, @NotNull Map<String, CommitInfo> commitInfoMap) throws VcsException;
   }
 
-  private List<CommitChange> retrieveChanges(@NotNull GitApiClient<GitRepoApi> client, @NotNull LinkedHashSet<String> commitPatterns, @NotNull Map<String, CommitInfo> commitInfoMap) throws VcsException {
-    List<CommitChange> changes = new ArrayList<>();
+  private void retrieveChanges(@NotNull GitApiClient<GitRepoApi> client, @NotNull LinkedHashSet<String> commitPatterns, @NotNull ChangesPageConsumer pageConsumer) throws VcsException {
     int maxCommitsPerPage = TeamCityProperties.getInteger(GIT_PROXY_COMMITS_PER_PAGE, GIT_PROXY_COMMITS_PER_PAGE_DEFAULT);
 
+    int retrievedChanges = 0;
+    String lastRevision = null;
     long currentResultSize = 0;
     long startTime = System.currentTimeMillis();
     boolean shouldCollectFileChanges = true;
     while (true) {
       if (shouldCollectFileChanges && currentResultSize > getMaxChangesCollectionResultSizeInBytes()) {
         LOG.warn(String.format("Failed to collect all the changes from git proxy. Reached the size limit of changes collection result. File changes will not be collected starting from revision %s. Operation id %s",
-                               changes.get(changes.size() - 1).revision, client.getOperationId()));
+                               lastRevision, client.getOperationId()));
         shouldCollectFileChanges = false;
       }
       if (!shouldCollectFileChanges && currentResultSize > 2 * getMaxChangesCollectionResultSizeInBytes()) {
         LOG.warn(String.format("Failed to collect all the changes from git proxy. Reached the maximum size of changes collection result. Returning partial result ending with %s. Operation id %s",
-                               changes.get(changes.size() - 1).revision, client.getOperationId()));
-        return changes;
+                               lastRevision, client.getOperationId()));
+        return;
       }
 
       CommitList commitList;
       try {
-        commitList = client.newRequest().listCommits(Collections.singletonList(new Pair<>("id-range", commitPatterns)), changes.size(), maxCommitsPerPage, false, true);
+        commitList = client.newRequest().listCommits(Collections.singletonList(new Pair<>("id-range", commitPatterns)), retrievedChanges, maxCommitsPerPage, false, true);
       } catch (Exception e) {
         throw new VcsException("Failed to collect commits from git proxy for collectChanges operation", e);
       }
 
       if (System.currentTimeMillis() - startTime > getTotalTimeoutSeconds() * 1000) {
-        throw new VcsException(String.format("Failed to collect all the changes from git proxy in specified time. Retrieved: %d, Total matched: %d", changes.size(), commitList.totalMatched));
+        throw new VcsException(String.format("Failed to collect all the changes from git proxy in specified time. Retrieved: %d, Total matched: %d", retrievedChanges, commitList.totalMatched));
       }
 
+      List<CommitChange> changes = new ArrayList<>();
+      Map<String, CommitInfo> commitInfoMap = new HashMap<>();
       if (shouldCollectFileChanges) {
         List<String> commitIds = new ArrayList<>(commitList.commits.size());
 
@@ -392,13 +426,19 @@ public class GitProxyChangesCollector {
         }
       }
 
-      if (changes.size() >= commitList.totalMatched) {
-        // all the result pages were retrieved, we can return result
+      retrievedChanges += changes.size();
+      if (!changes.isEmpty()) {
+        lastRevision = changes.get(changes.size() - 1).revision;
+      }
+      if (!pageConsumer.accept(changes, commitInfoMap)) {
+        return;
+      }
+
+      if (retrievedChanges >= commitList.totalMatched) {
+        // all the result pages were retrieved
         break;
       }
     }
-
-    return changes;
   }
 
   private long getTotalTimeoutSeconds() {
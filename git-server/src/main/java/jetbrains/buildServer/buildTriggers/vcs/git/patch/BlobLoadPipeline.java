@@ -0,0 +1,294 @@
+package jetbrains.buildServer.buildTriggers.vcs.git.patch;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import jetbrains.buildServer.buildTriggers.vcs.git.ResizableDaemonExecutor;
+import org.eclipse.jgit.internal.storage.file.ObjectDirectory;
+import org.eclipse.jgit.internal.storage.file.PackFile;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectDatabase;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Runs content loading actions of a patch in their order while their blobs are loaded in advance by worker threads.
+ *
+ * <p>Workers read blobs in the order of their offsets in pack files, so packs are read sequentially, and every
+ * worker uses its own {@link ObjectReader}. Loaded blobs are kept in memory until the corresponding action
+ * is executed. When the memory limit is reached, a worker waits until executed actions release their blobs;
+ * blobs which are larger than the limit, blobs which didn't get memory in time, as well as blobs which were
+ * not loaded by the time their action is executed, are loaded by the calling thread as before.
+ */
+final class BlobLoadPipeline {
+
+  private static final Logger LOG = Logger.getInstance(BlobLoadPipeline.class.getName());
+
+  private static final int NOT_CLAIMED = 0;
+  private static final int CLAIMED = 1;
+
+  private static final long MEMORY_WAIT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  private final ResizableDaemonExecutor myExecutor;
+  private final int myThreads;
+  private final long myMaxMemoryBytes;
+
+  BlobLoadPipeline(@NotNull ResizableDaemonExecutor executor, int threads, long maxMemoryBytes) {
+    myExecutor = executor;
+    myThreads = threads;
+    myMaxMemoryBytes = maxMemoryBytes;
+  }
+
+  void run(@NotNull List<LoadContentAction> actions) throws Exception {
+    int size = actions.size();
+    if (size == 0)
+      return;
+    if (myThreads <= 1 || size == 1) {
+      for (LoadContentAction action : actions) {
+        action.call();
+      }
+      return;
+    }
+
+    Batch batch = new Batch(actions, myMaxMemoryBytes);
+    try {
+      int workersNum = Math.min(myThreads, size);
+      try {
+        ExecutorService executor = myExecutor.get(myThreads);
+        for (int i = 0; i < workersNum; i++) {
+          executor.submit(batch::loadBlobs);
+        }
+      } catch (RejectedExecutionException e) {
+        //the executor is overloaded or shut down, remaining blobs will be loaded by the calling thread
+      }
+      for (int i = 0; i < size; i++) {
+        batch.runAction(i);
+      }
+    } finally {
+      //workers use readers of repositories which can be closed once the patch is built
+      batch.cancelAndAwaitWorkers();
+    }
+  }
+
+
+  private static final class Batch {
+    private final List<LoadContentAction> myActions;
+    private final int[] myLoadOrder;
+    private final CompletableFuture<ObjectLoader>[] myLoaders;
+    private final AtomicIntegerArray myClaims;
+    private final AtomicInteger myNextLoad = new AtomicInteger();
+    private final long myMaxMemoryBytes;
+    private final Object myMemoryLock = new Object();
+    private long myFreeMemory; //guarded by myMemoryLock
+    private int myCurrentAction = -1; //guarded by myMemoryLock, index of the action awaited by the calling thread
+    private final Object myWorkersLock = new Object();
+    private int myActiveWorkers;
+    private volatile boolean myCancelled;
+
+    @SuppressWarnings("unchecked")
+    Batch(@NotNull List<LoadContentAction> actions, long maxMemoryBytes) {
+      myActions = actions;
+      myLoadOrder = getLoadOrder(actions);
+      myLoaders = new CompletableFuture[actions.size()];
+      for (int i = 0; i < myLoaders.length; i++) {
+        myLoaders[i] = new CompletableFuture<>();
+      }
+      myClaims = new AtomicIntegerArray(actions.size());
+      myMaxMemoryBytes = maxMemoryBytes;
+      myFreeMemory = maxMemoryBytes;
+    }
+
+    void loadBlobs() {
+      synchronized (myWorkersLock) {
+        if (myCancelled)
+          return;
+        myActiveWorkers++;
+      }
+      Map<Repository, ObjectReader> readers = new HashMap<>();
+      try {
+        int pos;
+        while (!myCancelled && (pos = myNextLoad.getAndIncrement()) < myLoadOrder.length) {
+          int idx = myLoadOrder[pos];
+          if (!myClaims.compareAndSet(idx, NOT_CLAIMED, CLAIMED))
+            continue;
+          LoadContentAction action = myActions.get(idx);
+          ObjectLoader loader = null;
+          try {
+            ObjectReader reader = readers.computeIfAbsent(action.getRepository(), Repository::newObjectReader);
+            loader = loadBlob(reader, idx, action.getObjectId());
+          } catch (Exception e) {
+            //the action will load the blob again and report the error
+            LOG.debug("Failed to load blob " + action.getObjectId().name() + " in advance", e);
+          } finally {
+            myLoaders[idx].complete(loader);
+          }
+        }
+      } finally {
+        for (ObjectReader reader : readers.values()) {
+          reader.close();
+        }
+        synchronized (myWorkersLock) {
+          myActiveWorkers--;
+          myWorkersLock.notifyAll();
+        }
+      }
+    }
+
+    @Nullable
+    private ObjectLoader loadBlob(@NotNull ObjectReader reader, int idx, @NotNull ObjectId id) throws IOException {
+      long size = reader.getObjectSize(id, Constants.OBJ_BLOB);
+      if (!reserveMemory(idx, size))
+        return null;
+      ObjectLoader loader = reader.open(id, Constants.OBJ_BLOB);
+      if (loader.isLarge()) {
+        releaseMemory(size);
+        return null;
+      }
+      return new ObjectLoader.SmallObject(Constants.OBJ_BLOB, loader.getCachedBytes());
+    }
+
+    /**
+     * Waits until the memory for a blob of the action with the specified index is released by executed actions.
+     * Gives up if the blob doesn't fit into the limit at all, if the calling thread already waits for
+     * the blob (it would otherwise wait for memory held by blobs of subsequent actions), or on timeout.
+     * @return true if memory is reserved
+     */
+    private boolean reserveMemory(int idx, long size) {
+      if (size > myMaxMemoryBytes)
+        return false;
+      long deadline = System.currentTimeMillis() + MEMORY_WAIT_TIMEOUT_MILLIS;
+      synchronized (myMemoryLock) {
+        while (myFreeMemory < size) {
+          long timeout = deadline - System.currentTimeMillis();
+          if (myCancelled || idx <= myCurrentAction || timeout <= 0)
+            return false;
+          try {
+            myMemoryLock.wait(timeout);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+          }
+        }
+        myFreeMemory -= size;
+        return true;
+      }
+    }
+
+    private void releaseMemory(long size) {
+      synchronized (myMemoryLock) {
+        myFreeMemory += size;
+        myMemoryLock.notifyAll();
+      }
+    }
+
+    private void setCurrentAction(int idx) {
+      synchronized (myMemoryLock) {
+        myCurrentAction = idx;
+        //wake up a worker waiting for memory for this action's blob
+        myMemoryLock.notifyAll();
+      }
+    }
+
+    void runAction(int idx) throws Exception {
+      LoadContentAction action = myActions.get(idx);
+      ObjectLoader loader = null;
+      if (!myClaims.compareAndSet(idx, NOT_CLAIMED, CLAIMED)) {
+        setCurrentAction(idx);
+        //a worker is loading the blob, it completes the future even if loading fails
+        loader = myLoaders[idx].get();
+      }
+      myLoaders[idx] = null;
+      action.setPrefetchedLoader(loader);
+      try {
+        action.call();
+      } finally {
+        action.setPrefetchedLoader(null);
+        if (loader != null)
+          releaseMemory(loader.getSize());
+      }
+    }
+
+    void cancelAndAwaitWorkers() {
+      boolean interrupted = false;
+      synchronized (myWorkersLock) {
+        myCancelled = true;
+        synchronized (myMemoryLock) {
+          myMemoryLock.notifyAll();
+        }
+        while (myActiveWorkers > 0) {
+          try {
+            myWorkersLock.wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      }
+      if (interrupted)
+        Thread.currentThread().interrupt();
+    }
+
+    /**
+     * @return indexes of actions sorted by repository, pack file and offset of their blobs in the pack file
+     */
+    @NotNull
+    private static int[] getLoadOrder(@NotNull List<LoadContentAction> actions) {
+      Map<Repository, List<PackFile>> packs = new IdentityHashMap<>();
+      Map<Repository, Integer> repositoryOrder = new IdentityHashMap<>();
+      long[][] keys = new long[actions.size()][];
+      for (int i = 0; i < actions.size(); i++) {
+        LoadContentAction action = actions.get(i);
+        Repository repository = action.getRepository();
+        Integer repositoryIdx = repositoryOrder.computeIfAbsent(repository, r -> repositoryOrder.size());
+        List<PackFile> repositoryPacks = packs.computeIfAbsent(repository, BlobLoadPipeline::getPacks);
+        keys[i] = new long[]{repositoryIdx, Long.MAX_VALUE, Long.MAX_VALUE, i};
+        for (int p = 0; p < repositoryPacks.size(); p++) {
+          long offset = findOffset(repositoryPacks.get(p), action.getObjectId());
+          if (offset >= 0) {
+            keys[i][1] = p;
+            keys[i][2] = offset;
+            break;
+          }
+        }
+      }
+      Arrays.sort(keys, (k1, k2) -> {
+        for (int i = 0; i < k1.length; i++) {
+          int cmp = Long.compare(k1[i], k2[i]);
+          if (cmp != 0)
+            return cmp;
+        }
+        return 0;
+      });
+      int[] result = new int[keys.length];
+      for (int i = 0; i < keys.length; i++) {
+        result[i] = (int)keys[i][3];
+      }
+      return result;
+    }
+  }
+
+  @NotNull
+  private static List<PackFile> getPacks(@NotNull Repository repository) {
+    ObjectDatabase db = repository.getObjectDatabase();
+    if (db instanceof ObjectDirectory)
+      return new ArrayList<>(((ObjectDirectory)db).getPacks());
+    return Collections.emptyList();
+  }
+
+  private static long findOffset(@NotNull PackFile pack, @NotNull ObjectId id) {
+    try {
+      return pack.getIndex().findOffset(id);
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+}
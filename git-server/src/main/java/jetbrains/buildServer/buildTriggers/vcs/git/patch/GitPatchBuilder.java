@@ -6,7 +6,6 @@ import com.intellij.openapi.diagnostic.Logger;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Callable;
 import jetbrains.buildServer.buildTriggers.vcs.git.*;
 import jetbrains.buildServer.vcs.CheckoutRules;
 import jetbrains.buildServer.vcs.VcsException;
@@ -27,7 +26,7 @@ public class GitPatchBuilder {
   private final OperationContext myContext;
   private final GitVcsRoot myGitRoot;
   private final PatchBuilder myBuilder;
-  private final List<Callable<Void>> myActions = new ArrayList<Callable<Void>>();
+  private final List<LoadContentAction> myActions = new ArrayList<LoadContentAction>();
   private final String myFromRevision;
   private final String myToRevision;
   private final CheckoutRules myRules;
@@ -156,7 +155,10 @@ public class GitPatchBuilder {
     ObjectId id = myTreeWalk.getObjectId(0);
     LoadContentAction loadContent = getLoadContentAction(path, mappedPath, mode, id);
     if (myFullCheckout) {
-      loadContent.call();// full checkout, we aren't going to see any deletes
+      // full checkout, we aren't going to see any deletes
+      myActions.add(loadContent);
+      if (myActions.size() >= myContext.getPluginConfig().getPatchBlobLoadBatchSize())
+        runActions();
     } else {
       myFileAction.call("-", mappedPath);
       myActions.add(loadContent);
@@ -203,8 +205,13 @@ public class GitPatchBuilder {
   }
 
   private void finish() throws Exception {
-    for (Callable<Void> action : myActions)
-      action.call();
+    runActions();
+  }
+
+  private void runActions() throws Exception {
+    ServerPluginConfig config = myContext.getPluginConfig();
+    new BlobLoadPipeline(myContext.getExecutors().getPatchBlobLoadExecutor(), config.getPatchBlobLoadThreads(), config.getPatchBlobLoadMaxMemoryBytes()).run(myActions);
+    myActions.clear();
   }
 
   private Repository getRepositoryOfTree() {
@@ -4,10 +4,7 @@ package jetbrains.buildServer.buildTriggers.vcs.git.patch;
 
 import com.intellij.execution.configurations.GeneralCommandLine;
 import com.intellij.openapi.diagnostic.Logger;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
+import java.io.*;
 import java.nio.charset.Charset;
 import java.util.Collections;
 import java.util.HashMap;
@@ -24,6 +21,8 @@ import jetbrains.buildServer.vcs.CheckoutRules;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsUtil;
 import jetbrains.buildServer.vcs.patches.*;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -43,6 +42,7 @@ public final class GitPatchBuilderDispatcher {
   private final String myTrustedCertificatesDir;
   private final boolean myUseSeparateProcessForPatch;
   private final SshSessionMetaFactory mySshMetaFactory;
+  private final GitPatchCache myPatchCache;
 
   public GitPatchBuilderDispatcher(@NotNull ServerPluginConfig config,
                                    @NotNull VcsRootSshKeyManager sshKeyManager,
@@ -53,7 +53,8 @@ public final class GitPatchBuilderDispatcher {
                                    @NotNull CheckoutRules rules,
                                    @Nullable String trustedCertificatesDir,
                                    boolean useSeparateProcessForPatch,
-                                   @NotNull SshSessionMetaFactory sshMetaFactory) throws VcsException {
+                                   @NotNull SshSessionMetaFactory sshMetaFactory,
+                                   @NotNull GitPatchCache patchCache) throws VcsException {
     myConfig = config;
     mySshKeyManager = sshKeyManager;
     myContext = context;
@@ -65,29 +66,98 @@ public final class GitPatchBuilderDispatcher {
     myTrustedCertificatesDir = trustedCertificatesDir;
     myUseSeparateProcessForPatch = useSeparateProcessForPatch;
     mySshMetaFactory = sshMetaFactory;
+    myPatchCache = patchCache;
   }
 
   public void buildPatch() throws Exception {
-    if (myUseSeparateProcessForPatch) {
-      LOG.info("Build patch in separate process, root: " + LogUtil.describe(myGitRoot) +
-               ", fromRevision: " + myFromRevision +
-               ", toRevision: " + myToRevision);
-      buildPatchInSeparateProcess();
+    String cacheKey = getPatchCacheKey();
+    if (cacheKey != null) {
+      myPatchCache.readPatch(myGitRoot.getRepositoryDir(), cacheKey, this::buildPatchFile, this::applyPatch);
+    } else if (myUseSeparateProcessForPatch) {
+      File patchFile = FileUtil.createTempFile("git", "patch");
+      try {
+        buildPatchInSeparateProcess(patchFile);
+        applyPatch(patchFile);
+      } finally {
+        FileUtil.delete(patchFile);
+      }
     } else {
-      LOG.info("Build patch in server process, root: " + LogUtil.describe(myGitRoot) +
-               ", fromRevision: " + myFromRevision +
-               ", toRevision: " + myToRevision);
+      logBuildPatch("server process");
       buildPatchInSameProcess();
     }
   }
 
-  private void buildPatchInSeparateProcess() throws Exception {
+  /**
+   * @return key of the patch in the patch cache or null if the patch should not be cached
+   */
+  @Nullable
+  private String getPatchCacheKey() throws Exception {
+    if (!myPatchCache.isEnabled() || !(myBuilder instanceof PatchBuilderEx))
+      return null;
+    Repository repository = myContext.getRepository();
+    RevCommit toCommit = myContext.findCommit(repository, myToRevision);
+    if (toCommit == null)
+      return null;
+    RevCommit fromCommit = null;
+    if (myFromRevision != null) {
+      fromCommit = myContext.findCommit(repository, myFromRevision);
+      if (fromCommit == null)
+        return null; //a full patch is built instead of the incremental one, don't cache it since the from commit can be fetched later
+    }
+    Map<String, String> rootSettings = new HashMap<String, String>();
+    rootSettings.put("url", myGitRoot.getRepositoryFetchURL().toString());
+    rootSettings.put("autoCrlf", String.valueOf(myGitRoot.isAutoCrlf()));
+    rootSettings.put("submodules", myGitRoot.getSubmodulesCheckoutPolicy().name());
+    rootSettings.put("contentHashes", String.valueOf(myGitRoot.isIncludeContentHashes()));
+    rootSettings.put("lfs", String.valueOf(myConfig.downloadLfsObjectsForPatch()));
+    return GitPatchCache.getKey(fromCommit, toCommit, myRules, rootSettings);
+  }
+
+  private void buildPatchFile(@NotNull File patchFile) throws Exception {
+    if (myUseSeparateProcessForPatch) {
+      buildPatchInSeparateProcess(patchFile);
+    } else {
+      logBuildPatch("server process");
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(patchFile));
+      try {
+        PatchBuilderImpl patchBuilder = new PatchBuilderImpl(out);
+        new GitPatchBuilder(myContext, patchBuilder, myFromRevision, myToRevision, myRules, myConfig.verboseTreeWalkLog(), mySshMetaFactory)
+          .buildPatch();
+        patchBuilder.close();
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  private void applyPatch(@NotNull File patchFile) throws Exception {
+    InputStream patch = new FileInputStream(patchFile);
+    try {
+      applyPatch(patch);
+    } finally {
+      patch.close();
+    }
+  }
+
+  private void applyPatch(@NotNull InputStream patch) throws Exception {
+    new LowLevelPatcher(patch).applyPatch(new NoExitLowLevelPatchTranslator(((PatchBuilderEx)myBuilder).getLowLevelBuilder()));
+  }
+
+  private void logBuildPatch(@NotNull String where) {
+    LOG.info("Build patch in " + where + ", root: " + LogUtil.describe(myGitRoot) +
+             ", fromRevision: " + myFromRevision +
+             ", toRevision: " + myToRevision);
+  }
+
+  private void buildPatchInSeparateProcess(@NotNull File patchFile) throws Exception {
+    logBuildPatch("separate process");
     final String rootStr = LogUtil.describe(myGitRoot);
-    final ProcessXmxProvider xmxProvider = new ProcessXmxProvider(new RepositoryXmxStorage(myContext.getRepository(), "patch"), myConfig, "patch", "(root: " + rootStr + ")");
+    final Repository repository = myContext.getRepository();
+    final RepositoryXmxStorage xmxStorage = new RepositoryXmxStorage(repository, "patch");
+    final ProcessXmxProvider xmxProvider = new ProcessXmxProvider(xmxStorage, XmxPredictor.forPatch(myConfig, repository.getDirectory(), xmxStorage), myConfig, "patch", "(root: " + rootStr + ")");
     Integer xmx = xmxProvider.getNextXmx();
     while (xmx != null) {
       final GeneralCommandLine patchCmd = createPatchCommandLine(xmx);
-      final File patchFile = FileUtil.createTempFile("git", "patch");
       final File internalProperties = getPatchPropertiesFile();
       try {
         final ByteArrayOutputStream stdout = new LineAwareByteArrayOutputStream(Charset.forName("UTF-8"), new NoOpLineListener(), false);
@@ -115,11 +185,9 @@ public final class GitPatchBuilderDispatcher {
           }
           throw patchError;
         }
-
-        new LowLevelPatcher(new FileInputStream(patchFile)).applyPatch(new NoExitLowLevelPatchTranslator(((PatchBuilderEx)myBuilder).getLowLevelBuilder()));
+        xmxProvider.processSucceeded(gitResult.getExecResult().getStdout());
         break;
       } finally {
-        FileUtil.delete(patchFile);
         FileUtil.delete(internalProperties);
       }
     }
@@ -0,0 +1,304 @@
+package jetbrains.buildServer.buildTriggers.vcs.git.patch;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import jetbrains.buildServer.buildTriggers.vcs.git.ServerPluginConfig;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.FileRule;
+import jetbrains.buildServer.vcs.IncludeRule;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Disk cache of built patches.
+ *
+ * <p>Patches are stored in the {@code caches/patches} directory of the repository they were built in, a file name
+ * is a hash of everything the patch depends on: commits, checkout rules and settings of the VCS root. The total size
+ * of cached patches is limited, the least recently used patches are removed first. Concurrent requests for the same
+ * patch wait until the first of them builds it, so a patch is built only once. A removed patch which is still being
+ * read is deleted when the last reader finishes: an opened file cannot be deleted on Windows.
+ *
+ * <p>The key includes {@link #FORMAT_VERSION} and the version of the plugin jar when it is known. The format version
+ * must be incremented whenever the code building patches changes their content, otherwise patches built by
+ * the previous version of the plugin can be used after upgrade.
+ *
+ * ThreadSafe.
+ */
+public final class GitPatchCache {
+
+  private static final Logger LOG = Logger.getInstance(GitPatchCache.class.getName());
+  private static final String PATCH_SUFFIX = ".patch";
+  static final int FORMAT_VERSION = 1;
+  private static final String PLUGIN_VERSION = getPluginVersion();
+
+  private final ServerPluginConfig myConfig;
+  private final ConcurrentMap<File, CompletableFuture<Void>> myBuildsInProgress = new ConcurrentHashMap<>();
+  //patch file -> its size, in access order
+  private final LinkedHashMap<File, Long> myPatches = new LinkedHashMap<>(16, 0.75f, true);
+  private final Set<File> myLoadedDirs = new HashSet<>();
+  //patch file -> number of its readers
+  private final Map<File, Integer> myReaders = new HashMap<>();
+  //removed patch files which are deleted when their readers finish
+  private final Set<File> myRemovedWhileRead = new HashSet<>();
+  private long myTotalSize;
+
+  public GitPatchCache(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+  public boolean isEnabled() {
+    return myConfig.getPatchCacheMaxSizeBytes() > 0;
+  }
+
+  /**
+   * Writes a patch into the file, the file doesn't exist when the builder is called
+   */
+  public interface PatchFileBuilder {
+    void build(@NotNull File patchFile) throws Exception;
+  }
+
+  /**
+   * Reads a built patch
+   */
+  public interface PatchReader {
+    void read(@NotNull InputStream patch) throws Exception;
+  }
+
+  /**
+   * Passes the patch with the given key to the reader, builds the patch if it is not cached yet
+   */
+  public void readPatch(@NotNull File repositoryDir,
+                        @NotNull String key,
+                        @NotNull PatchFileBuilder builder,
+                        @NotNull PatchReader reader) throws Exception {
+    File patchesDir = getPatchesDir(repositoryDir);
+    File patchFile = new File(patchesDir, key + PATCH_SUFFIX);
+    if (readCached(patchesDir, patchFile, reader))
+      return;
+
+    CompletableFuture<Void> build = new CompletableFuture<>();
+    CompletableFuture<Void> runningBuild = myBuildsInProgress.putIfAbsent(patchFile, build);
+    if (runningBuild != null) {
+      try {
+        runningBuild.get();
+        if (readCached(patchesDir, patchFile, reader))
+          return;
+      } catch (ExecutionException e) {
+        LOG.debug("Concurrent build of the patch " + patchFile.getName() + " failed, will build it again", e.getCause());
+      }
+      //the patch was not cached by the concurrent build, build it without caching
+      File tmpPatch = FileUtil.createTempFile("git", "patch");
+      try {
+        FileUtil.delete(tmpPatch);
+        builder.build(tmpPatch);
+        read(tmpPatch, reader);
+      } finally {
+        FileUtil.delete(tmpPatch);
+      }
+      return;
+    }
+
+    File tmpPatch = null;
+    try {
+      //build the patch in the same directory to move it into the cache atomically
+      patchesDir.mkdirs();
+      tmpPatch = FileUtil.createTempFile(patchesDir, key, ".tmp", true);
+      FileUtil.delete(tmpPatch);
+      builder.build(tmpPatch);
+      long size = tmpPatch.length();
+      if (size <= myConfig.getPatchCacheMaxSizeBytes() && addPatch(tmpPatch, patchFile, size)) {
+        tmpPatch = null;
+      }
+      build.complete(null);
+    } catch (Throwable e) {
+      build.completeExceptionally(e);
+      if (tmpPatch != null)
+        FileUtil.delete(tmpPatch);
+      throw e;
+    } finally {
+      myBuildsInProgress.remove(patchFile, build);
+    }
+
+    try {
+      if (tmpPatch != null) {
+        read(tmpPatch, reader);
+      } else if (!readCached(patchesDir, patchFile, reader)) {
+        throw new IOException("Cannot read cached patch " + patchFile.getAbsolutePath());
+      }
+    } finally {
+      if (tmpPatch != null)
+        FileUtil.delete(tmpPatch);
+    }
+  }
+
+  private boolean readCached(@NotNull File patchesDir, @NotNull File patchFile, @NotNull PatchReader reader) throws Exception {
+    InputStream patch;
+    synchronized (this) {
+      loadDir(patchesDir);
+      if (myPatches.get(patchFile) == null)
+        return false;
+      try {
+        //open the file while holding the lock, so it cannot be removed by eviction until then
+        patch = new FileInputStream(patchFile);
+      } catch (IOException e) {
+        removePatch(patchFile);
+        return false;
+      }
+      myReaders.merge(patchFile, 1, Integer::sum);
+    }
+    try {
+      patchFile.setLastModified(System.currentTimeMillis());
+      reader.read(patch);
+    } finally {
+      try {
+        patch.close();
+      } finally {
+        readFinished(patchFile);
+      }
+    }
+    return true;
+  }
+
+  private synchronized void readFinished(@NotNull File patchFile) {
+    Integer readers = myReaders.get(patchFile);
+    if (readers == null)
+      return;
+    if (readers > 1) {
+      myReaders.put(patchFile, readers - 1);
+      return;
+    }
+    myReaders.remove(patchFile);
+    if (myRemovedWhileRead.remove(patchFile))
+      FileUtil.delete(patchFile);
+  }
+
+  private static void read(@NotNull File patchFile, @NotNull PatchReader reader) throws Exception {
+    try (InputStream patch = new FileInputStream(patchFile)) {
+      reader.read(patch);
+    }
+  }
+
+  /**
+   * Moves the built patch into the cache
+   * @return false if the patch was not moved
+   */
+  private synchronized boolean addPatch(@NotNull File tmpPatch, @NotNull File patchFile, long size) {
+    //a removed patch with the same name is still read, the new one will be cached by the next build
+    if (myRemovedWhileRead.contains(patchFile) || !tmpPatch.renameTo(patchFile))
+      return false;
+    Long oldSize = myPatches.put(patchFile, size);
+    if (oldSize != null)
+      myTotalSize -= oldSize;
+    myTotalSize += size;
+    evict();
+    return true;
+  }
+
+  private synchronized void removePatch(@NotNull File patchFile) {
+    Long size = myPatches.remove(patchFile);
+    if (size != null)
+      myTotalSize -= size;
+    delete(patchFile);
+  }
+
+  private synchronized void delete(@NotNull File patchFile) {
+    if (myReaders.containsKey(patchFile)) {
+      myRemovedWhileRead.add(patchFile);
+    } else {
+      FileUtil.delete(patchFile);
+    }
+  }
+
+  private synchronized void evict() {
+    long maxSize = myConfig.getPatchCacheMaxSizeBytes();
+    Iterator<Map.Entry<File, Long>> iter = myPatches.entrySet().iterator();
+    while (myTotalSize > maxSize && iter.hasNext()) {
+      Map.Entry<File, Long> eldest = iter.next();
+      iter.remove();
+      myTotalSize -= eldest.getValue();
+      delete(eldest.getKey());
+    }
+  }
+
+  /**
+   * Adds patches cached in the directory by previous server runs
+   */
+  private synchronized void loadDir(@NotNull File patchesDir) {
+    if (!myLoadedDirs.add(patchesDir))
+      return;
+    File[] files = patchesDir.listFiles();
+    if (files == null)
+      return;
+    Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+    for (File f : files) {
+      String name = f.getName();
+      if (name.endsWith(PATCH_SUFFIX)) {
+        myPatches.put(f, f.length());
+        myTotalSize += f.length();
+      } else if (name.endsWith(".tmp")) {
+        //a patch which was being built when the server was stopped
+        FileUtil.delete(f);
+      }
+    }
+    evict();
+  }
+
+  @NotNull
+  private static String getPluginVersion() {
+    Package pkg = GitPatchCache.class.getPackage();
+    String version = pkg != null ? pkg.getImplementationVersion() : null;
+    return version != null ? version : "";
+  }
+
+  @NotNull
+  static File getPatchesDir(@NotNull File repositoryDir) {
+    return new File(repositoryDir, "caches" + File.separator + "patches");
+  }
+
+  /**
+   * @param fromCommit commit the patch starts from or null for a clean patch
+   * @param toCommit commit the patch ends at
+   * @param rootSettings settings of the VCS root affecting content of the patch
+   * @return key of the patch
+   */
+  @NotNull
+  public static String getKey(@Nullable ObjectId fromCommit,
+                              @NotNull ObjectId toCommit,
+                              @NotNull CheckoutRules rules,
+                              @NotNull Map<String, String> rootSettings) {
+    StringBuilder key = new StringBuilder();
+    key.append("format=").append(FORMAT_VERSION).append(", plugin=").append(PLUGIN_VERSION).append('\n');
+    key.append(fromCommit == null ? "" : fromCommit.name()).append('\n');
+    key.append(toCommit.name()).append('\n');
+    List<String> normalizedRules = new ArrayList<>();
+    for (IncludeRule rule : rules.getIncludeRules()) {
+      normalizedRules.add("+:" + rule.getFrom() + "=>" + rule.getTo());
+    }
+    for (FileRule rule : rules.getExcludeRules()) {
+      normalizedRules.add("-:" + rule.getFrom());
+    }
+    Collections.sort(normalizedRules);
+    for (String rule : normalizedRules) {
+      key.append(rule).append('\n');
+    }
+    for (Map.Entry<String, String> setting : new TreeMap<>(rootSettings).entrySet()) {
+      key.append(setting.getKey()).append('=').append(setting.getValue()).append('\n');
+    }
+    MessageDigest digest = Constants.newMessageDigest();
+    digest.update(key.toString().getBytes(StandardCharsets.UTF_8));
+    return ObjectId.fromRaw(digest.digest()).name();
+  }
+}
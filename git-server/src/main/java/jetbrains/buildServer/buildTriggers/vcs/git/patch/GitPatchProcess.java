@@ -46,7 +46,8 @@ public class GitPatchProcess {
     GitRepoOperations repoOperations = new GitRepoOperationsImpl(config, transportFactory, sshKeyManager, fetchCommand, knownHostsManager);
     CommitLoader commitLoader = new CommitLoaderImpl(repositoryManager, repoOperations, mapFullPath, config, new FetchSettingsFactoryImpl());
 
-    OperationContext context = new OperationContext(commitLoader, repositoryManager, settings.getRoot(), "build patch", GitProgress.NO_OP, config, null);
+    GitServerExecutors executors = new GitServerExecutors();
+    OperationContext context = new OperationContext(commitLoader, repositoryManager, settings.getRoot(), "build patch", GitProgress.NO_OP, config, null, executors);
     OutputStream fos = new BufferedOutputStream(new FileOutputStream(settings.getPatchFile()));
     try {
       PatchBuilderImpl patchBuilder = new PatchBuilderImpl(fos);
@@ -75,6 +76,7 @@ public class GitPatchProcess {
       }
       System.exit(1);
     } finally {
+      executors.dispose();
       fos.close();
     }
   }
@@ -2,13 +2,12 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.git.patch;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.concurrent.Callable;
 import jetbrains.buildServer.buildTriggers.vcs.git.*;
+import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.patches.PatchBuilder;
 import jetbrains.buildServer.vcs.patches.PatchBuilderContentInputStream;
@@ -41,7 +40,11 @@ public class LoadContentAction implements Callable<Void> {
   private final String myMappedPath;
   private final String myMode;
   private final ServerPluginConfig myConfig;
+  private static final int MAX_IN_MEMORY_CONVERSION_SIZE = 1024 * 1024;
+  private static final ThreadLocal<byte[]> ourCopyBuffer = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
   private final SshSessionMetaFactory mySshMetaFactory;
+  private ObjectLoader myPrefetchedLoader;
 
   public LoadContentAction(@NotNull final ContentLoaderFactory contentFactory,
                            final GitVcsRoot root,
@@ -90,9 +93,13 @@ public class LoadContentAction implements Callable<Void> {
             return myObjectId.toObjectId().name();
           }
         };
+      } else if (myRoot.isAutoCrlf()) {
+        ConvertedContent content = convertLineEndings(loader);
+        size = content.mySize;
+        objectStream = content.myStream;
       } else {
-        size = getStreamSize(myRoot, loader);
-        objectStream = getObjectStream(myRoot, loader);
+        size = loader.getSize();
+        objectStream = openContentStream(loader);
       }
       myBuilder.changeOrCreateBinaryFile(GitUtils.toFile(myMappedPath), myMode, objectStream, size);
       myLogger.logAddFile(myMappedPath, size);
@@ -109,9 +116,26 @@ public class LoadContentAction implements Callable<Void> {
     return null;
   }
 
+  @NotNull
+  Repository getRepository() {
+    return myRepository;
+  }
+
+  @NotNull
+  ObjectId getObjectId() {
+    return myObjectId;
+  }
+
+  /**
+   * Sets the blob loaded in advance, it is used instead of opening the blob via the content factory
+   */
+  void setPrefetchedLoader(@Nullable ObjectLoader loader) {
+    myPrefetchedLoader = loader;
+  }
+
   @NotNull
   protected ObjectLoader getObjectLoader() throws IOException, VcsException {
-    ObjectLoader loader = myContentFactory.open(myRepository, myObjectId);
+    ObjectLoader loader = myPrefetchedLoader != null ? myPrefetchedLoader : myContentFactory.open(myRepository, myObjectId);
     if (loader == null)
       throw new IOException("Unable to find blob " + myObjectId.name() + (myPath == null ? "" : "(" + myPath + ")") + " in repository " + myRepository);
 
@@ -154,33 +178,52 @@ public class LoadContentAction implements Callable<Void> {
     return loader;
   }
 
-  private long getStreamSize(@NotNull GitVcsRoot root, @NotNull ObjectLoader loader) throws IOException {
-    if (!root.isAutoCrlf())
-      return loader.getSize();
+  /**
+   * Converts line endings in a single pass over the content. The patch needs the size of the converted content
+   * before the content itself, so small contents are converted in memory and large ones are written to a
+   * temporary file which is removed when the returned stream is closed.
+   */
+  @NotNull
+  private ConvertedContent convertLineEndings(@NotNull ObjectLoader loader) throws IOException {
+    byte[] buffer = ourCopyBuffer.get();
+    if (!loader.isLarge() && loader.getSize() <= MAX_IN_MEMORY_CONVERSION_SIZE) {
+      ExposedByteArrayOutputStream converted = new ExposedByteArrayOutputStream((int)loader.getSize());
+      long size = copy(new AutoCRLFInputStream(new ByteArrayInputStream(loader.getCachedBytes()), true), converted, buffer);
+      return new ConvertedContent(converted.toInputStream(), size);
+    }
 
-    InputStream objectStream = null;
+    final File tmp = FileUtil.createTempFile("git", "content");
     try {
-      objectStream = openContentStream(loader);
-      objectStream = new AutoCRLFInputStream(objectStream, true);
-      int count;
-      int size = 0;
-      byte[] buf = new byte[8096];
-      while ((count = objectStream.read(buf)) != -1) {
-        size += count;
+      long size;
+      try (InputStream in = new AutoCRLFInputStream(openContentStream(loader), true);
+           OutputStream out = new FileOutputStream(tmp)) {
+        size = copy(in, out, buffer);
       }
-      return size;
-    } finally {
-      if (objectStream != null)
-        objectStream.close();
+      InputStream content = new FileInputStream(tmp) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            FileUtil.delete(tmp);
+          }
+        }
+      };
+      return new ConvertedContent(content, size);
+    } catch (IOException | RuntimeException e) {
+      FileUtil.delete(tmp);
+      throw e;
     }
   }
 
-  @NotNull
-  private InputStream getObjectStream(@NotNull final GitVcsRoot root, @NotNull final ObjectLoader loader) throws IOException {
-    final InputStream stream = openContentStream(loader);
-    if (!root.isAutoCrlf())
-      return stream;
-    return new AutoCRLFInputStream(stream, true);
+  private static long copy(@NotNull InputStream in, @NotNull OutputStream out, @NotNull byte[] buffer) throws IOException {
+    long size = 0;
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      out.write(buffer, 0, count);
+      size += count;
+    }
+    return size;
   }
 
   @NotNull
@@ -188,6 +231,28 @@ public class LoadContentAction implements Callable<Void> {
     return loader.isLarge() ? loader.openStream() : new ByteArrayInputStream(loader.getCachedBytes());
   }
 
+  private static final class ConvertedContent {
+    private final InputStream myStream;
+    private final long mySize;
+
+    private ConvertedContent(@NotNull InputStream stream, long size) {
+      myStream = stream;
+      mySize = size;
+    }
+  }
+
+  private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+    private ExposedByteArrayOutputStream(int size) {
+      super(size);
+    }
+
+    @NotNull
+    private InputStream toInputStream() {
+      //no need to copy the buffer, the stream is not written anymore
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+
   private static abstract class LazyInputStream extends InputStream implements PatchBuilderContentInputStream {
     private volatile InputStream myLazyStream;
 
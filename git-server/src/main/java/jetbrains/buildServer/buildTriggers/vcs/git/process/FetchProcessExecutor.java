@@ -0,0 +1,24 @@
+package jetbrains.buildServer.buildTriggers.vcs.git.process;
+
+import java.io.ByteArrayOutputStream;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Runs a fetch in a separate process
+ *
+ * @see GitProcessExecutor
+ * @see FetcherDaemonPool
+ */
+public interface FetchProcessExecutor {
+
+  @NotNull
+  GitProcessExecutor.GitExecResult runProcess(@NotNull byte[] input, int idleTimeout,
+                                              @NotNull ByteArrayOutputStream stdoutBuffer,
+                                              @NotNull ByteArrayOutputStream stderrBuffer,
+                                              @NotNull GitProcessExecutor.ProcessExecutorListener listener);
+
+  /**
+   * Destroys the process running the fetch, e.g. when it is stuck
+   */
+  void interrupt();
+}
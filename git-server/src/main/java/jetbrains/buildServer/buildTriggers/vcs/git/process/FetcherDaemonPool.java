@@ -0,0 +1,363 @@
+package jetbrains.buildServer.buildTriggers.vcs.git.process;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.ProcessTimeoutException;
+import jetbrains.buildServer.buildTriggers.vcs.git.FetcherDaemon;
+import jetbrains.buildServer.buildTriggers.vcs.git.ServerPluginConfig;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Pool of long-lived fetch processes running {@link FetcherDaemon}.
+ *
+ * <p>A daemon runs one fetch at a time. Daemons are keyed by their command line, so a fetch
+ * is run only in a daemon started with the -Xmx chosen for it, like a process started per fetch.
+ * A daemon is destroyed after the configured number of fetches, after a fetch which ran out of memory,
+ * was interrupted, timed out or failed to communicate, and when it is idle for too long.
+ *
+ * <p>Fetch output is received while the fetch is running, so like with a process per fetch
+ * the fetch timeout limits the time without output, not the duration of the whole fetch.
+ *
+ * ThreadSafe.
+ */
+public class FetcherDaemonPool {
+
+  private static final Logger LOG = Logger.getInstance(FetcherDaemonPool.class.getName());
+
+  private final ServerPluginConfig myConfig;
+  //command line -> idle daemons started with it, most recently used first
+  private final Map<String, Deque<Daemon>> myIdleDaemons = new HashMap<>();
+  private int myIdleCount;
+  private ScheduledExecutorService myWatchdog;
+
+  public FetcherDaemonPool(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+  @NotNull
+  public FetchProcessExecutor createExecutor(@NotNull GeneralCommandLine commandLine) {
+    return new DaemonExecutor(commandLine);
+  }
+
+  /**
+   * Stops all idle daemons, daemons running fetches are stopped when fetch finishes
+   */
+  public void dispose() {
+    final List<Daemon> daemons = new ArrayList<>();
+    synchronized (this) {
+      myIdleDaemons.values().forEach(daemons::addAll);
+      myIdleDaemons.clear();
+      myIdleCount = 0;
+      if (myWatchdog != null) {
+        myWatchdog.shutdownNow();
+        myWatchdog = null;
+      }
+    }
+    daemons.forEach(Daemon::stop);
+  }
+
+  @NotNull
+  private Daemon acquire(@NotNull GeneralCommandLine commandLine) throws ExecutionException {
+    final String key = commandLine.getCommandLineString();
+    synchronized (this) {
+      final Deque<Daemon> idle = myIdleDaemons.get(key);
+      while (idle != null && !idle.isEmpty()) {
+        final Daemon daemon = idle.pollFirst();
+        myIdleCount--;
+        if (daemon.isAlive())
+          return daemon;
+        daemon.stop();
+      }
+    }
+    return Daemon.start(key, commandLine);
+  }
+
+  private void release(@NotNull Daemon daemon, boolean reusable) {
+    if (reusable && daemon.isAlive() && daemon.getFetchCount() < myConfig.getFetcherDaemonMaxJobs()) {
+      synchronized (this) {
+        if (myIdleCount < myConfig.getFetcherDaemonPoolSize()) {
+          daemon.myIdleSince = System.currentTimeMillis();
+          myIdleDaemons.computeIfAbsent(daemon.myKey, k -> new ArrayDeque<>()).addFirst(daemon);
+          myIdleCount++;
+          return;
+        }
+      }
+    }
+    daemon.stop();
+  }
+
+  private void stopIdleDaemons() {
+    final long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(myConfig.getFetcherDaemonIdleTimeoutSeconds());
+    final long now = System.currentTimeMillis();
+    final List<Daemon> expired = new ArrayList<>();
+    synchronized (this) {
+      for (Iterator<Deque<Daemon>> it = myIdleDaemons.values().iterator(); it.hasNext(); ) {
+        final Deque<Daemon> idle = it.next();
+        idle.removeIf(daemon -> {
+          if (now - daemon.myIdleSince < idleTimeoutMillis && daemon.isAlive())
+            return false;
+          expired.add(daemon);
+          return true;
+        });
+        if (idle.isEmpty())
+          it.remove();
+      }
+      myIdleCount -= expired.size();
+    }
+    expired.forEach(Daemon::stop);
+  }
+
+  @NotNull
+  private synchronized ScheduledExecutorService getWatchdog() {
+    if (myWatchdog == null) {
+      myWatchdog = Executors.newSingleThreadScheduledExecutor(new NamedDaemonThreadFactory("Fetcher daemons watchdog"));
+      //check at least once a minute, more often if the idle timeout is shorter
+      final long period = Math.max(1, Math.min(TimeUnit.MINUTES.toSeconds(1), myConfig.getFetcherDaemonIdleTimeoutSeconds()));
+      myWatchdog.scheduleWithFixedDelay(this::stopIdleDaemons, period, period, TimeUnit.SECONDS);
+    }
+    return myWatchdog;
+  }
+
+
+  private final class DaemonExecutor implements FetchProcessExecutor {
+    private final GeneralCommandLine myCommandLine;
+    private volatile Daemon myDaemon;
+    private volatile boolean myInterrupted = false;
+
+    private DaemonExecutor(@NotNull GeneralCommandLine commandLine) {
+      myCommandLine = commandLine;
+    }
+
+    /**
+     * Output of the fetch is written to the stdoutBuffer as it is received from the daemon,
+     * the daemon is stopped when it produces no output for idleTimeout seconds
+     */
+    @NotNull
+    @Override
+    public GitProcessExecutor.GitExecResult runProcess(@NotNull byte[] input, int idleTimeout,
+                                                       @NotNull ByteArrayOutputStream stdoutBuffer,
+                                                       @NotNull ByteArrayOutputStream stderrBuffer,
+                                                       @NotNull GitProcessExecutor.ProcessExecutorListener listener) {
+      final ExecResult result = new ExecResult();
+      final long startTime = System.currentTimeMillis();
+      Daemon daemon = null;
+      boolean reusable = false;
+      try {
+        daemon = acquire(myCommandLine);
+        myDaemon = daemon;
+        if (myInterrupted) {
+          daemon.stop();
+        }
+        listener.processStarted();
+        final IdleTimer timer = new IdleTimer(daemon, TimeUnit.SECONDS.toMillis(idleTimeout));
+        timer.start();
+        try {
+          final DaemonResult fetchResult = daemon.fetch(input, output -> {
+            timer.outputReceived();
+            stdoutBuffer.write(output, 0, output.length);
+          });
+          stderrBuffer.write(fetchResult.myStderr, 0, fetchResult.myStderr.length);
+          result.setExitCode(fetchResult.myExitCode);
+          result.setStdout(new String(fetchResult.myStdout, StandardCharsets.UTF_8));
+          result.setStderr(new String(fetchResult.myStderr, StandardCharsets.UTF_8));
+          reusable = true;
+        } catch (IOException e) {
+          result.setExitCode(-1);
+          result.setException(timer.isTimedOut() ? new ProcessTimeoutException("Fetcher daemon was idle for more than " + idleTimeout + " second(s)") : e);
+        } finally {
+          timer.cancel();
+        }
+        listener.processFinished();
+      } catch (ExecutionException e) {
+        result.setException(e);
+        listener.processFailed(e);
+      } finally {
+        myDaemon = null;
+        if (daemon != null) {
+          final GitProcessExecutor.GitExecResult gitResult = new GitProcessExecutor.GitExecResult(result, 0, myInterrupted);
+          release(daemon, reusable && !gitResult.isInterrupted() && !gitResult.isOutOfMemoryError());
+        }
+      }
+      return new GitProcessExecutor.GitExecResult(result, System.currentTimeMillis() - startTime, myInterrupted);
+    }
+
+    @Override
+    public void interrupt() {
+      myInterrupted = true;
+      final Daemon daemon = myDaemon;
+      if (daemon != null) {
+        daemon.stop();
+      }
+    }
+  }
+
+
+  /**
+   * Stops the daemon running a fetch when it produces no output for the timeout
+   */
+  private final class IdleTimer implements Runnable {
+    private final Daemon myDaemon;
+    private final long myTimeoutMillis;
+    private volatile long myLastOutput;
+    private volatile boolean myTimedOut;
+    private ScheduledFuture<?> myCheck;
+    private boolean myCancelled;
+
+    private IdleTimer(@NotNull Daemon daemon, long timeoutMillis) {
+      myDaemon = daemon;
+      myTimeoutMillis = timeoutMillis;
+    }
+
+    void start() {
+      myLastOutput = System.currentTimeMillis();
+      schedule(myTimeoutMillis);
+    }
+
+    void outputReceived() {
+      myLastOutput = System.currentTimeMillis();
+    }
+
+    boolean isTimedOut() {
+      return myTimedOut;
+    }
+
+    synchronized void cancel() {
+      myCancelled = true;
+      if (myCheck != null)
+        myCheck.cancel(false);
+    }
+
+    @Override
+    public void run() {
+      //output only updates the timestamp, the check reschedules itself until the daemon is idle for the timeout
+      final long idleMillis = System.currentTimeMillis() - myLastOutput;
+      if (idleMillis < myTimeoutMillis) {
+        schedule(myTimeoutMillis - idleMillis);
+        return;
+      }
+      synchronized (this) {
+        if (myCancelled)
+          return;
+        myTimedOut = true;
+      }
+      myDaemon.stop();
+    }
+
+    private synchronized void schedule(long delayMillis) {
+      if (!myCancelled)
+        myCheck = getWatchdog().schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+
+  private interface OutputListener {
+    void outputReceived(@NotNull byte[] output);
+  }
+
+
+  private static final class Daemon {
+    private final String myKey;
+    private final Process myProcess;
+    private final DataOutputStream myFetches;
+    private final DataInputStream myResults;
+    private int myFetchCount;
+    private volatile long myIdleSince;
+
+    private Daemon(@NotNull String key, @NotNull Process process) {
+      myKey = key;
+      myProcess = process;
+      myFetches = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      myResults = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+    }
+
+    @NotNull
+    static Daemon start(@NotNull String key, @NotNull GeneralCommandLine commandLine) throws ExecutionException {
+      final Process process = commandLine.createProcess();
+      final Daemon daemon = new Daemon(key, process);
+      final Thread stderrReader = new Thread(daemon::logStderr, "Fetcher daemon stderr reader: " + key);
+      stderrReader.setDaemon(true);
+      stderrReader.start();
+      if (LOG.isDebugEnabled()) LOG.debug("Fetcher daemon started: " + key);
+      return daemon;
+    }
+
+    @NotNull
+    DaemonResult fetch(@NotNull byte[] input, @NotNull OutputListener listener) throws IOException {
+      myFetchCount++;
+      myFetches.writeInt(input.length);
+      myFetches.write(input);
+      myFetches.flush();
+      final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+      while (true) {
+        final int frame = myResults.readByte();
+        if (frame == FetcherDaemon.OUTPUT_FRAME) {
+          final byte[] output = readBytes();
+          stdout.write(output, 0, output.length);
+          listener.outputReceived(output);
+        } else if (frame == FetcherDaemon.RESULT_FRAME) {
+          final int exitCode = myResults.readInt();
+          final byte[] stderr = readBytes();
+          return new DaemonResult(exitCode, stdout.toByteArray(), stderr);
+        } else {
+          throw new IOException("Unexpected frame " + frame + " received from fetcher daemon " + myKey);
+        }
+      }
+    }
+
+    int getFetchCount() {
+      return myFetchCount;
+    }
+
+    boolean isAlive() {
+      return myProcess.isAlive();
+    }
+
+    void stop() {
+      myProcess.destroy();
+    }
+
+    @NotNull
+    private byte[] readBytes() throws IOException {
+      final byte[] result = new byte[myResults.readInt()];
+      myResults.readFully(result);
+      return result;
+    }
+
+    /**
+     * Daemon stderr contains only the output produced between fetches
+     */
+    private void logStderr() {
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(myProcess.getErrorStream(), StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          LOG.debug("Fetcher daemon " + myKey + ": " + line);
+        }
+      } catch (IOException ignore) {
+      }
+      if (LOG.isDebugEnabled()) LOG.debug("Fetcher daemon stopped: " + myKey);
+    }
+  }
+
+
+  private static final class DaemonResult {
+    private final int myExitCode;
+    private final byte[] myStdout;
+    private final byte[] myStderr;
+
+    private DaemonResult(int exitCode, @NotNull byte[] stdout, @NotNull byte[] stderr) {
+      myExitCode = exitCode;
+      myStdout = stdout;
+      myStderr = stderr;
+    }
+  }
+}
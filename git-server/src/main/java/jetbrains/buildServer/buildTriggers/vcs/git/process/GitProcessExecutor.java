@@ -18,7 +18,7 @@ import static jetbrains.buildServer.util.NamedThreadFactory.executeWithNewThread
 /**
  * @author vbedrosova
  */
-public class GitProcessExecutor {
+public class GitProcessExecutor implements FetchProcessExecutor {
 
   @NotNull private final CommandLineExecutor myCommandLineExecutor;
   @NotNull private final String myCommandLine;
@@ -33,6 +33,7 @@ public class GitProcessExecutor {
     myEmptyResult = new ExecResult(SimpleCommandLineProcessRunner.getCharset(commandLine));
   }
 
+  @Override
   @NotNull
   public GitExecResult runProcess(@NotNull final byte[] input, final int idleTimeout,
                                   @NotNull final ByteArrayOutputStream stdoutBuffer,
@@ -55,6 +56,7 @@ public class GitProcessExecutor {
     return new GitExecResult(result.get(), System.currentTimeMillis() - startTime, myInterrupted);
   }
 
+  @Override
   public void interrupt() {
     myInterrupted = true;
     myCommandLineExecutor.destroyProcess();
@@ -4,14 +4,18 @@ package jetbrains.buildServer.buildTriggers.vcs.git.process;
 
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.buildTriggers.vcs.git.ProcessXmxProvider;
+import jetbrains.buildServer.buildTriggers.vcs.git.XmxPredictor;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.PropertiesUtil;
+import jetbrains.buildServer.util.StringUtil;
 import org.eclipse.jgit.lib.Repository;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -72,6 +76,81 @@ public class RepositoryXmxStorage implements ProcessXmxProvider.XmxStorage {
     return myProcessName + XMX;
   }
 
+  @Nullable
+  @Override
+  public XmxPredictor.Sample readSample() {
+    if (!myStorage.isFile()) return null;
+
+    final Properties properties;
+    try {
+      properties = PropertiesUtil.loadProperties(myStorage);
+    } catch (IOException e) {
+      LOG.warn("Failed to read " + myProcessName + " last run data from " + myStorage.getAbsolutePath(), e);
+      return null;
+    }
+
+    final String xmx = properties.getProperty(getSampleKey("xmx"));
+    if (xmx == null) return null;
+    try {
+      final List<Integer> heapUsages = new ArrayList<>();
+      final String heapUsage = properties.getProperty(getSampleKey("heapUsage"));
+      if (StringUtil.isNotEmpty(heapUsage)) {
+        for (String usage : heapUsage.split(",")) {
+          heapUsages.add(Integer.valueOf(usage.trim()));
+        }
+      }
+      final String packSize = properties.getProperty(getSampleKey("packSize"));
+      return new XmxPredictor.Sample(Integer.parseInt(xmx), heapUsages,
+                                     packSize != null ? new XmxPredictor.RepositoryStats(Long.parseLong(packSize),
+                                                                                         Long.parseLong(properties.getProperty(getSampleKey("objects"), "0")))
+                                                      : null);
+    } catch (NumberFormatException e) {
+      LOG.warn("Failed to parse " + myProcessName + " last run data from " + myStorage.getAbsolutePath());
+      return null;
+    }
+  }
+
+  @Override
+  public void writeSample(@NotNull final XmxPredictor.Sample sample) {
+    final Properties properties;
+    try {
+      properties = PropertiesUtil.loadProperties(myStorage);
+    } catch (IOException e) {
+      LOG.warn("Failed to read " + myProcessName + " last run data from " + myStorage.getAbsolutePath(), e);
+      return;
+    }
+
+    properties.setProperty(getSampleKey("xmx"), String.valueOf(sample.getXmx()));
+    if (!sample.getHeapUsages().isEmpty()) {
+      properties.setProperty(getSampleKey("heapUsage"), StringUtil.join(",", sample.getHeapUsages()));
+    } else {
+      properties.remove(getSampleKey("heapUsage"));
+    }
+    final XmxPredictor.RepositoryStats stats = sample.getStats();
+    if (stats != null) {
+      properties.setProperty(getSampleKey("packSize"), String.valueOf(stats.getPackSize()));
+      properties.setProperty(getSampleKey("objects"), String.valueOf(stats.getObjectCount()));
+    } else {
+      properties.remove(getSampleKey("packSize"));
+      properties.remove(getSampleKey("objects"));
+    }
+    //written by older versions
+    properties.remove(getSampleKey("refs"));
+
+    FileUtil.delete(myStorage);
+    try {
+      PropertiesUtil.storeProperties(properties, myStorage, null);
+    } catch (IOException e) {
+      LOG.warn("Failed to write " + myProcessName + " last run data to " + myStorage.getAbsolutePath(), e);
+      FileUtil.delete(myStorage);
+    }
+  }
+
+  @NotNull
+  private String getSampleKey(@NotNull String name) {
+    return myProcessName + ".lastRun." + name;
+  }
+
   @Override
   public void write(@Nullable final Integer xmx) {
     final Properties properties;
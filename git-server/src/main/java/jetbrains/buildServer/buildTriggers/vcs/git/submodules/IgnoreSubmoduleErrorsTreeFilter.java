@@ -59,6 +59,10 @@ public class IgnoreSubmoduleErrorsTreeFilter extends TreeFilter {
     return myBrokenSubmodulePathsInRestTrees;
   }
 
+  public boolean hasBrokenSubmodules() {
+    return !myBrokenSubmodulePathsInFirstTree.isEmpty() || !myBrokenSubmodulePathsInRestTrees.isEmpty();
+  }
+
   public boolean isBrokenSubmoduleEntry(String path) {
     for (String brokenSubmodulePath : myBrokenSubmodulePathsInRestTrees) {
       if (path.equals(brokenSubmodulePath))
@@ -4,7 +4,6 @@ package jetbrains.buildServer.buildTriggers.vcs.git.submodules;
 
 import com.intellij.openapi.diagnostic.Logger;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.Arrays;
@@ -13,11 +12,9 @@ import jetbrains.buildServer.buildTriggers.vcs.git.OperationContext;
 import jetbrains.buildServer.buildTriggers.vcs.git.VcsAuthenticationException;
 import jetbrains.buildServer.vcs.VcsException;
 import org.eclipse.jgit.errors.CorruptObjectException;
-import org.eclipse.jgit.lib.BlobBasedConfig;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.URIish;
 import org.jetbrains.annotations.NotNull;
@@ -94,7 +91,7 @@ public class SubmoduleResolverImpl implements SubmoduleResolver {
             }
           }
           try {
-            return myCommitLoader.getCommit(r, commit);
+            return myContext.getCommit(r, commit);
           } catch (Exception e) {
             LOG.warnAndDebugDetails("Missing submodule", e);
             throw new MissingSubmoduleCommitException(parentRepositoryUrl, myCommit.name(), path, submodule.getUrl(), commit.name());
@@ -119,9 +116,8 @@ public class SubmoduleResolverImpl implements SubmoduleResolver {
   }
 
   private boolean isCommitExist(final Repository r, final ObjectId commit) {
-    RevWalk walk = new RevWalk(r);
     try {
-      walk.parseCommit(commit);
+      myContext.getCommit(r, commit);
       return true;
     } catch (IOException e) {
       return false;
@@ -129,7 +125,7 @@ public class SubmoduleResolverImpl implements SubmoduleResolver {
   }
 
   public URIish resolveSubmoduleUrl(@NotNull String url) throws URISyntaxException {
-    return new URIish(SubmoduleUrlResolver.resolveSubmoduleUrl(myContext.getPluginConfig(), myContext.getConfig(getRepository()), url));
+    return myContext.resolveSubmoduleUrl(getRepository(), url);
   }
 
   /**
@@ -173,9 +169,7 @@ public class SubmoduleResolverImpl implements SubmoduleResolver {
     if (myConfigLoaded) return;
     if (myConfig == null) {
       try {
-        myConfig = new SubmodulesConfig(myContext.getConfig(myDb), new BlobBasedConfig(null, myDb, myCommit, GITMODULES_FILE_NAME));
-      } catch (FileNotFoundException e) {
-        // do nothing
+        myConfig = myContext.getSubmodulesConfig(myDb, myCommit);
       } catch (Exception e) {
         LOG.error("Unable to load or parse submodule configuration at: " + myCommit.getId().name(), e);
       } finally {
@@ -1,5 +1,3 @@
-
-
 package org.eclipse.jgit.internal.storage.file;
 
 import com.intellij.openapi.diagnostic.Logger;
@@ -9,24 +7,30 @@ import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.util.NB;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.StandardOpenOption;
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.function.Function;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
 
 /**
  * Memory mapped implementation on {@link PackIndex} reading.
  * Stolen from Upsource.
  *
+ * <p>Index is read only with absolute gets, so the mapped buffers have no shared
+ * position and can be read by any number of threads. Index is mapped by segments,
+ * so indexes larger than 2GB are supported.
+ *
  * @see <a href="https://upsource.jetbrains.com/circlet/file/bcd361e152cbc90f09fe5d2751140da18d119862/vcs-hosting/vcs-server/git-backend/src/main/java/jetbrains/vcs/server/hosting/git/jgit/MemoryMappedPackIndex.kt">origin code</a>
  *
  * @author Mikhail Khorkov
@@ -38,14 +42,35 @@ public class MemoryMappedPackIndex extends PackIndex.PackIndexFactory {
 
   private static final long IS_O64 = 1L << 31;
   private static final int FANOUT = 256;
-  private static final byte[] TOC = new byte[]{-1, "t".getBytes()[0], "O".getBytes()[0], "c".getBytes()[0]};
+  private static final int TOC = 0xff744f63; // \377tOc
+  private static final int DEFAULT_SEGMENT_SHIFT = 30;
+  private static final Consumer<ByteBuffer> UNMAPPER = createUnmapper();
+
+  private final int mySegmentShift;
+
+  public MemoryMappedPackIndex() {
+    this(DEFAULT_SEGMENT_SHIFT);
+  }
+
+  /**
+   * @param segmentShift log2 of the size of mapped segments, smaller segments are used in tests
+   */
+  public MemoryMappedPackIndex(int segmentShift) {
+    //all index entries are 4-byte aligned, so an int never crosses a segment boundary
+    if (segmentShift < 2 || segmentShift > 30)
+      throw new IllegalArgumentException("Unsupported segment shift " + segmentShift);
+    mySegmentShift = segmentShift;
+  }
 
   public PackIndex open(final File idxFile) throws IOException {
+    MappedSegments segments = null;
     try {
-      final FileChannel fc = FileChannel.open(idxFile.toPath(), StandardOpenOption.READ);
-      final MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
-      if (isV2Index(buffer)) {
-        return new PackIndexV2MM(buffer, fc.size());
+      //mapping stays valid after the channel is closed
+      try (FileChannel fc = FileChannel.open(idxFile.toPath(), StandardOpenOption.READ)) {
+        segments = new MappedSegments(fc, mySegmentShift);
+      }
+      if (isV2Index(segments)) {
+        return new PackIndexV2MM(segments);
       } else {
         LOG.warn("Index " + idxFile.getPath() + " is not V2");
       }
@@ -54,17 +79,26 @@ public class MemoryMappedPackIndex extends PackIndex.PackIndexFactory {
       // use default method
     }
 
+    if (segments != null)
+      segments.unmap();
     return super.open(idxFile);
   }
 
-  private boolean isV2Index(final MappedByteBuffer buffer) {
-    final byte[] toc = new byte[4];
-    buffer.get(toc, 0, toc.length);
-    if (!Arrays.equals(toc, TOC)) {
-      return false;
+  /**
+   * Unmaps the buffer, it must not be accessed afterwards
+   */
+  public static void unmap(@NotNull ByteBuffer buffer) {
+    if (UNMAPPER == null || !buffer.isDirect())
+      return;
+    try {
+      UNMAPPER.accept(buffer);
+    } catch (Throwable e) {
+      LOG.warnAndDebugDetails("Exception while unmapping buffer", e);
     }
+  }
 
-    return decodeInt32(buffer) == 2;
+  private static boolean isV2Index(@NotNull MappedSegments segments) {
+    return segments.size() >= 8 + FANOUT * 4 + 40 && segments.getInt(0) == TOC && segments.getInt(4) == 2;
   }
 
   /*
@@ -80,28 +114,22 @@ public class MemoryMappedPackIndex extends PackIndex.PackIndexFactory {
    */
 
   private class PackIndexV2MM extends PackIndex {
-    private final MappedByteBuffer myBuffer;
-    private final long mySize;
+    private final MappedSegments mySegments;
     private final int[] fanoutTable = new int[FANOUT];
     private final int objectCnt;
 
-    private int shaOffset;
-    private int crcOffset;
-    private int ofsOffset;
-    private int o64Offset;
+    private final long shaOffset;
+    private final long crcOffset;
+    private final long ofsOffset;
+    private final long o64Offset;
 
     private volatile boolean isClosed = false;
 
-    PackIndexV2MM(final MappedByteBuffer buffer, final long size) throws IOException {
-      myBuffer = buffer;
-      mySize = size;
-
-      if (size >= Integer.MAX_VALUE) {
-        throw new IOException("index file too large");
-      }
+    PackIndexV2MM(@NotNull MappedSegments segments) throws IOException {
+      mySegments = segments;
 
       for (int i = 0; i < FANOUT; i++) {
-        fanoutTable[i] = decodeInt32(myBuffer);
+        fanoutTable[i] = mySegments.getInt(8 + i * 4);
       }
 
       objectCnt = fanoutTable[FANOUT - 1];
@@ -109,14 +137,19 @@ public class MemoryMappedPackIndex extends PackIndex.PackIndexFactory {
         throw new IOException("More than 2G objects in index");
       }
 
-      shaOffset = 4 + 4 + 256 * 4;
-      crcOffset = shaOffset + objectCnt * 20;
-      ofsOffset = crcOffset + objectCnt * 4;
-      o64Offset = ofsOffset + objectCnt * 4;
+      shaOffset = 4 + 4 + FANOUT * 4;
+      crcOffset = shaOffset + objectCnt * 20L;
+      ofsOffset = crcOffset + objectCnt * 4L;
+      o64Offset = ofsOffset + objectCnt * 4L;
+      if (o64Offset + 40 > mySegments.size()) {
+        throw new IOException("Truncated index");
+      }
 
       packChecksum = new byte[20];
-      myBuffer.position((int)mySize - 40);
-      myBuffer.get(packChecksum);
+      long checksumOffset = mySegments.size() - 40;
+      for (int i = 0; i < 5; i++) {
+        NB.encodeInt32(packChecksum, i * 4, mySegments.getInt(checksumOffset + i * 4));
+      }
     }
 
     private void assertNotClosed() {
@@ -127,20 +160,8 @@ public class MemoryMappedPackIndex extends PackIndex.PackIndexFactory {
 
     @Override
     public void close() {
-      myBuffer.clear();
-
-      try {
-        // clean buffer using cleaner to free memory
-        final Field field = myBuffer.getClass().getDeclaredField("cleaner");
-        field.setAccessible(true);
-        final Object cleaner = field.get(myBuffer);
-        final Method cleanMethod = cleaner.getClass().getMethod("clean");
-        cleanMethod.invoke(cleaner);
-      } catch (Throwable e) {
-        LOG.warnAndDebugDetails("Exception while cleaning memory pack index", e);
-      }
-
       isClosed = true;
+      mySegments.unmap();
     }
 
     @Override
@@ -152,12 +173,10 @@ public class MemoryMappedPackIndex extends PackIndex.PackIndexFactory {
     public long getOffset(final long nthPosition) {
       assertNotClosed();
 
-      myBuffer.position(ofsOffset + (int)nthPosition * 4);
-      long offset = decodeUInt32(myBuffer);
+      long offset = mySegments.getUInt32(ofsOffset + nthPosition * 4);
 
       if ((offset & IS_O64) != 0L) {
-        myBuffer.position(o64Offset + (int)(offset & (~IS_O64)) * 8);
-        return decodeUInt64(myBuffer);
+        return mySegments.getUInt64(o64Offset + (offset & (~IS_O64)) * 8);
       }
 
       return offset;
@@ -167,24 +186,34 @@ public class MemoryMappedPackIndex extends PackIndex.PackIndexFactory {
     public ObjectId getObjectId(final long nthPosition) {
       assertNotClosed();
 
-      myBuffer.position(shaOffset + (int)nthPosition * 20);
-      return ObjectId.fromRaw(MemoryMappedPackIndex.read(myBuffer, 20));
+      final int[] id = new int[5];
+      readObjectId(nthPosition, id);
+      return ObjectId.fromRaw(id);
+    }
+
+    private void readObjectId(final long nthPosition, @NotNull int[] id) {
+      final long position = shaOffset + nthPosition * 20;
+      for (int i = 0; i < 5; i++) {
+        id[i] = mySegments.getInt(position + i * 4);
+      }
     }
 
     @Override
     public void resolve(final Set<ObjectId> matches, final AbbreviatedObjectId id, final int matchLimit) {
       assertNotClosed();
 
-      int pos = binarySearch(id.getFirstByte(), id::prefixCompare);
+      final int[] buffer = new int[5];
+      final ToIntFunction<int[]> compare = objectId -> id.prefixCompare(objectId, 0);
+      int pos = binarySearch(id.getFirstByte(), compare, buffer);
       if (pos >= 0) {
         // We may have landed in the middle of the matches.  Move
         // backwards to the start of matches, then walk forwards.
         //
-        while (0 < pos && (id.prefixCompare(getObjectId(pos - 1)) == 0)) {
+        while (0 < pos && prefixMatches(pos - 1, compare, buffer)) {
           pos--;
         }
-        while (pos < objectCnt && (id.prefixCompare(getObjectId(pos)) == 0)) {
-          matches.add(getObjectId(pos));
+        while (pos < objectCnt && prefixMatches(pos, compare, buffer)) {
+          matches.add(ObjectId.fromRaw(buffer));
           if (matches.size() > matchLimit) {
             break;
           }
@@ -193,6 +222,11 @@ public class MemoryMappedPackIndex extends PackIndex.PackIndexFactory {
       }
     }
 
+    private boolean prefixMatches(final int pos, @NotNull ToIntFunction<int[]> compare, @NotNull int[] buffer) {
+      readObjectId(pos, buffer);
+      return compare.applyAsInt(buffer) == 0;
+    }
+
     @NotNull
     @Override
     public Iterator<MutableEntry> iterator() {
@@ -245,8 +279,8 @@ public class MemoryMappedPackIndex extends PackIndex.PackIndexFactory {
 
     @Override
     public long getOffset64Count() {
-      // actually, it is quite expensive to calculate this
-      throw new UnsupportedOperationException();
+      // the 64-bit offsets table is located between the 32-bit offsets and the checksums
+      return (mySegments.size() - 40 - o64Offset) / 8;
     }
 
     @Override
@@ -258,8 +292,7 @@ public class MemoryMappedPackIndex extends PackIndex.PackIndexFactory {
         throw new MissingObjectException(objId.copy(), "unknown");
       }
 
-      myBuffer.position(crcOffset + pos * 4);
-      return decodeUInt32(myBuffer);
+      return mySegments.getUInt32(crcOffset + pos * 4L);
     }
 
     @Override
@@ -281,16 +314,17 @@ public class MemoryMappedPackIndex extends PackIndex.PackIndexFactory {
 
     // return < 0 if not found
     private int binarySearch(final AnyObjectId objId) {
-      return binarySearch(objId.getFirstByte(), objId::compareTo);
+      return binarySearch(objId.getFirstByte(), objectId -> objId.compareTo(objectId, 0), new int[5]);
     }
 
-    private int binarySearch(int firstByte, Function<ObjectId, Integer> compare) {
+    private int binarySearch(int firstByte, @NotNull ToIntFunction<int[]> compare, @NotNull int[] buffer) {
       int low = firstByte == 0 ? 0 : fanoutTable[firstByte - 1];
       int high = fanoutTable[firstByte];
 
       while (low < high) {
         int mid = (low + high) >>> 1;
-        int cmp = compare.apply(getObjectId((long)mid));
+        readObjectId(mid, buffer);
+        int cmp = compare.applyAsInt(buffer);
         if (cmp < 0) {
           high = mid;
         } else if (cmp == 0) {
@@ -304,21 +338,102 @@ public class MemoryMappedPackIndex extends PackIndex.PackIndexFactory {
     }
   }
 
-  private static int decodeInt32(final MappedByteBuffer buffer) {
-    return NB.decodeInt32(read(buffer, 4), 0);
-  }
+  /**
+   * Index file mapped by segments of equal size, reads don't change the position of the buffers
+   */
+  private static final class MappedSegments {
+    private final MappedByteBuffer[] mySegments;
+    private final int myShift;
+    private final long myMask;
+    private final long mySize;
 
-  private static long decodeUInt32(final MappedByteBuffer buffer) {
-    return NB.decodeUInt32(read(buffer, 4), 0);
-  }
+    MappedSegments(@NotNull FileChannel fc, int shift) throws IOException {
+      mySize = fc.size();
+      myShift = shift;
+      myMask = (1L << shift) - 1;
+      long segmentSize = 1L << shift;
+      int segmentsCount = (int)((mySize + segmentSize - 1) >>> shift);
+      mySegments = new MappedByteBuffer[segmentsCount];
+      try {
+        for (int i = 0; i < segmentsCount; i++) {
+          long start = (long)i << shift;
+          mySegments[i] = fc.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, mySize - start));
+        }
+      } catch (IOException | RuntimeException e) {
+        unmap();
+        throw e;
+      }
+    }
+
+    long size() {
+      return mySize;
+    }
 
-  private static long decodeUInt64(final MappedByteBuffer buffer) {
-    return NB.decodeUInt64(read(buffer, 8), 0);
+    int getInt(long position) {
+      return mySegments[(int)(position >>> myShift)].getInt((int)(position & myMask));
+    }
+
+    long getUInt32(long position) {
+      return getInt(position) & 0xFFFFFFFFL;
+    }
+
+    long getUInt64(long position) {
+      return ((long)getInt(position) << 32) | getUInt32(position + 4);
+    }
+
+    void unmap() {
+      for (int i = 0; i < mySegments.length; i++) {
+        MappedByteBuffer segment = mySegments[i];
+        mySegments[i] = null;
+        if (segment != null && UNMAPPER != null) {
+          try {
+            UNMAPPER.accept(segment);
+          } catch (Throwable e) {
+            LOG.warnAndDebugDetails("Exception while cleaning memory pack index", e);
+          }
+        }
+      }
+    }
   }
 
-  private static byte[] read(final MappedByteBuffer buffer, final int size) {
-    final byte[] bytes = new byte[size];
-    buffer.get(bytes);
-    return bytes;
+  /**
+   * Mapped buffers are unmapped by GC, unmap them explicitly to release files and address space promptly
+   */
+  @Nullable
+  private static Consumer<ByteBuffer> createUnmapper() {
+    try {
+      // java 9+
+      final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      final Object unsafe = theUnsafe.get(null);
+      return buffer -> {
+        try {
+          invokeCleaner.invoke(unsafe, buffer);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      };
+    } catch (Throwable ignored) {
+    }
+
+    try {
+      // java 8
+      final Method cleanerMethod = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+      final Method cleanMethod = Class.forName("sun.misc.Cleaner").getMethod("clean");
+      return buffer -> {
+        try {
+          final Object cleaner = cleanerMethod.invoke(buffer);
+          if (cleaner != null)
+            cleanMethod.invoke(cleaner);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      };
+    } catch (Throwable e) {
+      LOG.debug("Memory mapped pack indexes will be unmapped by GC", e);
+      return null;
+    }
   }
-}
\ No newline at end of file
+}
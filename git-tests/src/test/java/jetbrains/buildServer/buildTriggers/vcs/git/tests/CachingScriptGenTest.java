@@ -0,0 +1,108 @@
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import java.io.File;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.command.CachingScriptGen;
+import jetbrains.buildServer.buildTriggers.vcs.git.command.impl.GitFacadeImpl;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class CachingScriptGenTest {
+
+  private TempFiles myTempFiles;
+  private File myScriptsDir;
+  private PluginConfigBuilder myConfig;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    myScriptsDir = myTempFiles.createTempDir();
+    myConfig = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()));
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+  public void askpass_scripts_are_not_cached() throws Exception {
+    CachingScriptGen scriptGen = createScriptGen(60 * 1000);
+
+    File askPass1 = scriptGen.generateAskPass("secret");
+    File askPass2 = scriptGen.generateAskPass("secret");
+    then(askPass2).isNotEqualTo(askPass1);
+    then(scriptGen.release(askPass1)).isTrue();
+    then(scriptGen.release(askPass2)).isTrue();
+  }
+
+  public void credential_helper_is_reused() throws Exception {
+    CachingScriptGen scriptGen = createScriptGen(60 * 1000);
+
+    File credHelper1 = scriptGen.generateCredentialHelper();
+    File credHelper2 = scriptGen.generateCredentialHelper();
+    then(credHelper2).isEqualTo(credHelper1);
+
+    then(scriptGen.release(credHelper1)).isFalse();
+    then(scriptGen.release(credHelper2)).isFalse();
+    then(credHelper1).isFile();
+    then(scriptGen.generateCredentialHelper()).isEqualTo(credHelper1);
+  }
+
+  public void cached_credential_helper_does_not_delete_itself_on_erase() throws Exception {
+    CachingScriptGen scriptGen = createScriptGen(60 * 1000);
+
+    then(FileUtil.readText(scriptGen.generateCredentialHelper())).doesNotContain("rm ").doesNotContain("del ");
+  }
+
+  public void credential_helper_is_regenerated_when_deleted() throws Exception {
+    CachingScriptGen scriptGen = createScriptGen(60 * 1000);
+
+    File credHelper = scriptGen.generateCredentialHelper();
+    then(credHelper.delete()).isTrue();
+    File newCredHelper = scriptGen.generateCredentialHelper();
+    then(newCredHelper).isFile();
+    then(newCredHelper).isNotEqualTo(credHelper);
+
+    //commands release both the deleted and the new script
+    then(scriptGen.release(credHelper)).isFalse();
+    then(scriptGen.release(newCredHelper)).isFalse();
+
+    myConfig.setNativeGitScriptsCacheTtlMillis(0);
+    then(scriptGen.release(scriptGen.generateCredentialHelper())).isTrue();
+    then(newCredHelper).doesNotExist();
+  }
+
+  public void unused_scripts_are_deleted() throws Exception {
+    CachingScriptGen scriptGen = createScriptGen(60 * 1000);
+    File credHelper = scriptGen.generateCredentialHelper();
+    then(scriptGen.release(credHelper)).isFalse();
+
+    myConfig.setNativeGitScriptsCacheTtlMillis(0);
+    File notCached = scriptGen.generateCredentialHelper();
+    then(credHelper).doesNotExist();
+    then(notCached).isNotEqualTo(credHelper);
+    then(scriptGen.release(notCached)).isTrue();
+  }
+
+  public void used_scripts_are_not_deleted() throws Exception {
+    CachingScriptGen scriptGen = createScriptGen(60 * 1000);
+    File credHelper = scriptGen.generateCredentialHelper();
+
+    myConfig.setNativeGitScriptsCacheTtlMillis(0);
+    then(scriptGen.release(scriptGen.generateCredentialHelper())).isTrue();
+    then(credHelper).isFile();
+    then(scriptGen.release(credHelper)).isFalse();
+    then(credHelper).doesNotExist();
+  }
+
+  private CachingScriptGen createScriptGen(long ttlMillis) {
+    myConfig.setNativeGitScriptsCacheTtlMillis(ttlMillis);
+    return new CachingScriptGen(myConfig.build(), myScriptsDir, GitFacadeImpl.createScriptGen(myScriptsDir));
+  }
+}
@@ -5,10 +5,15 @@ package jetbrains.buildServer.buildTriggers.vcs.git.tests;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.TempFiles;
 import jetbrains.buildServer.buildTriggers.vcs.git.*;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentGitFacadeImpl;
 import jetbrains.buildServer.serverSide.ServerPaths;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
@@ -16,7 +21,11 @@ import jetbrains.buildServer.vcs.CheckoutRules;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
 import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.SkipException;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
@@ -35,6 +44,7 @@ public class CleanerTest extends BaseTestCase {
   private RepositoryManager myRepositoryManager;
   private ServerPluginConfig myConfig;
   private PluginConfigBuilder myConfigBuilder;
+  private RevisionsCache myRevisionsCache;
 
   @BeforeMethod
   public void setUp() throws IOException {
@@ -104,7 +114,151 @@ public class CleanerTest extends BaseTestCase {
     //clone repository
     mySupport.collectChanges(root, "70dbcf426232f7a33c7e5ebdfbfb26fc8c467a46", "a894d7d58ffde625019a9ecf8267f5f1d1e5c341", CheckoutRules.DEFAULT);
     File repositoryDir = getRepositoryDir(root);
+    createPacksToTriggerGc(repositoryDir);
 
+    myCleanup.run();
+
+    FileRepository db = (FileRepository) new RepositoryBuilder().setGitDir(repositoryDir).build();
+    then(db.getObjectDatabase().getPacks().size()).isEqualTo(1);
+  }
+
+
+  public void geometricRepack() throws Exception {
+    myConfigBuilder.setRunNativeGC(true);
+    myConfigBuilder.setRunGeometricRepack(true);
+    initCleanup();
+
+    VcsRoot root = GitTestUtil.getVcsRoot();
+    //clone repository
+    mySupport.collectChanges(root, "70dbcf426232f7a33c7e5ebdfbfb26fc8c467a46", "a894d7d58ffde625019a9ecf8267f5f1d1e5c341", CheckoutRules.DEFAULT);
+    File repositoryDir = getRepositoryDir(root);
+    createPacksToTriggerGc(repositoryDir);
+
+    myCleanup.run();
+
+    FileRepository db = (FileRepository) new RepositoryBuilder().setGitDir(repositoryDir).build();
+    then(db.getObjectDatabase().getPacks().size()).isEqualTo(1);
+    then(new File(repositoryDir, "objects/pack/multi-pack-index")).isFile();
+    then(new File(repositoryDir, "objects/info/commit-graphs/commit-graph-chain")).isFile();
+
+    mySupport.getCurrentState(root);//check that repository is fine after repack
+  }
+
+
+  public void geometricRepack_is_replaced_by_periodic_full_gc() throws Exception {
+    myConfigBuilder.setRunNativeGC(true);
+    myConfigBuilder.setRunInPlaceGc(false);
+    myConfigBuilder.setRunGeometricRepack(true);
+    myConfigBuilder.setGeometricRepackFullGcIntervalDays(0);
+    initCleanup();
+
+    VcsRoot root = GitTestUtil.getVcsRoot();
+    //clone repository
+    mySupport.collectChanges(root, "70dbcf426232f7a33c7e5ebdfbfb26fc8c467a46", "a894d7d58ffde625019a9ecf8267f5f1d1e5c341", CheckoutRules.DEFAULT);
+    File repositoryDir = getRepositoryDir(root);
+    createPacksToTriggerGc(repositoryDir);
+    long gcStart = System.currentTimeMillis();
+
+    myCleanup.run();
+
+    FileRepository db = (FileRepository) new RepositoryBuilder().setGitDir(repositoryDir).build();
+    then(db.getObjectDatabase().getPacks().size()).isEqualTo(1);
+    then(new File(repositoryDir, "objects/pack/multi-pack-index")).doesNotExist();
+    GcState state = GcState.read(repositoryDir);
+    then(state).isNotNull();
+    then(state.getLastFullGcTime()).isGreaterThanOrEqualTo(gcStart);
+
+    mySupport.getCurrentState(root);//check that repository is fine after gc
+  }
+
+
+  @Test(dataProvider = "true,false")
+  public void gc_writes_commit_graph_with_bloom_filters(boolean geometricRepack) throws Exception {
+    myConfigBuilder.setRunNativeGC(true);
+    myConfigBuilder.setRunInPlaceGc(false);
+    myConfigBuilder.setRunGeometricRepack(geometricRepack);
+    initCleanup();
+    GitVersion version = new AgentGitFacadeImpl(myConfig.getPathToGit()).version().call();
+    if (!GitVersion.isCommitGraphChangedPathsSupported(version) || geometricRepack && !GitVersion.isGeometricRepackSupported(version))
+      throw new SkipException("Git version is too old to run this test");
+
+    VcsRoot root = GitTestUtil.getVcsRoot();
+    //clone repository
+    mySupport.collectChanges(root, "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653", "465ad9f630e451b9f2b782ffb09804c6a98c4bb9", CheckoutRules.DEFAULT);
+    File repositoryDir = getRepositoryDir(root);
+    createPacksToTriggerGc(repositoryDir);
+
+    myCleanup.run();
+
+    //the commit changes only readme.txt comparing to its first parent
+    ObjectId commit = ObjectId.fromString("3b9fbfbb43e7edfad018b482e15e7f93cca4e69f");
+    try (CommitGraphBloomFilters filters = CommitGraphBloomFilters.open(repositoryDir)) {
+      then(filters).isNotNull();
+      then(filters.isNotChanged(commit, Collections.singletonList("dir"))).isTrue();
+      then(filters.isNotChanged(commit, Collections.singletonList("readme.txt"))).isFalse();
+    }
+
+    //checkout rules search skipping diffs by the filters finds the same revision as the search without them
+    String withFilters = getLatestRevisionAcceptedByCheckoutRules(root, "+:dir", "465ad9f630e451b9f2b782ffb09804c6a98c4bb9");
+    setInternalProperty(CheckoutRulesRevWalk.USE_COMMIT_GRAPH_PROP, "false");
+    myRevisionsCache.reset();
+    String withoutFilters = getLatestRevisionAcceptedByCheckoutRules(root, "+:dir", "465ad9f630e451b9f2b782ffb09804c6a98c4bb9");
+    then(withFilters).isNotNull().isEqualTo(withoutFilters);
+  }
+
+  public void parallelGc() throws Exception {
+    myConfigBuilder.setRunNativeGC(true);
+    myConfigBuilder.setRunInPlaceGc(false);
+    myConfigBuilder.setNativeGCThreads(2);
+    initCleanup();
+
+    File repoCopy = ourTempFiles.createTempDir();
+    GitTestUtil.copyRepository(GitTestUtil.dataFile("repo.git"), repoCopy);
+    List<File> repositoryDirs = new ArrayList<>();
+    for (VcsRoot root : Arrays.asList(GitTestUtil.getVcsRoot(), GitTestUtil.getVcsRoot(repoCopy))) {
+      mySupport.collectChanges(root, "70dbcf426232f7a33c7e5ebdfbfb26fc8c467a46", "a894d7d58ffde625019a9ecf8267f5f1d1e5c341", CheckoutRules.DEFAULT);
+      File repositoryDir = getRepositoryDir(root);
+      createPacksToTriggerGc(repositoryDir);
+      repositoryDirs.add(repositoryDir);
+    }
+
+    myCleanup.run();
+
+    for (File repositoryDir : repositoryDirs) {
+      FileRepository db = (FileRepository) new RepositoryBuilder().setGitDir(repositoryDir).build();
+      then(db.getObjectDatabase().getPacks().size()).isEqualTo(1);
+    }
+  }
+
+  public void should_skip_repository_without_new_objects() throws Exception {
+    myConfigBuilder.setRunNativeGC(true);
+    myConfigBuilder.setRunInPlaceGc(false);
+    initCleanup();
+
+    VcsRoot root = GitTestUtil.getVcsRoot();
+    mySupport.collectChanges(root, "70dbcf426232f7a33c7e5ebdfbfb26fc8c467a46", "a894d7d58ffde625019a9ecf8267f5f1d1e5c341", CheckoutRules.DEFAULT);
+    File repositoryDir = getRepositoryDir(root);
+    then(GcState.read(repositoryDir).getFetchesSinceGc()).isGreaterThan(0);
+
+    myCleanup.run();
+    GcState state = GcState.read(repositoryDir);
+    then(state.getOutcome()).isIn(GcState.Outcome.SUCCESS, GcState.Outcome.NOT_NEEDED);
+    then(state.getFetchesSinceGc()).isEqualTo(0);
+
+    //packs are added without fetch, cleanup doesn't look into the repository
+    createPacksToTriggerGc(repositoryDir);
+    myCleanup.run();
+    FileRepository db = (FileRepository) new RepositoryBuilder().setGitDir(repositoryDir).build();
+    then(db.getObjectDatabase().getPacks().size() > 50).isTrue();
+
+    GcState.objectsAdded(repositoryDir);
+    myCleanup.run();
+    db = (FileRepository) new RepositoryBuilder().setGitDir(repositoryDir).build();
+    then(db.getObjectDatabase().getPacks().size()).isEqualTo(1);
+    then(GcState.read(repositoryDir).getOutcome()).isEqualTo(GcState.Outcome.SUCCESS);
+  }
+
+  private void createPacksToTriggerGc(@NotNull File repositoryDir) throws IOException {
     //create more than 50 packs to trigger gc:
     File packDir = new File(repositoryDir, "objects/pack");
 
@@ -124,11 +278,12 @@ public class CleanerTest extends BaseTestCase {
     }
     FileRepository db = (FileRepository) new RepositoryBuilder().setGitDir(repositoryDir).build();
     then(db.getObjectDatabase().getPacks().size() > 50).isTrue();
+  }
 
-    myCleanup.run();
-
-    db = (FileRepository) new RepositoryBuilder().setGitDir(repositoryDir).build();
-    then(db.getObjectDatabase().getPacks().size()).isEqualTo(1);
+  @Nullable
+  private String getLatestRevisionAcceptedByCheckoutRules(@NotNull VcsRoot root, @NotNull String rules, @NotNull String startRevision) throws VcsException {
+    return mySupport.getCollectChangesPolicy().getLatestRevisionAcceptedByCheckoutRules(root, new CheckoutRules(rules), startRevision, "refs/heads/master",
+                                                                                        Collections.emptySet()).getRevision();
   }
 
   private void initCleanup() {
@@ -136,6 +291,7 @@ public class CleanerTest extends BaseTestCase {
     GitSupportBuilder gitBuilder = gitSupport().withPluginConfig(myConfig);
     mySupport = gitBuilder.build();
     myRepositoryManager = gitBuilder.getRepositoryManager();
+    myRevisionsCache = gitBuilder.getMapFullPath().getRevisionsCache();
     myCleanup = new Cleanup(myConfig, myRepositoryManager, new GcErrors());
     myCleanupCalled = new AtomicBoolean();
     myCleanup.setCleanupCallWrapper(cleanup -> {
@@ -4,7 +4,9 @@ package jetbrains.buildServer.buildTriggers.vcs.git.tests;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
@@ -22,8 +24,16 @@ import org.apache.log4j.Level;
 import org.assertj.core.data.MapEntry;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.MergeResult;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryBuilder;
@@ -251,6 +261,157 @@ public class CollectChangesTest extends BaseRemoteRepositoryTest {
   }
 
 
+  public void should_reuse_commit_changes_between_roots_sharing_clone() throws Exception {
+    GitVcsSupport git = git();
+    VcsRoot root1 = vcsRoot().withFetchUrl(myRepo).withBranch("master").build();
+    VcsRoot root2 = vcsRoot().withFetchUrl(myRepo).withBranch("personal-branch2").build();
+
+    List<ModificationData> changes1 = git.collectChanges(root1, "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653", "ee886e4adb70fbe3bdc6f3f6393598b3f02e8009", CheckoutRules.DEFAULT);
+    then(git.getCommitChangesCache().size()).isEqualTo(3);
+
+    List<ModificationData> changes2 = git.collectChanges(root2, "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653", "ad4528ed5c84092fdbe9e0502163cf8d6e6141e7", CheckoutRules.DEFAULT);
+    then(git.getCommitChangesCache().size()).isEqualTo(3);
+    then(changes2).extracting("version").containsExactly("ad4528ed5c84092fdbe9e0502163cf8d6e6141e7", "97442a720324a0bd092fb9235f72246dc8b345bc");
+    then(changes2.get(0).getVcsRoot()).isSameAs(root2);
+    then(changes2.get(0).getChanges()).extracting("type", "fileName")
+      .containsOnly(tuple(VcsChange.Type.CHANGED, "dir/a.txt"),
+                    tuple(VcsChange.Type.ADDED, "dir/c.txt"),
+                    tuple(VcsChange.Type.REMOVED, "dir/tr.txt"));
+  }
+
+
+  public void parallel_changes_collection_should_preserve_order() throws Exception {
+    VcsRoot root = vcsRoot().withFetchUrl(myRepo).build();
+    RepositoryStateData fromState = createVersionState("master", map("master", "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653"));
+    RepositoryStateData toState = createVersionState("master", map("master", "3b9fbfbb43e7edfad018b482e15e7f93cca4e69f",
+                                                                   "personal-branch2", "3df61e6f11a5a9b919cb3f786a83fdd09f058617"));
+    List<ModificationData> sequential = git().getCollectChangesPolicy().collectChanges(root, fromState, toState, CheckoutRules.DEFAULT);
+
+    myConfig.setCollectChangesParallelism(4);
+    List<ModificationData> parallel = git().getCollectChangesPolicy().collectChanges(root, fromState, toState, CheckoutRules.DEFAULT);
+
+    then(parallel).extracting("version").containsExactlyElementsOf(sequential.stream().map(ModificationData::getVersion).collect(Collectors.toList()));
+    for (int i = 0; i < sequential.size(); i++) {
+      then(parallel.get(i).getChanges()).extracting("type", "fileName", "beforeChangeRevisionNumber")
+        .containsExactlyElementsOf(sequential.get(i).getChanges().stream()
+                                             .map(c -> tuple(c.getType(), c.getFileName(), c.getBeforeChangeRevisionNumber()))
+                                             .collect(Collectors.toList()));
+      then(parallel.get(i).getParentRevisions()).isEqualTo(sequential.get(i).getParentRevisions());
+    }
+  }
+
+
+  public void should_prefetch_submodules_changed_by_commit() throws Exception {
+    File sub1 = createRepository("sub1");
+    File sub2 = createRepository("sub2");
+    File repo = myTempFiles.createTempDir();
+    RevCommit c1, c2;
+    try (Repository r = new RepositoryBuilder().setGitDir(repo).setBare().build()) {
+      r.create(true);
+      String gitmodules = "[submodule \"sub1\"]\n\tpath = sub1\n\turl = " + sub1.getCanonicalPath() + "\n" +
+                          "[submodule \"sub2\"]\n\tpath = sub2\n\turl = " + sub2.getCanonicalPath() + "\n";
+      c1 = commitSubmodules(r, null, gitmodules, commit(sub1), commit(sub2));
+      c2 = commitSubmodules(r, c1, gitmodules, commit(sub1), commit(sub2));
+    }
+
+    Map<String, String> fetchThreads = new ConcurrentHashMap<>();
+    myConfig.setCollectChangesParallelism(1);
+    myConfig.setSubmodulesFetchParallelism(2);
+    GitSupportBuilder gitSupportBuilder = gitSupport().withPluginConfig(myConfig);
+    FetchCommand defaultFetch = gitSupportBuilder.getDefaultFetchCommand();
+    GitVcsSupport git = gitSupportBuilder.withFetchCommand((db, fetchURI, settings) -> {
+      fetchThreads.put(new File(fetchURI.getPath()).getName(), Thread.currentThread().getName());
+      defaultFetch.fetch(db, fetchURI, settings);
+    }).build();
+
+    VcsRoot root = vcsRoot().withFetchUrl(repo).withSubmodulePolicy(SubmodulesCheckoutPolicy.CHECKOUT).build();
+    List<ModificationData> changes = git.getCollectChangesPolicy().collectChanges(root,
+                                                                                  createVersionState("refs/heads/master", map("refs/heads/master", c1.name())),
+                                                                                  createVersionState("refs/heads/master", map("refs/heads/master", c2.name())),
+                                                                                  CheckoutRules.DEFAULT);
+    then(changes).extracting("version").containsExactly(c2.name());
+    //changes are collected in the current thread, submodules fetched by its tree walk would be fetched here too
+    String collectingThread = Thread.currentThread().getName();
+    then(fetchThreads.get("sub1")).isNotNull().isNotEqualTo(collectingThread);
+    then(fetchThreads.get("sub2")).isNotNull().isNotEqualTo(collectingThread);
+  }
+
+  @NotNull
+  private File createRepository(@NotNull String name) throws Exception {
+    File dir = new File(myTempFiles.createTempDir(), name);
+    try (Repository r = new RepositoryBuilder().setGitDir(dir).setBare().build()) {
+      r.create(true);
+    }
+    return dir;
+  }
+
+  @NotNull
+  private static RevCommit commit(@NotNull File repo) throws Exception {
+    try (Repository r = new RepositoryBuilder().setGitDir(repo).setBare().build()) {
+      ObjectId head = r.resolve("refs/heads/master");
+      byte[] content = String.valueOf(System.nanoTime()).getBytes(StandardCharsets.UTF_8);
+      return commitTree(r, head, (builder, inserter) -> addEntry(builder, "file.txt", FileMode.REGULAR_FILE, inserter.insert(Constants.OBJ_BLOB, content)));
+    }
+  }
+
+  @NotNull
+  private static RevCommit commitSubmodules(@NotNull Repository r,
+                                            @Nullable ObjectId parent,
+                                            @NotNull String gitmodules,
+                                            @NotNull ObjectId sub1,
+                                            @NotNull ObjectId sub2) throws IOException {
+    return commitTree(r, parent, (builder, inserter) -> {
+      addEntry(builder, ".gitmodules", FileMode.REGULAR_FILE, inserter.insert(Constants.OBJ_BLOB, gitmodules.getBytes(StandardCharsets.UTF_8)));
+      addEntry(builder, "sub1", FileMode.GITLINK, sub1);
+      addEntry(builder, "sub2", FileMode.GITLINK, sub2);
+    });
+  }
+
+  private interface DirCacheBuilderAction {
+    void add(@NotNull DirCacheBuilder builder, @NotNull ObjectInserter inserter) throws IOException;
+  }
+
+  @NotNull
+  private static RevCommit commitTree(@NotNull Repository r, @Nullable ObjectId parent, @NotNull DirCacheBuilderAction action) throws IOException {
+    try (ObjectInserter inserter = r.newObjectInserter(); RevWalk revWalk = new RevWalk(r)) {
+      DirCache index = DirCache.newInCore();
+      DirCacheBuilder builder = index.builder();
+      action.add(builder, inserter);
+      builder.finish();
+      CommitBuilder commit = new CommitBuilder();
+      commit.setTreeId(index.writeTree(inserter));
+      if (parent != null)
+        commit.setParentId(parent);
+      PersonIdent ident = new PersonIdent("user", "user@some.org");
+      commit.setAuthor(ident);
+      commit.setCommitter(ident);
+      commit.setMessage("commit");
+      ObjectId commitId = inserter.insert(commit);
+      inserter.flush();
+      RefUpdate update = r.updateRef("refs/heads/master");
+      update.setNewObjectId(commitId);
+      update.forceUpdate();
+      return revWalk.parseCommit(commitId);
+    }
+  }
+
+  private static void addEntry(@NotNull DirCacheBuilder builder, @NotNull String path, @NotNull FileMode mode, @NotNull ObjectId id) {
+    DirCacheEntry entry = new DirCacheEntry(path);
+    entry.setFileMode(mode);
+    entry.setObjectId(id);
+    builder.add(entry);
+  }
+
+
+  public void parallel_changes_collection_limit() throws Exception {
+    setInternalProperty("teamcity.git.collectChanges.maxChanges", "2");
+    myConfig.setCollectChangesParallelism(4);
+    VcsRoot root = vcsRoot().withFetchUrl(myRepo).build();
+    List<ModificationData> changes = git().collectChanges(root, "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653", "ee886e4adb70fbe3bdc6f3f6393598b3f02e8009", CheckoutRules.DEFAULT);
+    then(changes).extracting("version").containsExactly("ee886e4adb70fbe3bdc6f3f6393598b3f02e8009", "ad4528ed5c84092fdbe9e0502163cf8d6e6141e7");
+  }
+
+
   public void collect_changes_after_cache_reset() throws Exception {
     GitVcsSupport git = git();
     VcsRoot root = vcsRoot().withFetchUrl(myRepo).build();
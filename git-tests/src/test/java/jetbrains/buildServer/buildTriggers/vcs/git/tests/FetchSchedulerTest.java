@@ -0,0 +1,139 @@
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import jetbrains.buildServer.buildTriggers.vcs.git.*;
+import jetbrains.buildServer.vcs.VcsOperationRejectedException;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+import org.mockito.Mockito;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.BDDAssertions.then;
+import static org.testng.Assert.fail;
+
+@Test
+public class FetchSchedulerTest {
+
+  private final File myDir = new File("clone.git");
+  private URIish myUrl;
+  private ReentrantLock myLock;
+  private FetchScheduler myScheduler;
+  private ExecutorService myExecutor;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myUrl = new URIish("https://some.org/repo.git");
+    myLock = new ReentrantLock();
+    RepositoryManager repositoryManager = Mockito.mock(RepositoryManager.class);
+    Mockito.doReturn(myLock).when(repositoryManager).getWriteLock(Mockito.any(File.class));
+    myScheduler = new FetchScheduler(repositoryManager, Mockito.mock(ServerPluginConfig.class));
+    myExecutor = Executors.newCachedThreadPool();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myExecutor.shutdownNow();
+  }
+
+  public void fetches_acquire_lock_in_order_of_priority() throws Exception {
+    List<FetchPriority> order = new CopyOnWriteArrayList<>();
+    myLock.lock();
+    Future<?> background = myExecutor.submit(() -> acquireAndRecord(FetchPriority.BACKGROUND, order));
+    waitForQueuedFetches();
+    Future<?> collectChanges = myExecutor.submit(() -> acquireAndRecord(FetchPriority.COLLECT_CHANGES, order));
+    Future<?> interactive = myExecutor.submit(() -> acquireAndRecord(FetchPriority.INTERACTIVE, order));
+    //let all fetches join the queue
+    Thread.sleep(500);
+    myLock.unlock();
+
+    background.get(10, TimeUnit.SECONDS);
+    collectChanges.get(10, TimeUnit.SECONDS);
+    interactive.get(10, TimeUnit.SECONDS);
+    then(order).containsExactly(FetchPriority.INTERACTIVE, FetchPriority.COLLECT_CHANGES, FetchPriority.BACKGROUND);
+  }
+
+  public void fetch_is_not_run_when_fetch_covering_it_completes() throws Exception {
+    myLock.lock();
+    Future<ReentrantLock> waiting = myExecutor.submit(() -> myScheduler.acquireUnlessFetched(myDir, myUrl, settings("+refs/heads/master:refs/heads/master")));
+    waitForQueuedFetches();
+
+    myScheduler.fetch(myDir, myUrl, settings("+refs/*:refs/*"), () -> {});
+
+    then(waiting.get(10, TimeUnit.SECONDS)).isNull();
+    myLock.unlock();
+  }
+
+  public void fetch_is_run_when_fetch_does_not_cover_it() throws Exception {
+    myLock.lock();
+    Future<ReentrantLock> waiting = myExecutor.submit(() -> {
+      ReentrantLock lock = myScheduler.acquireUnlessFetched(myDir, myUrl, settings("+refs/heads/master:refs/heads/master"));
+      if (lock != null)
+        lock.unlock();
+      return lock;
+    });
+    waitForQueuedFetches();
+
+    myScheduler.fetch(myDir, myUrl, settings("+refs/heads/feature:refs/heads/feature"), () -> {});
+    myLock.unlock();
+
+    then(waiting.get(10, TimeUnit.SECONDS)).isSameAs(myLock);
+  }
+
+  public void fetch_completed_before_request_does_not_cover_it() throws Exception {
+    myLock.lock();
+    myScheduler.fetch(myDir, myUrl, settings("+refs/*:refs/*"), () -> {});
+    Future<ReentrantLock> waiting = myExecutor.submit(() -> {
+      ReentrantLock lock = myScheduler.acquireUnlessFetched(myDir, myUrl, settings("+refs/heads/master:refs/heads/master"));
+      if (lock != null)
+        lock.unlock();
+      return lock;
+    });
+    waitForQueuedFetches();
+    myLock.unlock();
+
+    then(waiting.get(10, TimeUnit.SECONDS)).isSameAs(myLock);
+  }
+
+  public void should_fail_when_lock_is_not_acquired_in_time() throws Exception {
+    myLock.lock();
+    Future<?> waiting = myExecutor.submit(() -> myScheduler.acquire(myDir, myUrl, FetchPriority.INTERACTIVE, 1));
+    try {
+      waiting.get(10, TimeUnit.SECONDS);
+      fail("Lock acquired");
+    } catch (ExecutionException e) {
+      then(e.getCause()).isInstanceOf(VcsOperationRejectedException.class);
+    } finally {
+      myLock.unlock();
+    }
+    then(myScheduler.hasQueuedFetches(myDir)).isFalse();
+  }
+
+  private Void acquireAndRecord(FetchPriority priority, List<FetchPriority> order) throws Exception {
+    ReentrantLock lock = myScheduler.acquire(myDir, myUrl, priority, 0);
+    try {
+      order.add(priority);
+    } finally {
+      lock.unlock();
+    }
+    return null;
+  }
+
+  private void waitForQueuedFetches() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!myScheduler.hasQueuedFetches(myDir)) {
+      if (System.currentTimeMillis() > deadline)
+        fail("No queued fetches");
+      Thread.sleep(10);
+    }
+  }
+
+  private static FetchSettings settings(String refSpec) {
+    return new FetchSettings(Mockito.mock(AuthSettings.class), singletonList(new RefSpec(refSpec)));
+  }
+}
@@ -0,0 +1,82 @@
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.buildTriggers.vcs.git.*;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.impl.ssh.ConstantServerSshKnownHostsManager;
+import jetbrains.buildServer.ssh.VcsRootSshKeyManager;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.dataFile;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
+
+/**
+ * Compares latency of fetches into local bare repositories run in a process per fetch
+ * and in a pool of long-lived fetch processes.
+ * This test is not intended to be executed in CI
+ */
+public class FetcherDaemonPerformanceTests extends BaseTestCase {
+
+  private static final int FETCHES = 20;
+
+  @Test
+  public void fetchLatency() throws Exception {
+    final File remote = dataFile("repo.git");
+    final long[] spawn = measureFetches(remote, false);
+    final long[] daemon = measureFetches(remote, true);
+    System.out.println("process per fetch: " + describe(spawn));
+    System.out.println("fetcher daemons:   " + describe(daemon));
+  }
+
+  @NotNull
+  private long[] measureFetches(@NotNull File remote, boolean daemon) throws Exception {
+    final File clonesDir = createTempDir();
+    final ServerPaths sp = new ServerPaths(createTempDir().getAbsolutePath());
+    final ServerPluginConfig config = new PluginConfigBuilder(sp)
+      .setSeparateProcessForFetch(true)
+      .setFetcherDaemonEnabled(daemon)
+      .withFetcherProperties(Constants.ALLOW_FILE_URL, "true")
+      .build();
+    final VcsRootSshKeyManager sshKeyManager = new EmptyVcsRootSshKeyManager();
+    final ConstantServerSshKnownHostsManager knownHostsManager = new ConstantServerSshKnownHostsManager();
+    final FetchCommandImpl fetchCommand = new FetchCommandImpl(config, new TransportFactoryImpl(config, sshKeyManager, knownHostsManager),
+                                                               new FetcherProperties(config), sshKeyManager, knownHostsManager);
+    final URIish uri = new URIish(remote.toURI().toURL());
+    final AuthSettings auth = new AuthSettingsImpl(vcsRoot().withFetchUrl(uri.toString()).build(), new URIishHelperImpl());
+    final long[] durations = new long[FETCHES];
+    try {
+      for (int i = 0; i < FETCHES; i++) {
+        final Repository db = new RepositoryBuilder().setBare().setGitDir(new File(clonesDir, "clone" + i + ".git")).build();
+        db.create(true);
+        try {
+          final long start = System.nanoTime();
+          fetchCommand.fetch(db, uri, new FetchSettings(auth, Collections.singletonList(new RefSpec("+refs/*:refs/*"))));
+          durations[i] = (System.nanoTime() - start) / 1000000;
+        } finally {
+          db.close();
+        }
+      }
+    } finally {
+      fetchCommand.dispose();
+    }
+    return durations;
+  }
+
+  @NotNull
+  private static String describe(@NotNull long[] durations) {
+    final long[] sorted = durations.clone();
+    Arrays.sort(sorted);
+    return "first " + durations[0] + "ms" +
+           ", median " + sorted[sorted.length / 2] + "ms" +
+           ", p90 " + sorted[sorted.length * 9 / 10] + "ms" +
+           ", total " + Arrays.stream(durations).sum() + "ms";
+  }
+}
@@ -0,0 +1,208 @@
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import com.intellij.execution.configurations.GeneralCommandLine;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.LineAwareByteArrayOutputStream;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.*;
+import jetbrains.buildServer.buildTriggers.vcs.git.process.FetchProcessExecutor;
+import jetbrains.buildServer.buildTriggers.vcs.git.process.FetcherDaemonPool;
+import jetbrains.buildServer.buildTriggers.vcs.git.process.GitProcessExecutor;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.impl.ssh.ConstantServerSshKnownHostsManager;
+import jetbrains.buildServer.ssh.VcsRootSshKeyManager;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static jetbrains.buildServer.agent.ClasspathUtil.composeClasspath;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.dataFile;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class FetcherDaemonPoolTest {
+
+  private TempFiles myTempFiles;
+  private PluginConfigBuilder myConfig;
+  private FetcherDaemonPool myPool;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    myConfig = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()));
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    if (myPool != null)
+      myPool.dispose();
+    myTempFiles.cleanup();
+  }
+
+  public void fetch_in_daemon() throws Exception {
+    final ServerPluginConfig config = myConfig.setSeparateProcessForFetch(true)
+      .setFetcherDaemonEnabled(true)
+      .withFetcherProperties(Constants.ALLOW_FILE_URL, "true")
+      .build();
+    final VcsRootSshKeyManager sshKeyManager = new EmptyVcsRootSshKeyManager();
+    final ConstantServerSshKnownHostsManager knownHostsManager = new ConstantServerSshKnownHostsManager();
+    final FetchCommandImpl fetchCommand = new FetchCommandImpl(config, new TransportFactoryImpl(config, sshKeyManager, knownHostsManager),
+                                                               new FetcherProperties(config), sshKeyManager, knownHostsManager);
+    final File remoteDir = dataFile("repo.git");
+    final URIish uri = new URIish(remoteDir.toURI().toURL());
+    final AuthSettings auth = new AuthSettingsImpl(vcsRoot().withFetchUrl(uri.toString()).build(), new URIishHelperImpl());
+    final File clonesDir = myTempFiles.createTempDir();
+    try (Repository remote = new RepositoryBuilder().setBare().setGitDir(remoteDir).build()) {
+      final List<Ref> remoteBranches = remote.getRefDatabase().getRefsByPrefix("refs/heads/");
+      then(remoteBranches).isNotEmpty();
+      //the second fetch runs in the daemon started by the first one
+      for (int i = 0; i < 2; i++) {
+        try (Repository db = new RepositoryBuilder().setBare().setGitDir(new File(clonesDir, "clone" + i + ".git")).build()) {
+          db.create(true);
+          fetchCommand.fetch(db, uri, new FetchSettings(auth, Collections.singletonList(new RefSpec("+refs/heads/*:refs/heads/*"))));
+          for (Ref branch : remoteBranches) {
+            final Ref fetched = db.exactRef(branch.getName());
+            then(fetched).as(branch.getName()).isNotNull();
+            then(fetched.getObjectId()).isEqualTo(branch.getObjectId());
+          }
+        }
+      }
+    } finally {
+      fetchCommand.dispose();
+    }
+  }
+
+  public void daemon_is_reused_until_max_jobs() throws Exception {
+    myPool = new FetcherDaemonPool(myConfig.setFetcherDaemonMaxJobs(2).build());
+    final String daemon = getDaemon(fetch("pid"));
+    then(getDaemon(fetch("pid"))).isEqualTo(daemon);
+    then(getDaemon(fetch("pid"))).isNotEqualTo(daemon);
+  }
+
+  public void daemon_is_stopped_after_out_of_memory() throws Exception {
+    myPool = new FetcherDaemonPool(myConfig.build());
+    final String daemon = getDaemon(fetch("pid"));
+
+    final GitProcessExecutor.GitExecResult oom = fetch("oom");
+    then(oom.getExecResult().getExitCode()).isNotEqualTo(0);
+    then(oom.isOutOfMemoryError()).isTrue();
+    then(getDaemon(oom)).isEqualTo(daemon);
+
+    then(getDaemon(fetch("pid"))).isNotEqualTo(daemon);
+  }
+
+  public void daemon_is_stopped_after_interrupt() throws Exception {
+    myPool = new FetcherDaemonPool(myConfig.build());
+    final String daemon = getDaemon(fetch("pid"));
+
+    final FetchProcessExecutor executor = myPool.createExecutor(createCommandLine());
+    final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+    final ExecutorService fetchThread = Executors.newSingleThreadExecutor();
+    try {
+      final Future<GitProcessExecutor.GitExecResult> result = fetchThread.submit(
+        () -> executor.runProcess("progress:1:60000".getBytes(StandardCharsets.UTF_8), 60, stdout, new ByteArrayOutputStream(), new GitProcessExecutor.ProcessExecutorAdapter()));
+      //output is received before the fetch is finished
+      final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+      while (stdout.size() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      then(stdout.toString("UTF-8")).contains("Receiving objects: 100%");
+      executor.interrupt();
+
+      final GitProcessExecutor.GitExecResult interrupted = result.get(30, TimeUnit.SECONDS);
+      then(interrupted.isInterrupted()).isTrue();
+      then(interrupted.getExecResult().getExitCode()).isNotEqualTo(0);
+    } finally {
+      fetchThread.shutdownNow();
+    }
+
+    then(getDaemon(fetch("pid"))).isNotEqualTo(daemon);
+  }
+
+  public void output_resets_fetch_idle_timeout() throws Exception {
+    myPool = new FetcherDaemonPool(myConfig.build());
+    final List<String> stages = Collections.synchronizedList(new ArrayList<>());
+    final ByteArrayOutputStream stdout = new LineAwareByteArrayOutputStream(StandardCharsets.UTF_8, new JGitProgressParser(new GitProgress() {
+      @Override
+      public void reportProgress(@NotNull String progress) {
+      }
+
+      @Override
+      public void reportProgress(float progressPercents, @NotNull String stage) {
+        stages.add(stage + " " + progressPercents);
+      }
+    }));
+
+    //the fetch takes 4 seconds, but produces output every half a second
+    final GitProcessExecutor.GitExecResult result = fetch("progress:8:500", 2, stdout);
+    then(result.isTimeout()).isFalse();
+    then(result.getExecResult().getExitCode()).isEqualTo(0);
+    then(stages).contains("Receiving objects 0.5", "Receiving objects 1.0");
+  }
+
+  public void daemon_without_output_is_stopped_after_fetch_idle_timeout() throws Exception {
+    myPool = new FetcherDaemonPool(myConfig.build());
+    final String daemon = getDaemon(fetch("pid"));
+
+    final GitProcessExecutor.GitExecResult result = fetch("sleep:60000", 1, new ByteArrayOutputStream());
+    then(result.isTimeout()).isTrue();
+
+    then(getDaemon(fetch("pid"))).isNotEqualTo(daemon);
+  }
+
+  public void idle_daemons_are_stopped() throws Exception {
+    myPool = new FetcherDaemonPool(myConfig.setFetcherDaemonIdleTimeoutSeconds(1).build());
+    final String daemon = getDaemon(fetch("pid"));
+    //the watchdog checks idle daemons every second when idle timeout is 1 second
+    Thread.sleep(TimeUnit.SECONDS.toMillis(3));
+    then(getDaemon(fetch("pid"))).isNotEqualTo(daemon);
+  }
+
+  @NotNull
+  private GitProcessExecutor.GitExecResult fetch(@NotNull String command) throws Exception {
+    final GitProcessExecutor.GitExecResult result = fetch(command, 60, new ByteArrayOutputStream());
+    if (!"oom".equals(command))
+      then(result.getExecResult().getExitCode()).as(result.getExecResult().getStderr()).isEqualTo(0);
+    return result;
+  }
+
+  @NotNull
+  private GitProcessExecutor.GitExecResult fetch(@NotNull String command, int idleTimeoutSeconds, @NotNull ByteArrayOutputStream stdout) throws Exception {
+    return myPool.createExecutor(createCommandLine())
+                 .runProcess(command.getBytes(StandardCharsets.UTF_8), idleTimeoutSeconds, stdout, new ByteArrayOutputStream(),
+                             new GitProcessExecutor.ProcessExecutorAdapter());
+  }
+
+  @NotNull
+  private GeneralCommandLine createCommandLine() {
+    final ServerPluginConfig config = myConfig.build();
+    final GeneralCommandLine cl = new GeneralCommandLine();
+    cl.setExePath(config.getFetchProcessJavaPath());
+    cl.addParameters("-cp", config.getFetchClasspath() + File.pathSeparator + composeClasspath(new Class[]{MockFetcherDaemon.class}, null, null),
+                     MockFetcherDaemon.class.getName());
+    return cl;
+  }
+
+  /**
+   * @return name of the daemon process which ran the fetch
+   */
+  @NotNull
+  private static String getDaemon(@NotNull GitProcessExecutor.GitExecResult result) {
+    final String[] lines = result.getExecResult().getStdout().trim().split("\n");
+    return lines[lines.length - 1].trim();
+  }
+}
@@ -0,0 +1,95 @@
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.GcState;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class GcStateTest {
+
+  private static final long MAX_AGE = TimeUnit.DAYS.toMillis(7);
+  private TempFiles myTempFiles;
+  private File myGitDir;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    myGitDir = myTempFiles.createTempDir();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+  public void no_state() {
+    then(GcState.read(myGitDir)).isNull();
+  }
+
+  public void state_is_persisted() throws Exception {
+    long gcTime = System.currentTimeMillis();
+    GcState.update(myGitDir, state -> state.gcFinished(gcTime, GcState.Outcome.SUCCESS, 2, 512));
+
+    GcState state = GcState.read(myGitDir);
+    then(state).isNotNull();
+    then(state.getLastGcTime()).isEqualTo(gcTime);
+    then(state.getOutcome()).isEqualTo(GcState.Outcome.SUCCESS);
+    then(state.getPackCount()).isEqualTo(2);
+    then(state.getLooseObjectsEstimate()).isEqualTo(512);
+    then(state.getFetchesSinceGc()).isEqualTo(0);
+    then(state.isChangedSinceGc(MAX_AGE)).isFalse();
+  }
+
+  public void added_objects_make_repository_changed() throws Exception {
+    GcState.update(myGitDir, state -> state.gcFinished(System.currentTimeMillis() - 1000, GcState.Outcome.NOT_NEEDED, 1, 0));
+
+    GcState.objectsAdded(myGitDir);
+    GcState.objectsAdded(myGitDir);
+
+    GcState state = GcState.read(myGitDir);
+    then(state.getFetchesSinceGc()).isEqualTo(2);
+    then(state.isChangedSinceGc(MAX_AGE)).isTrue();
+  }
+
+  public void failed_gc_is_retried() throws Exception {
+    GcState.update(myGitDir, state -> state.gcFinished(System.currentTimeMillis(), GcState.Outcome.FAILED, 60, 0));
+    then(GcState.read(myGitDir).isChangedSinceGc(MAX_AGE)).isTrue();
+  }
+
+  public void old_state_is_checked() throws Exception {
+    GcState.update(myGitDir, state -> state.gcFinished(System.currentTimeMillis() - 2 * MAX_AGE, GcState.Outcome.NOT_NEEDED, 1, 0));
+    then(GcState.read(myGitDir).isChangedSinceGc(MAX_AGE)).isTrue();
+  }
+
+  public void initial_fetch_does_not_need_full_gc() {
+    GcState.objectsAdded(myGitDir);
+    then(GcState.read(myGitDir).isFullGcNeeded(MAX_AGE)).isFalse();
+  }
+
+  public void full_gc_is_needed_when_unknown_or_old() throws Exception {
+    GcState.update(myGitDir, state -> state.gcFinished(System.currentTimeMillis(), GcState.Outcome.SUCCESS, 1, 0));
+    GcState.objectsAdded(myGitDir);
+    then(GcState.read(myGitDir).isFullGcNeeded(MAX_AGE)).isTrue();
+
+    GcState.update(myGitDir, state -> state.fullGcFinished(System.currentTimeMillis() - 2 * MAX_AGE));
+    then(GcState.read(myGitDir).isFullGcNeeded(MAX_AGE)).isTrue();
+
+    long fullGcTime = System.currentTimeMillis();
+    GcState.update(myGitDir, state -> state.fullGcFinished(fullGcTime));
+    GcState state = GcState.read(myGitDir);
+    then(state.getLastFullGcTime()).isEqualTo(fullGcTime);
+    then(state.isFullGcNeeded(MAX_AGE)).isFalse();
+  }
+
+  public void broken_state_is_ignored() throws Exception {
+    FileUtil.writeFileAndReportErrors(new File(myGitDir, GcState.FILE_NAME), "outcome=UNKNOWN");
+    then(GcState.read(myGitDir)).isNull();
+  }
+}
@@ -26,6 +26,7 @@ import jetbrains.buildServer.vcs.*;
 import org.assertj.core.groups.Tuple;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryBuilder;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -86,6 +87,37 @@ public class GitCommitSupportTest extends BaseRemoteRepositoryTest {
     assertEquals("file-to-commit", m.getChanges().get(0).getFileName());
   }
 
+  public void roots_of_same_repository_share_remote_refs_until_commit() throws Exception {
+    GitSupportBuilder builder = gitSupport().withServerPaths(myPaths)
+                                            .withPluginConfig(new PluginConfigBuilder(myPaths).setRemoteRefsCacheTtlMillis(60 * 60 * 1000L));
+    GitVcsSupport git = builder.build();
+    CommitSupport commitSupport = new GitCommitSupport(git, builder.getCommitLoader(), builder.getRepositoryManager(), myGitRepoOperations);
+    VcsRoot otherRoot = vcsRoot().withFetchUrl(getRemoteRepositoryDir("merge")).withBranchSpec("+:refs/heads/*").build();
+
+    RepositoryStateData state1 = git.getCurrentState(myRoot);
+
+    Repository remote = new RepositoryBuilder().setGitDir(getRemoteRepositoryDir("merge")).build();
+    try {
+      RefUpdate update = remote.updateRef("refs/heads/shared-refs");
+      update.setNewObjectId(ObjectId.fromString(state1.getBranchRevisions().get(state1.getDefaultBranchName())));
+      then(update.update()).isEqualTo(RefUpdate.Result.NEW);
+    } finally {
+      remote.close();
+    }
+    //remote refs listed for the first root are reused
+    then(git.getCurrentState(otherRoot).getBranchRevisions()).doesNotContainKey("refs/heads/shared-refs");
+
+    CommitPatchBuilder patchBuilder = commitSupport.getCommitPatchBuilder(myRoot);
+    patchBuilder.createFile("file-to-commit", new ByteArrayInputStream("test-content".getBytes()));
+    String createdRevision = patchBuilder.commit(new CommitSettingsImpl("user", "Commit description")).getCreatedRevision();
+    patchBuilder.dispose();
+
+    //commit resets shared refs
+    RepositoryStateData state2 = git.getCurrentState(otherRoot);
+    then(state2.getBranchRevisions()).containsKey("refs/heads/shared-refs");
+    then(state2.getBranchRevisions().get(state2.getDefaultBranchName())).isEqualTo(createdRevision);
+  }
+
   public void test_fetch_updates_local_clone() throws Exception {
     RepositoryStateData state1 = myGit.getCurrentState(myRoot);
 
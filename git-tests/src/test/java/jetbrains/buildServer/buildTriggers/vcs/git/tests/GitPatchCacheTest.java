@@ -0,0 +1,75 @@
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import com.intellij.openapi.util.io.StreamUtil;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.patch.GitPatchCache;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.CheckoutRules;
+import org.eclipse.jgit.lib.ObjectId;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.PluginConfigBuilder.pluginConfig;
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class GitPatchCacheTest {
+
+  private TempFiles myTempFiles;
+  private File myRepositoryDir;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    myRepositoryDir = myTempFiles.createTempDir();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+  public void patch_is_deleted_after_its_reader_finishes() throws Exception {
+    //the cache fits only one patch
+    GitPatchCache cache = new GitPatchCache(pluginConfig().setTempFiles(myTempFiles).setPatchCacheMaxSizeBytes(10).build());
+    String key1 = key("a894d7d58ffde625019a9ecf8267f5f1d1e5c341");
+    String key2 = key("3b9fbfbb43e7edfad018b482e15e7f93cca4e69f");
+    cache.readPatch(myRepositoryDir, key1, f -> FileUtil.writeFileAndReportErrors(f, "patch1"), patch -> {});
+
+    File[] readPatch = new File[1];
+    cache.readPatch(myRepositoryDir, key1, f -> { throw new AssertionError("Cached patch should be used"); }, patch -> {
+      readPatch[0] = getCachedPatches()[0];
+      //evicts the patch being read
+      cache.readPatch(myRepositoryDir, key2, f -> FileUtil.writeFileAndReportErrors(f, "patch2"), p -> then(read(p)).isEqualTo("patch2"));
+      then(readPatch[0]).exists();
+      then(read(patch)).isEqualTo("patch1");
+    });
+
+    then(readPatch[0]).doesNotExist();
+    then(getCachedPatches()).hasSize(1);
+    cache.readPatch(myRepositoryDir, key2, f -> { throw new AssertionError("Cached patch should be used"); }, p -> then(read(p)).isEqualTo("patch2"));
+  }
+
+  public void key_depends_on_commits() {
+    then(key("a894d7d58ffde625019a9ecf8267f5f1d1e5c341")).isEqualTo(key("a894d7d58ffde625019a9ecf8267f5f1d1e5c341"));
+    then(key("a894d7d58ffde625019a9ecf8267f5f1d1e5c341")).isNotEqualTo(key("3b9fbfbb43e7edfad018b482e15e7f93cca4e69f"));
+  }
+
+  private File[] getCachedPatches() {
+    File[] patches = new File(myRepositoryDir, "caches" + File.separator + "patches").listFiles((dir, name) -> name.endsWith(".patch"));
+    return patches != null ? patches : new File[0];
+  }
+
+  private static String key(String commit) {
+    return GitPatchCache.getKey(null, ObjectId.fromString(commit), CheckoutRules.DEFAULT, Collections.emptyMap());
+  }
+
+  private static String read(InputStream patch) throws Exception {
+    return new String(StreamUtil.loadFromStream(patch), StandardCharsets.UTF_8);
+  }
+}
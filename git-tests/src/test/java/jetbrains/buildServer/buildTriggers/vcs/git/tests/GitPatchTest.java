@@ -5,6 +5,8 @@ package jetbrains.buildServer.buildTriggers.vcs.git.tests;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import jetbrains.buildServer.ExtensionHolder;
 import jetbrains.buildServer.buildTriggers.vcs.git.Constants;
@@ -15,6 +17,7 @@ import jetbrains.buildServer.buildTriggers.vcs.git.tests.util.BaseGitPatchTestCa
 import jetbrains.buildServer.serverSide.BasePropertiesModel;
 import jetbrains.buildServer.serverSide.ServerPaths;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.TestFor;
 import jetbrains.buildServer.util.cache.ResetCacheHandler;
 import jetbrains.buildServer.util.cache.ResetCacheRegister;
@@ -39,6 +42,7 @@ import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilde
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.copyRepository;
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.dataFile;
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
+import static org.assertj.core.api.BDDAssertions.then;
 
 @Test
 public class GitPatchTest extends BaseGitPatchTestCase {
@@ -190,6 +194,56 @@ public class GitPatchTest extends BaseGitPatchTestCase {
   }
 
 
+  @Test(dataProvider = "patchInSeparateProcess")
+  public void patches_with_blobs_loaded_in_advance(boolean patchInSeparateProcess) throws IOException, VcsException {
+    myConfigBuilder.setSeparateProcessForPatch(patchInSeparateProcess);
+    setInternalProperty("teamcity.git.patch.blobLoad.threads", "3");
+    setInternalProperty("teamcity.git.patch.blobLoad.batchSize", "2");
+    checkPatch("cleanPatch1", null, "a894d7d58ffde625019a9ecf8267f5f1d1e5c341");
+    checkPatch("patch1", "70dbcf426232f7a33c7e5ebdfbfb26fc8c467a46", "0dd03338d20d2e8068fbac9f24899d45d443df38");
+    checkPatch("patch3", null, "1837cf38309496165054af8bf7d62a9fe8997202");
+    checkPatch("submodule-added", "patch-tests", "592c5bcee6d906482177a62a6a44efa0cff9bbc7", "b5d65401a4e8a09b80b8d73ca4392f1913e99ff5", true);
+  }
+
+
+  @Test(dataProvider = "patchInSeparateProcess")
+  public void should_reuse_cached_patch(boolean patchInSeparateProcess) throws Exception {
+    myConfigBuilder.setSeparateProcessForPatch(patchInSeparateProcess);
+    myConfigBuilder.setPatchCacheMaxSizeBytes(1024 * 1024 * 1024L);
+    checkPatch("cleanPatch1", null, "a894d7d58ffde625019a9ecf8267f5f1d1e5c341");
+    List<File> cleanPatch = getCachedPatches();
+    then(cleanPatch).hasSize(1);
+
+    checkPatch("patch1", "70dbcf426232f7a33c7e5ebdfbfb26fc8c467a46", "0dd03338d20d2e8068fbac9f24899d45d443df38");
+    List<File> incrementalPatch = getCachedPatches();
+    incrementalPatch.removeAll(cleanPatch);
+    then(incrementalPatch).hasSize(1);
+
+    //replace the cached patch to make sure it is used instead of building a new one
+    FileUtil.copy(cleanPatch.get(0), incrementalPatch.get(0));
+    setName("cleanPatch1");
+    GitVcsSupport support = getSupport();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    PatchBuilderImpl builder = new PatchBuilderImpl(output);
+    support.buildPatch(getRoot("patch-tests"), "70dbcf426232f7a33c7e5ebdfbfb26fc8c467a46", "0dd03338d20d2e8068fbac9f24899d45d443df38", builder, CheckoutRules.DEFAULT);
+    builder.close();
+    checkPatchResult(output.toByteArray());
+
+    //a patch with different checkout rules is built again
+    support.buildPatch(getRoot("patch-tests"), "70dbcf426232f7a33c7e5ebdfbfb26fc8c467a46", "0dd03338d20d2e8068fbac9f24899d45d443df38",
+                       new PatchBuilderImpl(new ByteArrayOutputStream()), new CheckoutRules("-:dir"));
+    then(getCachedPatches()).hasSize(3);
+  }
+
+
+  @Test
+  public void should_not_cache_patches_when_cache_is_disabled() throws Exception {
+    myConfigBuilder.setPatchCacheMaxSizeBytes(0);
+    checkPatch("cleanPatch1", null, "a894d7d58ffde625019a9ecf8267f5f1d1e5c341");
+    then(getCachedPatches()).isEmpty();
+  }
+
+
   @Test(dataProvider = "patchInSeparateProcess")
   public void build_patch_from_later_revision_to_earlier(boolean patchInSeparateProcess) throws Exception {
     myConfigBuilder.setSeparateProcessForPatch(patchInSeparateProcess);
@@ -340,6 +394,20 @@ public class GitPatchTest extends BaseGitPatchTestCase {
   }
 
 
+  @NotNull
+  private List<File> getCachedPatches() {
+    List<File> result = new ArrayList<File>();
+    File[] mirrors = myConfigBuilder.build().getCachesDir().listFiles();
+    if (mirrors == null)
+      return result;
+    for (File mirror : mirrors) {
+      File[] patches = new File(mirror, "caches" + File.separator + "patches").listFiles((dir, name) -> name.endsWith(".patch"));
+      if (patches != null)
+        result.addAll(asList(patches));
+    }
+    return result;
+  }
+
   private GitVcsSupport getSupport() {
     return getSupport(null);
   }
@@ -108,6 +108,29 @@ public class GitPerformanceTests extends BaseTestCase {
     runCleanCheckout(root, support, "395c1639ee346816048b1b74cec83ab4dd162451");
   }
 
+  @Test
+  public void sequentialVsParallelCollectChanges() throws Exception {
+    final VcsRootImpl root = VcsRootBuilder.vcsRoot().withFetchUrl("E:\\Work\\idea-ultimate").build();
+    final String fromRevision = "395c1639ee346816048b1b74cec83ab4dd162451";
+    final ServerPaths sp = new ServerPaths(createTempDir().getPath());
+
+    for (int parallelism : new int[]{1, 2, 4, 8}) {
+      //new support for every run, otherwise changes would be taken from the commit changes cache
+      GitVcsSupport support = GitSupportBuilder
+        .gitSupport()
+        .withServerPaths(sp)
+        .withPluginConfig(new PluginConfigBuilder(sp).setCollectChangesParallelism(parallelism).build())
+        .build();
+      RepositoryStateData s = support.getCurrentState(root);
+      final String toRevision = s.getBranchRevisions().get(s.getDefaultBranchName());
+
+      final long startTime = new Date().getTime();
+      int changes = support.collectChanges(root, fromRevision, toRevision, CheckoutRules.DEFAULT).size();
+      final long totalTime = new Date().getTime() - startTime;
+      System.out.println("Parallelism " + parallelism + ": collected " + changes + " changes in " + totalTime + "ms");
+    }
+  }
+
   private void runCleanCheckout(@NotNull final VcsRootImpl root,
                                 @NotNull final GitVcsSupport support,
                                 @NotNull final String state) {
@@ -4,6 +4,13 @@ package jetbrains.buildServer.buildTriggers.vcs.git.tests;
 
 import jetbrains.buildServer.TempFiles;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitServerUtil;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitVcsRoot;
+import jetbrains.buildServer.buildTriggers.vcs.git.HashCalculatorImpl;
+import jetbrains.buildServer.buildTriggers.vcs.git.MirrorManager;
+import jetbrains.buildServer.buildTriggers.vcs.git.MirrorManagerImpl;
+import jetbrains.buildServer.buildTriggers.vcs.git.RemoteRepositoryUrlInvestigatorImpl;
+import jetbrains.buildServer.buildTriggers.vcs.git.URIishHelperImpl;
+import jetbrains.buildServer.serverSide.ServerPaths;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.TestFor;
 import jetbrains.buildServer.vcs.VcsException;
@@ -15,6 +22,11 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
 
 /**
  * @author dmitry.neverov
@@ -71,4 +83,23 @@ public class GitServerUtilTest extends TestCase {
       //expected
     }
   }
-}
\ No newline at end of file
+
+
+  public void current_state_ref_prefixes() throws Exception {
+    File dir = myTempFiles.createTempDir();
+    MirrorManager mirrorManager = new MirrorManagerImpl(new PluginConfigBuilder(new ServerPaths(dir.getAbsolutePath())).build(),
+                                                        new HashCalculatorImpl(), new RemoteRepositoryUrlInvestigatorImpl());
+
+    GitVcsRoot root = new GitVcsRoot(mirrorManager, vcsRoot().withFetchUrl("http://some.org/repo.git").withBranch("master")
+      .withBranchSpec("+:refs/heads/*\n-:refs/heads/tmp/*\n+:<default>").build(), new URIishHelperImpl());
+    assertEquals(Collections.singleton("refs/heads/"), GitServerUtil.getCurrentStateRefPrefixes(root));
+
+    root = new GitVcsRoot(mirrorManager, vcsRoot().withFetchUrl("http://some.org/repo.git").withBranch("master")
+      .withBranchSpec("+:refs/heads/release-*").withReportTags(true).build(), new URIishHelperImpl());
+    assertEquals(new HashSet<>(Arrays.asList("refs/heads/", "refs/tags/")), GitServerUtil.getCurrentStateRefPrefixes(root));
+
+    root = new GitVcsRoot(mirrorManager, vcsRoot().withFetchUrl("http://some.org/repo.git").withBranch("master")
+      .withBranchSpec("+:refs/heads/*\n+:refs/pull/*/head").build(), new URIishHelperImpl());
+    assertTrue("All refs are required for pull requests", GitServerUtil.getCurrentStateRefPrefixes(root).isEmpty());
+  }
+}
@@ -15,6 +15,7 @@ import jetbrains.buildServer.*;
 import jetbrains.buildServer.agent.ClasspathUtil;
 import jetbrains.buildServer.buildTriggers.vcs.git.*;
 import jetbrains.buildServer.buildTriggers.vcs.git.FetchCommandImpl;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentGitFacadeImpl;
 import jetbrains.buildServer.buildTriggers.vcs.git.command.GitCommandLine;
 import jetbrains.buildServer.buildTriggers.vcs.git.command.credentials.ScriptGen;
 import jetbrains.buildServer.buildTriggers.vcs.git.command.impl.*;
@@ -45,7 +46,9 @@ import org.eclipse.jgit.errors.TransportException;
 import org.eclipse.jgit.internal.storage.file.LockFile;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
 import org.eclipse.jgit.transport.FetchConnection;
 import org.eclipse.jgit.transport.PushConnection;
 import org.eclipse.jgit.transport.Transport;
@@ -739,6 +742,68 @@ public class GitVcsSupportTest extends BaseGitPatchTestCase {
   }
 
 
+  @Test
+  public void native_ls_remote_should_request_only_branches_and_tags() throws Exception {
+    skipIfProtocolV2IsNotSupported();
+    setInternalProperty("teamcity.git.nativeOperationsEnabled", "true");
+    File trace = new File(myTmpDir, "git-trace.txt");
+    myConfigBuilder.setGitTraceEnv(map("GIT_TRACE", trace.getAbsolutePath(), "GIT_TRACE_PACKET", trace.getAbsolutePath()));
+    createRef("refs/pull/1/head", "master");
+
+    VcsRoot root = vcsRoot().withFetchUrl(GitUtils.toURL(myMainRepositoryDir))
+      .withBranch("master")
+      .withBranchSpec("+:refs/heads/*")
+      .withReportTags(true)
+      .build();
+    RepositoryStateData state = getSupport().getCurrentState(root);
+
+    then(state.getBranchRevisions()).containsKey("refs/heads/master").doesNotContainKey("refs/pull/1/head");
+    String gitTrace = FileUtil.readText(trace);
+    then(gitTrace).contains("ls-remote --heads --tags");
+    //the server advertises only refs with the requested prefixes
+    then(gitTrace).contains("version 2").contains("ref-prefix refs/heads/").contains("ref-prefix refs/tags/").doesNotContain("refs/pull/1/head");
+  }
+
+
+  @Test
+  public void native_ls_remote_should_list_all_refs_for_branch_spec_outside_branches_and_tags() throws Exception {
+    skipIfProtocolV2IsNotSupported();
+    setInternalProperty("teamcity.git.nativeOperationsEnabled", "true");
+    File trace = new File(myTmpDir, "git-trace.txt");
+    myConfigBuilder.setGitTraceEnv(map("GIT_TRACE", trace.getAbsolutePath(), "GIT_TRACE_PACKET", trace.getAbsolutePath()));
+    String pullRequestCommit = createRef("refs/pull/1/head", "master");
+
+    VcsRoot root = vcsRoot().withFetchUrl(GitUtils.toURL(myMainRepositoryDir))
+      .withBranch("master")
+      .withBranchSpec("+:refs/heads/*\n+:refs/pull/*/head")
+      .build();
+    RepositoryStateData state = getSupport().getCurrentState(root);
+
+    then(state.getBranchRevisions()).containsEntry("refs/pull/1/head", pullRequestCommit).containsKey("refs/heads/master");
+    String gitTrace = FileUtil.readText(trace);
+    then(gitTrace).contains("ls-remote").doesNotContain("--heads").doesNotContain("ref-prefix");
+  }
+
+
+  private void skipIfProtocolV2IsNotSupported() throws VcsException {
+    GitVersion version = new AgentGitFacadeImpl(myConfigBuilder.build().getPathToGit()).version().call();
+    if (version.isLessThan(new GitVersion(2, 18, 0)))
+      throw new SkipException("Git version " + version + " doesn't support protocol v2");
+  }
+
+
+  @NotNull
+  private String createRef(@NotNull String refName, @NotNull String target) throws IOException {
+    try (Repository r = new RepositoryBuilder().setGitDir(myMainRepositoryDir).setBare().build()) {
+      ObjectId commit = r.resolve(target);
+      RefUpdate update = r.updateRef(refName);
+      update.setNewObjectId(commit);
+      update.forceUpdate();
+      return commit.name();
+    }
+  }
+
+
   @Test
   @TestFor(issues = "TW-17910")
   public void fetch_process_should_respect_fetch_timeout() throws Exception {
@@ -1382,7 +1447,7 @@ public class GitVcsSupportTest extends BaseGitPatchTestCase {
 
       @NotNull
       @Override
-      public File generateCredentialHelper() throws IOException {
+      public File generateCredentialHelper(boolean deleteOnErase) throws IOException {
         return createTempFile();
       }
     };
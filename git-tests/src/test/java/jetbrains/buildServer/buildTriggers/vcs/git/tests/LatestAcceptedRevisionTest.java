@@ -6,7 +6,10 @@ import java.io.File;
 import java.util.*;
 import jetbrains.buildServer.TestLogger;
 import jetbrains.buildServer.buildTriggers.vcs.git.*;
+import jetbrains.buildServer.buildTriggers.vcs.git.command.impl.GitFacadeImpl;
 import jetbrains.buildServer.buildTriggers.vcs.git.command.impl.GitRepoOperationsImpl;
+import jetbrains.buildServer.buildTriggers.vcs.git.command.impl.StubContext;
+import jetbrains.buildServer.serverSide.IOGuard;
 import jetbrains.buildServer.serverSide.ServerPaths;
 import jetbrains.buildServer.vcs.CheckoutRules;
 import jetbrains.buildServer.vcs.RepositoryStateData;
@@ -15,6 +18,7 @@ import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
 import org.apache.log4j.Level;
 import org.jetbrains.annotations.NotNull;
+import org.testng.SkipException;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -28,6 +32,8 @@ public class LatestAcceptedRevisionTest extends BaseRemoteRepositoryTest {
   private File myRepo;
   private GitCollectChangesPolicy myCollectChangesPolicy;
   private GitVcsSupport myGit;
+  private PluginConfigBuilder myPluginConfig;
+  private RevisionsCache myRevisionsCache;
 
   public LatestAcceptedRevisionTest() {
     super("repo_for_checkout_rules");
@@ -39,12 +45,13 @@ public class LatestAcceptedRevisionTest extends BaseRemoteRepositoryTest {
     super.setUp();
     TestLogger logger = new TestLogger();
     logger.setLogLevel(Level.INFO);
-    PluginConfigBuilder pluginConfig = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()))
+    myPluginConfig = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()))
       .setFetchAllRefsEnabled(true);
     myRepo = getRemoteRepositoryDir("repo_for_checkout_rules");
 
-    GitSupportBuilder gitSupportBuilder = gitSupport().withPluginConfig(pluginConfig.build());
+    GitSupportBuilder gitSupportBuilder = gitSupport().withPluginConfig(myPluginConfig.build());
     myGit = gitSupportBuilder.build();
+    myRevisionsCache = gitSupportBuilder.getMapFullPath().getRevisionsCache();
 
     setInternalProperty(GitCollectChangesPolicy.REVISION_BY_CHECKOUT_RULES_USE_LOG_COMMAND, "true");
   }
@@ -144,6 +151,46 @@ public class LatestAcceptedRevisionTest extends BaseRemoteRepositoryTest {
     then(rev.getRevision()).isEqualTo("a4bc5909156143a5590adadb2c20eaf71f2a3f8f");
   }
 
+  public void search_by_path_with_commit_graph_bloom_filters() throws Exception {
+    setInternalProperty(GitCollectChangesPolicy.REVISION_BY_CHECKOUT_RULES_USE_LOG_COMMAND, "false");
+    VcsRoot root = getVcsRootBuilder().build();
+    ensureFetchPerformed(root, "refs/heads/br1", "d5a9a3c51fd53b1aec5e3746f521dc78355d7c78");
+    ensureFetchPerformed(root, "refs/heads/master", "b304522994197be5f336d58cc34edc11cbda095e");
+
+    File cloneDir;
+    OperationContext context = myGit.createContext(root, "write commit-graph");
+    try {
+      cloneDir = context.getGitRoot().getRepositoryDir();
+    } finally {
+      context.close();
+    }
+    try {
+      IOGuard.allowCommandLine(() -> new GitFacadeImpl(cloneDir, new StubContext("git")).commitGraph().setWriteCommand().setReachable().setChangedPaths().call());
+    } catch (Exception e) {
+      throw new SkipException("Cannot write commit-graph with changed paths: " + e.getMessage());
+    }
+    then(new File(cloneDir, "objects/info/commit-graph")).exists();
+
+    for (String useCommitGraph : new String[]{"true", "false"}) {
+      setInternalProperty(CheckoutRulesRevWalk.USE_COMMIT_GRAPH_PROP, useCommitGraph);
+      myRevisionsCache.reset();
+      Result rev = computeRevisionByCheckoutRulesWithEnabledCache(root, new CheckoutRules("+:src"),
+                                                                  "d5a9a3c51fd53b1aec5e3746f521dc78355d7c78", "refs/heads/br1",
+                                                                  Collections.emptySet());
+      then(rev.getRevision()).isEqualTo("a4bc5909156143a5590adadb2c20eaf71f2a3f8f");
+
+      rev = computeRevisionByCheckoutRulesWithEnabledCache(root, new CheckoutRules("+:test"),
+                                                           "bb6ab65d23fa0ffbaa61d44c8241f127cf0f323f", "refs/heads/br1",
+                                                           Collections.emptySet());
+      then(rev.getRevision()).isEqualTo("b265fd1608fe17f912a031312e1efc758c4e8a35");
+
+      rev = computeRevisionByCheckoutRulesWithEnabledCache(root, new CheckoutRules("+:src"),
+                                                           "b304522994197be5f336d58cc34edc11cbda095e", "refs/heads/master",
+                                                           Collections.emptySet());
+      then(rev.getRevision()).isEqualTo("bb6ab65d23fa0ffbaa61d44c8241f127cf0f323f");
+    }
+  }
+
   @Test(dataProvider = "nativeGit")
   public void branch_merged_to_master(boolean withNativeGit) throws VcsException {
     setInternalProperty(GitRepoOperationsImpl.GIT_NATIVE_OPERATIONS_ENABLED, String.valueOf(withNativeGit));
@@ -403,6 +450,41 @@ public class LatestAcceptedRevisionTest extends BaseRemoteRepositoryTest {
     then(visited).containsOnly("6399724fac6ec9c62e8795fc037ad385e873911f", "a2b61002b849eeff94900ba4ddfae4aeb5ea7ded", "bca91c783ab7431c83f2b8ebe0e45381662cf33b", "e19e0ffec0a1512674db95ade28047fbfba76fdf", "7e4a8739b038b5b3e551c96dc3a2ef6320772969", "8fc8c2a8baf37a71a2cdd0c2b0cd1eedfd1649e8", "6394695f179d87f7f5fc712e12dfac0ed0d98652", "45f1b9531036c9f700cd21c24c1e61cedc44f5a1", "658e25230fd75975a2491945ac2664e10aec4f23", "a9a11243032a529274e7d8599ba8a6bf55a89e91", "1c143dd503f3abe5bf17a01f003ca4f601a6473c", "dee82b6bb7c77fb35c995f5bab7ce56fbeb339d9", "bcd19bdf351b6a64ad1d9a5ce3edc19bf4797db8");
   }
 
+  public void should_reuse_result_memoized_for_ancestor_of_start_revision() throws Exception {
+    myPluginConfig.setPersistentCacheEnabled(true);
+    // the result for the descendant can be found within the limit only if the walk stops at the memoized commit
+    setInternalProperty(CheckoutRulesRevWalk.TEAMCITY_MAX_CHECKED_COMMITS_PROP, "3");
+    VcsRoot root = getVcsRootBuilder().build();
+    ensureFetchPerformed(root, "refs/heads/br1", "bb6ab65d23fa0ffbaa61d44c8241f127cf0f323f");
+
+    Result rev = getCollectChangesPolicy().getLatestRevisionAcceptedByCheckoutRules(root, new CheckoutRules("+:src"),
+                                                                                    "d5a9a3c51fd53b1aec5e3746f521dc78355d7c78", "refs/heads/br1",
+                                                                                    Collections.emptySet());
+    then(rev.getRevision()).isEqualTo("a4bc5909156143a5590adadb2c20eaf71f2a3f8f");
+
+    Set<String> visited = new HashSet<>();
+    rev = getCollectChangesPolicy().getLatestRevisionAcceptedByCheckoutRules(root, new CheckoutRules("+:src"),
+                                                                             "b265fd1608fe17f912a031312e1efc758c4e8a35", "refs/heads/br1",
+                                                                             Collections.emptySet(), visited);
+    then(rev.getRevision()).isEqualTo("a4bc5909156143a5590adadb2c20eaf71f2a3f8f");
+    then(visited).containsOnly("b265fd1608fe17f912a031312e1efc758c4e8a35", "182c0be19f520ad2e3125554323c800ccf9658fd",
+                               "d5a9a3c51fd53b1aec5e3746f521dc78355d7c78", "a4bc5909156143a5590adadb2c20eaf71f2a3f8f");
+
+    // memo is persisted in the clone
+    GitSupportBuilder restartedSupportBuilder = gitSupport().withPluginConfig(myPluginConfig.build());
+    GitCollectChangesPolicy restartedPolicy = restartedSupportBuilder.build().getCollectChangesPolicy();
+    rev = restartedPolicy.getLatestRevisionAcceptedByCheckoutRules(root, new CheckoutRules("+:src"),
+                                                                   "b265fd1608fe17f912a031312e1efc758c4e8a35", "refs/heads/br1",
+                                                                   Collections.emptySet());
+    then(rev.getRevision()).isEqualTo("a4bc5909156143a5590adadb2c20eaf71f2a3f8f");
+
+    new ResetRevisionsCacheHandler(restartedSupportBuilder.getMapFullPath().getRevisionsCache()).resetCache("git revisions cache");
+    rev = restartedPolicy.getLatestRevisionAcceptedByCheckoutRules(root, new CheckoutRules("+:src"),
+                                                                   "b265fd1608fe17f912a031312e1efc758c4e8a35", "refs/heads/br1",
+                                                                   Collections.emptySet());
+    then(rev.getRevision()).isNull();
+  }
+
   @NotNull
   private GitCollectChangesPolicy getCollectChangesPolicy() {
     if (myCollectChangesPolicy == null) {
@@ -0,0 +1,109 @@
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitVcsRoot;
+import jetbrains.buildServer.buildTriggers.vcs.git.ServerPluginConfig;
+import jetbrains.buildServer.buildTriggers.vcs.git.SshSessionMetaFactory;
+import jetbrains.buildServer.buildTriggers.vcs.git.patch.BuildPatchLogger;
+import jetbrains.buildServer.buildTriggers.vcs.git.patch.LoadContentAction;
+import jetbrains.buildServer.buildTriggers.vcs.git.patch.PatchFileAction;
+import jetbrains.buildServer.vcs.patches.PatchBuilder;
+import org.eclipse.jgit.errors.LargeObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectStream;
+import org.eclipse.jgit.lib.Repository;
+import org.jetbrains.annotations.NotNull;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+@Test
+public class LoadContentActionTest extends BaseTestCase {
+
+  public void should_convert_line_endings_of_large_blob_in_single_pass() throws Exception {
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      content.append("line ").append(i).append('\n');
+    }
+    byte[] bytes = content.toString().getBytes(StandardCharsets.UTF_8);
+    AtomicInteger opened = new AtomicInteger();
+    ObjectLoader largeLoader = new ObjectLoader() {
+      @Override
+      public int getType() {
+        return Constants.OBJ_BLOB;
+      }
+
+      @Override
+      public long getSize() {
+        return bytes.length;
+      }
+
+      @Override
+      public boolean isLarge() {
+        return true;
+      }
+
+      @Override
+      public byte[] getCachedBytes() throws LargeObjectException {
+        throw new LargeObjectException();
+      }
+
+      @Override
+      public ObjectStream openStream() {
+        opened.incrementAndGet();
+        return new ObjectStream.Filter(Constants.OBJ_BLOB, bytes.length, new ByteArrayInputStream(bytes));
+      }
+    };
+
+    GitVcsRoot root = Mockito.mock(GitVcsRoot.class);
+    Mockito.doReturn(true).when(root).isAutoCrlf();
+    PatchBuilder patchBuilder = Mockito.mock(PatchBuilder.class);
+    long[] reportedSize = {-1};
+    String[] written = {null};
+    Mockito.doAnswer(invocation -> {
+      reportedSize[0] = (Long)invocation.getArguments()[3];
+      written[0] = new String(readAll((InputStream)invocation.getArguments()[2]), StandardCharsets.UTF_8);
+      return null;
+    }).when(patchBuilder).changeOrCreateBinaryFile(Mockito.any(File.class), Mockito.any(), Mockito.any(InputStream.class), Mockito.anyLong());
+
+    new LoadContentAction((repo, id) -> largeLoader,
+                          root,
+                          patchBuilder,
+                          new BuildPatchLogger(Logger.getInstance(LoadContentActionTest.class.getName()), "repo", false),
+                          new PatchFileAction(),
+                          Mockito.mock(Repository.class),
+                          ObjectId.zeroId(),
+                          "file.txt",
+                          "file.txt",
+                          null,
+                          Mockito.mock(ServerPluginConfig.class),
+                          Mockito.mock(SshSessionMetaFactory.class)).call();
+
+    String expected = content.toString().replace("\n", "\r\n");
+    then(written[0]).isEqualTo(expected);
+    then(reportedSize[0]).isEqualTo(expected.getBytes(StandardCharsets.UTF_8).length);
+    then(opened.get()).isEqualTo(1);
+  }
+
+  @NotNull
+  private static byte[] readAll(@NotNull InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      out.write(buffer, 0, count);
+    }
+    return out.toByteArray();
+  }
+}
@@ -7,6 +7,7 @@ import jetbrains.buildServer.buildTriggers.vcs.git.CommitLoader;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitMapFullPath;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitVcsSupport;
 import jetbrains.buildServer.buildTriggers.vcs.git.OperationContext;
+import jetbrains.buildServer.buildTriggers.vcs.git.RepositoryManager;
 import jetbrains.buildServer.log.LogInitializer;
 import jetbrains.buildServer.serverSide.BasePropertiesModel;
 import jetbrains.buildServer.serverSide.ServerPaths;
@@ -18,6 +19,9 @@ import jetbrains.buildServer.vcs.RepositoryStateData;
 import jetbrains.buildServer.vcs.VcsRoot;
 import jetbrains.buildServer.vcs.VcsRootEntry;
 import jetbrains.buildServer.vcs.patches.PatchBuilderImpl;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.hamcrest.Description;
@@ -53,6 +57,7 @@ public class MapFullPathTest {
   private File myRemoteRepositoryDir2;
   private GitVcsSupport myGit;
   private GitMapFullPath myMapFullPath;
+  private RepositoryManager myRepositoryManager;
   private VcsRoot myRoot;
   private VcsRootEntry myRootEntry;
   private VcsRoot myRoot2;
@@ -81,6 +86,7 @@ public class MapFullPathTest {
     GitSupportBuilder gitBuilder = gitSupport().withServerPaths(paths);
     myGit = gitBuilder.build();
     myMapFullPath = gitBuilder.getMapFullPath();
+    myRepositoryManager = gitBuilder.getRepositoryManager();
     myRoot = vcsRoot().withId(1).withFetchUrl(myRemoteRepositoryDir.getAbsolutePath()).build();
     myRootEntry = new VcsRootEntry(myRoot, CheckoutRules.DEFAULT);
     myRoot2 = vcsRoot().withId(2).withFetchUrl(myRemoteRepositoryDir2.getAbsolutePath()).build();
@@ -116,6 +122,28 @@ public class MapFullPathTest {
   }
 
 
+  public void mapFullPath_should_report_commits_fetched_into_clone_with_bitmaps() throws Exception {
+    RepositoryStateData state0 = RepositoryStateData.createSingleVersionState("a7274ca8e024d98c7d59874f19f21d26ee31d41d");
+    RepositoryStateData state1 = myGit.getCurrentState(myRoot);
+    myGit.getCollectChangesPolicy().collectChanges(myRoot, state0, state1, CheckoutRules.DEFAULT);
+
+    //new commits fetched into the clone are computed using bitmaps written by gc
+    File mirror = myRepositoryManager.getMirrorDir(myRemoteRepositoryDir.getAbsolutePath());
+    try (FileRepository db = new FileRepository(mirror)) {
+      new GC(db).gc();
+    }
+    then(new File(mirror, "objects/pack").list((dir, name) -> name.endsWith(".bitmap"))).isNotEmpty();
+    then(myGit.mapFullPath(myRootEntry, "d47dda159b27b9a8c4cee4ce98e4435eb5b17168||.")).isEmpty();
+
+    remoteRepositoryUpdated();
+
+    RepositoryStateData state2 = myGit.getCurrentState(myRoot);
+    myGit.getCollectChangesPolicy().collectChanges(myRoot, state1, state2, CheckoutRules.DEFAULT);
+    then(myGit.mapFullPath(myRootEntry, "d47dda159b27b9a8c4cee4ce98e4435eb5b17168||.")).isNotEmpty();
+    then(myGit.mapFullPath(myRootEntry, "252771029d6ac61aaa78d282d5818d210812a4e5||.")).isNotEmpty();
+  }
+
+
   public void should_not_do_unnecessary_commit_lookup_after_fetch() throws Exception {
     final String existingCommit = "a7274ca8e024d98c7d59874f19f21d26ee31d41d";
     final String nonExistingCommit = "abababababababababababababababababababab";
@@ -125,8 +153,8 @@ public class MapFullPathTest {
     myMapFullPath.setCommitLoader(commitLoader);
     myContext.checking(new Expectations() {{
       //ask for existing commit only once:
-      one(commitLoader).findCommit(with(any(Repository.class)), with(existingCommit)); will(returnValue(commit));
-      one(commitLoader).findCommit(with(any(Repository.class)), with(nonExistingCommit)); will(returnValue(null));
+      one(commitLoader).findCommit(with(any(Repository.class)), with(ObjectId.fromString(existingCommit))); will(returnValue(commit));
+      one(commitLoader).findCommit(with(any(Repository.class)), with(ObjectId.fromString(nonExistingCommit))); will(returnValue(null));
     }});
 
     RepositoryStateData state0 = RepositoryStateData.createSingleVersionState("a7274ca8e024d98c7d59874f19f21d26ee31d41d");
@@ -160,9 +188,9 @@ public class MapFullPathTest {
     final String remoteUrl1 = myRemoteRepositoryDir.getAbsolutePath();
     final String remoteUrl2 = myRemoteRepositoryDir2.getAbsolutePath();
     myContext.checking(new Expectations() {{
-      one(commitLoader).findCommit(with(repositoryWithUrl(remoteUrl1)), with(hintCommit)); will(returnValue(commit));
+      one(commitLoader).findCommit(with(repositoryWithUrl(remoteUrl1)), with(ObjectId.fromString(hintCommit))); will(returnValue(commit));
       //only single check for repository which doesn't contain a hint commit:
-      one(commitLoader).findCommit(with(repositoryWithUrl(remoteUrl2)), with(hintCommit)); will(returnValue(null));
+      one(commitLoader).findCommit(with(repositoryWithUrl(remoteUrl2)), with(ObjectId.fromString(hintCommit))); will(returnValue(null));
     }});
 
     String fullPath1 = hintCommit + "-" + lastCommonCommit1 + "||.";
@@ -0,0 +1,116 @@
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.internal.storage.file.MemoryMappedPackIndex;
+import org.eclipse.jgit.internal.storage.file.PackIndex;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitTestUtil.dataFile;
+import static org.assertj.core.api.BDDAssertions.then;
+import static org.testng.Assert.fail;
+
+@Test
+public class MemoryMappedPackIndexTest {
+
+  @DataProvider
+  public static Object[][] segmentShifts() {
+    //small segments make entries of test indexes span several segments
+    return new Object[][]{{4}, {7}, {30}};
+  }
+
+  @Test(dataProvider = "segmentShifts")
+  public void should_read_same_data_as_heap_index(int segmentShift) throws Exception {
+    for (File idx : getIndexes()) {
+      PackIndex expected = new PackIndex.PackIndexFactory().open(idx);
+      PackIndex actual = new MemoryMappedPackIndex(segmentShift).open(idx);
+      try {
+        then(actual.getClass()).isNotEqualTo(expected.getClass());
+        then(actual.getObjectCount()).isEqualTo(expected.getObjectCount());
+        then(actual.getOffset64Count()).isEqualTo(expected.getOffset64Count());
+        then(actual.getChecksum()).isEqualTo(expected.getChecksum());
+        for (long i = 0; i < expected.getObjectCount(); i++) {
+          ObjectId id = expected.getObjectId(i);
+          then(actual.getObjectId(i)).isEqualTo(id);
+          then(actual.getOffset(i)).isEqualTo(expected.getOffset(i));
+          then(actual.findOffset(id)).isEqualTo(expected.findOffset(id));
+          then(actual.findCRC32(id)).isEqualTo(expected.findCRC32(id));
+          then(resolve(actual, id.abbreviate(4))).isEqualTo(resolve(expected, id.abbreviate(4)));
+        }
+
+        List<String> expectedEntries = new ArrayList<>();
+        expected.forEach(e -> expectedEntries.add(e.name() + " " + e.getOffset()));
+        List<String> actualEntries = new ArrayList<>();
+        actual.forEach(e -> actualEntries.add(e.name() + " " + e.getOffset()));
+        then(actualEntries).isEqualTo(expectedEntries);
+      } finally {
+        actual.close();
+      }
+    }
+  }
+
+  public void should_not_find_unknown_objects() throws Exception {
+    File idx = getIndexes().get(0);
+    PackIndex index = new MemoryMappedPackIndex(4).open(idx);
+    try {
+      ObjectId unknown = ObjectId.fromString("ffffffffffffffffffffffffffffffffffffffff");
+      then(index.findOffset(unknown)).isEqualTo(-1);
+      then(index.hasObject(unknown)).isFalse();
+      then(resolve(index, unknown.abbreviate(10))).isEmpty();
+      try {
+        index.findCRC32(unknown);
+        fail("Unknown object found");
+      } catch (MissingObjectException e) {
+        //expected
+      }
+    } finally {
+      index.close();
+    }
+  }
+
+  public void should_be_read_concurrently() throws Exception {
+    File idx = getIndexes().get(0);
+    PackIndex expected = new PackIndex.PackIndexFactory().open(idx);
+    PackIndex actual = new MemoryMappedPackIndex(4).open(idx);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        results.add(executor.submit(() -> {
+          for (int round = 0; round < 100; round++) {
+            for (long i = 0; i < expected.getObjectCount(); i++) {
+              ObjectId id = expected.getObjectId(i);
+              then(actual.findOffset(id)).isEqualTo(expected.findOffset(id));
+            }
+          }
+          return null;
+        }));
+      }
+      for (Future<?> f : results) {
+        f.get(1, TimeUnit.MINUTES);
+      }
+    } finally {
+      executor.shutdownNow();
+      actual.close();
+    }
+  }
+
+  static List<File> getIndexes() {
+    File[] indexes = new File(dataFile("repo.git"), "objects/pack").listFiles((dir, name) -> name.endsWith(".idx"));
+    then(indexes).isNotEmpty();
+    List<File> result = new ArrayList<>(Arrays.asList(indexes));
+    Collections.sort(result);
+    return result;
+  }
+
+  private static Set<ObjectId> resolve(PackIndex index, AbbreviatedObjectId id) throws Exception {
+    Set<ObjectId> result = new HashSet<>();
+    index.resolve(result, id, 100);
+    return result;
+  }
+}
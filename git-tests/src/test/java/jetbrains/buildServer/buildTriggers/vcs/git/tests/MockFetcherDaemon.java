@@ -0,0 +1,45 @@
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import java.lang.management.ManagementFactory;
+import jetbrains.buildServer.buildTriggers.vcs.git.FetcherDaemon;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Fetcher daemon running fake fetches, the input of a fetch is a command:
+ * <ul>
+ *   <li>{@code pid} - does nothing;</li>
+ *   <li>{@code oom} - fails with OutOfMemoryError in stderr;</li>
+ *   <li>{@code sleep:<millis>} - waits without any output;</li>
+ *   <li>{@code progress:<lines>:<millis>} - prints the given number of progress lines with the given interval.</li>
+ * </ul>
+ * Every fetch prints the name of the daemon process as the last line of stdout.
+ */
+public class MockFetcherDaemon {
+
+  public static void main(String... args) throws Exception {
+    FetcherDaemon.runFetches(MockFetcherDaemon::fetch);
+  }
+
+  private static boolean fetch(@NotNull String command) {
+    try {
+      if (command.startsWith("sleep:")) {
+        Thread.sleep(Long.parseLong(command.substring("sleep:".length())));
+      } else if (command.startsWith("progress:")) {
+        final String[] params = command.split(":");
+        final int lines = Integer.parseInt(params[1]);
+        for (int i = 1; i <= lines; i++) {
+          System.out.println("Receiving objects: " + i * 100 / lines + "%");
+          Thread.sleep(Long.parseLong(params[2]));
+        }
+      }
+      System.out.println(ManagementFactory.getRuntimeMXBean().getName());
+      if (command.equals("oom")) {
+        System.err.println("java.lang.OutOfMemoryError: Java heap space");
+        return false;
+      }
+      return true;
+    } catch (InterruptedException e) {
+      return false;
+    }
+  }
+}
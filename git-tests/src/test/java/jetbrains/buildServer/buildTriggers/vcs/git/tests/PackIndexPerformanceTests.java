@@ -0,0 +1,77 @@
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jgit.internal.storage.file.MemoryMappedPackIndex;
+import org.eclipse.jgit.internal.storage.file.PackIndex;
+import org.eclipse.jgit.lib.ObjectId;
+import org.testng.annotations.Test;
+
+/**
+ * Compares lookup throughput of heap and memory mapped pack indexes.
+ * Set the 'packIndex' system property to an index of a big repository to get meaningful numbers.
+ * This test is not intended to be executed in CI
+ */
+public class PackIndexPerformanceTests {
+
+  private static final int THREADS = Runtime.getRuntime().availableProcessors();
+  private static final long DURATION_MILLIS = 10 * 1000;
+
+  @Test
+  public void lookupThroughput() throws Exception {
+    String path = System.getProperty("packIndex");
+    File idx = path != null ? new File(path) : MemoryMappedPackIndexTest.getIndexes().get(0);
+
+    PackIndex heapIndex = new PackIndex.PackIndexFactory().open(idx);
+    List<ObjectId> ids = new ArrayList<>();
+    heapIndex.forEach(e -> ids.add(e.toObjectId()));
+
+    PackIndex mmIndex = new MemoryMappedPackIndex().open(idx);
+    try {
+      for (int i = 0; i < 2; i++) {
+        //the first round is a warm up
+        System.out.println("heap:   " + measure(heapIndex, ids) + " lookups/sec");
+        System.out.println("mmaped: " + measure(mmIndex, ids) + " lookups/sec");
+      }
+    } finally {
+      mmIndex.close();
+    }
+  }
+
+  private static long measure(PackIndex index, List<ObjectId> ids) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    AtomicLong lookups = new AtomicLong();
+    long deadline = System.currentTimeMillis() + DURATION_MILLIS;
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      for (int t = 0; t < THREADS; t++) {
+        final int start = t;
+        results.add(executor.submit(() -> {
+          long count = 0;
+          int i = start;
+          while (System.currentTimeMillis() < deadline) {
+            for (int j = 0; j < 1000; j++) {
+              if (index.findOffset(ids.get(i)) < 0)
+                throw new AssertionError("Object not found " + ids.get(i).name());
+              i = (i + 7919) % ids.size();
+            }
+            count += 1000;
+          }
+          lookups.addAndGet(count);
+          return null;
+        }));
+      }
+      for (Future<?> f : results) {
+        f.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return lookups.get() * 1000 / DURATION_MILLIS;
+  }
+}
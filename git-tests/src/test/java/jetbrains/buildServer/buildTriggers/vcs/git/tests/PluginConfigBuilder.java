@@ -25,10 +25,14 @@ public class PluginConfigBuilder {
   private Boolean mySeparateProcessForFetch;
   private Boolean mySeparateProcessForPatch;
   private Boolean myRunNativeGC;
+  private Integer myNativeGCThreads;
   private Boolean myRunJGitGC;
   private String  myPathToGit;
   private String  myFetchClassPath;
   private String  myFetcherClassName;
+  private Boolean myFetcherDaemonEnabled;
+  private Integer myFetcherDaemonMaxJobs;
+  private Integer myFetcherDaemonIdleTimeoutSeconds;
   private Integer myFixedSubmoduleCommitSearchDepth;
   private Integer myIdleTimeoutSeconds;
   private Integer myFetchTimeoutSeconds;
@@ -48,11 +52,22 @@ public class PluginConfigBuilder {
   private Integer myPushIdleTimeoutSeconds;
   private Boolean myPersistentCacheEnabled;
   private Integer myMapFullPathRevisionCacheSize;
+  private Integer myCollectChangesParallelism;
+  private Integer mySubmodulesFetchParallelism;
+  private Map<String, String> myGitTraceEnv = Collections.emptyMap();
+  private Long myPatchCacheMaxSizeBytes;
+  private Long myRemoteRefsCacheTtlMillis;
+  private Long myNativeGitScriptsCacheTtlMillis;
+  private Long myRepositoryIdleTimeoutMillis;
+  private Integer myWarmRepositoriesCount;
+  private Boolean myReachabilityBitmapsEnabled;
   private TempFiles myTempFiles;
   private Boolean myNewConnectionForPrune;
   private Boolean myIgnoreMissingRemoteRef;
   private Integer myMergeRetryAttempts;
   private Boolean myRunInPlaceGc;
+  private Boolean myRunGeometricRepack;
+  private Integer myGeometricRepackFullGcIntervalDays;
   private Boolean myReportPerParentChangedFiles;
   private boolean myFetchAllRefsEnabled;
   private float myFetchRemoteBranchesFactor;
@@ -172,6 +187,16 @@ public class PluginConfigBuilder {
         return myDelegate.getFetchProcessMemoryMultiplyFactor();
       }
 
+      @Override
+      public boolean isXmxPredictionEnabled() {
+        return myDelegate.isXmxPredictionEnabled();
+      }
+
+      @Override
+      public float getXmxPredictionHeadroom() {
+        return myDelegate.getXmxPredictionHeadroom();
+      }
+
       public boolean isSeparateProcessForFetch() {
         return mySeparateProcessForFetch != null ? mySeparateProcessForFetch : myDelegate.isSeparateProcessForFetch();
       }
@@ -196,6 +221,18 @@ public class PluginConfigBuilder {
         return myDelegate.getNativeGCQuotaMinutes();
       }
 
+      public int getNativeGCThreads() {
+        return myNativeGCThreads != null ? myNativeGCThreads : myDelegate.getNativeGCThreads();
+      }
+
+      public long getNativeGCParallelPackSizeBudget() {
+        return myDelegate.getNativeGCParallelPackSizeBudget();
+      }
+
+      public int getGcStateMaxAgeDays() {
+        return myDelegate.getGcStateMaxAgeDays();
+      }
+
       public String getFetchClasspath() {
         return myFetchClassPath != null ? myFetchClassPath : myDelegate.getFetchClasspath();
       }
@@ -204,6 +241,26 @@ public class PluginConfigBuilder {
         return myFetcherClassName != null ? myFetcherClassName : myDelegate.getFetcherClassName();
       }
 
+      public boolean isFetcherDaemonEnabled() {
+        return myFetcherDaemonEnabled != null ? myFetcherDaemonEnabled : myDelegate.isFetcherDaemonEnabled();
+      }
+
+      public String getFetcherDaemonClassName() {
+        return myDelegate.getFetcherDaemonClassName();
+      }
+
+      public int getFetcherDaemonPoolSize() {
+        return myDelegate.getFetcherDaemonPoolSize();
+      }
+
+      public int getFetcherDaemonMaxJobs() {
+        return myFetcherDaemonMaxJobs != null ? myFetcherDaemonMaxJobs : myDelegate.getFetcherDaemonMaxJobs();
+      }
+
+      public int getFetcherDaemonIdleTimeoutSeconds() {
+        return myFetcherDaemonIdleTimeoutSeconds != null ? myFetcherDaemonIdleTimeoutSeconds : myDelegate.getFetcherDaemonIdleTimeoutSeconds();
+      }
+
       public String getPatchClasspath() {
         return myPatchClassPath != null ? myPatchClassPath : myDelegate.getPatchClasspath();
       }
@@ -268,6 +325,78 @@ public class PluginConfigBuilder {
         return myMapFullPathRevisionCacheSize != null ? myMapFullPathRevisionCacheSize : myDelegate.getMapFullPathRevisionCacheSize();
       }
 
+      public int getCommitChangesCacheMaxChangedFiles() {
+        return myDelegate.getCommitChangesCacheMaxChangedFiles();
+      }
+
+      public int getCollectChangesParallelism() {
+        return myCollectChangesParallelism != null ? myCollectChangesParallelism : myDelegate.getCollectChangesParallelism();
+      }
+
+      public int getSubmodulesFetchParallelism() {
+        return mySubmodulesFetchParallelism != null ? mySubmodulesFetchParallelism : myDelegate.getSubmodulesFetchParallelism();
+      }
+
+      public long getRemoteRefsCacheTtlMillis() {
+        return myRemoteRefsCacheTtlMillis != null ? myRemoteRefsCacheTtlMillis : myDelegate.getRemoteRefsCacheTtlMillis();
+      }
+
+      public boolean isCurrentStateRefPrefixesEnabled() {
+        return myDelegate.isCurrentStateRefPrefixesEnabled();
+      }
+
+      public long getNativeGitScriptsCacheTtlMillis() {
+        return myNativeGitScriptsCacheTtlMillis != null ? myNativeGitScriptsCacheTtlMillis : myDelegate.getNativeGitScriptsCacheTtlMillis();
+      }
+
+      public long getRepositoryIdleTimeoutMillis() {
+        return myRepositoryIdleTimeoutMillis != null ? myRepositoryIdleTimeoutMillis : myDelegate.getRepositoryIdleTimeoutMillis();
+      }
+
+      public int getWarmRepositoriesCount() {
+        return myWarmRepositoriesCount != null ? myWarmRepositoriesCount : myDelegate.getWarmRepositoriesCount();
+      }
+
+      public int getPackedGitLimitMb() {
+        return myDelegate.getPackedGitLimitMb();
+      }
+
+      public int getPackedGitOpenFiles() {
+        return myDelegate.getPackedGitOpenFiles();
+      }
+
+      public int getDeltaBaseCacheLimitMb() {
+        return myDelegate.getDeltaBaseCacheLimitMb();
+      }
+
+      public boolean isPackedGitMmap() {
+        return myDelegate.isPackedGitMmap();
+      }
+
+      public boolean isReachabilityBitmapsEnabled() {
+        return myReachabilityBitmapsEnabled != null ? myReachabilityBitmapsEnabled : myDelegate.isReachabilityBitmapsEnabled();
+      }
+
+      public int getCheckoutRulesRevisionMemoMaxVisitedCommits() {
+        return myDelegate.getCheckoutRulesRevisionMemoMaxVisitedCommits();
+      }
+
+      public int getPatchBlobLoadThreads() {
+        return myDelegate.getPatchBlobLoadThreads();
+      }
+
+      public int getPatchBlobLoadBatchSize() {
+        return myDelegate.getPatchBlobLoadBatchSize();
+      }
+
+      public long getPatchBlobLoadMaxMemoryBytes() {
+        return myDelegate.getPatchBlobLoadMaxMemoryBytes();
+      }
+
+      public long getPatchCacheMaxSizeBytes() {
+        return myPatchCacheMaxSizeBytes != null ? myPatchCacheMaxSizeBytes : myDelegate.getPatchCacheMaxSizeBytes();
+      }
+
       public long getConnectionRetryIntervalMillis() {
         return myConnectionRetryIntervalMillis != -1 ? myConnectionRetryIntervalMillis : myDelegate.getConnectionRetryIntervalMillis();
       }
@@ -379,6 +508,30 @@ public class PluginConfigBuilder {
         return myDelegate.getRepackCommandArguments();
       }
 
+      @Override
+      public boolean runGeometricRepack() {
+        if (myRunGeometricRepack != null)
+          return myRunGeometricRepack;
+        return myDelegate.runGeometricRepack();
+      }
+
+      @Override
+      public int getGeometricRepackFactor() {
+        return myDelegate.getGeometricRepackFactor();
+      }
+
+      @Override
+      public int getGeometricRepackFullGcIntervalDays() {
+        if (myGeometricRepackFullGcIntervalDays != null)
+          return myGeometricRepackFullGcIntervalDays;
+        return myDelegate.getGeometricRepackFullGcIntervalDays();
+      }
+
+      @Override
+      public boolean writeCommitGraphChangedPaths() {
+        return myDelegate.writeCommitGraphChangedPaths();
+      }
+
       @Override
       public int getPackRefsIdleTimeoutSeconds() {
         return myDelegate.getPackRefsIdleTimeoutSeconds();
@@ -438,7 +591,7 @@ public class PluginConfigBuilder {
       @NotNull
       @Override
       public Map<String, String> getGitTraceEnv() {
-        return Collections.emptyMap();
+        return myGitTraceEnv;
       }
 
       @Nullable
@@ -489,6 +642,26 @@ public class PluginConfigBuilder {
     return this;
   }
 
+  PluginConfigBuilder setNativeGCThreads(int threads) {
+    myNativeGCThreads = threads;
+    return this;
+  }
+
+  PluginConfigBuilder setFetcherDaemonEnabled(boolean enabled) {
+    myFetcherDaemonEnabled = enabled;
+    return this;
+  }
+
+  PluginConfigBuilder setFetcherDaemonMaxJobs(int maxJobs) {
+    myFetcherDaemonMaxJobs = maxJobs;
+    return this;
+  }
+
+  PluginConfigBuilder setFetcherDaemonIdleTimeoutSeconds(int timeoutSeconds) {
+    myFetcherDaemonIdleTimeoutSeconds = timeoutSeconds;
+    return this;
+  }
+
 
   PluginConfigBuilder setRunJGitGC(boolean run) {
     myRunJGitGC = run;
@@ -619,6 +792,51 @@ public class PluginConfigBuilder {
     return this;
   }
 
+  public PluginConfigBuilder setCollectChangesParallelism(int collectChangesParallelism) {
+    myCollectChangesParallelism = collectChangesParallelism;
+    return this;
+  }
+
+  public PluginConfigBuilder setSubmodulesFetchParallelism(int submodulesFetchParallelism) {
+    mySubmodulesFetchParallelism = submodulesFetchParallelism;
+    return this;
+  }
+
+  public PluginConfigBuilder setGitTraceEnv(@NotNull Map<String, String> gitTraceEnv) {
+    myGitTraceEnv = gitTraceEnv;
+    return this;
+  }
+
+  public PluginConfigBuilder setPatchCacheMaxSizeBytes(long patchCacheMaxSizeBytes) {
+    myPatchCacheMaxSizeBytes = patchCacheMaxSizeBytes;
+    return this;
+  }
+
+  public PluginConfigBuilder setRemoteRefsCacheTtlMillis(long remoteRefsCacheTtlMillis) {
+    myRemoteRefsCacheTtlMillis = remoteRefsCacheTtlMillis;
+    return this;
+  }
+
+  public PluginConfigBuilder setNativeGitScriptsCacheTtlMillis(long nativeGitScriptsCacheTtlMillis) {
+    myNativeGitScriptsCacheTtlMillis = nativeGitScriptsCacheTtlMillis;
+    return this;
+  }
+
+  public PluginConfigBuilder setRepositoryIdleTimeoutMillis(long repositoryIdleTimeoutMillis) {
+    myRepositoryIdleTimeoutMillis = repositoryIdleTimeoutMillis;
+    return this;
+  }
+
+  public PluginConfigBuilder setWarmRepositoriesCount(int warmRepositoriesCount) {
+    myWarmRepositoriesCount = warmRepositoriesCount;
+    return this;
+  }
+
+  public PluginConfigBuilder setReachabilityBitmapsEnabled(boolean reachabilityBitmapsEnabled) {
+    myReachabilityBitmapsEnabled = reachabilityBitmapsEnabled;
+    return this;
+  }
+
 
   public PluginConfigBuilder setTempFiles(final TempFiles tempFiles) {
     myTempFiles = tempFiles;
@@ -646,6 +864,16 @@ public class PluginConfigBuilder {
     return this;
   }
 
+  PluginConfigBuilder setRunGeometricRepack(boolean runGeometricRepack) {
+    myRunGeometricRepack = runGeometricRepack;
+    return this;
+  }
+
+  PluginConfigBuilder setGeometricRepackFullGcIntervalDays(int days) {
+    myGeometricRepackFullGcIntervalDays = days;
+    return this;
+  }
+
   PluginConfigBuilder setReportPerParentChangedFiles(boolean report) {
     myReportPerParentChangedFiles = report;
     return this;
@@ -4,15 +4,24 @@ package jetbrains.buildServer.buildTriggers.vcs.git.tests;
 
 import jetbrains.buildServer.buildTriggers.vcs.git.PluginConfigImpl;
 import jetbrains.buildServer.buildTriggers.vcs.git.ProcessXmxProvider;
+import jetbrains.buildServer.buildTriggers.vcs.git.XmxPredictor;
+import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.vcs.VcsException;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static org.assertj.core.api.BDDAssertions.then;
@@ -21,12 +30,21 @@ import static org.assertj.core.api.BDDAssertions.then;
 public class ProcessXmxProviderTest {
 
   @Nullable private Integer myStorage;
+  @Nullable private XmxPredictor.Sample mySample;
   private float myMultFactor;
+  private File myRepoDir;
 
   @BeforeMethod
   public void setUp() throws IOException {
     myStorage = null;
+    mySample = null;
     myMultFactor = PluginConfigImpl.FETCH_PROCESS_MAX_MEMORY_MULT_FACTOR_DEFAULT;
+    myRepoDir = Files.createTempDirectory("repo").toFile();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(myRepoDir);
   }
 
   @Test
@@ -141,6 +159,79 @@ public class ProcessXmxProviderTest {
     then(myStorage).isNull();
   }
 
+  @Test
+  public void patch_xmx_grows_with_repository() throws Throwable {
+    myStorage = 1024;
+    mySample = new XmxPredictor.Sample(1024, Collections.emptyList(), new XmxPredictor.RepositoryStats(1000, 100));
+    createRepository(3000, 150);
+    then(getValues(null, null, null, null, patchPredictor())).containsExactly(3072, 4096);
+    then(myStorage).isEqualTo(4096);
+  }
+
+  @Test
+  public void prediction_does_not_decrease_cached_xmx() throws Throwable {
+    myStorage = 2048;
+    mySample = new XmxPredictor.Sample(1024, Collections.emptyList(), new XmxPredictor.RepositoryStats(1000, 100));
+    createRepository(1000, 100);
+    then(getValues(null, null, 2048, null, patchPredictor())).containsExactly(2048);
+  }
+
+  @Test
+  public void successful_patch_is_remembered() throws Throwable {
+    createRepository(3000, 150);
+    final ProcessXmxProvider provider = createProvider(null, null, null, patchPredictor());
+    then(provider.getNextXmx()).isEqualTo(1024);
+    provider.processSucceeded("");
+
+    then(mySample).isNotNull();
+    then(mySample.getXmx()).isEqualTo(1024);
+    then(mySample.getHeapUsages()).isEmpty();
+    then(mySample.getStats().getPackSize()).isEqualTo(3000);
+    then(mySample.getStats().getObjectCount()).isEqualTo(150);
+  }
+
+  @Test
+  public void fetch_xmx_follows_heap_usage() throws Throwable {
+    myStorage = 1024;
+    mySample = new XmxPredictor.Sample(1024, Collections.singletonList(700), null);
+    then(getValues(null, null, 1024, null, fetchPredictor())).containsExactly(1152);
+  }
+
+  @Test
+  public void fetch_xmx_follows_heap_usage_trend() throws Throwable {
+    myStorage = 1024;
+    mySample = new XmxPredictor.Sample(1024, Arrays.asList(400, 500, 600), null);
+    then(getValues(null, null, 1024, null, fetchPredictor())).containsExactly(1152);
+  }
+
+  @Test
+  public void low_heap_usage_does_not_decrease_cached_xmx() throws Throwable {
+    myStorage = 1024;
+    mySample = new XmxPredictor.Sample(1024, Arrays.asList(300, 300), null);
+    then(getValues(null, null, 1024, null, fetchPredictor())).containsExactly(1024);
+  }
+
+  @Test
+  public void fetch_heap_usage_history_is_remembered() throws Throwable {
+    mySample = new XmxPredictor.Sample(1024, Arrays.asList(1, 2, 3, 4, 5), null);
+    final ProcessXmxProvider provider = createProvider(null, null, null, fetchPredictor());
+    then(provider.getNextXmx()).isEqualTo(1024);
+    provider.processSucceeded("update ref\n" + XmxPredictor.HEAP_USAGE_PREFIX + 512L * 1024 * 1024 + "\n");
+
+    then(mySample).isNotNull();
+    then(mySample.getXmx()).isEqualTo(1024);
+    then(mySample.getHeapUsages()).containsExactly(2, 3, 4, 5, 512);
+    then(mySample.getStats()).isNull();
+  }
+
+  @Test
+  public void explicit_xmx_is_not_predicted() throws Throwable {
+    mySample = new XmxPredictor.Sample(1024, Collections.singletonList(2000), new XmxPredictor.RepositoryStats(1000, 100));
+    createRepository(3000, 100);
+    then(getValues("512M", null, null, null, patchPredictor())).containsExactly(512);
+    then(getValues("512M", null, null, null, fetchPredictor())).containsExactly(512);
+  }
+
   @DataProvider(name = "test_storage_dp")
   public static Object[][] createData() {
     return new Object[][] {
@@ -188,8 +279,14 @@ public class ProcessXmxProviderTest {
 
   @NotNull
   private List<Integer> getValues(@Nullable String explicitXmx, @Nullable final String maxXmx, @Nullable final Integer acceptedXmx, @Nullable final Integer freeRAM) throws VcsException {
+    return getValues(explicitXmx, maxXmx, acceptedXmx, freeRAM, null);
+  }
+
+  @NotNull
+  private List<Integer> getValues(@Nullable String explicitXmx, @Nullable final String maxXmx, @Nullable final Integer acceptedXmx, @Nullable final Integer freeRAM,
+                                  @Nullable XmxPredictor predictor) throws VcsException {
     final ArrayList<Integer> res = new ArrayList<>();
-    final ProcessXmxProvider provider = createProvider(explicitXmx, maxXmx, freeRAM);
+    final ProcessXmxProvider provider = createProvider(explicitXmx, maxXmx, freeRAM, predictor);
     Integer v = provider.getNextXmx();
     while (v != null) {
       res.add(v);
@@ -201,18 +298,13 @@ public class ProcessXmxProviderTest {
 
   @NotNull
   private ProcessXmxProvider createProvider(@Nullable final String explicitXmx, @Nullable final String maxXmx, @Nullable final Integer freeRAM) {
-    return new ProcessXmxProvider(new ProcessXmxProvider.XmxStorage() {
-      @Nullable
-      @Override
-      public Integer read() {
-        return myStorage;
-      }
+    return createProvider(explicitXmx, maxXmx, freeRAM, null);
+  }
 
-      @Override
-      public void write(@Nullable final Integer xmx) {
-        myStorage = xmx;
-      }
-    }, new PluginConfigImpl() {
+  @NotNull
+  private ProcessXmxProvider createProvider(@Nullable final String explicitXmx, @Nullable final String maxXmx, @Nullable final Integer freeRAM,
+                                            @Nullable XmxPredictor predictor) {
+    return new ProcessXmxProvider(createStorage(), predictor, new PluginConfigImpl() {
       @Nullable
       @Override
       public String getExplicitFetchProcessMaxMemory() {
@@ -247,4 +339,56 @@ public class ProcessXmxProviderTest {
       }
     };
   }
-}
\ No newline at end of file
+
+  @NotNull
+  private ProcessXmxProvider.XmxStorage createStorage() {
+    return new ProcessXmxProvider.XmxStorage() {
+      @Nullable
+      @Override
+      public Integer read() {
+        return myStorage;
+      }
+
+      @Override
+      public void write(@Nullable final Integer xmx) {
+        myStorage = xmx;
+      }
+
+      @Nullable
+      @Override
+      public XmxPredictor.Sample readSample() {
+        return mySample;
+      }
+
+      @Override
+      public void writeSample(@NotNull final XmxPredictor.Sample sample) {
+        mySample = sample;
+      }
+    };
+  }
+
+  @NotNull
+  private XmxPredictor fetchPredictor() {
+    return new XmxPredictor(null, createStorage(), 1.5f);
+  }
+
+  @NotNull
+  private XmxPredictor patchPredictor() {
+    return new XmxPredictor(myRepoDir, createStorage(), 1.5f);
+  }
+
+  private void createRepository(int packSize, int objectCount) throws IOException {
+    final File packDir = new File(myRepoDir, "objects/pack");
+    FileUtil.delete(packDir);
+    //noinspection ResultOfMethodCallIgnored
+    packDir.mkdirs();
+    Files.write(new File(packDir, "pack-1.pack").toPath(), new byte[packSize]);
+    try (DataOutputStream idx = new DataOutputStream(new FileOutputStream(new File(packDir, "pack-1.idx")))) {
+      idx.writeInt(0xff744f63);
+      idx.writeInt(2);
+      for (int i = 0; i < 256; i++) {
+        idx.writeInt(i == 255 ? objectCount : 0);
+      }
+    }
+  }
+}
@@ -0,0 +1,180 @@
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.*;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static java.util.Arrays.asList;
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
+import static org.assertj.core.api.BDDAssertions.then;
+import static org.testng.AssertJUnit.fail;
+
+@Test
+public class RemoteRefsCacheTest {
+
+  private static final List<String> HEADS = Collections.singletonList("refs/heads/");
+  private TempFiles myTempFiles;
+  private PluginConfigBuilder myConfig;
+  private MirrorManager myMirrorManager;
+  private AtomicInteger myLoadsCount;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    myConfig = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath())).setRemoteRefsCacheTtlMillis(TimeUnit.HOURS.toMillis(1));
+    myMirrorManager = new MirrorManagerImpl(myConfig.build(), new HashCalculatorImpl(), new RemoteRepositoryUrlInvestigatorImpl());
+    myLoadsCount = new AtomicInteger();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+  public void concurrent_requests_share_single_ls_remote() throws Exception {
+    RemoteRefsCache cache = new RemoteRefsCache(myConfig.build());
+    GitVcsRoot root = root("http://some.org/repo.git");
+    CountDownLatch loadStarted = new CountDownLatch(1);
+    CountDownLatch finishLoad = new CountDownLatch(1);
+    RemoteRefsCache.RefsLoader loader = () -> {
+      loadStarted.countDown();
+      await(finishLoad);
+      return refs("refs/heads/master");
+    };
+
+    int requestsCount = 5;
+    ExecutorService executor = Executors.newFixedThreadPool(requestsCount);
+    try {
+      List<Future<Map<String, Ref>>> results = new ArrayList<>();
+      results.add(executor.submit(() -> cache.getRemoteRefs(root, HEADS, loader)));
+      await(loadStarted);
+      for (int i = 1; i < requestsCount; i++) {
+        results.add(executor.submit(() -> cache.getRemoteRefs(root, HEADS, loader)));
+      }
+      //all other requests wait for the running ls-remote
+      long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+      while (cache.getHitsCount() < requestsCount - 1 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      finishLoad.countDown();
+
+      Map<String, Ref> first = results.get(0).get(10, TimeUnit.SECONDS);
+      then(first).containsOnlyKeys("refs/heads/master");
+      for (Future<Map<String, Ref>> result : results) {
+        then(result.get(10, TimeUnit.SECONDS)).isSameAs(first);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    then(myLoadsCount.get()).isEqualTo(1);
+    then(cache.getMissesCount()).isEqualTo(1);
+    then(cache.getHitsCount()).isEqualTo(requestsCount - 1);
+  }
+
+  public void recent_result_is_reused() throws Exception {
+    RemoteRefsCache cache = new RemoteRefsCache(myConfig.build());
+    GitVcsRoot root = root("http://some.org/repo.git");
+
+    then(cache.getRemoteRefs(root, HEADS, () -> refs("refs/heads/master"))).containsOnlyKeys("refs/heads/master");
+    then(cache.getRemoteRefs(root, HEADS, () -> refs("refs/heads/other"))).containsOnlyKeys("refs/heads/master");
+    then(myLoadsCount.get()).isEqualTo(1);
+    then(cache.getMissesCount()).isEqualTo(1);
+    then(cache.getHitsCount()).isEqualTo(1);
+  }
+
+  public void result_is_not_reused_when_cache_is_disabled() throws Exception {
+    RemoteRefsCache cache = new RemoteRefsCache(myConfig.setRemoteRefsCacheTtlMillis(0).build());
+    GitVcsRoot root = root("http://some.org/repo.git");
+
+    then(cache.getRemoteRefs(root, HEADS, () -> refs("refs/heads/master"))).containsOnlyKeys("refs/heads/master");
+    then(cache.getRemoteRefs(root, HEADS, () -> refs("refs/heads/other"))).containsOnlyKeys("refs/heads/other");
+    then(myLoadsCount.get()).isEqualTo(2);
+    then(cache.getMissesCount()).isEqualTo(2);
+    then(cache.getHitsCount()).isEqualTo(0);
+  }
+
+  public void different_repositories_and_prefixes_use_separate_entries() throws Exception {
+    RemoteRefsCache cache = new RemoteRefsCache(myConfig.build());
+    GitVcsRoot root1 = root("http://some.org/repo1.git");
+    GitVcsRoot root2 = root("http://some.org/repo2.git");
+
+    then(cache.getRemoteRefs(root1, HEADS, () -> refs("refs/heads/a"))).containsOnlyKeys("refs/heads/a");
+    then(cache.getRemoteRefs(root2, HEADS, () -> refs("refs/heads/b"))).containsOnlyKeys("refs/heads/b");
+    then(cache.getRemoteRefs(root1, asList("refs/heads/", "refs/tags/"), () -> refs("refs/heads/a", "refs/tags/t"))).containsOnlyKeys("refs/heads/a", "refs/tags/t");
+    then(myLoadsCount.get()).isEqualTo(3);
+    then(cache.getMissesCount()).isEqualTo(3);
+    then(cache.getHitsCount()).isEqualTo(0);
+  }
+
+  public void invalidation() throws Exception {
+    RemoteRefsCache cache = new RemoteRefsCache(myConfig.build());
+    GitVcsRoot root = root("http://some.org/repo.git");
+    GitVcsRoot otherRoot = root("http://some.org/other.git");
+    cache.getRemoteRefs(root, HEADS, () -> refs("refs/heads/master"));
+    cache.getRemoteRefs(otherRoot, HEADS, () -> refs("refs/heads/master"));
+
+    cache.invalidate(root);
+
+    then(cache.getRemoteRefs(root, HEADS, () -> refs("refs/heads/pushed"))).containsOnlyKeys("refs/heads/pushed");
+    then(cache.getRemoteRefs(otherRoot, HEADS, () -> refs("refs/heads/pushed"))).containsOnlyKeys("refs/heads/master");
+    then(myLoadsCount.get()).isEqualTo(3);
+    then(cache.getMissesCount()).isEqualTo(3);
+    then(cache.getHitsCount()).isEqualTo(1);
+  }
+
+  public void errors_are_not_cached() throws Exception {
+    RemoteRefsCache cache = new RemoteRefsCache(myConfig.build());
+    GitVcsRoot root = root("http://some.org/repo.git");
+    try {
+      cache.getRemoteRefs(root, HEADS, () -> {
+        myLoadsCount.incrementAndGet();
+        throw new VcsException("ls-remote failed");
+      });
+      fail("Error is expected");
+    } catch (VcsException e) {
+      then(e.getMessage()).contains("ls-remote failed");
+    }
+
+    then(cache.getRemoteRefs(root, HEADS, () -> refs("refs/heads/master"))).containsOnlyKeys("refs/heads/master");
+    then(myLoadsCount.get()).isEqualTo(2);
+    then(cache.getMissesCount()).isEqualTo(2);
+  }
+
+  @NotNull
+  private GitVcsRoot root(@NotNull String url) throws VcsException {
+    return new GitVcsRoot(myMirrorManager, vcsRoot().withFetchUrl(url).build(), new URIishHelperImpl());
+  }
+
+  @NotNull
+  private Map<String, Ref> refs(@NotNull String... names) {
+    myLoadsCount.incrementAndGet();
+    Map<String, Ref> result = new ConcurrentHashMap<>();
+    for (String name : names) {
+      result.put(name, new ObjectIdRef.PeeledNonTag(Ref.Storage.NETWORK, name, ObjectId.zeroId()));
+    }
+    return result;
+  }
+
+  private static void await(@NotNull CountDownLatch latch) throws VcsException {
+    try {
+      if (!latch.await(10, TimeUnit.SECONDS))
+        throw new VcsException("Timeout");
+    } catch (InterruptedException e) {
+      throw new VcsException(e);
+    }
+  }
+}
@@ -175,6 +175,35 @@ public class RepositoryManagerTest {
   }
 
 
+  public void should_keep_unused_repository_opened_for_idle_timeout() throws Exception {
+    myPluginConfig.setRepositoryIdleTimeoutMillis(60 * 1000);
+    RepositoryManager repositoryManager = getRepositoryManager();
+    Repository r1 = repositoryManager.openRepository(new URIish("git://some.org/repo.git"));
+    repositoryManager.closeRepository(r1);
+    Repository r2 = repositoryManager.openRepository(new URIish("git://some.org/repo.git"));
+    assertSame(r1, r2);
+
+    repositoryManager.closeRepository(r2);
+    repositoryManager.closeUnusedRepository(r2.getDirectory());
+    Repository r3 = repositoryManager.openRepository(new URIish("git://some.org/repo.git"));
+    assertNotSame(r1, r3);
+
+    //used repository is not closed
+    repositoryManager.closeUnusedRepository(r3.getDirectory());
+    assertSame(r3, repositoryManager.openRepository(new URIish("git://some.org/repo.git")));
+  }
+
+
+  public void should_keep_warm_repositories_opened() throws Exception {
+    myPluginConfig.setWarmRepositoriesCount(1);
+    RepositoryManager repositoryManager = getRepositoryManager();
+    Repository r1 = repositoryManager.openRepository(new URIish("git://some.org/repo.git"));
+    repositoryManager.closeRepository(r1);
+    Repository r2 = repositoryManager.openRepository(new URIish("git://some.org/repo.git"));
+    assertSame(r1, r2);
+  }
+
+
   public void get_repository_in_dir_with_existing_config_without_teamcity_remote() throws Exception {
     File customDir = myTempFiles.createTempDir();
     Repository r = new RepositoryBuilder().setGitDir(customDir).setBare().build();
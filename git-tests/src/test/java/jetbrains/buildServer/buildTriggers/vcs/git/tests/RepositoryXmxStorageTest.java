@@ -4,6 +4,7 @@ package jetbrains.buildServer.buildTriggers.vcs.git.tests;
 
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.XmxPredictor;
 import jetbrains.buildServer.buildTriggers.vcs.git.process.RepositoryXmxStorage;
 import jetbrains.buildServer.util.FileUtil;
 import org.jetbrains.annotations.NotNull;
@@ -97,6 +98,28 @@ public class RepositoryXmxStorageTest extends BaseTestCase {
     then(fetch.getStorage()).doesNotExist();
   }
 
+  @Test
+  public void test_sample() throws Throwable {
+    final RepositoryXmxStorage fetch = create("fetch");
+    then(fetch.readSample()).isNull();
+
+    fetch.write(1024);
+    fetch.writeSample(new XmxPredictor.Sample(1024, 300, new XmxPredictor.RepositoryStats(12345, 678, 9)));
+    final XmxPredictor.Sample sample = fetch.readSample();
+    then(sample).isNotNull();
+    then(sample.getXmx()).isEqualTo(1024);
+    then(sample.getHeapUsage()).isEqualTo(300);
+    then(sample.getStats().getPackSize()).isEqualTo(12345);
+    then(sample.getStats().getObjectCount()).isEqualTo(678);
+    then(sample.getStats().getRefCount()).isEqualTo(9);
+    then(fetch.read()).isEqualTo(1024);
+    then(create("patch").readSample()).isNull();
+
+    fetch.writeSample(new XmxPredictor.Sample(2048, null, new XmxPredictor.RepositoryStats(12345, 678, 9)));
+    then(fetch.readSample().getHeapUsage()).isNull();
+    then(fetch.readSample().getXmx()).isEqualTo(2048);
+  }
+
   @NotNull
   private RepositoryXmxStorage create(@NotNull String key) {
     return new RepositoryXmxStorage(myRepoDir, key);
@@ -8,12 +8,14 @@ import jetbrains.buildServer.buildTriggers.vcs.git.RevisionsCache;
 import jetbrains.buildServer.buildTriggers.vcs.git.ServerPluginConfig;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.TestFor;
+import org.eclipse.jgit.lib.ObjectId;
 import org.jetbrains.annotations.NotNull;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -55,13 +57,13 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
   public void save_revision_entry() throws Exception {
     File repo = repository("1");
     RepositoryRevisionCache commitCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
-    commitCache.saveRevision("v1", false, commitCache.getResetCounter());
-    commitCache.saveRevision("v2", true, commitCache.getResetCounter());
-    commitCache.saveRevision("v3", false, commitCache.getResetCounter());
+    commitCache.saveRevision(v(1), false, commitCache.getResetCounter());
+    commitCache.saveRevision(v(2), true, commitCache.getResetCounter());
+    commitCache.saveRevision(v(3), false, commitCache.getResetCounter());
 
-    then(commitCache.hasRevision("v1")).isFalse();
-    then(commitCache.hasRevision("v2")).isTrue();
-    then(commitCache.hasRevision("v3")).isFalse();
+    then(commitCache.hasRevision(v(1))).isFalse();
+    then(commitCache.hasRevision(v(2))).isTrue();
+    then(commitCache.hasRevision(v(3))).isFalse();
     then(commitCache).isEqualTo(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE));
   }
 
@@ -70,13 +72,13 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
     File repo = repository("1");
     RepositoryRevisionCache commitCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
     RepositoryRevisionCache hintCache = myCache.getRepositoryCache(repo, RevisionCacheType.HINT_CACHE);
-    commitCache.saveRevision("v1", false, commitCache.getResetCounter());
-    hintCache.saveRevision("v2", true, hintCache.getResetCounter());
+    commitCache.saveRevision(v(1), false, commitCache.getResetCounter());
+    hintCache.saveRevision(v(2), true, hintCache.getResetCounter());
 
-    then(commitCache.hasRevision("v1")).isFalse();
-    then(commitCache.hasRevision("v2")).isNull();
-    then(hintCache.hasRevision("v1")).isNull();
-    then(hintCache.hasRevision("v2")).isTrue();
+    then(commitCache.hasRevision(v(1))).isFalse();
+    then(commitCache.hasRevision(v(2))).isNull();
+    then(hintCache.hasRevision(v(1))).isNull();
+    then(hintCache.hasRevision(v(2))).isTrue();
     then(commitCache).isEqualTo(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE));
     then(hintCache).isEqualTo(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.HINT_CACHE));
   }
@@ -85,14 +87,14 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
   public void reset_negative_entries() throws Exception {
     File repo = repository("1");
     RepositoryRevisionCache commitCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
-    commitCache.saveRevision("v1", false, commitCache.getResetCounter());
-    commitCache.saveRevision("v2", true, commitCache.getResetCounter());
-    commitCache.saveRevision("v3", false, commitCache.getResetCounter());
+    commitCache.saveRevision(v(1), false, commitCache.getResetCounter());
+    commitCache.saveRevision(v(2), true, commitCache.getResetCounter());
+    commitCache.saveRevision(v(3), false, commitCache.getResetCounter());
 
     myCache.resetNegativeEntries(repo);
 
-    then(commitCache.hasRevision("v1")).isNull();
-    then(commitCache.hasRevision("v3")).isNull();
+    then(commitCache.hasRevision(v(1))).isNull();
+    then(commitCache.hasRevision(v(3))).isNull();
     then(commitCache).isEqualTo(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE));
   }
 
@@ -100,18 +102,18 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
   public void reset_negative_entries_different_types() throws Exception {
     File repo = repository("1");
     RepositoryRevisionCache commitCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
-    commitCache.saveRevision("v1", false, commitCache.getResetCounter());
-    commitCache.saveRevision("v2", true, commitCache.getResetCounter());
-    commitCache.saveRevision("v3", false, commitCache.getResetCounter());
+    commitCache.saveRevision(v(1), false, commitCache.getResetCounter());
+    commitCache.saveRevision(v(2), true, commitCache.getResetCounter());
+    commitCache.saveRevision(v(3), false, commitCache.getResetCounter());
     RepositoryRevisionCache hintCache = myCache.getRepositoryCache(repo, RevisionCacheType.HINT_CACHE);
-    hintCache.saveRevision("v4", false, hintCache.getResetCounter());
+    hintCache.saveRevision(v(4), false, hintCache.getResetCounter());
 
     myCache.resetNegativeEntries(repo);
 
     for (RevisionCacheType type : RevisionCacheType.values()) {
-      then(myCache.getRepositoryCache(repo, type).hasRevision("v1")).isNull();
-      then(myCache.getRepositoryCache(repo, type).hasRevision("v3")).isNull();
-      then(myCache.getRepositoryCache(repo, type).hasRevision("v4")).isNull();
+      then(myCache.getRepositoryCache(repo, type).hasRevision(v(1))).isNull();
+      then(myCache.getRepositoryCache(repo, type).hasRevision(v(3))).isNull();
+      then(myCache.getRepositoryCache(repo, type).hasRevision(v(4))).isNull();
     }
     then(commitCache).isEqualTo(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE));
     then(hintCache).isEqualTo(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.HINT_CACHE));
@@ -121,39 +123,39 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
   public void reset_negative_entries_with_new_commits() throws Exception {
     File repo = repository("1");
     RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
-    repoCache.saveRevision("v1", false, repoCache.getResetCounter());
-    repoCache.saveRevision("v2", true, repoCache.getResetCounter());
-    repoCache.saveRevision("v3", false, repoCache.getResetCounter());
+    repoCache.saveRevision(v(1), false, repoCache.getResetCounter());
+    repoCache.saveRevision(v(2), true, repoCache.getResetCounter());
+    repoCache.saveRevision(v(3), false, repoCache.getResetCounter());
 
-    myCache.resetNegativeEntries(repo, setOf("v3", "v4"));
+    myCache.resetNegativeEntries(repo, setOf(v(3), v(4)));
 
-    then(repoCache.hasRevision("v1")).isFalse();
-    then(repoCache.hasRevision("v2")).isTrue();
-    then(repoCache.hasRevision("v3")).isTrue();
+    then(repoCache.hasRevision(v(1))).isFalse();
+    then(repoCache.hasRevision(v(2))).isTrue();
+    then(repoCache.hasRevision(v(3))).isTrue();
     then(repoCache).isEqualTo(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE));
   }
 
 
   public void test_equals() throws Exception {
-    RepositoryRevisionCache cache1 = new RepositoryRevisionCache(myConfig, repository("1"), RevisionCacheType.COMMIT_CACHE, 100);
-    RepositoryRevisionCache cache2 = new RepositoryRevisionCache(myConfig, repository("1"), RevisionCacheType.COMMIT_CACHE, 100);
-    RepositoryRevisionCache cache3 = new RepositoryRevisionCache(myConfig, repository("1"), RevisionCacheType.HINT_CACHE, 100);
+    RepositoryRevisionCache cache1 = new RepositoryRevisionCache(myConfig, repository("1"), RevisionCacheType.COMMIT_CACHE, 100, Runnable::run);
+    RepositoryRevisionCache cache2 = new RepositoryRevisionCache(myConfig, repository("1"), RevisionCacheType.COMMIT_CACHE, 100, Runnable::run);
+    RepositoryRevisionCache cache3 = new RepositoryRevisionCache(myConfig, repository("1"), RevisionCacheType.HINT_CACHE, 100, Runnable::run);
     then(cache1).isEqualTo(cache2);
     then(cache1).isNotEqualTo(cache3);
 
-    cache1.saveRevision("v1", true, cache1.getResetCounter());
-    cache1.saveRevision("v2", false, cache1.getResetCounter());
-    cache2.saveRevision("v1", true, cache2.getResetCounter());
-    cache2.saveRevision("v2", false, cache2.getResetCounter());
+    cache1.saveRevision(v(1), true, cache1.getResetCounter());
+    cache1.saveRevision(v(2), false, cache1.getResetCounter());
+    cache2.saveRevision(v(1), true, cache2.getResetCounter());
+    cache2.saveRevision(v(2), false, cache2.getResetCounter());
 
     then(cache1).isEqualTo(cache2);
 
-    cache1.saveRevision("v3", true, cache1.getResetCounter());
+    cache1.saveRevision(v(3), true, cache1.getResetCounter());
 
     then(cache1).isNotEqualTo(cache2);
 
-    cache2.saveRevision("v3", true, cache2.getResetCounter());
-    cache2.saveRevision("v4", false, cache2.getResetCounter());
+    cache2.saveRevision(v(3), true, cache2.getResetCounter());
+    cache2.saveRevision(v(4), false, cache2.getResetCounter());
 
     then(cache1).isNotEqualTo(cache2);
   }
@@ -162,7 +164,7 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
   public void should_write_empty_cache() throws Exception {
     File repo = repository("1");
     RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
-    repoCache.saveRevision("v1", false, repoCache.getResetCounter());
+    repoCache.saveRevision(v(1), false, repoCache.getResetCounter());
 
     myCache.resetNegativeEntries(repo);
 
@@ -173,14 +175,30 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
   public void should_detect_broken_cache() throws Exception {
     File repo = repository("1");
     RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
-    repoCache.saveRevision("v1", false, repoCache.getResetCounter());
-    repoCache.saveRevision("v2", true, repoCache.getResetCounter());
-    repoCache.saveRevision("v3", false, repoCache.getResetCounter());
+    repoCache.saveRevision(v(1), false, repoCache.getResetCounter());
+    repoCache.saveRevision(v(2), true, repoCache.getResetCounter());
+    repoCache.saveRevision(v(3), false, repoCache.getResetCounter());
 
-    FileUtil.writeFile(RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE), "broken\n+data");
+    File cacheFile = RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE);
+    FileUtil.writeFile(cacheFile, "broken\n+data");
+
+    try {
+      RepositoryRevisionCache.read(myConfig, repo, RevisionCacheType.COMMIT_CACHE, 100, Runnable::run);
+      fail("Should fail to read broken cache");
+    } catch (IOException e) {
+      then(e.getMessage()).isEqualTo("Bad revisions cache header in " + cacheFile.getAbsolutePath());
+    }
+  }
+
+
+  public void should_detect_broken_legacy_cache() throws Exception {
+    File repo = repository("1");
+    File legacyCacheFile = RepositoryRevisionCache.getLegacyCacheFile(repo, RevisionCacheType.COMMIT_CACHE);
+    legacyCacheFile.getParentFile().mkdirs();
+    FileUtil.writeFile(legacyCacheFile, "broken\n+data");
 
     try {
-      RepositoryRevisionCache.read(myConfig, repo, RevisionCacheType.COMMIT_CACHE, 100);
+      RepositoryRevisionCache.read(myConfig, repo, RevisionCacheType.COMMIT_CACHE, 100, Runnable::run);
       fail("Should fail to read broken cache");
     } catch (IOException e) {
       then(e.getMessage()).isEqualTo("Bad cache line 'broken'");
@@ -188,17 +206,74 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
   }
 
 
+  public void should_convert_legacy_cache() throws Exception {
+    File repo = repository("1");
+    File legacyCacheFile = RepositoryRevisionCache.getLegacyCacheFile(repo, RevisionCacheType.COMMIT_CACHE);
+    legacyCacheFile.getParentFile().mkdirs();
+    FileUtil.writeFile(legacyCacheFile, "-" + v(1).name() + "\n+" + v(2).name() + "\n+v3\n");
+
+    RepositoryRevisionCache repoCache = new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
+
+    then(repoCache.hasRevision(v(1))).isFalse();
+    then(repoCache.hasRevision(v(2))).isTrue();
+    then(legacyCacheFile).doesNotExist();
+    then(RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE)).exists();
+    then(repoCache).isEqualTo(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE));
+  }
+
+
+  public void should_append_updates_to_journal() throws Exception {
+    File repo = repository("1");
+    RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
+    File cacheFile = RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE);
+    repoCache.saveRevision(v(1), false, repoCache.getResetCounter());
+    long initialLength = cacheFile.length();
+
+    repoCache.saveRevision(v(2), false, repoCache.getResetCounter());
+    repoCache.saveRevision(v(1), true, repoCache.getResetCounter());
+    then(cacheFile.length()).isEqualTo(initialLength + 2 * 21);
+
+    myCache.resetNegativeEntries(repo);
+    then(cacheFile.length()).isEqualTo(initialLength + 3 * 21);
+
+    RepositoryRevisionCache restored = new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
+    then(restored.hasRevision(v(1))).isTrue();
+    then(restored.hasRevision(v(2))).isNull();
+    then(restored).isEqualTo(repoCache);
+  }
+
+
+  public void should_ignore_incomplete_journal_record() throws Exception {
+    File repo = repository("1");
+    RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
+    repoCache.saveRevision(v(1), true, repoCache.getResetCounter());
+    repoCache.saveRevision(v(2), false, repoCache.getResetCounter());
+    File cacheFile = RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE);
+    long length = cacheFile.length();
+    try (FileOutputStream out = new FileOutputStream(cacheFile, true)) {
+      out.write(new byte[] {1, 2, 3});
+    }
+
+    RepositoryRevisionCache restored = new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
+    then(restored).isEqualTo(repoCache);
+    then(cacheFile.length()).isEqualTo(length);
+
+    restored.saveRevision(v(3), true, restored.getResetCounter());
+    then(new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE).hasRevision(v(3))).isTrue();
+  }
+
+
   public void disable_persist() throws Exception {
     myConfigBuilder.setPersistentCacheEnabled(false);
 
     File repo = repository("1");
     RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
-    repoCache.saveRevision("v1", false, repoCache.getResetCounter());
+    repoCache.saveRevision(v(1), false, repoCache.getResetCounter());
     then(RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE)).doesNotExist();
 
     myConfigBuilder.setPersistentCacheEnabled(true);
-    repoCache.saveRevision("v1", false, repoCache.getResetCounter());
-    repoCache.saveRevision("v2", false, repoCache.getResetCounter());
+    repoCache.saveRevision(v(1), false, repoCache.getResetCounter());
+    repoCache.saveRevision(v(2), false, repoCache.getResetCounter());
     then(RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE)).exists();
   }
 
@@ -207,14 +282,14 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
     //in order to not load stale data after restart
     File repo = repository("1");
     RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
-    repoCache.saveRevision("v1", false, repoCache.getResetCounter());
+    repoCache.saveRevision(v(1), false, repoCache.getResetCounter());
 
     myConfigBuilder.setPersistentCacheEnabled(false);
-    repoCache.saveRevision("v1", true, repoCache.getResetCounter());
+    repoCache.saveRevision(v(1), true, repoCache.getResetCounter());
 
     myConfigBuilder.setPersistentCacheEnabled(true);
     RepositoryRevisionCache repoCache2 = new RevisionsCache(myConfig).getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
-    then(repoCache2.hasRevision("v1")).isNull();//should have no information on v1 after restart, especially 'false'
+    then(repoCache2.hasRevision(v(1))).isNull();//should have no information on v1 after restart, especially 'false'
   }
 
 
@@ -222,18 +297,18 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
     File repo = repository("1");
     RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
     File cacheFile = RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE);
-    repoCache.saveRevision("v1", true, repoCache.getResetCounter());
+    repoCache.saveRevision(v(1), true, repoCache.getResetCounter());
     then(cacheFile).exists();
 
     FileUtil.delete(cacheFile);
 
-    repoCache.saveRevision("v1", true, repoCache.getResetCounter());
+    repoCache.saveRevision(v(1), true, repoCache.getResetCounter());
     then(cacheFile).doesNotExist();
 
     myCache.resetNegativeEntries(repo);
     then(cacheFile).doesNotExist();
 
-    myCache.resetNegativeEntries(repo, setOf("v2"));
+    myCache.resetNegativeEntries(repo, setOf(v(2)));
     then(cacheFile).doesNotExist();
   }
 
@@ -248,7 +323,7 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
     File repo = repository("1");
     RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
     for (int i = 0; i < 100; i++) {
-      repoCache.saveRevision("v" + i, true, repoCache.getResetCounter());
+      repoCache.saveRevision(v(i), true, repoCache.getResetCounter());
     }
 
     if (afterRestart) {
@@ -257,13 +332,31 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
     }
 
     for (int i = 100 - cacheSize; i < 100; i++) {
-      then(repoCache.hasRevision("v" + i))
+      then(repoCache.hasRevision(v(i)))
         .overridingErrorMessage("Doesn't contain entry for revision v" + i)
         .isTrue();
     }
   }
 
 
+  public void should_evict_least_recently_used_revision() throws Exception {
+    RepositoryRevisionCache repoCache = new RepositoryRevisionCache(myConfig, repository("1"), RevisionCacheType.COMMIT_CACHE, 3, Runnable::run);
+    for (int i = 0; i < 3; i++) {
+      repoCache.saveRevision(v(i), i % 2 == 0, repoCache.getResetCounter());
+    }
+    then(repoCache.hasRevision(v(0))).isTrue();
+
+    repoCache.saveRevision(v(3), true, repoCache.getResetCounter());
+    repoCache.saveRevision(v(4), false, repoCache.getResetCounter());
+
+    then(repoCache.hasRevision(v(0))).isTrue();
+    then(repoCache.hasRevision(v(1))).isNull();
+    then(repoCache.hasRevision(v(2))).isNull();
+    then(repoCache.hasRevision(v(3))).isTrue();
+    then(repoCache.hasRevision(v(4))).isFalse();
+  }
+
+
   @DataProvider
   public static Object[][] reset() {
     return new Object[][]{
@@ -277,14 +370,14 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
       new Object[] {new ResetCacheConsumer("reset v1") {
         @Override
         protected void run(RevisionsCache cache, File repo) throws Exception {
-          cache.resetNegativeEntries(repo, setOf("v1"));
+          cache.resetNegativeEntries(repo, setOf(v(1)));
         }
       }},
 
       new Object[] {new ResetCacheConsumer("reset v2") {
         @Override
         protected void run(RevisionsCache cache, File repo) throws Exception {
-          cache.resetNegativeEntries(repo, setOf("v2"));
+          cache.resetNegativeEntries(repo, setOf(v(2)));
         }
       }}
     };
@@ -303,11 +396,11 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
       try {
         RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
         long resetCounter = repoCache.getResetCounter();
-        if (repoCache.hasRevision("v1") == null) {
+        if (repoCache.hasRevision(v(1)) == null) {
           s1.release();
           //long commit lookup (we didn't find it)
           s2.acquire();
-          repoCache.saveRevision("v1", false, resetCounter);
+          repoCache.saveRevision(v(1), false, resetCounter);
         }
       } catch (Exception e) {
         e.printStackTrace();
@@ -322,7 +415,7 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
     s2.release();
     mapFullPath.join();
 
-    then(myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE).hasRevision("v1")).isNull();
+    then(myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE).hasRevision(v(1))).isNull();
   }
 
 
@@ -342,7 +435,7 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
       int repoNum = Integer.parseInt(repo.getName());
       for (int i = 0; i < 4; i++) {
         boolean contains = repoNum == i;
-        cache.saveRevision("v" + i, contains, cache.getResetCounter());
+        cache.saveRevision(v(i), contains, cache.getResetCounter());
       }
     }
 
@@ -352,17 +445,17 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
       RepositoryRevisionCache cache = myCache.getRepositoryCache(repo, RevisionCacheType.HINT_CACHE);
       for (int i = 0; i < 4; i++) {
         boolean contains = repoNum == i;
-        then(cache.hasRevision("v" + i)).isEqualTo(contains);
+        then(cache.hasRevision(v(i))).isEqualTo(contains);
       }
     }
 
     RepositoryRevisionCache cache5 = myCache.getRepositoryCache(repository("5"), RevisionCacheType.HINT_CACHE);
-    cache5.saveRevision("v1", false, cache5.getResetCounter());
-    cache5.saveRevision("v2", false, cache5.getResetCounter());
-    cache5.saveRevision("v3", false, cache5.getResetCounter());
-    then(cache5.hasRevision("v1")).isFalse();
-    then(cache5.hasRevision("v2")).isFalse();
-    then(cache5.hasRevision("v3")).isFalse();
+    cache5.saveRevision(v(1), false, cache5.getResetCounter());
+    cache5.saveRevision(v(2), false, cache5.getResetCounter());
+    cache5.saveRevision(v(3), false, cache5.getResetCounter());
+    then(cache5.hasRevision(v(1))).isFalse();
+    then(cache5.hasRevision(v(2))).isFalse();
+    then(cache5.hasRevision(v(3))).isFalse();
   }
 
 
@@ -370,15 +463,15 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
     File repo = repository("1");
     RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, RevisionCacheType.COMMIT_CACHE);
     long resetCounter = repoCache.getResetCounter();
-    repoCache.saveRevision("v1", true, resetCounter);
+    repoCache.saveRevision(v(1), true, resetCounter);
 
     repoCache.reset();
 
-    then(repoCache.hasRevision("v1")).isNull();
+    then(repoCache.hasRevision(v(1))).isNull();
     then(RepositoryRevisionCache.getCacheFile(repo, RevisionCacheType.COMMIT_CACHE)).doesNotExist();
 
-    repoCache.saveRevision("v2", false, resetCounter);
-    then(repoCache.hasRevision("v2")).isNull();
+    repoCache.saveRevision(v(2), false, resetCounter);
+    then(repoCache.hasRevision(v(2))).isNull();
   }
 
 
@@ -389,7 +482,7 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
       repos.add(repo);
       for (RevisionCacheType type : RevisionCacheType.values()) {
         RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, type);
-        repoCache.saveRevision("v1", true, repoCache.getResetCounter());
+        repoCache.saveRevision(v(1), true, repoCache.getResetCounter());
       }
     }
 
@@ -398,15 +491,21 @@ public class RevisionsCacheTest extends BaseRemoteRepositoryTest {
     for (File repo : repos) {
       for (RevisionCacheType type : RevisionCacheType.values()) {
         RepositoryRevisionCache repoCache = myCache.getRepositoryCache(repo, type);
-        then(repoCache.hasRevision("v1")).isNull();
+        then(repoCache.hasRevision(v(1))).isNull();
         then(RepositoryRevisionCache.getCacheFile(repo, type)).doesNotExist();
-        repoCache.saveRevision("v2", false, 0);
-        then(repoCache.hasRevision("v2")).isNull();
+        repoCache.saveRevision(v(2), false, 0);
+        then(repoCache.hasRevision(v(2))).isNull();
       }
     }
   }
 
 
+  @NotNull
+  private static ObjectId v(int revision) {
+    return ObjectId.fromString(String.format("%040x", revision));
+  }
+
+
   @NotNull
   private File repository(@NotNull String name) {
     File result = new File(myConfig.getCachesDir(), name);
@@ -112,6 +112,30 @@ public class SubmoduleTest {
     }
   }
 
+  @Test
+  public void submodules_config_is_parsed_once_per_dot_gitmodules() throws Exception {
+    Repository r = new RepositoryBuilder().setGitDir(dataFile("repo.git")).build();
+    OperationContext context = myGitSupport.createContext(vcsRoot().withFetchUrl("whatever").build(), "testing");
+    try {
+      RevWalk revWalk = new RevWalk(r);
+      RevCommit submoduleAdded = revWalk.parseCommit(ObjectId.fromString(GitUtils.versionRevision(GitVcsSupportTest.SUBMODULE_ADDED_VERSION)));
+      RevCommit submoduleModified = revWalk.parseCommit(ObjectId.fromString(GitUtils.versionRevision(GitVcsSupportTest.SUBMODULE_MODIFIED_VERSION)));
+      RevCommit beforeSubmoduleAdded = revWalk.parseCommit(ObjectId.fromString(GitUtils.versionRevision(GitVcsSupportTest.BEFORE_SUBMODULE_ADDED_VERSION)));
+
+      SubmodulesConfig config = context.getSubmodulesConfig(r, submoduleAdded);
+      assertNotNull(config);
+      assertEquals(config.findSubmodule("submodule").getUrl(), "../submodule.git");
+      //both commits have the same .gitmodules
+      assertSame(context.getSubmodulesConfig(r, submoduleModified), config);
+      assertNull(context.getSubmodulesConfig(r, beforeSubmoduleAdded));
+
+      assertSame(context.getCommit(r, submoduleAdded), context.getCommit(r, submoduleAdded.copy()));
+    } finally {
+      context.close();
+      r.close();
+    }
+  }
+
   /**
    * Test tree walk over submodules
    *
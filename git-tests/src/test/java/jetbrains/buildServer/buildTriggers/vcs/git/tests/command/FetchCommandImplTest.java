@@ -127,7 +127,7 @@ public class FetchCommandImplTest extends BaseTestCase {
 
       @NotNull
       @Override
-      public File generateCredentialHelper() throws IOException {
+      public File generateCredentialHelper(boolean deleteOnErase) throws IOException {
         return createTempFile();
       }
     };
@@ -292,6 +292,42 @@ public class GitProxyServiceTests extends BaseServerTestCase {
     }
   }
 
+  @Test
+  public void testShouldStopRetrievingPagesWhenSinkStops() throws VcsException {
+    setInternalProperty("teamcity.git.gitProxy.commitsPerPage", 1);
+    CommitList page1 = new CommitList();
+    page1.totalMatched = 2;
+    page1.commits = Arrays.asList(new Commit("rev3", new CommitInfo("rev3", "", "commit3", new Person("user", "user@email.com"), 1, new Person("user", "user@email.com"), 2,
+                                                                    Arrays.asList("rev2"))));
+    CommitList page2 = new CommitList();
+    page2.totalMatched = 2;
+    page2.commits = Arrays.asList(new Commit("rev2", new CommitInfo("rev2", "", "commit2", new Person("user", "user@email.com"), 1, new Person("user", "user@email.com"), 2,
+                                                                    Arrays.asList("rev1"))));
+    Mockito.doReturn(page1).when(myGitRepoApi).listCommits(Arrays.asList(new Pair<>("id-range", asSet(Arrays.asList("^rev1", "rev3")))), 0, 1, false, true);
+    Mockito.doReturn(page2).when(myGitRepoApi).listCommits(Arrays.asList(new Pair<>("id-range", asSet(Arrays.asList("^rev1", "rev3")))), 1, 1, false, true);
+    Mockito.doReturn(Arrays.asList(new CommitChange("rev3", "rev2", false, Arrays.asList(new FileChange(ChangeType.Modified, "file1", "file1", EntryType.File)))))
+           .when(myGitRepoApi).listChanges(Arrays.asList("rev3"), false, false, false, false, 10_000);
+    Mockito.doReturn(Arrays.asList(new CommitChange("rev2", "rev1", false, Arrays.asList(new FileChange(ChangeType.Modified, "file2", "file2", EntryType.File)))))
+           .when(myGitRepoApi).listChanges(Arrays.asList("rev2"), false, false, false, false, 10_000);
+
+    RepositoryStateData fromState = RepositoryStateData.createVersionState("master", map("master", "rev1"));
+    RepositoryStateData toState = RepositoryStateData.createVersionState("master", map("master", "rev3"));
+
+    List<ModificationData> all = new ArrayList<>();
+    then(myCollectChangesPolicy.collectChanges(myVcsRootInstance, fromState, toState, false, data -> all.add(data))).isNull();
+    then(all).extracting(ModificationData::getVersion).containsExactly("rev3", "rev2");
+
+    Mockito.clearInvocations(myGitRepoApi);
+    List<ModificationData> first = new ArrayList<>();
+    myCollectChangesPolicy.collectChanges(myVcsRootInstance, fromState, toState, false, data -> {
+      first.add(data);
+      return false;
+    });
+    then(first).extracting(ModificationData::getVersion).containsExactly("rev3");
+    Mockito.verify(myGitRepoApi, Mockito.times(1)).listCommits(Mockito.any(), Mockito.anyInt(), Mockito.anyInt(), Mockito.anyBoolean(), Mockito.anyBoolean());
+    Mockito.verify(myGitRepoApi, Mockito.times(1)).listChanges(Mockito.any(), Mockito.anyBoolean(), Mockito.anyBoolean(), Mockito.anyBoolean(), Mockito.anyBoolean(), Mockito.anyInt());
+  }
+
   private void assertModificationDataEqual(@NotNull List<ModificationData> expected, @NotNull List<ModificationData> actual) {
     then(actual).hasSameSizeAs(expected);
     for (int i = 0; i < expected.size(); i++) {